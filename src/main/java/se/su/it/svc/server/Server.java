@@ -30,21 +30,58 @@
  */
 package se.su.it.svc.server;
 
+import org.eclipse.jetty.http.security.Constraint;
+import org.eclipse.jetty.security.ConstraintMapping;
+import org.eclipse.jetty.security.ConstraintSecurityHandler;
+import org.eclipse.jetty.security.authentication.SpnegoAuthenticator;
+import org.eclipse.jetty.server.AbstractConnector;
 import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.DispatcherType;
 import org.eclipse.jetty.server.Handler;
 import org.eclipse.jetty.server.bio.SocketConnector;
+import org.eclipse.jetty.server.handler.ContextHandler;
 import org.eclipse.jetty.server.handler.DefaultHandler;
 import org.eclipse.jetty.server.handler.HandlerCollection;
 import org.eclipse.jetty.server.handler.RequestLogHandler;
 import org.eclipse.jetty.server.ssl.SslSocketConnector;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
 import org.eclipse.jetty.webapp.WebAppClassLoader;
 import org.eclipse.jetty.webapp.WebAppContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import se.su.it.svc.server.audit.AuditPolicy;
+import se.su.it.svc.server.batch.BatchServlet;
+import se.su.it.svc.server.filter.AdmissionHandler;
+import se.su.it.svc.server.filter.CorrelationIdHandler;
+import se.su.it.svc.server.filter.HealthHandler;
+import se.su.it.svc.server.filter.HttpCacheFilter;
+import se.su.it.svc.server.filter.LaneHandler;
+import se.su.it.svc.server.filter.MetricsHandler;
+import se.su.it.svc.server.filter.ProfilerHandler;
+import se.su.it.svc.server.filter.RequestSizeHandler;
+import se.su.it.svc.server.filter.SlowRequestHandler;
 import se.su.it.svc.server.filter.StatusHandler;
+import se.su.it.svc.server.health.HealthMonitor;
+import se.su.it.svc.server.health.HealthProbe;
+import se.su.it.svc.server.health.ThreadPoolProbe;
+import se.su.it.svc.server.jmx.ConnectorControl;
+import se.su.it.svc.server.jmx.Jmx;
+import se.su.it.svc.server.jmx.ThreadPoolControl;
+import se.su.it.svc.server.limit.AdaptiveLimiter;
+import se.su.it.svc.server.limit.RateLimiter;
+import se.su.it.svc.server.log.AsyncRequestLogWriter;
 import se.su.it.svc.server.log.CommonRequestLog;
+import se.su.it.svc.server.metrics.Gauge;
+import se.su.it.svc.server.metrics.JettyCollector;
+import se.su.it.svc.server.metrics.JvmCollector;
+import se.su.it.svc.server.metrics.MetricsRegistry;
+import se.su.it.svc.server.profile.SamplingProfiler;
 import se.su.it.svc.server.security.SpnegoAndKrb5LoginService;
 import se.su.it.svc.server.security.SuCxfAuthenticator;
+import se.su.it.svc.server.timing.ServerTiming;
+import se.su.it.svc.server.timing.SlowRequestRecorder;
+import se.su.it.svc.server.timing.TimedJobQueue;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -52,6 +89,7 @@ import java.io.IOException;
 import java.net.URL;
 import java.security.ProtectionDomain;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
 
 public abstract class Server {
   private static final Logger LOG = LoggerFactory.getLogger(Server.class);
@@ -67,6 +105,51 @@ public abstract class Server {
   public static final String SPNEGO_REALM_PROPERTY_KEY = "spnego.realm";
   public static final String SPNEGO_KDC_PROPERTY_KEY = "spnego.kdc";
   public static final String SPNEGO_TARGET_NAME_PROPERTY_KEY = "spnego.targetName";
+  public static final String REQUESTLOG_FILE_PROPERTY_KEY = "requestlog.file";
+  public static final String REQUESTLOG_QUEUE_SIZE_PROPERTY_KEY = "requestlog.queueSize";
+  public static final String REQUESTLOG_FLUSH_INTERVAL_PROPERTY_KEY = "requestlog.flushInterval";
+  public static final String REQUESTLOG_MAX_FILE_SIZE_PROPERTY_KEY = "requestlog.maxFileSize";
+  public static final String REQUESTLOG_MAX_FILE_AGE_PROPERTY_KEY = "requestlog.maxFileAge";
+  public static final String HEALTH_INTERVAL_PROPERTY_KEY = "health.interval";
+  public static final String HEALTH_MAX_SATURATION_PROPERTY_KEY = "health.threadPool.maxSaturation";
+  public static final String SLOWREQUESTS_SIZE_PROPERTY_KEY = "slowrequests.size";
+  public static final String SLOWREQUESTS_MAX_OVER_THRESHOLD_PROPERTY_KEY = "slowrequests.maxOverThreshold";
+  public static final String SLOWREQUESTS_THRESHOLD_PROPERTY_KEY = "slowrequests.threshold";
+  public static final String SLOWREQUESTS_WINDOW_PROPERTY_KEY = "slowrequests.window";
+  public static final String PROFILER_ROLE_PROPERTY_KEY = "profiler.role";
+  public static final String SERVERTIMING_ENABLED_PROPERTY_KEY = "servertiming.enabled";
+  public static final String SERVERTIMING_HEADER_PROPERTY_KEY = "servertiming.header";
+  public static final String SERVERTIMING_TOKEN_PROPERTY_KEY = "servertiming.token";
+  public static final String RATELIMIT_RATE_PROPERTY_KEY = "ratelimit.rate";
+  public static final String RATELIMIT_PRINCIPAL_PROPERTY_PREFIX = "ratelimit.principal.";
+  public static final String RATELIMIT_ROLE_PROPERTY_PREFIX = "ratelimit.role.";
+  public static final String RATELIMIT_MAX_PRINCIPALS_PROPERTY_KEY = "ratelimit.maxPrincipals";
+  public static final String ADMISSION_ENABLED_PROPERTY_KEY = "admission.enabled";
+  public static final String ADMISSION_INITIAL_LIMIT_PROPERTY_KEY = "admission.initialLimit";
+  public static final String ADMISSION_MIN_LIMIT_PROPERTY_KEY = "admission.minLimit";
+  public static final String ADMISSION_MAX_LIMIT_PROPERTY_KEY = "admission.maxLimit";
+  public static final String ADMISSION_QUEUE_SIZE_PROPERTY_KEY = "admission.queueSize";
+  public static final String ADMISSION_MAX_WAIT_PROPERTY_KEY = "admission.maxWait";
+  public static final String ADMISSION_SHEDDABLE_SHARE_PROPERTY_KEY = "admission.sheddableShare";
+  public static final String LANES_ENABLED_PROPERTY_KEY = "lanes.enabled";
+  public static final String LANES_STATUS_PORT_PROPERTY_KEY = "lanes.status.port";
+  public static final String LANES_STATUS_THREADS_PROPERTY_KEY = "lanes.status.threads";
+  public static final String LANES_WSDL_MAX_PROPERTY_KEY = "lanes.wsdl.max";
+  public static final String LANES_WSDL_QUEUE_PROPERTY_KEY = "lanes.wsdl.queue";
+  public static final String LANES_SOAP_MAX_PROPERTY_KEY = "lanes.soap.max";
+  public static final String LANES_SOAP_QUEUE_PROPERTY_KEY = "lanes.soap.queue";
+  public static final String LANES_MAX_WAIT_PROPERTY_KEY = "lanes.maxWait";
+  public static final String REQUEST_MAX_BODY_SIZE_PROPERTY_KEY = "request.maxBodySize";
+  public static final String ATTACHMENT_MEMORY_THRESHOLD_PROPERTY_KEY = "attachment.memoryThreshold";
+  public static final String ATTACHMENT_DIRECTORY_PROPERTY_KEY = "attachment.directory";
+  public static final String ATTACHMENT_MAX_SIZE_PROPERTY_KEY = "attachment.maxSize";
+  public static final String BATCH_ENABLED_PROPERTY_KEY = "batch.enabled";
+  public static final String BATCH_PATH_PROPERTY_KEY = "batch.path";
+  public static final String BATCH_THREADS_PROPERTY_KEY = "batch.threads";
+  public static final String BATCH_PARALLELISM_PROPERTY_KEY = "batch.parallelism";
+  public static final String BATCH_MAX_CALLS_PROPERTY_KEY = "batch.maxCalls";
+  public static final String BATCH_CXF_SERVLET_PATH_PROPERTY_KEY = "batch.cxfServletPath";
+  public static final String AUDIT_HASH_KEY_FILE_PROPERTY_KEY = "audit.hashKeyFile";
 
   private static final ArrayList<String> MANDATORY_PROPERTIES = new ArrayList<String>() {{
     add(PORT_PROPERTY_KEY);
@@ -106,8 +189,16 @@ public abstract class Server {
 
     try {
 
+      configureAttachments(config);
+      configureAuditHashKey(config);
+
       org.eclipse.jetty.server.Server server = new org.eclipse.jetty.server.Server();
 
+      // Give the thread pool a queue we can read the depth of, and that measures how long jobs wait
+      TimedJobQueue jobs = new TimedJobQueue();
+      QueuedThreadPool threadPool = new QueuedThreadPool(jobs);
+      server.setThreadPool(threadPool);
+
       if (sslEnabled) {
         SslSocketConnector connector = new SslSocketConnector();
 
@@ -117,6 +208,7 @@ public abstract class Server {
         }
         connector.setKeystore(sslKeystore);
         connector.setPassword(sslPassword);
+        connector.setStatsOn(true);
 
         server.setConnectors(new Connector[]{connector});
       } else {
@@ -125,8 +217,10 @@ public abstract class Server {
         if (jettyBindAddress != null && jettyBindAddress.length() > 0) {
           connector.setHost(jettyBindAddress);
         }
+        connector.setStatsOn(true);
         server.setConnectors(new Connector[]{connector});
       }
+      Connector[] connectors = server.getConnectors();
 
       ProtectionDomain protectionDomain = Server.class.getProtectionDomain();
       URL location = protectionDomain.getCodeSource().getLocation();
@@ -136,16 +230,94 @@ public abstract class Server {
       context.setContextPath("/");
       context.setWar(location.toExternalForm());
       context.setClassLoader(new WebAppClassLoader(context.getClass().getClassLoader(), context));
+      // Share the metrics registry between the server and the web application
+      context.addSystemClass("se.su.it.svc.server.metrics.");
+      context.addSystemClass("se.su.it.svc.server.health.");
+      context.addSystemClass("se.su.it.svc.server.timing.");
+      // Let the server check admin roles with the authorizor of the web application
+      context.addSystemClass("se.su.it.svc.server.security.Authorizor");
+      context.addSystemClass("se.su.it.svc.server.security.SharedAuthorizor");
+      // Let batches charge each of their calls to the rate limit of the server
+      context.addSystemClass("se.su.it.svc.server.limit.RateLimiter");
+
+      // Add caching headers to GET responses of @HttpGet web methods
+      context.addFilter(HttpCacheFilter.class.getName(), "/*", EnumSet.of(DispatcherType.REQUEST));
+
+      if (Boolean.parseBoolean(config.getProperty(BATCH_ENABLED_PROPERTY_KEY))) {
+        addBatchServlet(context, config);
+      }
 
       RequestLogHandler requestLogHandler = new RequestLogHandler();
       StatusHandler statusHandler = new StatusHandler();
+      SlowRequestHandler slowRequestHandler = new SlowRequestHandler();
+      MetricsHandler metricsHandler = new MetricsHandler();
+      HealthHandler healthHandler = new HealthHandler();
+
+      List<Handler> handlerList = new ArrayList<Handler>();
+      handlerList.add(statusHandler);
+      handlerList.add(slowRequestHandler);
+      handlerList.add(metricsHandler);
+      handlerList.add(healthHandler);
+
+      ConstraintSecurityHandler profilerSecurity = null;
+      String profilerRole = config.getProperty(PROFILER_ROLE_PROPERTY_KEY);
+      if (profilerRole != null && profilerRole.trim().length() > 0) {
+        profilerSecurity = createProfilerSecurity(profilerRole.trim(), threadPool);
+        ContextHandler profilerContext = new ContextHandler(ProfilerHandler.PATH);
+        profilerContext.setAllowNullPathInfo(true);
+        profilerContext.setHandler(profilerSecurity);
+        handlerList.add(profilerContext);
+      }
+
+      // Admit requests to the web application within a concurrency limit that adapts to its latency
+      if (Boolean.parseBoolean(config.getProperty(ADMISSION_ENABLED_PROPERTY_KEY))) {
+        AdmissionHandler admissionHandler = new AdmissionHandler();
+        admissionHandler.setLimiter(createAdaptiveLimiter(config));
+        admissionHandler.setHandler(context);
+        handlerList.add(admissionHandler);
+      } else {
+        handlerList.add(context);
+      }
+      handlerList.add(new DefaultHandler());
 
       HandlerCollection handlers = new HandlerCollection();
-      handlers.setHandlers(new Handler[]{statusHandler, context, new DefaultHandler(), requestLogHandler});
-      server.setHandler(handlers);
+      handlers.setHandlers(handlerList.toArray(new Handler[handlerList.size()]));
+
+      // Sort requests into lanes with their own share of the threads before they are served
+      Handler served = handlers;
+      if (Boolean.parseBoolean(config.getProperty(LANES_ENABLED_PROPERTY_KEY))) {
+        LaneHandler laneHandler = createLaneHandler(config, server, jettyBindAddress);
+        laneHandler.setHandler(handlers);
+        served = laneHandler;
+      }
+
+      // Refuse too large requests before they are read or take a lane
+      String maxBodySize = config.getProperty(REQUEST_MAX_BODY_SIZE_PROPERTY_KEY);
+      if (maxBodySize != null && maxBodySize.trim().length() > 0) {
+        RequestSizeHandler requestSizeHandler = new RequestSizeHandler(MetricsRegistry.getDefault());
+        requestSizeHandler.setMaxBodySize(Long.parseLong(maxBodySize.trim()));
+        requestSizeHandler.setHandler(served);
+        served = requestSizeHandler;
+      }
+
+      // Log requests rejected by a lane or for their size too
+      HandlerCollection loggedHandlers = new HandlerCollection();
+      loggedHandlers.setHandlers(new Handler[]{served, requestLogHandler});
+
+      // Give every request a correlation id before any other handler sees it
+      CorrelationIdHandler correlationIdHandler = new CorrelationIdHandler();
+      correlationIdHandler.setHandler(loggedHandlers);
+      server.setHandler(correlationIdHandler);
 
       // Setup request logging
-      requestLogHandler.setRequestLog(new CommonRequestLog());
+      CommonRequestLog requestLog = createRequestLog(config);
+      requestLogHandler.setRequestLog(requestLog);
+      slowRequestHandler.setRecorder(requestLog.getSlowRequests());
+
+      registerMetrics(MetricsRegistry.getDefault(), threadPool, jobs, connectors, requestLog);
+      registerMBeans(threadPool, jobs, connectors);
+
+      configureServerTiming(ServerTiming.getDefault(), config);
 
       // Setup spnego conf
       if(! new File(loginConfig).exists()) {
@@ -161,8 +333,19 @@ public abstract class Server {
       context.getSecurityHandler().setLoginService(loginService);
 
       SuCxfAuthenticator authenticator = new SuCxfAuthenticator();
+      RateLimiter rateLimiter = createRateLimiter(config);
+      if (rateLimiter.isEnabled()) {
+        authenticator.setRateLimiter(rateLimiter);
+        context.setAttribute(BatchServlet.RATE_LIMITER_ATTRIBUTE, rateLimiter);
+      }
       context.getSecurityHandler().setAuthenticator(authenticator);
 
+      if (profilerSecurity != null) {
+        profilerSecurity.setLoginService(loginService);
+      }
+
+      startHealthMonitor(HealthMonitor.getDefault(), config, threadPool, jobs, loginService);
+
       server.start();
       LOG.info("Server ready...");
       server.join();
@@ -172,6 +355,322 @@ public abstract class Server {
     }
   }
 
+  private CommonRequestLog createRequestLog(Properties config) {
+    CommonRequestLog requestLog = new CommonRequestLog();
+
+    String file = config.getProperty(REQUESTLOG_FILE_PROPERTY_KEY);
+    if (file != null && file.trim().length() > 0) {
+      AsyncRequestLogWriter writer = new AsyncRequestLogWriter();
+      writer.setFile(new File(file.trim()));
+
+      String queueSize = config.getProperty(REQUESTLOG_QUEUE_SIZE_PROPERTY_KEY);
+      if (queueSize != null)
+        writer.setQueueSize(Integer.parseInt(queueSize.trim()));
+      String flushInterval = config.getProperty(REQUESTLOG_FLUSH_INTERVAL_PROPERTY_KEY);
+      if (flushInterval != null)
+        writer.setFlushInterval(Long.parseLong(flushInterval.trim()));
+      String maxFileSize = config.getProperty(REQUESTLOG_MAX_FILE_SIZE_PROPERTY_KEY);
+      if (maxFileSize != null)
+        writer.setMaxFileSize(Long.parseLong(maxFileSize.trim()));
+      String maxFileAge = config.getProperty(REQUESTLOG_MAX_FILE_AGE_PROPERTY_KEY);
+      if (maxFileAge != null)
+        writer.setMaxFileAge(Long.parseLong(maxFileAge.trim()));
+
+      requestLog.setWriter(writer);
+      LOG.info("Writing request log asynchronously to " + writer.getFile());
+    }
+
+    SlowRequestRecorder slowRequests = new SlowRequestRecorder();
+    String size = config.getProperty(SLOWREQUESTS_SIZE_PROPERTY_KEY);
+    if (size != null)
+      slowRequests.setSize(Integer.parseInt(size.trim()));
+    String maxOverThreshold = config.getProperty(SLOWREQUESTS_MAX_OVER_THRESHOLD_PROPERTY_KEY);
+    if (maxOverThreshold != null)
+      slowRequests.setMaxOverThreshold(Integer.parseInt(maxOverThreshold.trim()));
+    String threshold = config.getProperty(SLOWREQUESTS_THRESHOLD_PROPERTY_KEY);
+    if (threshold != null)
+      slowRequests.setThreshold(Long.parseLong(threshold.trim()));
+    String window = config.getProperty(SLOWREQUESTS_WINDOW_PROPERTY_KEY);
+    if (window != null)
+      slowRequests.setWindow(Long.parseLong(window.trim()));
+    requestLog.setSlowRequests(slowRequests);
+
+    return requestLog;
+  }
+
+  private void registerMetrics(MetricsRegistry registry, QueuedThreadPool threadPool, BlockingQueue<Runnable> jobs,
+                               Connector[] connectors, CommonRequestLog requestLog) {
+    registry.register(new JettyCollector(threadPool, jobs, connectors));
+    registry.register(new JvmCollector());
+    registry.register(requestLog.getLatencies());
+
+    final AsyncRequestLogWriter writer = requestLog.getWriter();
+    if (writer != null) {
+      registry.gauge("cxf_server_request_log_queue_depth", "Request log entries waiting for the writer.", new Gauge() {
+        @Override
+        public double getValue() {
+          return writer.getQueueDepth();
+        }
+      });
+      registry.counter("cxf_server_request_log_dropped_total", "Request log entries dropped because the writer fell behind.", new Gauge() {
+        @Override
+        public double getValue() {
+          return writer.getDropped();
+        }
+      });
+    }
+  }
+
+  /**
+   * Create a security handler that requires SPNEGO authentication in front of the profiler, which in turn
+   * checks the role with the authorizor of the web application.
+   */
+  private ConstraintSecurityHandler createProfilerSecurity(String role, QueuedThreadPool threadPool) {
+    SamplingProfiler profiler = new SamplingProfiler();
+    profiler.setThreadNamePrefix(threadPool.getName() + "-");
+
+    ProfilerHandler profilerHandler = new ProfilerHandler();
+    profilerHandler.setProfiler(profiler);
+    profilerHandler.setRole(role);
+
+    Constraint constraint = new Constraint(Constraint.__SPNEGO_AUTH, Constraint.ANY_ROLE);
+    constraint.setAuthenticate(true);
+    ConstraintMapping mapping = new ConstraintMapping();
+    mapping.setPathSpec("/*");
+    mapping.setConstraint(constraint);
+
+    ConstraintSecurityHandler security = new ConstraintSecurityHandler();
+    security.setAuthenticator(new SpnegoAuthenticator());
+    security.addConstraintMapping(mapping);
+    security.setHandler(profilerHandler);
+
+    LOG.info("Profiler available at " + ProfilerHandler.PATH + " for role " + role);
+    return security;
+  }
+
+  private void configureServerTiming(ServerTiming serverTiming, Properties config) {
+    serverTiming.setEnabled(Boolean.parseBoolean(config.getProperty(SERVERTIMING_ENABLED_PROPERTY_KEY)));
+
+    String header = config.getProperty(SERVERTIMING_HEADER_PROPERTY_KEY);
+    if (header != null && header.trim().length() > 0)
+      serverTiming.setRequestHeader(header.trim());
+    String token = config.getProperty(SERVERTIMING_TOKEN_PROPERTY_KEY);
+    if (token != null)
+      serverTiming.setToken(token.trim());
+  }
+
+  private RateLimiter createRateLimiter(Properties config) {
+    RateLimiter rateLimiter = new RateLimiter(MetricsRegistry.getDefault());
+
+    String rate = config.getProperty(RATELIMIT_RATE_PROPERTY_KEY);
+    if (rate != null && rate.trim().length() > 0)
+      rateLimiter.setDefaultLimit(RateLimiter.Limit.parse(rate.trim()));
+
+    Map<String, RateLimiter.Limit> principalLimits = new TreeMap<String, RateLimiter.Limit>();
+    Map<String, RateLimiter.Limit> roleLimits = new TreeMap<String, RateLimiter.Limit>();
+    for (String key : config.stringPropertyNames()) {
+      if (key.startsWith(RATELIMIT_PRINCIPAL_PROPERTY_PREFIX))
+        principalLimits.put(key.substring(RATELIMIT_PRINCIPAL_PROPERTY_PREFIX.length()),
+                RateLimiter.Limit.parse(config.getProperty(key)));
+      else if (key.startsWith(RATELIMIT_ROLE_PROPERTY_PREFIX))
+        roleLimits.put(key.substring(RATELIMIT_ROLE_PROPERTY_PREFIX.length()),
+                RateLimiter.Limit.parse(config.getProperty(key)));
+    }
+    rateLimiter.setPrincipalLimits(principalLimits);
+    rateLimiter.setRoleLimits(roleLimits);
+
+    String maxPrincipals = config.getProperty(RATELIMIT_MAX_PRINCIPALS_PROPERTY_KEY);
+    if (maxPrincipals != null)
+      rateLimiter.setMaxPrincipals(Integer.parseInt(maxPrincipals.trim()));
+
+    if (rateLimiter.isEnabled())
+      LOG.info("Rate limiting principals, default " + rate + ", " + principalLimits.size() + " principal and "
+              + roleLimits.size() + " role limits");
+    return rateLimiter;
+  }
+
+  private AdaptiveLimiter createAdaptiveLimiter(Properties config) {
+    AdaptiveLimiter limiter = new AdaptiveLimiter(MetricsRegistry.getDefault());
+
+    String initialLimit = config.getProperty(ADMISSION_INITIAL_LIMIT_PROPERTY_KEY);
+    if (initialLimit != null)
+      limiter.setInitialLimit(Integer.parseInt(initialLimit.trim()));
+    String minLimit = config.getProperty(ADMISSION_MIN_LIMIT_PROPERTY_KEY);
+    if (minLimit != null)
+      limiter.setMinLimit(Integer.parseInt(minLimit.trim()));
+    String maxLimit = config.getProperty(ADMISSION_MAX_LIMIT_PROPERTY_KEY);
+    if (maxLimit != null)
+      limiter.setMaxLimit(Integer.parseInt(maxLimit.trim()));
+    String queueSize = config.getProperty(ADMISSION_QUEUE_SIZE_PROPERTY_KEY);
+    if (queueSize != null)
+      limiter.setMaxQueue(Integer.parseInt(queueSize.trim()));
+    String maxWait = config.getProperty(ADMISSION_MAX_WAIT_PROPERTY_KEY);
+    if (maxWait != null)
+      limiter.setMaxWait(Long.parseLong(maxWait.trim()));
+    String sheddableShare = config.getProperty(ADMISSION_SHEDDABLE_SHARE_PROPERTY_KEY);
+    if (sheddableShare != null)
+      limiter.setSheddableShare(Double.parseDouble(sheddableShare.trim()));
+
+    LOG.info("Adaptive admission control enabled, starting at " + limiter.getLimit() + " concurrent requests");
+    return limiter;
+  }
+
+  /**
+   * Let CXF keep attachments over the memory threshold in files, so large MTOM uploads and downloads don't grow
+   * the heap. CXF reads these system properties when it first caches a stream, which is after this.
+   */
+  private void configureAttachments(Properties config) {
+    String threshold = config.getProperty(ATTACHMENT_MEMORY_THRESHOLD_PROPERTY_KEY);
+    if (threshold != null) {
+      System.setProperty("org.apache.cxf.io.CachedOutputStream.Threshold",
+              String.valueOf(Integer.parseInt(threshold.trim())));
+      LOG.info("Attachments over " + threshold.trim() + " bytes are kept in files");
+    }
+
+    String directory = config.getProperty(ATTACHMENT_DIRECTORY_PROPERTY_KEY);
+    if (directory != null && directory.trim().length() > 0) {
+      File dir = new File(directory.trim());
+      if (!dir.isDirectory() && !dir.mkdirs()) {
+        throw new IllegalStateException("Can't create attachment directory " + dir);
+      }
+      System.setProperty("org.apache.cxf.io.CachedOutputStream.OutputDirectory", dir.getAbsolutePath());
+    }
+
+    // Chunked requests have no length to check up front, their attachments are limited to the body size too
+    String maxSize = config.getProperty(ATTACHMENT_MAX_SIZE_PROPERTY_KEY,
+            config.getProperty(REQUEST_MAX_BODY_SIZE_PROPERTY_KEY));
+    if (maxSize != null && maxSize.trim().length() > 0)
+      System.setProperty("org.apache.cxf.io.CachedOutputStream.MaxSize", String.valueOf(Long.parseLong(maxSize.trim())));
+  }
+
+  /**
+   * Key @AuditHashArgument hashes with a key shared by all nodes, so hashes correlate across nodes and restarts.
+   * The audit classes are loaded by the web application, they read the key from the file named by the system
+   * property. The key is read here first, so a missing or short key stops the server from starting.
+   */
+  private void configureAuditHashKey(Properties config) throws IOException {
+    String file = config.getProperty(AUDIT_HASH_KEY_FILE_PROPERTY_KEY);
+    if (file != null && file.trim().length() > 0) {
+      File keyFile = new File(file.trim());
+      AuditPolicy.readHashKey(keyFile);
+      System.setProperty(AuditPolicy.HASH_KEY_FILE_PROPERTY, keyFile.getAbsolutePath());
+      LOG.info("Audit argument hashes are keyed with the key in " + keyFile.getAbsolutePath());
+    }
+  }
+
+  /**
+   * Serve batches of SOAP calls. The servlet is added by name, so it is loaded by the web application and
+   * runs the calls on the CXF bus of the web application.
+   */
+  private void addBatchServlet(WebAppContext context, Properties config) {
+    String path = config.getProperty(BATCH_PATH_PROPERTY_KEY, "/batch").trim();
+
+    ServletHolder holder = context.addServlet(BatchServlet.class.getName(), path);
+    copyInitParameter(holder, config, BATCH_THREADS_PROPERTY_KEY, BatchServlet.THREADS_PARAM);
+    copyInitParameter(holder, config, BATCH_PARALLELISM_PROPERTY_KEY, BatchServlet.PARALLELISM_PARAM);
+    copyInitParameter(holder, config, BATCH_MAX_CALLS_PROPERTY_KEY, BatchServlet.MAX_CALLS_PARAM);
+    copyInitParameter(holder, config, BATCH_CXF_SERVLET_PATH_PROPERTY_KEY, BatchServlet.CXF_SERVLET_PATH_PARAM);
+
+    LOG.info("Batch calls served at " + path);
+  }
+
+  private static void copyInitParameter(ServletHolder holder, Properties config, String key, String name) {
+    String value = config.getProperty(key);
+    if (value != null)
+      holder.setInitParameter(name, value.trim());
+  }
+
+  /**
+   * Cap the requests the WSDL and SOAP lanes serve at once, and serve status requests on a connector of their own.
+   * The socket connectors hold a thread for every open connection, idle keep-alive connections included, so only
+   * a connector with its own threads keeps status and health checks answered when SOAP clients hold every thread
+   * of the server's pool.
+   */
+  private LaneHandler createLaneHandler(Properties config, org.eclipse.jetty.server.Server server, String host) {
+    int wsdlMax = Integer.parseInt(config.getProperty(LANES_WSDL_MAX_PROPERTY_KEY, "4").trim());
+    int wsdlQueue = Integer.parseInt(config.getProperty(LANES_WSDL_QUEUE_PROPERTY_KEY, "4").trim());
+    String soapMax = config.getProperty(LANES_SOAP_MAX_PROPERTY_KEY);
+    int soapQueue = Integer.parseInt(config.getProperty(LANES_SOAP_QUEUE_PROPERTY_KEY, "0").trim());
+    long maxWait = Long.parseLong(config.getProperty(LANES_MAX_WAIT_PROPERTY_KEY, "1000").trim());
+
+    LaneHandler laneHandler = new LaneHandler(MetricsRegistry.getDefault());
+    laneHandler.setWsdlLane(wsdlMax, wsdlQueue, maxWait);
+    if (soapMax != null && soapMax.trim().length() > 0) {
+      laneHandler.setSoapLane(Integer.parseInt(soapMax.trim()), soapQueue, maxWait);
+    }
+
+    String statusPort = config.getProperty(LANES_STATUS_PORT_PROPERTY_KEY);
+    if (statusPort != null && statusPort.trim().length() > 0) {
+      int threads = Integer.parseInt(config.getProperty(LANES_STATUS_THREADS_PROPERTY_KEY, "8").trim());
+      QueuedThreadPool statusThreads = new QueuedThreadPool(threads);
+      statusThreads.setMinThreads(Math.min(2, threads));
+      statusThreads.setName("status");
+
+      SocketConnector statusConnector = new SocketConnector();
+      statusConnector.setPort(Integer.parseInt(statusPort.trim()));
+      if (host != null && host.length() > 0) {
+        statusConnector.setHost(host);
+      }
+      statusConnector.setThreadPool(statusThreads);
+      // Monitors that keep their connections open must not hold the few status threads
+      statusConnector.setMaxIdleTime(10000);
+
+      Connector[] connectors = server.getConnectors();
+      Connector[] withStatus = Arrays.copyOf(connectors, connectors.length + 1);
+      withStatus[connectors.length] = statusConnector;
+      server.setConnectors(withStatus);
+      laneHandler.setStatusPort(statusConnector.getPort());
+
+      LOG.info("Status requests served on port " + statusConnector.getPort() + " with " + threads + " threads");
+    } else {
+      LOG.warn("No " + LANES_STATUS_PORT_PROPERTY_KEY + ", status requests share the request threads");
+    }
+
+    LOG.info("Request lanes enabled, " + (soapMax != null ? soapMax.trim() : "unlimited") + " SOAP and " + wsdlMax
+            + " WSDL requests at once");
+    return laneHandler;
+  }
+
+  /**
+   * Expose the thread pool and connector in JMX, so they can be tuned without a restart.
+   */
+  private void registerMBeans(QueuedThreadPool threadPool, TimedJobQueue jobs, Connector[] connectors) {
+    Jmx.register(new ThreadPoolControl(threadPool, jobs), "ThreadPool");
+    for (Connector connector : connectors) {
+      if (connector instanceof AbstractConnector) {
+        Jmx.register(new ConnectorControl((AbstractConnector) connector), "Connector");
+      }
+    }
+  }
+
+  private void startHealthMonitor(HealthMonitor monitor, Properties config, QueuedThreadPool threadPool,
+                                  BlockingQueue<Runnable> jobs, final SpnegoAndKrb5LoginService loginService) {
+    String interval = config.getProperty(HEALTH_INTERVAL_PROPERTY_KEY);
+    if (interval != null)
+      monitor.setInterval(Long.parseLong(interval.trim()));
+
+    ThreadPoolProbe threadPoolProbe = new ThreadPoolProbe(threadPool, jobs);
+    String maxSaturation = config.getProperty(HEALTH_MAX_SATURATION_PROPERTY_KEY);
+    if (maxSaturation != null)
+      threadPoolProbe.setMaxSaturation(Double.parseDouble(maxSaturation.trim()));
+    monitor.register(threadPoolProbe);
+
+    monitor.register(new HealthProbe() {
+      @Override
+      public String getName() {
+        return "gss-credential";
+      }
+
+      @Override
+      public String check() throws Exception {
+        return "Acceptor credential valid for " + loginService.checkCredential() + "s";
+      }
+    });
+
+    // Probes registered later, ex. by the SPOCP authorizor when the web application starts, are run right away
+    monitor.start();
+  }
+
   private void checkDefinedConfigFileProperties(Properties properties) {
 
     for (String mandatoryProperty : MANDATORY_PROPERTIES) {
@@ -244,7 +743,7 @@ public abstract class Server {
     }
 
     for (Map.Entry<String, Object> entry : sorted.entrySet()) {
-      if (entry.getKey().contains("password")) {
+      if (entry.getKey().contains("password") || entry.getKey().endsWith(".token")) {
         LOG.info(entry.getKey() + " => *********");
       } else {
         LOG.info(entry.getKey() + " => " + entry.getValue());
@@ -0,0 +1,16 @@
+package se.su.it.svc.server.annotations;
+
+import java.lang.annotation.*;
+
+/**
+ * Replaces the value of the annotated web method parameter with an HMAC-SHA256 hash in the audit log, keyed with
+ * the secret set on the audit aspect or in the file named by the server's audit.hashKeyFile. Equal values can still
+ * be correlated between audit records without revealing the value itself, and without the key the value can't be
+ * found by hashing candidates.
+ * <p/>
+ * Only string, number and primitive array parameters can be hashed, other types have no stable form to hash.
+ */
+@Target(ElementType.PARAMETER)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface AuditHashArgument {
+}
@@ -0,0 +1,11 @@
+package se.su.it.svc.server.annotations;
+
+import java.lang.annotation.*;
+
+/**
+ * Replaces the value of the annotated web method parameter with a fixed mask in the audit log.
+ */
+@Target(ElementType.PARAMETER)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface AuditHideArgument {
+}
@@ -0,0 +1,13 @@
+package se.su.it.svc.server.annotations;
+
+import java.lang.annotation.*;
+
+/**
+ * Caps the number of characters rendered into the audit log for each argument and for the return value.
+ */
+@Target({ElementType.TYPE, ElementType.METHOD})
+@Retention(RetentionPolicy.RUNTIME)
+@Inherited
+public @interface AuditMaxLength {
+  int value();
+}
@@ -0,0 +1,22 @@
+package se.su.it.svc.server.annotations;
+
+import java.lang.annotation.*;
+
+/**
+ * Marks a web method as a read-only operation whose successful calls are sampled in the audit log instead of
+ * audited one by one. Failed calls are always audited. Sampling configured in the AuditAspect only applies to
+ * methods with this annotation, so a mutating method is never sampled.
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface AuditSample {
+  /**
+   * @return the fraction of successful calls to audit, ex. 0.01 audits every 100th call.
+   */
+  double rate() default 1.0;
+
+  /**
+   * @return the maximum number of successful calls to audit per second, or 0 for no limit.
+   */
+  int perSecond() default 0;
+}
@@ -0,0 +1,12 @@
+package se.su.it.svc.server.annotations;
+
+import java.lang.annotation.*;
+
+/**
+ * Excludes a web service, or a single web method, from auditing.
+ */
+@Target({ElementType.TYPE, ElementType.METHOD})
+@Retention(RetentionPolicy.RUNTIME)
+@Inherited
+public @interface AuditSkip {
+}
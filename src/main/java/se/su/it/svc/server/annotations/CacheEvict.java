@@ -0,0 +1,22 @@
+package se.su.it.svc.server.annotations;
+
+import java.lang.annotation.*;
+
+/**
+ * Evicts cached results when the annotated, mutating web method has been called, whether it succeeded or not.
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface CacheEvict {
+  /**
+   * @return the names of the caches to evict from, see {@link CacheResult#name()}. A bare method name refers to
+   * the cache of that method in the same class.
+   */
+  String[] value();
+
+  /**
+   * @return the indexes of the arguments that match the key arguments of the cached results, in the same order,
+   * or empty to evict all results.
+   */
+  int[] key() default {};
+}
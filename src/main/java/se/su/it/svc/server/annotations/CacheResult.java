@@ -0,0 +1,47 @@
+package se.su.it.svc.server.annotations;
+
+import java.lang.annotation.*;
+
+/**
+ * Caches the return value of a read-only web method, so repeated calls with the same key arguments are answered
+ * without invoking it. Cached results are shared between callers and must not be modified.
+ * <p/>
+ * The cache is consulted after authorization, so a caller only gets results from an operation it's allowed to call.
+ * Set perPrincipal when the result depends on who is asking. Null results and exceptions are not cached.
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface CacheResult {
+  /**
+   * @return the cache name used by {@link CacheEvict}, defaults to the fully qualified 'class.method' name, so
+   * methods with the same name in different web services never share results.
+   */
+  String name() default "";
+
+  /**
+   * @return the time in seconds a result is cached.
+   */
+  int ttl() default 60;
+
+  /**
+   * @return the maximum number of cached results, the oldest are evicted first.
+   */
+  int maxEntries() default 1000;
+
+  /**
+   * @return the maximum estimated size in bytes of the cached results, the oldest are evicted first,
+   * or 0 to only limit the number of results.
+   */
+  long maxBytes() default 0;
+
+  /**
+   * @return the indexes of the arguments that make up the key, or all arguments if empty.
+   * Key arguments need to implement equals and hashCode, ex. strings.
+   */
+  int[] key() default {};
+
+  /**
+   * @return true to keep results per principal.
+   */
+  boolean perPrincipal() default false;
+}
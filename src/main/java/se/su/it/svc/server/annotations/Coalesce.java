@@ -0,0 +1,22 @@
+package se.su.it.svc.server.annotations;
+
+import java.lang.annotation.*;
+
+/**
+ * Lets concurrent calls of a read-only web method with equal arguments share one invocation: the first call runs,
+ * the others wait for it and get the same result or exception. The shared result must not be modified.
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Coalesce {
+  /**
+   * @return true to only share invocations between calls from the same principal.
+   */
+  boolean perPrincipal() default false;
+
+  /**
+   * @return the maximum time in milliseconds to wait for the shared invocation, a call that waited longer
+   * invokes the method itself.
+   */
+  long maxWait() default 30000;
+}
@@ -0,0 +1,34 @@
+package se.su.it.svc.server.annotations;
+
+import java.lang.annotation.*;
+
+/**
+ * Caps the number of concurrent calls of a web method, or of all web methods of a web service, so one slow
+ * operation can't take all threads of the server. Calls over the limit wait briefly in a short queue and are
+ * otherwise rejected with a fault and HTTP status 503.
+ */
+@Target({ElementType.TYPE, ElementType.METHOD})
+@Retention(RetentionPolicy.RUNTIME)
+@Inherited
+public @interface ConcurrencyLimit {
+  /**
+   * @return the maximum number of concurrent calls.
+   */
+  int value();
+
+  /**
+   * @return the maximum number of calls waiting for a free slot, calls beyond this are rejected at once.
+   */
+  int queue() default 0;
+
+  /**
+   * @return the maximum time in milliseconds a call waits for a free slot.
+   */
+  long maxWait() default 100;
+
+  /**
+   * @return the bulkhead name, defaults to the fully qualified 'class.method' name or class name. Limits with the
+   * same name share their slots, and the first limit used decides the settings.
+   */
+  String name() default "";
+}
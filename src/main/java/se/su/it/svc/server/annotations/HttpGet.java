@@ -0,0 +1,25 @@
+package se.su.it.svc.server.annotations;
+
+import java.lang.annotation.*;
+
+/**
+ * Lets a read-only web method be called with HTTP GET, ex. GET /UserService/getUser?uid=foo, with the arguments
+ * as query parameters named after the web method parameters. Responses carry an ETag of the response body and
+ * may be cached by HTTP caches for maxAge seconds. Web methods without this annotation can't be called with GET.
+ * <p/>
+ * Callers are authenticated and authorized as for SOAP calls. Responses vary with the Authorization header, and
+ * are only cached by shared caches, such as reverse proxies, when shared is set.
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface HttpGet {
+  /**
+   * @return the time in seconds a response may be cached.
+   */
+  int maxAge() default 60;
+
+  /**
+   * @return true to let shared caches keep responses, not only the caller's own cache.
+   */
+  boolean shared() default false;
+}
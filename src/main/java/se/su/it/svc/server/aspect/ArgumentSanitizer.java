@@ -0,0 +1,315 @@
+package se.su.it.svc.server.aspect;
+
+import org.slf4j.LoggerFactory;
+
+import javax.xml.bind.JAXBElement;
+import javax.xml.ws.AsyncHandler;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Trims strings in web method arguments, including strings nested in request beans, arrays, collections,
+ * maps and JAXBElements.
+ * <p/>
+ * A sanitizer is built once per type from its fields and cached. Nested values are trimmed in place, so
+ * the argument array is only copied when a top level string argument changes, and a call with only simple
+ * arguments allocates nothing. Nested values are tracked by identity, so values shared within the arguments are
+ * walked once and cycles end.
+ */
+final class ArgumentSanitizer {
+  private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(ArgumentSanitizer.class);
+
+  private static final Sanitizer NONE = new Sanitizer() {
+    @Override
+    void sanitize(ArgumentSanitizer owner, Object value, Set<Object> visited) {
+    }
+  };
+
+  private static final Sanitizer ARRAY = new Sanitizer() {
+    @Override
+    void sanitize(ArgumentSanitizer owner, Object value, Set<Object> visited) {
+      Object[] array = (Object[]) value;
+      for (int i = 0; i < array.length; i++) {
+        Object element = array[i];
+        Object sanitized = owner.sanitize(element, visited);
+        if (sanitized != element) {
+          array[i] = sanitized;
+        }
+      }
+    }
+  };
+
+  private static final Sanitizer LIST = new Sanitizer() {
+    @Override
+    @SuppressWarnings("unchecked")
+    void sanitize(ArgumentSanitizer owner, Object value, Set<Object> visited) {
+      List<Object> list = (List<Object>) value;
+      try {
+        if (list instanceof RandomAccess) {
+          for (int i = 0; i < list.size(); i++) {
+            Object element = list.get(i);
+            Object sanitized = owner.sanitize(element, visited);
+            if (sanitized != element) {
+              list.set(i, sanitized);
+            }
+          }
+        } else {
+          for (ListIterator<Object> it = list.listIterator(); it.hasNext(); ) {
+            Object element = it.next();
+            Object sanitized = owner.sanitize(element, visited);
+            if (sanitized != element) {
+              it.set(sanitized);
+            }
+          }
+        }
+      } catch (UnsupportedOperationException e) {
+        LOG.debug("Can't sanitize unmodifiable " + value.getClass().getName());
+      }
+    }
+  };
+
+  /** Strings in sets and other collections can't be replaced in place, only nested values are sanitized. */
+  private static final Sanitizer COLLECTION = new Sanitizer() {
+    @Override
+    void sanitize(ArgumentSanitizer owner, Object value, Set<Object> visited) {
+      for (Object element : (Collection<?>) value) {
+        if (!(element instanceof String)) {
+          owner.sanitize(element, visited);
+        }
+      }
+    }
+  };
+
+  /** Map values are sanitized, keys are left as they are. */
+  private static final Sanitizer MAP = new Sanitizer() {
+    @Override
+    @SuppressWarnings("unchecked")
+    void sanitize(ArgumentSanitizer owner, Object value, Set<Object> visited) {
+      try {
+        for (Map.Entry<Object, Object> entry : ((Map<Object, Object>) value).entrySet()) {
+          Object element = entry.getValue();
+          Object sanitized = owner.sanitize(element, visited);
+          if (sanitized != element) {
+            entry.setValue(sanitized);
+          }
+        }
+      } catch (UnsupportedOperationException e) {
+        LOG.debug("Can't sanitize unmodifiable " + value.getClass().getName());
+      }
+    }
+  };
+
+  private static final Sanitizer JAXB_ELEMENT = new Sanitizer() {
+    @Override
+    @SuppressWarnings("unchecked")
+    void sanitize(ArgumentSanitizer owner, Object value, Set<Object> visited) {
+      JAXBElement<Object> element = (JAXBElement<Object>) value;
+      Object content = element.getValue();
+      Object sanitized = owner.sanitize(content, visited);
+      if (sanitized != content) {
+        element.setValue(sanitized);
+      }
+    }
+  };
+
+  private final ConcurrentMap<Class<?>, Sanitizer> sanitizers = new ConcurrentHashMap<Class<?>, Sanitizer>();
+
+  /**
+   * Sanitize web method arguments.
+   *
+   * @param args the arguments.
+   * @return the same array if no top level argument changed, otherwise a copy with the changed arguments.
+   */
+  Object[] sanitize(Object[] args) {
+    Object[] sanitizedArgs = args;
+    Set<Object> visited = null;
+
+    for (int i = 0; i < args.length; i++) {
+      Object arg = args[i];
+      if (visited == null && isNested(arg)) {
+        // Only calls with nested values pay for tracking them
+        visited = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+      }
+      Object sanitized = sanitize(arg, visited);
+      if (sanitized != arg) {
+        if (sanitizedArgs == args) {
+          sanitizedArgs = args.clone();
+        }
+        sanitizedArgs[i] = sanitized;
+      }
+    }
+
+    return sanitizedArgs;
+  }
+
+  /**
+   * @param value the value.
+   * @param visited the values already sanitized in this call, by identity, so shared values are only walked
+   *                once and cycles end. May only be null if the value isn't nested.
+   * @return a trimmed string if the value is a string, otherwise the value itself, sanitized in place.
+   */
+  Object sanitize(Object value, Set<Object> visited) {
+    if (value == null) {
+      return null;
+    }
+    if (value instanceof String) {
+      // trim() returns the same instance when there is nothing to trim
+      return ((String) value).trim();
+    }
+    if (value instanceof Number || value instanceof Boolean) {
+      return value;
+    }
+
+    Sanitizer sanitizer = getSanitizer(value.getClass());
+    if (sanitizer != NONE && visited.add(value)) {
+      sanitizer.sanitize(this, value, visited);
+    }
+    return value;
+  }
+
+  /**
+   * @return true if the value has fields or elements to sanitize.
+   */
+  private boolean isNested(Object value) {
+    return value != null && !(value instanceof String) && !(value instanceof Number) && !(value instanceof Boolean)
+            && getSanitizer(value.getClass()) != NONE;
+  }
+
+  /**
+   * @return the number of types a sanitizer has been built for.
+   */
+  int getCachedTypes() {
+    return sanitizers.size();
+  }
+
+  private Sanitizer getSanitizer(Class<?> type) {
+    Sanitizer sanitizer = sanitizers.get(type);
+    if (sanitizer == null) {
+      sanitizer = createSanitizer(type);
+      Sanitizer existing = sanitizers.putIfAbsent(type, sanitizer);
+      if (existing != null) {
+        sanitizer = existing;
+      }
+    }
+    return sanitizer;
+  }
+
+  private static Sanitizer createSanitizer(Class<?> type) {
+    if (type.isArray()) {
+      return type.getComponentType().isPrimitive() ? NONE : ARRAY;
+    }
+    if (List.class.isAssignableFrom(type)) {
+      return LIST;
+    }
+    if (Collection.class.isAssignableFrom(type)) {
+      return COLLECTION;
+    }
+    if (Map.class.isAssignableFrom(type)) {
+      return MAP;
+    }
+    if (JAXBElement.class.isAssignableFrom(type)) {
+      return JAXB_ELEMENT;
+    }
+    if (AsyncHandler.class.isAssignableFrom(type)) {
+      return NONE;
+    }
+    if (type.isEnum() || isPlatformType(type)) {
+      return NONE;
+    }
+
+    List<Field> fields = new ArrayList<Field>();
+    for (Class<?> c = type; c != null && !isPlatformType(c); c = c.getSuperclass()) {
+      for (Field field : c.getDeclaredFields()) {
+        if (mayHoldStrings(field)) {
+          fields.add(field);
+        }
+      }
+    }
+    if (fields.isEmpty()) {
+      return NONE;
+    }
+
+    try {
+      for (Field field : fields) {
+        field.setAccessible(true);
+      }
+    } catch (SecurityException e) {
+      LOG.warn("Can't sanitize fields of " + type.getName(), e);
+      return NONE;
+    }
+
+    return new BeanSanitizer(fields.toArray(new Field[fields.size()]));
+  }
+
+  /**
+   * @return true if a field can hold a string or a value with strings in it.
+   */
+  private static boolean mayHoldStrings(Field field) {
+    int modifiers = field.getModifiers();
+    if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic()) {
+      return false;
+    }
+
+    Class<?> type = field.getType();
+    if (type == String.class) {
+      return !Modifier.isFinal(modifiers);
+    }
+    if (type.isPrimitive() || type.isEnum()) {
+      return false;
+    }
+    if (type.isArray()) {
+      return !type.getComponentType().isPrimitive();
+    }
+
+    return !isPlatformType(type) || type.isInterface() || type == Object.class
+            || JAXBElement.class.isAssignableFrom(type);
+  }
+
+  /**
+   * JDK, Groovy and CXF runtime types hold no request strings, or can't be sanitized in place.
+   */
+  private static boolean isPlatformType(Class<?> type) {
+    String name = type.getName();
+    return type.isPrimitive() || name.startsWith("java.") || name.startsWith("javax.") || name.startsWith("sun.")
+            || name.startsWith("com.sun.") || name.startsWith("org.w3c.") || name.startsWith("groovy.")
+            || name.startsWith("org.codehaus.groovy.") || name.startsWith("org.apache.cxf.");
+  }
+
+  abstract static class Sanitizer {
+    abstract void sanitize(ArgumentSanitizer owner, Object value, Set<Object> visited);
+  }
+
+  private static final class BeanSanitizer extends Sanitizer {
+    private final Field[] fields;
+
+    private BeanSanitizer(Field[] fields) {
+      this.fields = fields;
+    }
+
+    @Override
+    void sanitize(ArgumentSanitizer owner, Object value, Set<Object> visited) {
+      for (Field field : fields) {
+        try {
+          Object fieldValue = field.get(value);
+          Object sanitized = owner.sanitize(fieldValue, visited);
+          if (sanitized != fieldValue) {
+            field.set(value, sanitized);
+          }
+        } catch (IllegalAccessException e) {
+          LOG.debug("Can't sanitize field " + field, e);
+        }
+      }
+    }
+  }
+}
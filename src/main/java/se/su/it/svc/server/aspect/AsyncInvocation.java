@@ -0,0 +1,192 @@
+package se.su.it.svc.server.aspect;
+
+import org.apache.cxf.message.Message;
+import org.eclipse.jetty.continuation.Continuation;
+import org.eclipse.jetty.continuation.ContinuationListener;
+import org.eclipse.jetty.continuation.ContinuationSupport;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.ServletRequest;
+import javax.xml.ws.AsyncHandler;
+import javax.xml.ws.Response;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * An asynchronous web method call, ex. a getUserAsync(uid, handler) invoked by CXF for a method annotated with
+ * {@code @UseAsyncMethod}. The web method returns a Future at once while the request is suspended, and the call
+ * completes when the backend calls the AsyncHandler.
+ * <p/>
+ * Aspects that act when a call returns add a listener instead when {@link #current()} isn't null. Listeners run
+ * before CXF gets the response, on the thread completing the call, with {@link CurrentRequest} still giving
+ * the suspended request. A call whose handler is never called fails when its request times out or completes, so
+ * listeners always run, and run once.
+ */
+final class AsyncInvocation {
+  private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(AsyncInvocation.class);
+
+  private static final ThreadLocal<AsyncInvocation> CURRENT = new ThreadLocal<AsyncInvocation>();
+  private static final ThreadLocal<Message> COMPLETING = new ThreadLocal<Message>();
+
+  /**
+   * Told when an asynchronous call completes.
+   */
+  interface Listener {
+    void completed(Object result);
+
+    void failed(Throwable failure);
+  }
+
+  private final Message message;
+  private final List<Listener> listeners = new ArrayList<Listener>(4);
+  private boolean done = false;
+  private Object result = null;
+  private Throwable failure = null;
+
+  AsyncInvocation(Message message) {
+    this.message = message;
+  }
+
+  /**
+   * @param args the arguments of a web method call.
+   * @return true if the last argument is an AsyncHandler.
+   */
+  static boolean isAsync(Object[] args) {
+    return args.length > 0 && args[args.length - 1] instanceof AsyncHandler;
+  }
+
+  /**
+   * @return the asynchronous call being started on this thread, or null if the current call is synchronous.
+   */
+  static AsyncInvocation current() {
+    return CURRENT.get();
+  }
+
+  /**
+   * @param invocation the asynchronous call being started, or null for a synchronous call.
+   * @return the call it replaced, to be restored afterwards.
+   */
+  static AsyncInvocation setCurrent(AsyncInvocation invocation) {
+    AsyncInvocation previous = CURRENT.get();
+    if (invocation != null) {
+      CURRENT.set(invocation);
+    } else if (previous != null) {
+      CURRENT.remove();
+    }
+    return previous;
+  }
+
+  /**
+   * @return the CXF message of the call whose listeners are running on this thread, or null.
+   */
+  static Message getCompletingMessage() {
+    return COMPLETING.get();
+  }
+
+  /**
+   * @param handler the handler passed by CXF.
+   * @return a handler that runs the listeners before passing the response on.
+   */
+  AsyncHandler<Object> wrap(final AsyncHandler<Object> handler) {
+    return new AsyncHandler<Object>() {
+      @Override
+      public void handleResponse(Response<Object> response) {
+        try {
+          complete(response.get(), null);
+        } catch (ExecutionException e) {
+          complete(null, e.getCause() != null ? e.getCause() : e);
+        } catch (CancellationException e) {
+          complete(null, e);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          complete(null, e);
+        }
+
+        handler.handleResponse(response);
+      }
+    };
+  }
+
+  /**
+   * Fail the call if its request times out or completes before the backend calls the handler.
+   *
+   * @param request the suspended request.
+   */
+  void completeWith(ServletRequest request) {
+    Continuation continuation;
+    try {
+      continuation = ContinuationSupport.getContinuation(request);
+    } catch (IllegalStateException e) {
+      LOG.debug("No continuation to complete the asynchronous call with", e);
+      return;
+    }
+
+    continuation.addContinuationListener(new ContinuationListener() {
+      @Override
+      public void onComplete(Continuation continuation) {
+        complete(null, new IllegalStateException("The request completed before the asynchronous call"));
+      }
+
+      @Override
+      public void onTimeout(Continuation continuation) {
+        complete(null, new TimeoutException("The asynchronous call timed out"));
+      }
+    });
+  }
+
+  /**
+   * Add a listener, run at once if the call has already completed.
+   *
+   * @param listener the listener.
+   */
+  void addListener(Listener listener) {
+    synchronized (this) {
+      if (!done) {
+        listeners.add(listener);
+        return;
+      }
+    }
+    notify(listener);
+  }
+
+  void complete(Object result, Throwable failure) {
+    List<Listener> toNotify;
+    synchronized (this) {
+      if (done) {
+        return;
+      }
+      done = true;
+      this.result = result;
+      this.failure = failure;
+      toNotify = new ArrayList<Listener>(listeners);
+      listeners.clear();
+    }
+
+    for (Listener listener : toNotify) {
+      notify(listener);
+    }
+  }
+
+  private void notify(Listener listener) {
+    Message previous = COMPLETING.get();
+    COMPLETING.set(message);
+    try {
+      if (failure != null) {
+        listener.failed(failure);
+      } else {
+        listener.completed(result);
+      }
+    } catch (RuntimeException e) {
+      LOG.warn("Failed to complete asynchronous call", e);
+    } finally {
+      if (previous != null) {
+        COMPLETING.set(previous);
+      } else {
+        COMPLETING.remove();
+      }
+    }
+  }
+}
@@ -0,0 +1,57 @@
+package se.su.it.svc.server.aspect;
+
+import org.apache.cxf.message.Message;
+import org.apache.cxf.phase.PhaseInterceptorChain;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.xml.ws.AsyncHandler;
+
+/**
+ * Tracks asynchronous web method calls, so the aspects inside this one can complete their work when the
+ * response arrives instead of when the web method returns its Future. See {@link AsyncInvocation}.
+ * <p/>
+ * Runs after authorization, which is decided before the call starts, and after sanitizing, which doesn't pass
+ * on replaced arguments of aspects outside it.
+ */
+@Aspect
+public class AsyncInvocationAspect {
+
+  private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(AsyncInvocationAspect.class);
+
+  @Around("execution(* (@javax.jws.WebService *).*(..))")
+  @SuppressWarnings("unchecked")
+  public Object trackAsyncInvocation(ProceedingJoinPoint joinPoint) throws Throwable {
+    Object[] args = joinPoint.getArgs();
+    if (!AsyncInvocation.isAsync(args)) {
+      // Nested synchronous calls must not be taken for the asynchronous call around them
+      AsyncInvocation previous = AsyncInvocation.setCurrent(null);
+      try {
+        return joinPoint.proceed();
+      } finally {
+        AsyncInvocation.setCurrent(previous);
+      }
+    }
+
+    LOG.debug("Intercepted asynchronous method " + joinPoint.getSignature().getName());
+
+    Message message = PhaseInterceptorChain.getCurrentMessage();
+    AsyncInvocation invocation = new AsyncInvocation(message);
+    HttpServletRequest request = message != null ? (HttpServletRequest) message.get("HTTP.REQUEST") : null;
+    if (request != null) {
+      invocation.completeWith(request);
+    }
+    Object[] wrappedArgs = args.clone();
+    wrappedArgs[args.length - 1] = invocation.wrap((AsyncHandler<Object>) args[args.length - 1]);
+
+    AsyncInvocation previous = AsyncInvocation.setCurrent(invocation);
+    try {
+      return joinPoint.proceed(wrappedArgs);
+    } finally {
+      AsyncInvocation.setCurrent(previous);
+    }
+  }
+}
@@ -1,19 +1,34 @@
 package se.su.it.svc.server.aspect;
 
-import org.apache.cxf.phase.PhaseInterceptorChain;
 import org.aspectj.lang.JoinPoint;
 import org.aspectj.lang.annotation.AfterReturning;
 import org.aspectj.lang.annotation.AfterThrowing;
 import org.aspectj.lang.annotation.Aspect;
 import org.aspectj.lang.annotation.Before;
+import org.aspectj.lang.reflect.MethodSignature;
 import org.slf4j.LoggerFactory;
-import se.su.it.svc.server.annotations.AuditHideReturnValue;
 import se.su.it.svc.server.audit.AuditEntity;
+import se.su.it.svc.server.audit.AuditPolicy;
+import se.su.it.svc.server.audit.AuditSampler;
+import se.su.it.svc.server.audit.AuditSink;
+import se.su.it.svc.server.filter.CorrelationIdHandler;
+import se.su.it.svc.server.jmx.AuditControl;
+import se.su.it.svc.server.jmx.Jmx;
+import se.su.it.svc.server.metrics.LatencyRegistry;
+import se.su.it.svc.server.timing.RequestTiming;
 
 import javax.servlet.http.HttpServletRequest;
 import java.lang.reflect.Method;
 import java.sql.Timestamp;
 import java.util.Date;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 @Aspect
 public class AuditAspect {
@@ -21,12 +36,135 @@ public class AuditAspect {
   private static final String STATE_SUCCESS = "SUCCESS";
   private static final String STATE_EXCEPTION = "EXCEPTION";
   private static final String UNKNOWN = "<unknown>";
-  private static final String HIDDEN_VALUE = "******";
 
   private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(AuditAspect.class);
 
+  /** Audit policies resolved per web method, so annotations are only read on the first call. */
+  private final ConcurrentMap<Method, AuditPolicy> policies = new ConcurrentHashMap<Method, AuditPolicy>();
+
+  /** Samplers per sampled web method, kept when policies are resolved again so no counts are lost. */
+  private final ConcurrentMap<Method, AuditSampler> samplers = new ConcurrentHashMap<Method, AuditSampler>();
+
+  private Properties sampling = new Properties();
+  private int samplingSummaryInterval = 60;
+  private ScheduledExecutorService summaryExecutor = null;
+
+  private AuditSink auditSink = null;
+
+  public AuditAspect() {
+    Jmx.register(new AuditControl(this), "Audit");
+  }
+
+  /**
+   * Set a sink that receives every audit record in addition to the audit log, ex. an AuditJournal.
+   *
+   * @param auditSink the sink to use.
+   */
+  public void setAuditSink(AuditSink auditSink) {
+    this.auditSink = auditSink;
+  }
+
+  /**
+   * Set the secret key of @AuditHashArgument hashes. Nodes with the same key log the same hash for a value, without
+   * a key hashes only correlate until the server restarts.
+   *
+   * @param hashKey the key, at least 16 characters.
+   */
+  public void setHashKey(String hashKey) {
+    AuditPolicy.setHashKey(hashKey);
+  }
+
+  /**
+   * Set audit sampling per operation, overriding the @AuditSample annotations. Only methods annotated with
+   * @AuditSample are sampled, configuration for other methods is ignored.
+   * Keys are method names or fully qualified 'class.method' names, values are on the form 'rate[,perSecond]'.
+   *
+   * @param sampling the sampling configuration.
+   */
+  public void setSampling(Properties sampling) {
+    this.sampling = sampling != null ? sampling : new Properties();
+    policies.clear();
+  }
+
+  /**
+   * @return a copy of the sampling configuration.
+   */
+  public Properties getSampling() {
+    Properties copy = new Properties();
+    copy.putAll(sampling);
+    return copy;
+  }
+
+  /**
+   * Set audit sampling for one operation, taking effect on the next call.
+   *
+   * @param operation a method name or a fully qualified 'class.method' name.
+   * @param value 'rate[,perSecond]'.
+   * @throws IllegalArgumentException if the value can't be parsed.
+   */
+  public void putSampling(String operation, String value) {
+    AuditSampler.parse(value);
+    sampling.setProperty(operation, value);
+    policies.clear();
+  }
+
+  /**
+   * Remove audit sampling for one operation, taking effect on the next call.
+   *
+   * @param operation a method name or a fully qualified 'class.method' name.
+   */
+  public void removeSampling(String operation) {
+    sampling.remove(operation);
+    policies.clear();
+  }
+
+  /**
+   * @return the number of web methods with a resolved audit policy.
+   */
+  public int getPolicyCacheSize() {
+    return policies.size();
+  }
+
+  /**
+   * Resolve audit policies again on the next call of each web method.
+   */
+  public void clearPolicyCache() {
+    policies.clear();
+  }
+
+  /**
+   * Set how often, in seconds, counts of suppressed calls are written to the audit log.
+   *
+   * @param samplingSummaryInterval the interval in seconds.
+   */
+  public void setSamplingSummaryInterval(int samplingSummaryInterval) {
+    this.samplingSummaryInterval = samplingSummaryInterval;
+  }
+
   @Before("execution(* (@javax.jws.WebService *).*(..))")
   public void auditBefore(JoinPoint joinPoint) throws Throwable {
+    setOperation(joinPoint.getSignature().getName());
+
+    AuditPolicy policy = getPolicy(joinPoint);
+    RequestTiming timing = getTiming();
+    if (timing != null) {
+      timing.setArguments(joinPoint.getArgs(), policy.getHiddenArguments());
+    }
+
+    if (policy.isSkip() || policy.getSampler() != null) {
+      // Sampled operations are audited when they complete, the outcome decides if the call is logged.
+      return;
+    }
+
+    RequestTiming.Span span = RequestTiming.start(CurrentRequest.getRequest(), RequestTiming.Stage.AUDIT, joinPoint.getSignature().getName());
+    try {
+      doAuditBefore(joinPoint, policy);
+    } finally {
+      span.end();
+    }
+  }
+
+  private void doAuditBefore(JoinPoint joinPoint, AuditPolicy policy) {
     String id = getId();
     Class targetClass = joinPoint.getTarget().getClass();
     String methodName = joinPoint.getSignature().getName();
@@ -38,18 +176,61 @@ public class AuditAspect {
     AuditEntity ae = AuditEntity.getInstance(
             new Timestamp(new Date().getTime()).toString(),
             methodName,
-            objectsToString(args),
+            objectsToString(args, policy),
             UNKNOWN,
-            STATE_INPROGRESS
+            STATE_INPROGRESS,
+            getPrincipal(),
+            id
     );
 
     LOG.info("[" + id + "] Received: " + ae);
+    writeToSink(ae);
   }
 
   @AfterReturning(
           pointcut = "execution(* (@javax.jws.WebService *).*(..))",
           returning = "result")
-  public void auditAfterReturning(JoinPoint joinPoint, Object result) throws Throwable {
+  public void auditAfterReturning(final JoinPoint joinPoint, Object result) throws Throwable {
+    AsyncInvocation async = AsyncInvocation.current();
+    if (async != null) {
+      // The returned Future says nothing, audit the outcome when the response arrives
+      async.addListener(new AsyncInvocation.Listener() {
+        @Override
+        public void completed(Object value) {
+          auditReturned(joinPoint, value);
+        }
+
+        @Override
+        public void failed(Throwable failure) {
+          auditThrown(joinPoint, failure);
+        }
+      });
+      return;
+    }
+
+    auditReturned(joinPoint, result);
+  }
+
+  private void auditReturned(JoinPoint joinPoint, Object result) {
+    AuditPolicy policy = getPolicy(joinPoint);
+    RequestTiming timing = getTiming();
+    if (timing != null) {
+      timing.setResult(result, policy.isHideReturnValue());
+    }
+
+    if (policy.isSkip() || (policy.getSampler() != null && !policy.getSampler().sample())) {
+      return;
+    }
+
+    RequestTiming.Span span = RequestTiming.start(CurrentRequest.getRequest(), RequestTiming.Stage.AUDIT, joinPoint.getSignature().getName());
+    try {
+      doAuditAfterReturning(joinPoint, result, policy);
+    } finally {
+      span.end();
+    }
+  }
+
+  private void doAuditAfterReturning(JoinPoint joinPoint, Object result, AuditPolicy policy) {
     String id = getId();
     Class targetClass = joinPoint.getTarget().getClass();
     String methodName = joinPoint.getSignature().getName();
@@ -57,34 +238,42 @@ public class AuditAspect {
 
     LOG.info("[" + id + "] After: " + targetClass.getName() + "." + methodName + " with " + args.length + "params");
 
-    Method method = null;
-    try {
-      method = getMethod(targetClass, methodName, args);
-    } catch (NoSuchMethodException e) {
-      // This is probably due to use of primitive data types such as 'boolean' in target method.
-      LOG.warn("[" + id + "] Could not get method for " + e.getMessage());
-    }
-
-    Object printedResult = result;
-    if (method != null && method.isAnnotationPresent(AuditHideReturnValue.class)) {
-      printedResult = HIDDEN_VALUE;
-    }
-
     AuditEntity ae = AuditEntity.getInstance(
             new Timestamp(new Date().getTime()).toString(),
             methodName,
-            objectsToString(args),
-            printedResult != null ? printedResult.toString() : null,
-            STATE_SUCCESS
+            objectsToString(args, policy),
+            policy.renderReturnValue(result),
+            STATE_SUCCESS,
+            getPrincipal(),
+            id
     );
 
     LOG.info("[" + id + "] Returned: " + ae);
+    writeToSink(ae);
   }
 
   @AfterThrowing(
           pointcut = "execution(* (@javax.jws.WebService *).*(..))",
           throwing = "throwable")
   public void auditAfterThrowing(JoinPoint joinPoint, Throwable throwable) throws Throwable {
+    auditThrown(joinPoint, throwable);
+  }
+
+  private void auditThrown(JoinPoint joinPoint, Throwable throwable) {
+    AuditPolicy policy = getPolicy(joinPoint);
+    if (policy.isSkip()) {
+      return;
+    }
+
+    RequestTiming.Span span = RequestTiming.start(CurrentRequest.getRequest(), RequestTiming.Stage.AUDIT, joinPoint.getSignature().getName());
+    try {
+      doAuditAfterThrowing(joinPoint, throwable, policy);
+    } finally {
+      span.end();
+    }
+  }
+
+  private void doAuditAfterThrowing(JoinPoint joinPoint, Throwable throwable, AuditPolicy policy) {
     String id = getId();
     Class targetClass = joinPoint.getTarget().getClass();
     String methodName = joinPoint.getSignature().getName();
@@ -95,52 +284,171 @@ public class AuditAspect {
     AuditEntity ae = AuditEntity.getInstance(
             new Timestamp(new Date().getTime()).toString(),
             methodName,
-            objectsToString(args),
+            objectsToString(args, policy),
             throwable != null ? throwable.toString() : null,
-            STATE_EXCEPTION
+            STATE_EXCEPTION,
+            getPrincipal(),
+            id
     );
 
     LOG.info("[" + id + "] Exception: " + ae);
+    writeToSink(ae);
+  }
+
+  private void writeToSink(AuditEntity ae) {
+    if (auditSink != null) {
+      auditSink.write(ae);
+    }
   }
 
   protected String objectsToString(Object[] objects) {
-    if (objects == null) {
-      return "null";
+    return objectsToString(objects, AuditPolicy.DEFAULT);
+  }
+
+  protected String objectsToString(Object[] objects, AuditPolicy policy) {
+    return policy.renderArguments(objects);
+  }
+
+  /**
+   * Get the audit policy for the intercepted web method, resolving it on first use.
+   *
+   * @param joinPoint the join point.
+   * @return the policy, never null.
+   */
+  protected AuditPolicy getPolicy(JoinPoint joinPoint) {
+    Method method = ((MethodSignature) joinPoint.getSignature()).getMethod();
+
+    AuditPolicy policy = policies.get(method);
+    if (policy == null) {
+      policy = AuditPolicy.forMethod(method, getConfiguredSampler(method));
+
+      AuditSampler sampler = policy.getSampler();
+      if (sampler != null) {
+        AuditSampler existing = samplers.putIfAbsent(method, sampler);
+        if (existing != null) {
+          existing.setRate(sampler.getRate());
+          existing.setPerSecond(sampler.getPerSecond());
+          policy = policy.withSampler(existing);
+        }
+        startSamplingSummary();
+      } else {
+        AuditSampler removed = samplers.remove(method);
+        if (removed != null) {
+          logSampler(method, removed);
+        }
+      }
+
+      policies.put(method, policy);
     }
 
-    StringBuilder sb = new StringBuilder();
+    return policy;
+  }
 
-    sb.append("[");
-    for (Object object : objects) {
-      sb.append(object).append(", ");
+  private AuditSampler getConfiguredSampler(Method method) {
+    String value = sampling.getProperty(method.getDeclaringClass().getName() + "." + method.getName());
+    if (value == null) {
+      value = sampling.getProperty(method.getName());
     }
-    if (sb.lastIndexOf(",") > 0) {
-      sb.replace(sb.lastIndexOf(","), sb.length(), "");
+
+    return value != null ? AuditSampler.parse(value) : null;
+  }
+
+  private synchronized void startSamplingSummary() {
+    if (summaryExecutor != null) {
+      return;
     }
-    sb.append("]");
 
-    return sb.toString();
+    summaryExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "audit-sampling-summary");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    summaryExecutor.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        logSamplingSummary();
+      }
+    }, samplingSummaryInterval, samplingSummaryInterval, TimeUnit.SECONDS);
   }
 
-  protected String getId() {
-    String id = "";
+  /**
+   * Log the number of audited and suppressed successful calls per sampled operation since the last summary,
+   * so the audit trail stays complete in aggregate.
+   */
+  protected void logSamplingSummary() {
+    for (Map.Entry<Method, AuditSampler> entry : samplers.entrySet()) {
+      logSampler(entry.getKey(), entry.getValue());
+    }
+  }
+
+  private void logSampler(Method method, AuditSampler sampler) {
+    long audited = sampler.drainAudited();
+    long suppressed = sampler.drainSuppressed();
+    if (suppressed > 0) {
+      LOG.info("Sampled: " + method.getDeclaringClass().getName() + "." + method.getName()
+              + " audited " + audited + ", suppressed " + suppressed
+              + " successful calls in the last " + samplingSummaryInterval + "s");
+    }
+  }
+
+  protected String getPrincipal() {
+    String principal = null;
 
     try {
-      HttpServletRequest request = (HttpServletRequest) PhaseInterceptorChain.getCurrentMessage().get("HTTP.REQUEST");
-      id = request.getSession().getId();
+      HttpServletRequest request = CurrentRequest.getRequest();
+      principal = request.getRemoteUser();
     } catch (Exception ex) {
-      LOG.debug("Failed to get id from session", ex);
+      LOG.debug("Failed to get principal from request", ex);
     }
 
-    return id;
+    return principal;
   }
 
-  private Method getMethod(Class target, String name, Object[] args) throws NoSuchMethodException {
-    Class[] parameterTypes = new Class[args.length];
-    for(int i = 0; i < parameterTypes.length; i++) {
-      parameterTypes[i] = args[i].getClass();
+  /**
+   * Tag the current request with the invoked operation, so the request log can keep latencies per operation.
+   *
+   * @param operation the operation name.
+   */
+  protected void setOperation(String operation) {
+    try {
+      HttpServletRequest request = CurrentRequest.getRequest();
+      request.setAttribute(LatencyRegistry.OPERATION_ATTRIBUTE, operation);
+    } catch (Exception ex) {
+      LOG.debug("Failed to set operation on request", ex);
+    }
+  }
+
+  /**
+   * @return the timing of the current request, or null if there is no current request.
+   */
+  protected RequestTiming getTiming() {
+    try {
+      HttpServletRequest request = CurrentRequest.getRequest();
+      return request != null ? RequestTiming.getOrCreate(request) : null;
+    } catch (Exception ex) {
+      LOG.debug("Failed to get timing of request", ex);
+      return null;
+    }
+  }
+
+  /**
+   * Get the correlation id of the current request.
+   *
+   * @return the id, or an empty string if there is none.
+   */
+  protected String getId() {
+    String id = null;
+
+    try {
+      HttpServletRequest request = CurrentRequest.getRequest();
+      id = CorrelationIdHandler.getId(request);
+    } catch (Exception ex) {
+      LOG.debug("Failed to get correlation id from request", ex);
     }
 
-    return target.getMethod(name, parameterTypes);
+    return id != null ? id : "";
   }
 }
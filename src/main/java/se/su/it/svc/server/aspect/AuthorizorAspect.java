@@ -37,7 +37,12 @@ import org.aspectj.lang.annotation.Around;
 import org.aspectj.lang.annotation.Aspect;
 import org.slf4j.LoggerFactory;
 import se.su.it.svc.server.annotations.AuthzRole;
+import se.su.it.svc.server.metrics.Counter;
+import se.su.it.svc.server.metrics.LatencyHistogram;
+import se.su.it.svc.server.metrics.MetricsRegistry;
 import se.su.it.svc.server.security.Authorizor;
+import se.su.it.svc.server.security.SharedAuthorizor;
+import se.su.it.svc.server.timing.RequestTiming;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -48,6 +53,13 @@ public class AuthorizorAspect {
 
   private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(AuthorizorAspect.class);
 
+  private static final Counter GRANTED = MetricsRegistry.getDefault().counter(
+          "cxf_server_authorizations_total", "Authorization decisions by result.", "result", "granted");
+  private static final Counter DENIED = MetricsRegistry.getDefault().counter(
+          "cxf_server_authorizations_total", "Authorization decisions by result.", "result", "denied");
+  private static final LatencyHistogram CHECK_TIME = MetricsRegistry.getDefault().histogram(
+          "cxf_server_authorization_check_microseconds", "Time spent in the authorizor backend.");
+
   private Authorizor authorizor;
 
   @Around("execution(* (@se.su.it.svc.server.annotations.AuthzRole *).*(..))")
@@ -73,12 +85,13 @@ public class AuthorizorAspect {
   }
 
   /**
-   * Set a authorizer for this aspect.
+   * Set a authorizer for this aspect. It's also used by the server for admin endpoints.
    *
    * @param authorizor the authorizer to use.
    */
   public void setAuthorizor(Authorizor authorizor) {
     this.authorizor = authorizor;
+    SharedAuthorizor.set(authorizor);
   }
 
   /**
@@ -96,10 +109,20 @@ public class AuthorizorAspect {
 
     LOG.debug("Running Authorizor.checkRole for uid=" + uid + ", role=" + role);
 
-    if (authorizor == null || authorizor.checkRole(uid, role)) {
+    boolean authorized;
+    RequestTiming.Span span = RequestTiming.start(request, RequestTiming.Stage.AUTHORIZATION, joinPoint.getSignature().getName());
+    try {
+      authorized = checkRole(uid, role);
+    } finally {
+      span.end();
+    }
+
+    if (authorized) {
+      GRANTED.inc();
       LOG.info("Authorizor.checkRole for uid=" + uid + ", role=" + role + ": OK");
       result = joinPoint.proceed();
     } else {
+      DENIED.inc();
       LOG.info("Authorizor.checkRole for uid=" + uid + ", role=" + role + ": DENIED");
       HttpServletResponse response = (HttpServletResponse) PhaseInterceptorChain.getCurrentMessage().get("HTTP.RESPONSE");
 
@@ -110,4 +133,17 @@ public class AuthorizorAspect {
 
     return result;
   }
+
+  private boolean checkRole(String uid, String role) {
+    if (authorizor == null) {
+      return true;
+    }
+
+    long start = System.nanoTime();
+    try {
+      return authorizor.checkRole(uid, role);
+    } finally {
+      CHECK_TIME.record((System.nanoTime() - start) / 1000);
+    }
+  }
 }
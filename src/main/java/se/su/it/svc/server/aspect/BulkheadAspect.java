@@ -0,0 +1,134 @@
+package se.su.it.svc.server.aspect;
+
+import org.apache.cxf.interceptor.Fault;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.slf4j.LoggerFactory;
+import se.su.it.svc.server.annotations.ConcurrencyLimit;
+import se.su.it.svc.server.limit.Bulkhead;
+import se.su.it.svc.server.metrics.MetricsRegistry;
+
+import javax.servlet.http.HttpServletResponse;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Enforces @ConcurrencyLimit on web services and web methods. A limit on the class is shared by all its web
+ * methods, a limit on a method applies to that method, and a call of a method with both takes a slot in each.
+ * <p/>
+ * Runs after authorization, so denied calls don't take slots, and holds the slot of an asynchronous call until
+ * its response arrives. A call holds at most one slot of each bulkhead, methods it calls on its own service
+ * run in the slots it already holds.
+ */
+@Aspect
+public class BulkheadAspect {
+
+  private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(BulkheadAspect.class);
+
+  /** The bulkheads the call on the thread holds slots in. */
+  private static final ThreadLocal<Set<Bulkhead>> HELD = new ThreadLocal<Set<Bulkhead>>() {
+    @Override
+    protected Set<Bulkhead> initialValue() {
+      return new HashSet<Bulkhead>();
+    }
+  };
+
+  private final ConcurrentMap<String, Bulkhead> bulkheads = new ConcurrentHashMap<String, Bulkhead>();
+  /** Names of shared bulkheads already warned about, so a mismatch is only logged once. */
+  private final Set<String> mismatches = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  @Around("execution(* (@se.su.it.svc.server.annotations.ConcurrencyLimit *).*(..))")
+  public Object withClassAnnotation(ProceedingJoinPoint joinPoint) throws Throwable {
+    Class target = joinPoint.getTarget().getClass();
+    ConcurrencyLimit limit = (ConcurrencyLimit) target.getAnnotation(ConcurrencyLimit.class);
+    if (limit == null) {
+      return joinPoint.proceed();
+    }
+
+    return handleAspect(joinPoint, getBulkhead(limit, target.getName()));
+  }
+
+  @Around("execution(@se.su.it.svc.server.annotations.ConcurrencyLimit * *(..)) && @annotation(limit)")
+  public Object withMethodAnnotation(ProceedingJoinPoint joinPoint, ConcurrencyLimit limit) throws Throwable {
+    return handleAspect(joinPoint, getBulkhead(limit,
+            joinPoint.getSignature().getDeclaringTypeName() + "." + joinPoint.getSignature().getName()));
+  }
+
+  /**
+   * @param name the bulkhead name.
+   * @return the bulkhead, or null if no call has used it yet.
+   */
+  public Bulkhead getBulkhead(String name) {
+    return bulkheads.get(name);
+  }
+
+  private Object handleAspect(ProceedingJoinPoint joinPoint, final Bulkhead bulkhead) throws Throwable {
+    Set<Bulkhead> held = HELD.get();
+    if (held.contains(bulkhead)) {
+      return joinPoint.proceed();
+    }
+
+    if (!bulkhead.acquire()) {
+      LOG.warn("Rejected " + joinPoint.getSignature().getName() + ", bulkhead " + bulkhead.getName() + " is full");
+      throw new Fault(new RejectedExecutionException("Too many concurrent calls, try again later"))
+              .setStatusCode(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+    }
+
+    boolean release = true;
+    held.add(bulkhead);
+    try {
+      Object result = joinPoint.proceed();
+
+      AsyncInvocation async = AsyncInvocation.current();
+      if (async != null) {
+        release = false;
+        async.addListener(new AsyncInvocation.Listener() {
+          @Override
+          public void completed(Object value) {
+            bulkhead.release();
+          }
+
+          @Override
+          public void failed(Throwable failure) {
+            bulkhead.release();
+          }
+        });
+      }
+
+      return result;
+    } finally {
+      held.remove(bulkhead);
+      if (release) {
+        bulkhead.release();
+      }
+    }
+  }
+
+  private Bulkhead getBulkhead(ConcurrencyLimit limit, String defaultName) {
+    String name = limit.name().length() > 0 ? limit.name() : defaultName;
+
+    Bulkhead bulkhead = bulkheads.get(name);
+    if (bulkhead == null) {
+      Bulkhead created = new Bulkhead(name, limit.value(), limit.queue(), limit.maxWait(), MetricsRegistry.getDefault());
+      bulkhead = bulkheads.putIfAbsent(name, created);
+      if (bulkhead == null) {
+        // Only the bulkhead that won the race publishes its slots
+        created.registerGauges(MetricsRegistry.getDefault());
+        return created;
+      }
+    }
+
+    if ((bulkhead.getMaxConcurrent() != limit.value() || bulkhead.getMaxQueue() != Math.max(0, limit.queue())
+            || bulkhead.getMaxWait() != Math.max(0, limit.maxWait())) && mismatches.add(name)) {
+      LOG.warn("Bulkhead " + name + " is shared by limits with different settings, using "
+              + bulkhead.getMaxConcurrent() + " slots, queue " + bulkhead.getMaxQueue()
+              + " and max wait " + bulkhead.getMaxWait() + "ms, ignoring " + limit);
+    }
+    return bulkhead;
+  }
+}
@@ -0,0 +1,70 @@
+package se.su.it.svc.server.aspect;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.aspectj.lang.reflect.MethodSignature;
+import se.su.it.svc.server.annotations.Coalesce;
+import se.su.it.svc.server.cache.ResultCache;
+import se.su.it.svc.server.cache.SingleFlight;
+import se.su.it.svc.server.metrics.MetricsRegistry;
+
+import javax.servlet.http.HttpServletRequest;
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Lets concurrent calls of a @Coalesce web method with equal arguments share one invocation.
+ * <p/>
+ * Runs innermost, so arguments are already trimmed, every caller has been authorized and audited on its own,
+ * and a cache miss in the result cache is answered by one invocation for all waiting callers.
+ */
+@Aspect
+public class CoalescingAspect {
+
+  private final ConcurrentMap<Method, SingleFlight> flights = new ConcurrentHashMap<Method, SingleFlight>();
+
+  @Around("execution(@se.su.it.svc.server.annotations.Coalesce * *(..)) && @annotation(annotation)")
+  public Object coalesce(final ProceedingJoinPoint joinPoint, Coalesce annotation) throws Throwable {
+    if (AsyncInvocation.current() != null) {
+      // Each asynchronous call has its own handler to call back, so it can't be shared
+      return joinPoint.proceed();
+    }
+
+    SingleFlight flight = getSingleFlight(((MethodSignature) joinPoint.getSignature()).getMethod(), annotation);
+
+    String principal = annotation.perPrincipal() ? getPrincipal() : null;
+    ResultCache.Key key = new ResultCache.Key(principal, joinPoint.getArgs().clone());
+
+    return flight.execute(key, new SingleFlight.Call() {
+      @Override
+      public Object call() throws Throwable {
+        return joinPoint.proceed();
+      }
+    });
+  }
+
+  /**
+   * @param method the web method.
+   * @param annotation the annotation of the method.
+   * @return the calls in flight for the method.
+   */
+  SingleFlight getSingleFlight(Method method, Coalesce annotation) {
+    SingleFlight flight = flights.get(method);
+    if (flight == null) {
+      SingleFlight created = new SingleFlight(method.getDeclaringClass().getName() + "." + method.getName(),
+              annotation.maxWait(), MetricsRegistry.getDefault());
+      flight = flights.putIfAbsent(method, created);
+      if (flight == null) {
+        flight = created;
+      }
+    }
+    return flight;
+  }
+
+  protected String getPrincipal() {
+    HttpServletRequest request = CurrentRequest.getRequest();
+    return request != null ? request.getRemoteUser() : null;
+  }
+}
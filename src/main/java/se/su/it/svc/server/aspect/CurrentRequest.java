@@ -0,0 +1,37 @@
+package se.su.it.svc.server.aspect;
+
+import org.apache.cxf.message.Message;
+import org.apache.cxf.phase.PhaseInterceptorChain;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Access to the HTTP request and response of the web service call on the current thread, or of the asynchronous
+ * call being completed on it.
+ */
+final class CurrentRequest {
+  private CurrentRequest() {
+  }
+
+  /**
+   * @return the current request, or null if there is no current CXF message.
+   */
+  static HttpServletRequest getRequest() {
+    Message message = getMessage();
+    return message != null ? (HttpServletRequest) message.get("HTTP.REQUEST") : null;
+  }
+
+  /**
+   * @return the current response, or null if there is no current CXF message.
+   */
+  static HttpServletResponse getResponse() {
+    Message message = getMessage();
+    return message != null ? (HttpServletResponse) message.get("HTTP.RESPONSE") : null;
+  }
+
+  private static Message getMessage() {
+    Message message = AsyncInvocation.getCompletingMessage();
+    return message != null ? message : PhaseInterceptorChain.getCurrentMessage();
+  }
+}
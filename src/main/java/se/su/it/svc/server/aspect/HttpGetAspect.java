@@ -0,0 +1,73 @@
+package se.su.it.svc.server.aspect;
+
+import org.apache.cxf.phase.PhaseInterceptorChain;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.aspectj.lang.reflect.MethodSignature;
+import org.slf4j.LoggerFactory;
+import se.su.it.svc.server.annotations.HttpGet;
+import se.su.it.svc.server.filter.HttpCacheFilter;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Only lets @HttpGet web methods be called with HTTP GET, and marks their responses as cacheable for the
+ * {@link HttpCacheFilter}.
+ * <p/>
+ * CXF maps GET /Service/operation?parameter=value to the web method, this aspect keeps other web methods from
+ * being called that way, since caches, crawlers and browsers repeat GET requests as they see fit. It runs before
+ * all other aspects, so a GET of any other web method is refused before it is authorized or audited. Only the
+ * outermost web method execution is checked, methods it calls on its own service are part of the same call.
+ */
+@Aspect
+public class HttpGetAspect {
+
+  private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(HttpGetAspect.class);
+
+  /** Set while a checked GET call runs on the thread. */
+  private static final ThreadLocal<Boolean> CHECKED = new ThreadLocal<Boolean>();
+
+  @Around("execution(* (@javax.jws.WebService *).*(..))")
+  public Object checkGet(ProceedingJoinPoint joinPoint) throws Throwable {
+    if (CHECKED.get() != null) {
+      return joinPoint.proceed();
+    }
+
+    HttpServletRequest request = CurrentRequest.getRequest();
+    if (request == null || !"GET".equals(request.getMethod())) {
+      return joinPoint.proceed();
+    }
+
+    HttpGet annotation = ((MethodSignature) joinPoint.getSignature()).getMethod().getAnnotation(HttpGet.class);
+    if (annotation == null) {
+      LOG.info("Refused GET of " + joinPoint.getSignature().getName() + " for uid=" + request.getRemoteUser());
+      HttpServletResponse response = CurrentRequest.getResponse();
+      response.setHeader("Allow", "POST");
+      response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED,
+              "Operation " + joinPoint.getSignature().getName() + " can't be called with GET");
+
+      PhaseInterceptorChain.getCurrentMessage().getInterceptorChain().abort();
+      return null;
+    }
+
+    Object result;
+    CHECKED.set(Boolean.TRUE);
+    try {
+      result = joinPoint.proceed();
+    } finally {
+      CHECKED.remove();
+    }
+
+    // The response of an asynchronous call is written later, after the request has left the filter
+    if (!AsyncInvocation.isAsync(joinPoint.getArgs())) {
+      request.setAttribute(HttpCacheFilter.CACHE_CONTROL_ATTRIBUTE, cacheControl(annotation));
+    }
+    return result;
+  }
+
+  static String cacheControl(HttpGet annotation) {
+    return (annotation.shared() ? "public" : "private") + ", max-age=" + Math.max(0, annotation.maxAge());
+  }
+}
@@ -0,0 +1,70 @@
+package se.su.it.svc.server.aspect;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.aspectj.lang.annotation.DeclarePrecedence;
+import se.su.it.svc.server.timing.RequestTiming;
+import se.su.it.svc.server.timing.ServerTiming;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Times the invocation of web methods, and starts timing the serialization of the response when they return.
+ * When asked for, the stage durations so far are added to the response in a Server-Timing header.
+ * <p/>
+ * This aspect runs inside all other aspects but the result cache and coalescing, so the invocation stage only
+ * covers the web method itself, or the cache lookup or shared call answering it, while authorization, sanitizing
+ * and auditing are timed by their own aspects. For asynchronous calls the invocation stage lasts until the
+ * response arrives.
+ */
+@Aspect
+@DeclarePrecedence("se.su.it.svc.server.aspect.HttpGetAspect, se.su.it.svc.server.aspect.AuthorizorAspect, "
+        + "se.su.it.svc.server.aspect.SanitizeWebParametersAspect, se.su.it.svc.server.aspect.AsyncInvocationAspect, se.su.it.svc.server.aspect.BulkheadAspect, "
+        + "se.su.it.svc.server.aspect.AuditAspect, se.su.it.svc.server.aspect.RequestTimingAspect, "
+        + "se.su.it.svc.server.aspect.ResultCacheAspect, se.su.it.svc.server.aspect.CoalescingAspect")
+public class RequestTimingAspect {
+
+  @Around("execution(* (@javax.jws.WebService *).*(..))")
+  public Object timeInvocation(ProceedingJoinPoint joinPoint) throws Throwable {
+    final HttpServletRequest request = CurrentRequest.getRequest();
+    if (request == null) {
+      return joinPoint.proceed();
+    }
+
+    final RequestTiming.Span span = RequestTiming.start(request, RequestTiming.Stage.INVOCATION, joinPoint.getSignature().getName());
+    boolean completed = true;
+    try {
+      Object result = joinPoint.proceed();
+
+      AsyncInvocation async = AsyncInvocation.current();
+      if (async != null) {
+        // The invocation lasts until the response arrives
+        completed = false;
+        async.addListener(new AsyncInvocation.Listener() {
+          @Override
+          public void completed(Object value) {
+            endInvocation(request, span);
+          }
+
+          @Override
+          public void failed(Throwable failure) {
+            endInvocation(request, span);
+          }
+        });
+      }
+
+      return result;
+    } finally {
+      if (completed) {
+        endInvocation(request, span);
+      }
+    }
+  }
+
+  private void endInvocation(HttpServletRequest request, RequestTiming.Span span) {
+    span.end();
+    ServerTiming.getDefault().addHeader(request, CurrentRequest.getResponse());
+    RequestTiming.getOrCreate(request).startSerialization();
+  }
+}
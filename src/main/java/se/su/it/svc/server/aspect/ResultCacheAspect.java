@@ -0,0 +1,172 @@
+package se.su.it.svc.server.aspect;
+
+import org.aspectj.lang.JoinPoint;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.After;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.slf4j.LoggerFactory;
+import se.su.it.svc.server.annotations.CacheEvict;
+import se.su.it.svc.server.annotations.CacheResult;
+import se.su.it.svc.server.cache.ResultCache;
+import se.su.it.svc.server.jmx.Jmx;
+import se.su.it.svc.server.jmx.ResultCacheControl;
+import se.su.it.svc.server.metrics.MetricsRegistry;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Answers calls of @CacheResult web methods from a cache, and evicts cached results when @CacheEvict web methods
+ * are called.
+ * <p/>
+ * Runs after authorization, sanitizing and auditing, so denied calls never reach the cache, keys are built from
+ * trimmed arguments and cached calls are still audited.
+ */
+@Aspect
+public class ResultCacheAspect {
+
+  private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(ResultCacheAspect.class);
+
+  private final ConcurrentMap<String, ResultCache> caches = new ConcurrentHashMap<String, ResultCache>();
+
+  public ResultCacheAspect() {
+    Jmx.register(new ResultCacheControl(this), "ResultCache");
+  }
+
+  @Around("execution(@se.su.it.svc.server.annotations.CacheResult * *(..)) && @annotation(annotation)")
+  public Object cacheResult(ProceedingJoinPoint joinPoint, CacheResult annotation) throws Throwable {
+    if (AsyncInvocation.current() != null) {
+      // The result is a Future, not worth keeping
+      return joinPoint.proceed();
+    }
+
+    String name = annotation.name().length() > 0
+            ? annotation.name() : qualifiedName(joinPoint, joinPoint.getSignature().getName());
+    ResultCache cache = getOrCreateCache(name, annotation);
+
+    String principal = annotation.perPrincipal() ? getPrincipal() : null;
+    ResultCache.Key key = new ResultCache.Key(principal, selectArgs(joinPoint.getArgs(), annotation.key()));
+
+    Object result = cache.get(key);
+    if (result != null) {
+      LOG.debug("Cache hit in " + name + " for " + key);
+      return result;
+    }
+
+    result = joinPoint.proceed();
+    if (result != null) {
+      cache.put(key, result);
+    }
+    return result;
+  }
+
+  @After("execution(@se.su.it.svc.server.annotations.CacheEvict * *(..)) && @annotation(annotation)")
+  public void cacheEvict(JoinPoint joinPoint, CacheEvict annotation) {
+    int[] indexes = annotation.key();
+    Object[] args = indexes.length > 0 ? selectArgs(joinPoint.getArgs(), indexes) : null;
+
+    for (String name : annotation.value()) {
+      ResultCache cache = caches.get(qualifiedName(joinPoint, name));
+      if (cache == null) {
+        cache = caches.get(name);
+      }
+      if (cache == null) {
+        continue;
+      }
+
+      if (args != null) {
+        int removed = cache.invalidate(args);
+        LOG.debug("Evicted " + removed + " results from " + name + " after " + joinPoint.getSignature().getName());
+      } else {
+        cache.invalidateAll();
+        LOG.debug("Evicted all results from " + name + " after " + joinPoint.getSignature().getName());
+      }
+    }
+  }
+
+  /**
+   * @param name the cache name.
+   * @return the cache, or null if no @CacheResult method with that name has been called yet.
+   */
+  public ResultCache getCache(String name) {
+    return caches.get(name);
+  }
+
+  /**
+   * @return the caches created so far.
+   */
+  public List<ResultCache> getCaches() {
+    return new ArrayList<ResultCache>(caches.values());
+  }
+
+  /**
+   * Remove all results cached for a principal, ex. after the principal's entitlements changed.
+   *
+   * @param principal the principal.
+   * @return the number of removed results.
+   */
+  public int invalidatePrincipal(String principal) {
+    int removed = 0;
+    for (ResultCache cache : caches.values()) {
+      removed += cache.invalidatePrincipal(principal);
+    }
+    return removed;
+  }
+
+  /**
+   * Remove all cached results.
+   */
+  public void invalidateAll() {
+    for (ResultCache cache : caches.values()) {
+      cache.invalidateAll();
+    }
+  }
+
+  private ResultCache getOrCreateCache(String name, CacheResult annotation) {
+    ResultCache cache = caches.get(name);
+    if (cache == null) {
+      ResultCache created = new ResultCache(name, annotation.ttl() * 1000L, annotation.maxEntries(),
+              annotation.maxBytes(), MetricsRegistry.getDefault());
+      cache = caches.putIfAbsent(name, created);
+      if (cache == null) {
+        // Only the cache that won the race publishes its size
+        created.registerGauges(MetricsRegistry.getDefault());
+        cache = created;
+      }
+    }
+    return cache;
+  }
+
+  /**
+   * @return the name qualified with the class declaring the intercepted method, ex. 'se.su.it.Users.getUser'.
+   */
+  static String qualifiedName(JoinPoint joinPoint, String name) {
+    return joinPoint.getSignature().getDeclaringTypeName() + "." + name;
+  }
+
+  /**
+   * @param args the arguments of the call.
+   * @param indexes the indexes of the key arguments, or empty for all arguments.
+   * @return the key arguments.
+   */
+  static Object[] selectArgs(Object[] args, int[] indexes) {
+    if (indexes.length == 0) {
+      return args.clone();
+    }
+
+    Object[] selected = new Object[indexes.length];
+    for (int i = 0; i < indexes.length; i++) {
+      selected[i] = args[indexes[i]];
+    }
+    return selected;
+  }
+
+  protected String getPrincipal() {
+    HttpServletRequest request = CurrentRequest.getRequest();
+    return request != null ? request.getRemoteUser() : null;
+  }
+}
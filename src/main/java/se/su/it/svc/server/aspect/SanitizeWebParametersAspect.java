@@ -4,38 +4,40 @@ import org.aspectj.lang.ProceedingJoinPoint;
 import org.aspectj.lang.annotation.Around;
 import org.aspectj.lang.annotation.Aspect;
 import org.slf4j.LoggerFactory;
+import se.su.it.svc.server.timing.RequestTiming;
 
 @Aspect
 public class SanitizeWebParametersAspect {
 
   private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(SanitizeWebParametersAspect.class);
 
+  private static final ArgumentSanitizer SANITIZER = new ArgumentSanitizer();
+
   @Around("execution(* (@javax.jws.WebService *).*(..))")
   public Object runAspect(ProceedingJoinPoint joinPoint) throws Throwable {
     Object[] args = joinPoint.getArgs();
 
     LOG.debug("Intercepted method " + joinPoint.getTarget().getClass().getName() + "." + joinPoint.getSignature().getName());
 
+    RequestTiming.Span span = RequestTiming.start(CurrentRequest.getRequest(), RequestTiming.Stage.SANITIZING, joinPoint.getSignature().getName());
     try {
       args = washArgs(args);
     } catch (Exception ex) {
       LOG.error("Failed to sanitize arguments for method ${method.name}, attributes supplied were: ${args.join(", ")}", ex);
+    } finally {
+      span.end();
     }
 
     return joinPoint.proceed(args);
   }
 
+  /**
+   * Trim strings in the arguments, also those nested in request objects.
+   *
+   * @param args the arguments.
+   * @return the arguments, the same array unless a string argument was trimmed.
+   */
   private static Object[] washArgs(Object[] args) {
-    Object[] washedArgs = new Object[args.length];
-
-    for (int i = 0; i < args.length; i++) {
-      Object arg = args[i];
-      if (arg instanceof String) {
-        washedArgs[i] = ((String)arg).trim();
-      } else {
-        washedArgs[i] = arg;
-      }
-    }
-    return washedArgs;
+    return SANITIZER.sanitize(args);
   }
 }
@@ -7,6 +7,8 @@ public class AuditEntity {
   private String textArgs;
   private String textReturn;
   private String state;
+  private String principal;
+  private String id;
 
   private AuditEntity() {}
 
@@ -25,6 +27,51 @@ public class AuditEntity {
     return auditEntity;
   }
 
+  public static AuditEntity getInstance(String created,
+                                        String operation,
+                                        String textArgs,
+                                        String textReturn,
+                                        String state,
+                                        String principal,
+                                        String id) {
+
+    AuditEntity auditEntity = getInstance(created, operation, textArgs, textReturn, state);
+    auditEntity.principal     = principal;
+    auditEntity.id            = id;
+    return auditEntity;
+  }
+
+  public String getCreated() {
+    return created;
+  }
+
+  public String getOperation() {
+    return operation;
+  }
+
+  public String getTextArgs() {
+    return textArgs;
+  }
+
+  public String getTextReturn() {
+    return textReturn;
+  }
+
+  public String getState() {
+    return state;
+  }
+
+  public String getPrincipal() {
+    return principal;
+  }
+
+  /**
+   * @return the id correlating the audit records of a single request.
+   */
+  public String getId() {
+    return id;
+  }
+
   @Override
   public String toString() {
     StringBuilder sb = new StringBuilder();
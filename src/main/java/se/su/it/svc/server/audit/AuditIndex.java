@@ -0,0 +1,702 @@
+package se.su.it.svc.server.audit;
+
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An index over the segments of an {@link AuditJournal}, answering time range queries filtered on operation,
+ * principal, state and id without reading every record.
+ * <p/>
+ * Each journal segment is a time partition: the index keeps the time span of every segment, so segments outside
+ * a queried range are never read, and per segment postings for each indexed field, so only matching records
+ * are read from the ones that remain.
+ * <p/>
+ * Only the postings of the segment being written to are kept in memory. The index of a segment that is no longer
+ * written to is saved next to it, in a file with an ".idx" suffix, and only its time span is kept, its postings
+ * are read from the file when a query needs them.
+ * <p/>
+ * {@link #start()} indexes new records incrementally on a background thread, reading the segment files
+ * independently of the journal, so the request path is never blocked by indexing. A read-only index, ex. the one
+ * of {@link AuditQueryTool}, never writes to the journal directory and only reads segments when they're queried.
+ */
+public class AuditIndex {
+  private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(AuditIndex.class);
+
+  /**
+   * Records are stamped before the journal lock is taken, so a segment may hold records a little older than the
+   * creation time in its name, or a little newer than the creation time of the next segment.
+   */
+  private static final long SEGMENT_TIME_SLACK = 60 * 1000L;
+
+  private File directory = null;
+  private long pollInterval = 1000;
+  private boolean readOnly = false;
+
+  private final Map<File, SegmentIndex> segments = new LinkedHashMap<File, SegmentIndex>();
+  private Thread indexer = null;
+  private volatile boolean running = false;
+
+  public void setDirectory(File directory) {
+    this.directory = directory;
+  }
+
+  /**
+   * @param pollInterval the time in milliseconds between checks for new records.
+   */
+  public void setPollInterval(long pollInterval) {
+    this.pollInterval = pollInterval;
+  }
+
+  /**
+   * @param readOnly true to never write to the journal directory, ex. when the server indexes it at the same time.
+   * Segments are then read when queried, and only those whose creation times say they may hold queried records.
+   */
+  public void setReadOnly(boolean readOnly) {
+    this.readOnly = readOnly;
+  }
+
+  /**
+   * Start indexing new records in the background.
+   */
+  public synchronized void start() {
+    if (running) {
+      return;
+    }
+
+    running = true;
+    indexer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        while (running) {
+          try {
+            update();
+            Thread.sleep(pollInterval);
+          } catch (InterruptedException e) {
+            return;
+          } catch (Exception e) {
+            LOG.error("Failed to index audit journal " + directory, e);
+          }
+        }
+      }
+    }, "audit-index");
+    indexer.setDaemon(true);
+    indexer.start();
+  }
+
+  /**
+   * Stop indexing in the background.
+   */
+  public synchronized void stop() {
+    running = false;
+    if (indexer != null) {
+      indexer.interrupt();
+      indexer = null;
+    }
+  }
+
+  /**
+   * Index all records added to the journal since the last update. A read-only index only looks for new and
+   * removed segments.
+   *
+   * @throws IOException if a segment can't be read.
+   */
+  public void update() throws IOException {
+    if (directory == null) {
+      throw new IllegalStateException("No journal directory has been set.");
+    }
+
+    File[] files = JournalSegment.list(directory);
+
+    List<SegmentIndex> toUpdate = new ArrayList<SegmentIndex>();
+    Set<SegmentIndex> toSeal = new HashSet<SegmentIndex>();
+    synchronized (segments) {
+      // Segments removed from disk, ex. by retention, are dropped from the index along with their saved index.
+      Set<File> existing = new HashSet<File>(Arrays.asList(files));
+      for (Iterator<File> it = segments.keySet().iterator(); it.hasNext(); ) {
+        File file = it.next();
+        if (!existing.contains(file)) {
+          it.remove();
+          if (!readOnly) {
+            SegmentIndex.sidecar(file).delete();
+          }
+        }
+      }
+
+      for (int i = 0; i < files.length; i++) {
+        SegmentIndex segment = segments.get(files[i]);
+        if (segment == null) {
+          segment = new SegmentIndex(files[i], readOnly);
+          segments.put(files[i], segment);
+        }
+        // Only the newest segment is written to, the rest only need indexing once.
+        if (!readOnly && !segment.sealed) {
+          toUpdate.add(segment);
+          if (i < files.length - 1) {
+            toSeal.add(segment);
+          }
+        }
+      }
+    }
+
+    for (SegmentIndex segment : toUpdate) {
+      segment.update(toSeal.contains(segment));
+    }
+  }
+
+  /**
+   * Find the records matching a query, oldest first.
+   *
+   * @param query the query.
+   * @return the matching records, at most query.getLimit() of them.
+   * @throws IOException if a segment can't be read.
+   */
+  public List<AuditEntity> query(AuditQuery query) throws IOException {
+    List<SegmentIndex> candidates = new ArrayList<SegmentIndex>();
+    synchronized (segments) {
+      List<SegmentIndex> all = new ArrayList<SegmentIndex>(segments.values());
+      for (int i = 0; i < all.size(); i++) {
+        SegmentIndex segment = all.get(i);
+        // Without an index in memory, segments are first pruned by the creation times in their names
+        if (readOnly && (segment.created - SEGMENT_TIME_SLACK >= query.getTo()
+                || (i < all.size() - 1 && all.get(i + 1).created + SEGMENT_TIME_SLACK < query.getFrom()))) {
+          continue;
+        }
+        candidates.add(segment);
+      }
+    }
+
+    List<AuditEntity> result = new ArrayList<AuditEntity>();
+    for (SegmentIndex segment : candidates) {
+      if (result.size() >= query.getLimit()) {
+        break;
+      }
+      segment.query(query, result);
+    }
+
+    return result;
+  }
+
+  /**
+   * @return the number of indexed records, of a read-only index the number of records in the segments queried.
+   */
+  public long getIndexedRecords() {
+    long count = 0;
+    synchronized (segments) {
+      for (SegmentIndex segment : segments.values()) {
+        count += segment.getCount();
+      }
+    }
+    return count;
+  }
+
+  /**
+   * The index of a single journal segment: its time span, and the postings of a segment being written to.
+   */
+  private static class SegmentIndex {
+    private static final int MAGIC = 0x41554458; // "AUDX"
+    private static final int VERSION = 2;
+    private static final String SIDECAR_SUFFIX = ".idx";
+
+    private final File file;
+    private final long created;
+    private final boolean readOnly;
+    private volatile boolean sealed = false;
+
+    private int indexedTo = JournalSegment.HEADER_SIZE;
+    private boolean spanned = false;
+    private int count = 0;
+    private long minTime = Long.MAX_VALUE;
+    private long maxTime = Long.MIN_VALUE;
+    /** The postings of the segment while it's written to, null once it's sealed. */
+    private Postings open = null;
+
+    SegmentIndex(File file, boolean readOnly) {
+      this.file = file;
+      this.created = JournalSegment.parseCreated(file);
+      this.readOnly = readOnly;
+    }
+
+    static File sidecar(File file) {
+      return new File(file.getParentFile(), file.getName() + SIDECAR_SUFFIX);
+    }
+
+    /**
+     * Index the records added since the last update.
+     *
+     * @param seal true if the segment is no longer written to, it's then saved and never updated again.
+     */
+    void update(boolean seal) throws IOException {
+      final Postings postings;
+      int from;
+      synchronized (this) {
+        from = indexedTo;
+        if (open == null) {
+          open = new Postings();
+        }
+        postings = open;
+      }
+
+      if (seal && from == JournalSegment.HEADER_SIZE && loadSpan()) {
+        synchronized (this) {
+          open = null;
+        }
+        sealed = true;
+        return;
+      }
+
+      int end = JournalSegment.read(file, from, Integer.MAX_VALUE, new JournalSegment.RecordVisitor() {
+        @Override
+        public void visit(int position, ByteBuffer payload) {
+          try {
+            long time = AuditJournal.decodeTime(payload);
+            AuditEntity auditEntity = AuditJournal.decode(payload);
+            synchronized (SegmentIndex.this) {
+              postings.add(position, time, auditEntity);
+              span(time);
+            }
+          } catch (IOException e) {
+            LOG.warn("Skipping unreadable audit record at " + file + ":" + position, e);
+          }
+        }
+      });
+
+      synchronized (this) {
+        indexedTo = end;
+        spanned = true;
+      }
+
+      // Only sealed once indexed, a segment that failed to read is read again on the next update.
+      if (seal) {
+        save(postings);
+        synchronized (this) {
+          open = null;
+        }
+        sealed = true;
+      }
+    }
+
+    private void span(long time) {
+      count++;
+      minTime = Math.min(minTime, time);
+      maxTime = Math.max(maxTime, time);
+    }
+
+    /**
+     * Load the time span from the saved index of the segment, if there is one that is newer than the segment.
+     *
+     * @return true if the span was loaded.
+     */
+    private boolean loadSpan() {
+      DataInputStream in = openSidecar();
+      if (in == null) {
+        return false;
+      }
+      try {
+        in.close();
+      } catch (IOException e) {
+        // Only read
+      }
+      return true;
+    }
+
+    /**
+     * Open the saved index of the segment and read the time span from it.
+     *
+     * @return the stream positioned after the span, or null if there is no saved index newer than the segment.
+     */
+    private DataInputStream openSidecar() {
+      File sidecar = sidecar(file);
+      if (!sidecar.isFile()) {
+        return null;
+      }
+
+      DataInputStream in = null;
+      try {
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(sidecar)));
+        if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readLong() != file.lastModified()) {
+          in.close();
+          return null;
+        }
+
+        int savedIndexedTo = in.readInt();
+        int savedCount = in.readInt();
+        long savedMinTime = in.readLong();
+        long savedMaxTime = in.readLong();
+        synchronized (this) {
+          indexedTo = savedIndexedTo;
+          count = savedCount;
+          minTime = savedMinTime;
+          maxTime = savedMaxTime;
+          spanned = true;
+        }
+        return in;
+      } catch (IOException e) {
+        LOG.warn("Ignoring unreadable audit index " + sidecar, e);
+        if (in != null) {
+          try {
+            in.close();
+          } catch (IOException ignored) {
+            // Already failed
+          }
+        }
+        return null;
+      }
+    }
+
+    /**
+     * Get the postings of a segment that is no longer kept in memory, from its saved index or by reading it.
+     *
+     * @return the postings, or null if the segment holds no records in the range.
+     */
+    private Postings loadPostings(long from, long to) throws IOException {
+      DataInputStream in = openSidecar();
+      if (in != null) {
+        try {
+          if (!overlaps(from, to)) {
+            return null;
+          }
+          return Postings.read(in, getCount());
+        } catch (IOException e) {
+          LOG.warn("Ignoring unreadable audit index " + sidecar(file), e);
+        } finally {
+          in.close();
+        }
+      }
+
+      final Postings postings = new Postings();
+      final long[] span = {0, Long.MAX_VALUE, Long.MIN_VALUE};
+      int end = JournalSegment.read(file, new JournalSegment.RecordVisitor() {
+        @Override
+        public void visit(int position, ByteBuffer payload) {
+          try {
+            long time = AuditJournal.decodeTime(payload);
+            postings.add(position, time, AuditJournal.decode(payload));
+            span[0]++;
+            span[1] = Math.min(span[1], time);
+            span[2] = Math.max(span[2], time);
+          } catch (IOException e) {
+            LOG.warn("Skipping unreadable audit record at " + file + ":" + position, e);
+          }
+        }
+      });
+
+      synchronized (this) {
+        indexedTo = end;
+        count = (int) span[0];
+        minTime = span[1];
+        maxTime = span[2];
+        spanned = true;
+      }
+      if (sealed && !readOnly) {
+        save(postings);
+      }
+
+      return overlaps(from, to) ? postings : null;
+    }
+
+    /**
+     * Save the index next to the segment, failing quietly since the index can always be built from the segment.
+     */
+    private void save(Postings postings) {
+      File sidecar = sidecar(file);
+      File temp = new File(sidecar.getParentFile(), sidecar.getName() + ".tmp");
+
+      try {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+          out.writeInt(MAGIC);
+          out.writeInt(VERSION);
+          out.writeLong(file.lastModified());
+          synchronized (this) {
+            out.writeInt(indexedTo);
+            out.writeInt(count);
+            out.writeLong(minTime);
+            out.writeLong(maxTime);
+          }
+          postings.write(out);
+        } finally {
+          out.close();
+        }
+
+        if (!temp.renameTo(sidecar)) {
+          throw new IOException("Failed to rename " + temp + " to " + sidecar);
+        }
+      } catch (IOException e) {
+        LOG.warn("Failed to save audit index " + sidecar, e);
+        temp.delete();
+      }
+    }
+
+    synchronized int getCount() {
+      return count;
+    }
+
+    synchronized boolean overlaps(long from, long to) {
+      return count > 0 && maxTime >= from && minTime < to;
+    }
+
+    void query(AuditQuery query, List<AuditEntity> result) throws IOException {
+      int[] candidates;
+      synchronized (this) {
+        if (spanned && !overlaps(query.getFrom(), query.getTo())) {
+          return;
+        }
+        candidates = open != null ? open.candidates(query) : null;
+      }
+      if (candidates == null) {
+        Postings postings = loadPostings(query.getFrom(), query.getTo());
+        if (postings == null) {
+          return;
+        }
+        candidates = postings.candidates(query);
+      }
+      if (candidates.length == 0) {
+        return;
+      }
+
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try {
+        MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+
+        for (int position : candidates) {
+          if (result.size() >= query.getLimit()) {
+            return;
+          }
+
+          int length = buffer.getInt(position);
+          ByteBuffer payload = buffer.duplicate();
+          payload.limit(position + JournalSegment.FRAME_HEADER_SIZE + length);
+          payload.position(position + JournalSegment.FRAME_HEADER_SIZE);
+
+          long time = AuditJournal.decodeTime(payload);
+          AuditEntity auditEntity = AuditJournal.decode(payload);
+          if (query.matches(time, auditEntity)) {
+            result.add(auditEntity);
+          }
+        }
+      } finally {
+        raf.close();
+      }
+    }
+  }
+
+  /**
+   * The record times and positions of a segment, with postings for each indexed field.
+   */
+  private static class Postings {
+    private int count = 0;
+    private long[] times = new long[1024];
+    private int[] positions = new int[1024];
+    private boolean ordered = true;
+
+    private final Map<String, IntList> byOperation = new HashMap<String, IntList>();
+    private final Map<String, IntList> byPrincipal = new HashMap<String, IntList>();
+    private final Map<String, IntList> byState = new HashMap<String, IntList>();
+    private final Map<String, IntList> byId = new HashMap<String, IntList>();
+
+    void add(int position, long time, AuditEntity auditEntity) {
+      if (count == times.length) {
+        times = Arrays.copyOf(times, count * 2);
+        positions = Arrays.copyOf(positions, count * 2);
+      }
+
+      if (count > 0 && time < times[count - 1]) {
+        ordered = false;
+      }
+      times[count] = time;
+      positions[count] = position;
+
+      post(byOperation, auditEntity.getOperation(), count);
+      post(byPrincipal, auditEntity.getPrincipal(), count);
+      post(byState, auditEntity.getState(), count);
+      post(byId, auditEntity.getId(), count);
+
+      count++;
+    }
+
+    private static void post(Map<String, IntList> postings, String key, int ordinal) {
+      if (key == null) {
+        return;
+      }
+
+      IntList list = postings.get(key);
+      if (list == null) {
+        list = new IntList();
+        postings.put(key, list);
+      }
+      list.add(ordinal);
+    }
+
+    void write(DataOutputStream out) throws IOException {
+      out.writeInt(count);
+      out.writeBoolean(ordered);
+      for (int i = 0; i < count; i++) {
+        out.writeLong(times[i]);
+        out.writeInt(positions[i]);
+      }
+
+      writePostings(out, byOperation);
+      writePostings(out, byPrincipal);
+      writePostings(out, byState);
+      writePostings(out, byId);
+    }
+
+    static Postings read(DataInputStream in, int expectedCount) throws IOException {
+      Postings postings = new Postings();
+      postings.count = in.readInt();
+      if (postings.count != expectedCount) {
+        throw new IOException("Expected " + expectedCount + " records, found " + postings.count);
+      }
+      postings.ordered = in.readBoolean();
+      postings.times = new long[Math.max(postings.count, 1)];
+      postings.positions = new int[postings.times.length];
+      for (int i = 0; i < postings.count; i++) {
+        postings.times[i] = in.readLong();
+        postings.positions[i] = in.readInt();
+      }
+
+      readPostings(in, postings.byOperation);
+      readPostings(in, postings.byPrincipal);
+      readPostings(in, postings.byState);
+      readPostings(in, postings.byId);
+      return postings;
+    }
+
+    private static void writePostings(DataOutputStream out, Map<String, IntList> postings) throws IOException {
+      out.writeInt(postings.size());
+      for (Map.Entry<String, IntList> entry : postings.entrySet()) {
+        out.writeUTF(entry.getKey());
+        IntList list = entry.getValue();
+        out.writeInt(list.size);
+        for (int i = 0; i < list.size; i++) {
+          out.writeInt(list.values[i]);
+        }
+      }
+    }
+
+    private static void readPostings(DataInputStream in, Map<String, IntList> postings) throws IOException {
+      int keys = in.readInt();
+      for (int i = 0; i < keys; i++) {
+        String key = in.readUTF();
+        int size = in.readInt();
+        IntList list = new IntList();
+        list.values = new int[Math.max(size, 1)];
+        for (int j = 0; j < size; j++) {
+          list.values[j] = in.readInt();
+        }
+        list.size = size;
+        postings.put(key, list);
+      }
+    }
+
+    /**
+     * Get the positions of the records that may match a query, using the smallest posting list of the
+     * queried fields, or the time range when no fields are queried.
+     */
+    int[] candidates(AuditQuery query) {
+      IntList smallest = null;
+      boolean filtered = false;
+
+      for (IntList list : new IntList[]{
+              posting(byOperation, query.getOperation()),
+              posting(byPrincipal, query.getPrincipal()),
+              posting(byState, query.getState()),
+              posting(byId, query.getId())}) {
+        if (list == IntList.NONE) {
+          continue;
+        }
+        filtered = true;
+        if (list == null) {
+          return new int[0];
+        }
+        if (smallest == null || list.size < smallest.size) {
+          smallest = list;
+        }
+      }
+
+      IntList ordinals = new IntList();
+      if (filtered) {
+        for (int i = 0; i < smallest.size; i++) {
+          int ordinal = smallest.values[i];
+          if (times[ordinal] >= query.getFrom() && times[ordinal] < query.getTo()) {
+            ordinals.add(ordinal);
+          }
+        }
+      } else {
+        int first = ordered ? lowerBound(query.getFrom()) : 0;
+        int last = ordered ? lowerBound(query.getTo()) : count;
+        for (int ordinal = first; ordinal < last; ordinal++) {
+          if (times[ordinal] >= query.getFrom() && times[ordinal] < query.getTo()) {
+            ordinals.add(ordinal);
+          }
+        }
+      }
+
+      int[] result = new int[ordinals.size];
+      for (int i = 0; i < ordinals.size; i++) {
+        result[i] = positions[ordinals.values[i]];
+      }
+      return result;
+    }
+
+    /**
+     * @return the posting list for a queried value, null if no records have the value,
+     * or IntList.NONE if the field isn't queried.
+     */
+    private static IntList posting(Map<String, IntList> postings, String value) {
+      return value == null ? IntList.NONE : postings.get(value);
+    }
+
+    private int lowerBound(long time) {
+      int low = 0;
+      int high = count;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (times[mid] < time) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      return low;
+    }
+  }
+
+  /**
+   * A growable list of ints, kept in ascending order by only ever appending increasing ordinals.
+   */
+  private static class IntList {
+    static final IntList NONE = new IntList();
+
+    int[] values = new int[4];
+    int size = 0;
+
+    void add(int value) {
+      if (size == values.length) {
+        values = Arrays.copyOf(values, size * 2);
+      }
+      values[size++] = value;
+    }
+  }
+}
@@ -0,0 +1,402 @@
+package se.su.it.svc.server.audit;
+
+import org.slf4j.LoggerFactory;
+import se.su.it.svc.server.metrics.Gauge;
+import se.su.it.svc.server.metrics.MetricsRegistry;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only audit sink writing CRC framed records to memory-mapped journal segments.
+ * <p/>
+ * Appending a record only copies it into the mapped segment. A background thread flushes the segment to disk
+ * when commitRecords records are pending or commitInterval milliseconds have passed, whichever comes first,
+ * so at most commitInterval milliseconds of records can be lost in a crash. Segments are rotated when full
+ * or older than maxSegmentAge milliseconds, the background thread flushes and closes the rotated segment. When opened, the journal recovers the newest segment by truncating
+ * it to its last valid record.
+ * <p/>
+ * Configure it with the setters and call {@link #open()} before use and {@link #close()} on shutdown.
+ */
+public class AuditJournal implements AuditSink {
+  private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(AuditJournal.class);
+
+  static final byte RECORD_VERSION = 2;
+
+  private File directory = null;
+  private int segmentSize = 64 * 1024 * 1024;
+  private long maxSegmentAge = 60 * 60 * 1000L;
+  private long commitInterval = 100;
+  private int commitRecords = 1000;
+
+  private JournalSegment current = null;
+  /** Rotated segments waiting for the commit thread to flush and close them. */
+  private final List<JournalSegment> rotated = new ArrayList<JournalSegment>();
+  /** Only changed while holding the lock, but volatile so the metrics gauge reads it without contending. */
+  private volatile int pending = 0;
+  private boolean running = false;
+  private Thread committer = null;
+
+  private final AtomicLong written = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong commits = new AtomicLong();
+
+  public void setDirectory(File directory) {
+    this.directory = directory;
+  }
+
+  public File getDirectory() {
+    return directory;
+  }
+
+  /**
+   * @param segmentSize the size in bytes of each segment file.
+   */
+  public void setSegmentSize(int segmentSize) {
+    this.segmentSize = segmentSize;
+  }
+
+  /**
+   * @param maxSegmentAge the age in milliseconds after which a segment is rotated, even if it isn't full.
+   */
+  public void setMaxSegmentAge(long maxSegmentAge) {
+    this.maxSegmentAge = maxSegmentAge;
+  }
+
+  /**
+   * @param commitInterval the maximum time in milliseconds a record may wait before it's flushed to disk.
+   */
+  public void setCommitInterval(long commitInterval) {
+    this.commitInterval = commitInterval;
+  }
+
+  /**
+   * @param commitRecords the number of pending records that triggers a flush before the commit interval has passed.
+   */
+  public void setCommitRecords(int commitRecords) {
+    this.commitRecords = commitRecords;
+  }
+
+  /**
+   * Open the journal, recovering the newest segment, and start the commit thread.
+   *
+   * @throws IOException if the journal directory or a segment can't be opened.
+   */
+  public synchronized void open() throws IOException {
+    if (running) {
+      return;
+    }
+    if (directory == null) {
+      throw new IllegalStateException("No journal directory has been set.");
+    }
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Failed to create journal directory " + directory);
+    }
+
+    File[] segments = JournalSegment.list(directory);
+    current = null;
+    if (segments.length > 0) {
+      File newest = segments[segments.length - 1];
+      try {
+        current = JournalSegment.open(newest);
+        LOG.info("Recovered audit journal segment " + current.getFile() + " at position " + current.getPosition());
+      } catch (JournalSegment.CorruptSegmentException e) {
+        // A torn header must not keep auditing from starting, keep the file for inspection and start over.
+        File corrupt = JournalSegment.quarantine(newest);
+        LOG.error("Audit journal segment " + newest + " has an invalid header, moved it to " + corrupt, e);
+      }
+    }
+    if (current == null) {
+      current = JournalSegment.create(directory, System.currentTimeMillis(), segmentSize);
+    }
+
+    running = true;
+    committer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        commitLoop();
+      }
+    }, "audit-journal-commit");
+    committer.setDaemon(true);
+    committer.start();
+
+    registerMetrics(MetricsRegistry.getDefault());
+  }
+
+  private void registerMetrics(MetricsRegistry registry) {
+    registry.gauge("cxf_server_audit_journal_pending_records", "Audit records not yet flushed to disk.", new Gauge() {
+      @Override
+      public double getValue() {
+        return getPendingRecords();
+      }
+    });
+    registry.counter("cxf_server_audit_journal_records_total", "Audit records written to the journal.", new Gauge() {
+      @Override
+      public double getValue() {
+        return getWrittenRecords();
+      }
+    });
+    registry.counter("cxf_server_audit_journal_failed_records_total", "Audit records that could not be written.", new Gauge() {
+      @Override
+      public double getValue() {
+        return getFailedRecords();
+      }
+    });
+  }
+
+  /**
+   * Flush all pending records and close the journal.
+   *
+   * @throws IOException if the current segment can't be closed.
+   */
+  public void close() throws IOException {
+    Thread thread;
+    synchronized (this) {
+      if (!running) {
+        return;
+      }
+      running = false;
+      thread = committer;
+      notifyAll();
+    }
+
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    synchronized (this) {
+      for (JournalSegment segment : rotated) {
+        segment.close();
+      }
+      rotated.clear();
+      current.close();
+      current = null;
+    }
+  }
+
+  /**
+   * @see AuditSink#write(AuditEntity)
+   */
+  @Override
+  public void write(AuditEntity auditEntity) {
+    try {
+      append(System.currentTimeMillis(), auditEntity);
+    } catch (Exception e) {
+      failed.incrementAndGet();
+      LOG.error("Failed to write audit record to journal: " + auditEntity, e);
+    }
+  }
+
+  /**
+   * Append a record to the journal. The record is durable within the commit interval.
+   *
+   * @param time the time of the record in milliseconds.
+   * @param auditEntity the record.
+   * @throws IOException if the record can't be appended.
+   */
+  public void append(long time, AuditEntity auditEntity) throws IOException {
+    // Encode and checksum outside the lock, appending is then only a copy into the mapped segment.
+    byte[] payload = encode(time, auditEntity);
+    CRC32 crc = new CRC32();
+    crc.update(payload);
+    int checksum = (int) crc.getValue();
+
+    if (payload.length > segmentSize - JournalSegment.HEADER_SIZE - JournalSegment.FRAME_HEADER_SIZE) {
+      throw new IOException("Audit record of " + payload.length + " bytes does not fit in a journal segment");
+    }
+
+    synchronized (this) {
+      if (!running) {
+        throw new IllegalStateException("The audit journal is not open.");
+      }
+
+      if (!current.hasRoom(payload.length) || time - current.getCreated() >= maxSegmentAge) {
+        rotate(time);
+      }
+
+      current.append(payload, checksum);
+      written.incrementAndGet();
+
+      if (++pending >= commitRecords) {
+        notifyAll();
+      }
+    }
+  }
+
+  private void rotate(long time) throws IOException {
+    JournalSegment previous = current;
+    long created = Math.max(time, previous.getCreated() + 1);
+
+    // The commit thread flushes and closes the previous segment, appending doesn't wait for the disk.
+    current = JournalSegment.create(directory, created, segmentSize);
+    rotated.add(previous);
+    notifyAll();
+
+    LOG.info("Rotated audit journal to " + current.getFile());
+  }
+
+  private void commitLoop() {
+    while (true) {
+      JournalSegment segment;
+      List<JournalSegment> closing;
+      int records;
+
+      synchronized (this) {
+        if (running && pending < commitRecords && rotated.isEmpty()) {
+          try {
+            wait(commitInterval);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            running = false;
+          }
+        }
+        segment = current;
+        closing = new ArrayList<JournalSegment>(rotated);
+        rotated.clear();
+        records = pending;
+        pending = 0;
+      }
+
+      // Flushing outside the lock lets request threads keep appending while the disk catches up. A failed flush
+      // is counted and logged, the thread keeps committing since the next flush may succeed.
+      boolean flushed = true;
+      for (JournalSegment previous : closing) {
+        try {
+          previous.close();
+        } catch (Exception e) {
+          flushed = false;
+          LOG.error("Failed to close audit journal segment " + previous.getFile(), e);
+        }
+      }
+      if (records > 0) {
+        try {
+          segment.force();
+        } catch (Exception e) {
+          flushed = false;
+          LOG.error("Failed to flush audit journal segment " + segment.getFile(), e);
+        }
+      }
+
+      if (!flushed) {
+        failed.addAndGet(records);
+      } else if (records > 0 || !closing.isEmpty()) {
+        commits.incrementAndGet();
+      }
+
+      synchronized (this) {
+        if (!running) {
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the number of records written since the journal was created.
+   */
+  public long getWrittenRecords() {
+    return written.get();
+  }
+
+  /**
+   * @return the number of records that could not be written.
+   */
+  public long getFailedRecords() {
+    return failed.get();
+  }
+
+  /**
+   * @return the number of flushes to disk.
+   */
+  public long getCommits() {
+    return commits.get();
+  }
+
+  /**
+   * @return the number of records appended but not yet flushed to disk.
+   */
+  public int getPendingRecords() {
+    return pending;
+  }
+
+  /**
+   * Encode a record payload: a version byte, the time, and the fields of the entity as length-prefixed UTF-8.
+   * Version 2 added the principal and the id.
+   */
+  static byte[] encode(long time, AuditEntity auditEntity) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+    DataOutputStream out = new DataOutputStream(bytes);
+
+    out.writeByte(RECORD_VERSION);
+    out.writeLong(time);
+    writeString(out, auditEntity.getCreated());
+    writeString(out, auditEntity.getOperation());
+    writeString(out, auditEntity.getTextArgs());
+    writeString(out, auditEntity.getTextReturn());
+    writeString(out, auditEntity.getState());
+    writeString(out, auditEntity.getPrincipal());
+    writeString(out, auditEntity.getId());
+    out.flush();
+
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Decode the entity from a record payload.
+   */
+  static AuditEntity decode(ByteBuffer payload) throws IOException {
+    byte version = payload.get();
+    if (version < 1 || version > RECORD_VERSION) {
+      throw new IOException("Unknown audit record version " + version);
+    }
+    payload.getLong();
+
+    String created = readString(payload);
+    String operation = readString(payload);
+    String textArgs = readString(payload);
+    String textReturn = readString(payload);
+    String state = readString(payload);
+    String principal = version >= 2 ? readString(payload) : null;
+    String id = version >= 2 ? readString(payload) : null;
+
+    return AuditEntity.getInstance(created, operation, textArgs, textReturn, state, principal, id);
+  }
+
+  /**
+   * Decode the time from a record payload without decoding the rest of it.
+   */
+  static long decodeTime(ByteBuffer payload) {
+    return payload.getLong(payload.position() + 1);
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    if (value == null) {
+      out.writeInt(-1);
+    } else {
+      byte[] bytes = value.getBytes("UTF-8");
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+  }
+
+  private static String readString(ByteBuffer payload) throws UnsupportedEncodingException {
+    int length = payload.getInt();
+    if (length < 0) {
+      return null;
+    }
+
+    byte[] bytes = new byte[length];
+    payload.get(bytes);
+    return new String(bytes, "UTF-8");
+  }
+}
@@ -0,0 +1,483 @@
+package se.su.it.svc.server.audit;
+
+import se.su.it.svc.server.annotations.AuditHashArgument;
+import se.su.it.svc.server.annotations.AuditHideArgument;
+import se.su.it.svc.server.annotations.AuditHideReturnValue;
+import se.su.it.svc.server.annotations.AuditMaxLength;
+import se.su.it.svc.server.annotations.AuditSample;
+import se.su.it.svc.server.annotations.AuditSkip;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * How a single web method is audited, resolved once from its annotations.
+ */
+public final class AuditPolicy {
+  public static final String HIDDEN_VALUE = "******";
+  public static final int UNLIMITED = -1;
+
+  /**
+   * The policy for methods without any audit annotations.
+   */
+  public static final AuditPolicy DEFAULT = new AuditPolicy(false, false, new ArgumentMask[0], UNLIMITED, null);
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+  private static final String HASH_ALGORITHM = "HmacSHA256";
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /**
+   * The system property naming a file with the key of hashed arguments, set by the server from its configuration.
+   */
+  public static final String HASH_KEY_FILE_PROPERTY = "se.su.it.svc.server.audit.hashKeyFile";
+
+  /**
+   * The key of hashed arguments. Without a configured key a random one is used, and hashes only correlate
+   * within the process, since unkeyed hashes of uids and personal numbers are reversed by trying them all.
+   */
+  private static volatile SecretKeySpec hashKey = initialHashKey();
+
+  enum ArgumentMask { NONE, HIDE, HASH }
+
+  private final boolean skip;
+  private final boolean hideReturnValue;
+  private final ArgumentMask[] argumentMasks;
+  private final boolean[] hiddenArguments;
+  private final int maxLength;
+  private final AuditSampler sampler;
+
+  AuditPolicy(boolean skip, boolean hideReturnValue, ArgumentMask[] argumentMasks, int maxLength, AuditSampler sampler) {
+    this.skip = skip;
+    this.hideReturnValue = hideReturnValue;
+    this.argumentMasks = argumentMasks;
+    this.hiddenArguments = new boolean[argumentMasks.length];
+    for (int i = 0; i < argumentMasks.length; i++) {
+      hiddenArguments[i] = argumentMasks[i] != ArgumentMask.NONE;
+    }
+    this.maxLength = maxLength;
+    this.sampler = sampler;
+  }
+
+  /**
+   * Resolve the policy for a method from annotations on the method, its parameters and its declaring class.
+   *
+   * @param method the web method.
+   * @return the policy.
+   */
+  public static AuditPolicy forMethod(Method method) {
+    return forMethod(method, null);
+  }
+
+  /**
+   * Resolve the policy for a method, with sampling from configuration taking precedence over the annotation.
+   * Methods without an @AuditSample annotation of their own are never sampled, whatever the configuration says.
+   *
+   * @param method the web method.
+   * @param configuredSampler a sampler from configuration, or null to use the @AuditSample annotation.
+   * @return the policy.
+   */
+  public static AuditPolicy forMethod(Method method, AuditSampler configuredSampler) {
+    Class<?> type = method.getDeclaringClass();
+
+    boolean skip = method.isAnnotationPresent(AuditSkip.class) || type.isAnnotationPresent(AuditSkip.class);
+    boolean hideReturnValue = method.isAnnotationPresent(AuditHideReturnValue.class);
+
+    int maxLength = UNLIMITED;
+    AuditMaxLength maxLengthAnnotation = method.getAnnotation(AuditMaxLength.class);
+    if (maxLengthAnnotation == null) {
+      maxLengthAnnotation = type.getAnnotation(AuditMaxLength.class);
+    }
+    if (maxLengthAnnotation != null) {
+      maxLength = Math.max(0, maxLengthAnnotation.value());
+    }
+
+    // Only methods marked read-only by their own @AuditSample are sampled, never mutating calls of the same service
+    AuditSampler sampler = null;
+    AuditSample sampleAnnotation = method.getAnnotation(AuditSample.class);
+    if (sampleAnnotation != null) {
+      sampler = configuredSampler != null
+              ? configuredSampler
+              : new AuditSampler(sampleAnnotation.rate(), sampleAnnotation.perSecond());
+    }
+
+    Annotation[][] parameterAnnotations = method.getParameterAnnotations();
+    Class<?>[] parameterTypes = method.getParameterTypes();
+    ArgumentMask[] argumentMasks = new ArgumentMask[parameterAnnotations.length];
+    for (int i = 0; i < parameterAnnotations.length; i++) {
+      argumentMasks[i] = ArgumentMask.NONE;
+      for (Annotation annotation : parameterAnnotations[i]) {
+        if (annotation instanceof AuditHideArgument) {
+          argumentMasks[i] = ArgumentMask.HIDE;
+        } else if (annotation instanceof AuditHashArgument && argumentMasks[i] != ArgumentMask.HIDE) {
+          argumentMasks[i] = ArgumentMask.HASH;
+        }
+      }
+
+      if (argumentMasks[i] == ArgumentMask.HASH && !isHashable(parameterTypes[i])) {
+        throw new IllegalArgumentException("@AuditHashArgument on parameter " + i + " of " + method
+                + " needs a string, number or primitive array parameter, not " + parameterTypes[i].getName());
+      }
+    }
+
+    return new AuditPolicy(skip, hideReturnValue, argumentMasks, maxLength, sampler);
+  }
+
+  /**
+   * Get a copy of this policy with another sampler, ex. one that keeps its counts across configuration changes.
+   *
+   * @param sampler the sampler to use.
+   * @return the new policy.
+   */
+  public AuditPolicy withSampler(AuditSampler sampler) {
+    return new AuditPolicy(skip, hideReturnValue, argumentMasks, maxLength, sampler);
+  }
+
+  /**
+   * Set the secret key of hashed arguments, shared by all nodes that need to correlate hashes.
+   *
+   * @param key the key, at least 16 characters.
+   * @throws IllegalArgumentException if the key is too short.
+   */
+  public static void setHashKey(String key) {
+    hashKey = toHashKey(key);
+  }
+
+  /**
+   * Read the secret key of hashed arguments from a file, ex. to check it before it's used.
+   *
+   * @param file a file with the key as UTF-8 text, surrounding whitespace is ignored.
+   * @return the key.
+   * @throws IOException if the file can't be read.
+   * @throws IllegalArgumentException if the key is too short.
+   */
+  public static String readHashKey(File file) throws IOException {
+    InputStream in = new FileInputStream(file);
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+      byte[] buffer = new byte[256];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        bytes.write(buffer, 0, read);
+      }
+
+      String key = new String(bytes.toByteArray(), UTF8).trim();
+      toHashKey(key);
+      return key;
+    } finally {
+      in.close();
+    }
+  }
+
+  private static SecretKeySpec toHashKey(String key) {
+    if (key == null || key.length() < 16) {
+      throw new IllegalArgumentException("The audit hash key needs at least 16 characters");
+    }
+    return new SecretKeySpec(key.getBytes(UTF8), HASH_ALGORITHM);
+  }
+
+  private static SecretKeySpec initialHashKey() {
+    String file = System.getProperty(HASH_KEY_FILE_PROPERTY);
+    if (file == null) {
+      return new SecretKeySpec(randomKey(), HASH_ALGORITHM);
+    }
+
+    try {
+      return toHashKey(readHashKey(new File(file)));
+    } catch (IOException e) {
+      throw new IllegalStateException("Failed to read the audit hash key from " + file, e);
+    }
+  }
+
+  private static byte[] randomKey() {
+    byte[] key = new byte[32];
+    new SecureRandom().nextBytes(key);
+    return key;
+  }
+
+  public boolean isSkip() {
+    return skip;
+  }
+
+  public boolean isHideReturnValue() {
+    return hideReturnValue;
+  }
+
+  /**
+   * @return for each parameter, true if its value is hidden or hashed. The array is shared and must not be modified.
+   */
+  public boolean[] getHiddenArguments() {
+    return hiddenArguments;
+  }
+
+  public int getMaxLength() {
+    return maxLength;
+  }
+
+  /**
+   * @return the sampler for successful calls, or null if every call is audited.
+   */
+  public AuditSampler getSampler() {
+    return sampler;
+  }
+
+  /**
+   * Render the arguments of a call, with masking and size caps applied.
+   *
+   * @param args the arguments.
+   * @return the arguments as a string, ex. "[foo, ******, 1]".
+   */
+  public String renderArguments(Object[] args) {
+    if (args == null) {
+      return "null";
+    }
+
+    StringBuilder sb = new StringBuilder();
+
+    sb.append("[");
+    for (int i = 0; i < args.length; i++) {
+      if (i > 0) {
+        sb.append(", ");
+      }
+      renderArgument(sb, i, args[i]);
+    }
+    sb.append("]");
+
+    return sb.toString();
+  }
+
+  /**
+   * Render the return value of a call, with masking and size caps applied.
+   *
+   * @param result the return value.
+   * @return the rendered value, or null if the value is null.
+   */
+  public String renderReturnValue(Object result) {
+    if (hideReturnValue) {
+      return HIDDEN_VALUE;
+    }
+    if (result == null) {
+      return null;
+    }
+
+    StringBuilder sb = new StringBuilder();
+    render(sb, result);
+    return sb.toString();
+  }
+
+  private void renderArgument(StringBuilder sb, int index, Object arg) {
+    ArgumentMask mask = index < argumentMasks.length ? argumentMasks[index] : ArgumentMask.NONE;
+
+    switch (mask) {
+      case HIDE:
+        sb.append(HIDDEN_VALUE);
+        break;
+      case HASH:
+        sb.append(arg == null ? null : hash(arg));
+        break;
+      default:
+        render(sb, arg);
+    }
+  }
+
+  private void render(StringBuilder sb, Object value) {
+    if (value != null && value.getClass().isArray() && value.getClass().getComponentType().isPrimitive()) {
+      // Binary payloads are never stringified, their size is all we log.
+      sb.append(value.getClass().getComponentType().getName())
+              .append("[").append(Array.getLength(value)).append("]");
+      return;
+    }
+
+    if (maxLength == UNLIMITED || value instanceof CharSequence) {
+      CharSequence text = value instanceof CharSequence ? (CharSequence) value : String.valueOf(value);
+      if (maxLength == UNLIMITED || text.length() <= maxLength) {
+        sb.append(text);
+      } else {
+        sb.append(text, 0, maxLength).append("...(").append(text.length()).append(" chars)");
+      }
+      return;
+    }
+
+    // Other values are rendered no further than the cap, a large payload is never stringified as a whole
+    StringBuilder bounded = new StringBuilder(Math.min(maxLength, 256) + 16);
+    boolean complete = renderBounded(bounded, value, maxLength);
+    if (complete && bounded.length() <= maxLength) {
+      sb.append(bounded);
+    } else {
+      sb.append(bounded, 0, Math.min(maxLength, bounded.length())).append("...");
+    }
+  }
+
+  /**
+   * Render a value until the builder is longer than the limit. Only values with a short string form are
+   * stringified, arrays, collections and maps are rendered an element at a time, and other objects by their type.
+   *
+   * @return false if rendering stopped at the limit.
+   */
+  private static boolean renderBounded(StringBuilder sb, Object value, int limit) {
+    if (sb.length() > limit) {
+      return false;
+    }
+
+    if (value == null || value instanceof Number || value instanceof Boolean || value instanceof Character
+            || value instanceof Enum || value instanceof Date) {
+      sb.append(value);
+    } else if (value instanceof CharSequence) {
+      CharSequence text = (CharSequence) value;
+      int end = Math.min(text.length(), limit - sb.length() + 1);
+      sb.append(text, 0, end);
+    } else if (value.getClass().isArray() && value.getClass().getComponentType().isPrimitive()) {
+      sb.append(value.getClass().getComponentType().getName())
+              .append("[").append(Array.getLength(value)).append("]");
+    } else if (value instanceof Object[]) {
+      return renderElements(sb, Arrays.asList((Object[]) value), limit);
+    } else if (value instanceof Collection) {
+      return renderElements(sb, (Collection<?>) value, limit);
+    } else if (value instanceof Map) {
+      sb.append("{");
+      boolean first = true;
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+        if (!first) {
+          sb.append(", ");
+        }
+        first = false;
+        if (!renderBounded(sb, entry.getKey(), limit)) {
+          return false;
+        }
+        sb.append("=");
+        if (!renderBounded(sb, entry.getValue(), limit)) {
+          return false;
+        }
+      }
+      sb.append("}");
+    } else {
+      sb.append(value.getClass().getName()).append("{...}");
+    }
+
+    return sb.length() <= limit;
+  }
+
+  private static boolean renderElements(StringBuilder sb, Collection<?> elements, int limit) {
+    sb.append("[");
+    boolean first = true;
+    for (Object element : elements) {
+      if (!first) {
+        sb.append(", ");
+      }
+      first = false;
+      if (!renderBounded(sb, element, limit)) {
+        return false;
+      }
+    }
+    sb.append("]");
+    return sb.length() <= limit;
+  }
+
+  /**
+   * @return true if values of the type have a canonical form to hash: strings, numbers and primitive arrays.
+   */
+  static boolean isHashable(Class<?> type) {
+    if (type.isArray()) {
+      return type.getComponentType().isPrimitive();
+    }
+    return CharSequence.class.isAssignableFrom(type) || Number.class.isAssignableFrom(type)
+            || (type.isPrimitive() && type != boolean.class && type != char.class && type != void.class);
+  }
+
+  /**
+   * Hash the canonical form of a value: strings and char arrays as UTF-8, numbers as decimal text and other
+   * primitive arrays as their big-endian bytes. Values are fed to the hash a piece at a time, never copied whole.
+   */
+  static String hash(Object value) {
+    try {
+      Mac mac = Mac.getInstance(HASH_ALGORITHM);
+      mac.init(hashKey);
+
+      if (value instanceof CharSequence) {
+        update(mac, CharBuffer.wrap((CharSequence) value));
+      } else if (value instanceof char[]) {
+        update(mac, CharBuffer.wrap((char[]) value));
+      } else if (value instanceof byte[]) {
+        mac.update((byte[]) value);
+      } else if (value.getClass().isArray()) {
+        update(mac, value);
+      } else {
+        update(mac, CharBuffer.wrap(value.toString()));
+      }
+
+      byte[] digest = mac.doFinal();
+      StringBuilder sb = new StringBuilder("hmac:");
+      for (byte b : digest) {
+        sb.append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+      }
+      return sb.toString();
+    } catch (GeneralSecurityException e) {
+      return HIDDEN_VALUE;
+    }
+  }
+
+  private static void update(Mac mac, CharBuffer text) {
+    CharsetEncoder encoder = UTF8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    ByteBuffer bytes = ByteBuffer.allocate(1024);
+    while (true) {
+      boolean done = !encoder.encode(text, bytes, true).isOverflow();
+      if (done) {
+        encoder.flush(bytes);
+      }
+      bytes.flip();
+      mac.update(bytes);
+      bytes.clear();
+      if (done) {
+        return;
+      }
+    }
+  }
+
+  private static void update(Mac mac, Object array) {
+    ByteBuffer bytes = ByteBuffer.allocate(1024);
+    int length = Array.getLength(array);
+    for (int i = 0; i < length; i++) {
+      if (bytes.remaining() < 8) {
+        bytes.flip();
+        mac.update(bytes);
+        bytes.clear();
+      }
+
+      if (array instanceof short[]) {
+        bytes.putShort(((short[]) array)[i]);
+      } else if (array instanceof int[]) {
+        bytes.putInt(((int[]) array)[i]);
+      } else if (array instanceof long[]) {
+        bytes.putLong(((long[]) array)[i]);
+      } else if (array instanceof float[]) {
+        bytes.putFloat(((float[]) array)[i]);
+      } else if (array instanceof double[]) {
+        bytes.putDouble(((double[]) array)[i]);
+      } else {
+        bytes.put((byte) (((boolean[]) array)[i] ? 1 : 0));
+      }
+    }
+    bytes.flip();
+    mac.update(bytes);
+  }
+}
@@ -0,0 +1,97 @@
+package se.su.it.svc.server.audit;
+
+/**
+ * A query against an {@link AuditIndex}: a time range plus optional exact matches on indexed fields.
+ * Fields left null match anything.
+ */
+public class AuditQuery {
+  private long from = 0;
+  private long to = Long.MAX_VALUE;
+  private String operation = null;
+  private String principal = null;
+  private String state = null;
+  private String id = null;
+  private int limit = 1000;
+
+  public long getFrom() {
+    return from;
+  }
+
+  /**
+   * @param from the start of the time range in milliseconds, inclusive.
+   */
+  public void setFrom(long from) {
+    this.from = from;
+  }
+
+  public long getTo() {
+    return to;
+  }
+
+  /**
+   * @param to the end of the time range in milliseconds, exclusive.
+   */
+  public void setTo(long to) {
+    this.to = to;
+  }
+
+  public String getOperation() {
+    return operation;
+  }
+
+  public void setOperation(String operation) {
+    this.operation = operation;
+  }
+
+  public String getPrincipal() {
+    return principal;
+  }
+
+  public void setPrincipal(String principal) {
+    this.principal = principal;
+  }
+
+  public String getState() {
+    return state;
+  }
+
+  public void setState(String state) {
+    this.state = state;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public void setId(String id) {
+    this.id = id;
+  }
+
+  public int getLimit() {
+    return limit;
+  }
+
+  /**
+   * @param limit the maximum number of records to return.
+   */
+  public void setLimit(int limit) {
+    this.limit = limit;
+  }
+
+  /**
+   * @param time the time of a record.
+   * @param auditEntity the record.
+   * @return true if the record matches the query.
+   */
+  boolean matches(long time, AuditEntity auditEntity) {
+    return time >= from && time < to
+            && matches(operation, auditEntity.getOperation())
+            && matches(principal, auditEntity.getPrincipal())
+            && matches(state, auditEntity.getState())
+            && matches(id, auditEntity.getId());
+  }
+
+  private static boolean matches(String wanted, String value) {
+    return wanted == null || wanted.equals(value);
+  }
+}
@@ -0,0 +1,80 @@
+package se.su.it.svc.server.audit;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.List;
+
+/**
+ * Command line query of an audit journal directory, ex.
+ * <pre>
+ * java -cp cxf-server.jar se.su.it.svc.server.audit.AuditQueryTool /local/cxf-server/audit \
+ *   --from "2013-10-01 00:00:00" --to "2013-10-02 00:00:00" --principal foo@SU.SE
+ * </pre>
+ * Prints one tab separated line per matching record: created, principal, id, operation, state, args and return.
+ * The journal directory is only read, saved segment indexes are used but never written.
+ */
+public final class AuditQueryTool {
+  private static final String TIME_FORMAT = "yyyy-MM-dd HH:mm:ss";
+
+  private AuditQueryTool() {}
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 1 || args.length % 2 != 1) {
+      usage(System.err);
+      System.exit(1);
+    }
+
+    AuditQuery query = new AuditQuery();
+    for (int i = 1; i < args.length; i += 2) {
+      String option = args[i];
+      String value = args[i + 1];
+
+      if ("--from".equals(option)) {
+        query.setFrom(parseTime(value));
+      } else if ("--to".equals(option)) {
+        query.setTo(parseTime(value));
+      } else if ("--operation".equals(option)) {
+        query.setOperation(value);
+      } else if ("--principal".equals(option)) {
+        query.setPrincipal(value);
+      } else if ("--state".equals(option)) {
+        query.setState(value);
+      } else if ("--id".equals(option)) {
+        query.setId(value);
+      } else if ("--limit".equals(option)) {
+        query.setLimit(Integer.parseInt(value));
+      } else {
+        System.err.println("Unknown option " + option);
+        usage(System.err);
+        System.exit(1);
+      }
+    }
+
+    // The server may be indexing the same directory, the tool only reads it
+    AuditIndex index = new AuditIndex();
+    index.setDirectory(new File(args[0]));
+    index.setReadOnly(true);
+    index.update();
+
+    List<AuditEntity> result = index.query(query);
+    for (AuditEntity ae : result) {
+      System.out.println(ae.getCreated() + "\t" + ae.getPrincipal() + "\t" + ae.getId() + "\t" + ae.getOperation()
+              + "\t" + ae.getState() + "\t" + ae.getTextArgs() + "\t" + ae.getTextReturn());
+    }
+  }
+
+  private static long parseTime(String value) throws ParseException {
+    if (value.matches("\\d+")) {
+      return Long.parseLong(value);
+    }
+    return new SimpleDateFormat(TIME_FORMAT).parse(value).getTime();
+  }
+
+  private static void usage(PrintStream out) {
+    out.println("Usage: AuditQueryTool <journal directory> [--from time] [--to time] [--operation name]"
+            + " [--principal name] [--state state] [--id id] [--limit n]");
+    out.println("Times are milliseconds or '" + TIME_FORMAT + "'.");
+  }
+}
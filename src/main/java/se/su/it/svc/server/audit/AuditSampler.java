@@ -0,0 +1,122 @@
+package se.su.it.svc.server.audit;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which successful calls to a sampled operation are audited, and counts the ones that are not.
+ * All state is kept in atomics so the decision never blocks the calling thread.
+ */
+public class AuditSampler {
+  private volatile double rate;
+  private volatile int perSecond;
+
+  private final AtomicLong calls = new AtomicLong();
+  private final AtomicLong currentSecond = new AtomicLong();
+  private final AtomicInteger auditedThisSecond = new AtomicInteger();
+
+  private final AtomicLong audited = new AtomicLong();
+  private final AtomicLong suppressed = new AtomicLong();
+
+  /**
+   * Create a new sampler.
+   *
+   * @param rate the fraction of calls to audit, between 0 and 1.
+   * @param perSecond the maximum number of calls to audit per second, or 0 for no limit.
+   */
+  public AuditSampler(double rate, int perSecond) {
+    setRate(rate);
+    setPerSecond(perSecond);
+  }
+
+  /**
+   * Parse a sampler from a config value on the form "rate" or "rate,perSecond", ex. "0.01,100".
+   *
+   * @param value the config value.
+   * @return a sampler.
+   * @throws IllegalArgumentException if the value can't be parsed.
+   */
+  public static AuditSampler parse(String value) {
+    String[] parts = value.split(",");
+    try {
+      double rate = Double.parseDouble(parts[0].trim());
+      int perSecond = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 0;
+      return new AuditSampler(rate, perSecond);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid audit sampling '" + value + "', expected 'rate[,perSecond]'", e);
+    }
+  }
+
+  /**
+   * Decide whether a successful call should be audited.
+   *
+   * @return true if the call should be audited, false if it's suppressed.
+   */
+  public boolean sample() {
+    if (isSampled() && isUnderLimit()) {
+      audited.incrementAndGet();
+      return true;
+    }
+
+    suppressed.incrementAndGet();
+    return false;
+  }
+
+  private boolean isSampled() {
+    double r = rate;
+    if (r >= 1.0) {
+      return true;
+    }
+    if (r <= 0.0) {
+      return false;
+    }
+
+    long interval = Math.round(1.0 / r);
+    return calls.getAndIncrement() % interval == 0;
+  }
+
+  private boolean isUnderLimit() {
+    int limit = perSecond;
+    if (limit <= 0) {
+      return true;
+    }
+
+    long second = System.currentTimeMillis() / 1000;
+    long previous = currentSecond.get();
+    if (previous != second && currentSecond.compareAndSet(previous, second)) {
+      auditedThisSecond.set(0);
+    }
+
+    return auditedThisSecond.incrementAndGet() <= limit;
+  }
+
+  /**
+   * Get the number of audited calls since the last call to this method, and reset the count.
+   */
+  public long drainAudited() {
+    return audited.getAndSet(0);
+  }
+
+  /**
+   * Get the number of suppressed calls since the last call to this method, and reset the count.
+   */
+  public long drainSuppressed() {
+    return suppressed.getAndSet(0);
+  }
+
+  public double getRate() {
+    return rate;
+  }
+
+  public void setRate(double rate) {
+    this.rate = Math.max(0.0, Math.min(1.0, rate));
+  }
+
+  public int getPerSecond() {
+    return perSecond;
+  }
+
+  public void setPerSecond(int perSecond) {
+    this.perSecond = Math.max(0, perSecond);
+  }
+}
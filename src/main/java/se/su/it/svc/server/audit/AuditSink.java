@@ -0,0 +1,13 @@
+package se.su.it.svc.server.audit;
+
+/**
+ * A destination for audit records, in addition to the audit log.
+ */
+public interface AuditSink {
+  /**
+   * Write an audit record. Implementations must not throw, a failing sink must never fail the audited call.
+   *
+   * @param auditEntity the record.
+   */
+  void write(AuditEntity auditEntity);
+}
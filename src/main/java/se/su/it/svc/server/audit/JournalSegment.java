@@ -0,0 +1,303 @@
+package se.su.it.svc.server.audit;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * A single memory-mapped, preallocated file of the audit journal.
+ * <p/>
+ * The file starts with a magic number and a version, followed by records framed as
+ * [payload length][CRC32 of payload][payload]. Unused space is zero, so a zero length marks the end of the segment.
+ * A frame with a bad length or checksum is treated as the end of the segment as well.
+ * <p/>
+ * Segments are not thread safe, {@link AuditJournal} serializes access to the segment it writes to.
+ */
+class JournalSegment {
+  static final int MAGIC = 0x4155444A; // "AUDJ"
+  static final int VERSION = 1;
+  static final int HEADER_SIZE = 8;
+  static final int FRAME_HEADER_SIZE = 8;
+
+  private static final String PREFIX = "audit-";
+  private static final String SUFFIX = ".journal";
+  private static final String CORRUPT_SUFFIX = ".corrupt";
+
+  private final File file;
+  private final long created;
+  private final RandomAccessFile raf;
+  private final MappedByteBuffer buffer;
+
+  private JournalSegment(File file, long created, RandomAccessFile raf, MappedByteBuffer buffer) {
+    this.file = file;
+    this.created = created;
+    this.raf = raf;
+    this.buffer = buffer;
+  }
+
+  /**
+   * Create and preallocate a new segment.
+   *
+   * @param directory the journal directory.
+   * @param created the creation time of the segment, used in the file name.
+   * @param size the size of the segment in bytes.
+   * @return the segment, positioned after the header.
+   * @throws IOException if the file can't be created.
+   */
+  static JournalSegment create(File directory, long created, int size) throws IOException {
+    File file = new File(directory, String.format("%s%019d%s", PREFIX, created, SUFFIX));
+    if (file.exists()) {
+      throw new IOException("Journal segment " + file + " already exists");
+    }
+
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.setLength(size);
+    MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    buffer.putInt(MAGIC).putInt(VERSION);
+    buffer.force();
+
+    return new JournalSegment(file, created, raf, buffer);
+  }
+
+  /**
+   * Open an existing segment for appending, recovering from a crash by truncating it to the last valid record.
+   *
+   * @param file the segment file.
+   * @return the segment, positioned after the last valid record.
+   * @throws CorruptSegmentException if the file isn't a journal segment.
+   * @throws IOException if the file can't be opened.
+   */
+  static JournalSegment open(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+
+    try {
+      checkHeader(file, buffer);
+    } catch (IOException e) {
+      raf.close();
+      throw e;
+    }
+    int end = scan(buffer, null);
+
+    // Anything after the last valid record is garbage from an interrupted write, clear it so it is never read.
+    buffer.position(end);
+    while (buffer.hasRemaining()) {
+      buffer.put((byte) 0);
+    }
+    buffer.position(end);
+    buffer.force();
+
+    return new JournalSegment(file, parseCreated(file), raf, buffer);
+  }
+
+  /**
+   * Read all valid records in a segment file.
+   *
+   * @param file the segment file.
+   * @param visitor called for each record.
+   * @return the position after the last valid record.
+   * @throws IOException if the file can't be read or isn't a journal segment.
+   */
+  static int read(File file, RecordVisitor visitor) throws IOException {
+    return read(file, HEADER_SIZE, Integer.MAX_VALUE, visitor);
+  }
+
+  /**
+   * Read the valid records in a part of a segment file.
+   *
+   * @param file the segment file.
+   * @param from the position of the first record to read.
+   * @param to the position to stop reading at, records at or after it are not read.
+   * @param visitor called for each record.
+   * @return the position after the last record read.
+   * @throws IOException if the file can't be read or isn't a journal segment.
+   */
+  static int read(File file, int from, int to, RecordVisitor visitor) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+      checkHeader(file, buffer);
+      buffer.limit(Math.min(to, buffer.capacity()));
+      buffer.position(Math.min(Math.max(from, HEADER_SIZE), buffer.limit()));
+      return scan(buffer, visitor);
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * List the segment files in a directory, oldest first.
+   *
+   * @param directory the journal directory.
+   * @return the segment files.
+   */
+  static File[] list(File directory) {
+    File[] files = directory.listFiles(new FileFilter() {
+      @Override
+      public boolean accept(File file) {
+        return file.isFile() && file.getName().startsWith(PREFIX) && file.getName().endsWith(SUFFIX);
+      }
+    });
+    if (files == null) {
+      return new File[0];
+    }
+
+    // The creation time is zero padded in the name, so the names sort in creation order.
+    Arrays.sort(files);
+    return files;
+  }
+
+  /**
+   * Get the creation time of a segment from its file name.
+   *
+   * @param file the segment file.
+   * @return the creation time in milliseconds.
+   */
+  static long parseCreated(File file) {
+    String name = file.getName();
+    return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+  }
+
+  /**
+   * Move an unreadable segment aside, so it's kept for inspection but no longer listed as part of the journal.
+   *
+   * @param file the segment file.
+   * @return the new name of the file.
+   * @throws IOException if the file can't be renamed.
+   */
+  static File quarantine(File file) throws IOException {
+    File corrupt = new File(file.getParentFile(), file.getName() + CORRUPT_SUFFIX);
+    if (!file.renameTo(corrupt)) {
+      throw new IOException("Failed to rename journal segment " + file + " to " + corrupt);
+    }
+    return corrupt;
+  }
+
+  private static void checkHeader(File file, ByteBuffer buffer) throws IOException {
+    if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+      throw new CorruptSegmentException("File " + file + " is not an audit journal segment");
+    }
+    if (buffer.position() < HEADER_SIZE) {
+      buffer.position(HEADER_SIZE);
+    }
+  }
+
+  private static int scan(ByteBuffer buffer, RecordVisitor visitor) {
+    CRC32 crc = new CRC32();
+    int position = buffer.position();
+
+    while (buffer.limit() - position >= FRAME_HEADER_SIZE) {
+      int length = buffer.getInt(position);
+      if (length <= 0 || length > buffer.limit() - position - FRAME_HEADER_SIZE) {
+        break;
+      }
+
+      ByteBuffer payload = buffer.duplicate();
+      payload.limit(position + FRAME_HEADER_SIZE + length).position(position + FRAME_HEADER_SIZE);
+
+      crc.reset();
+      crc.update(toArray(payload.duplicate()));
+      if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+        break;
+      }
+
+      if (visitor != null) {
+        visitor.visit(position, payload.slice());
+      }
+      position += FRAME_HEADER_SIZE + length;
+    }
+
+    return position;
+  }
+
+  private static byte[] toArray(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.get(bytes);
+    return bytes;
+  }
+
+  /**
+   * @param payloadLength the length of a record payload.
+   * @return true if a record of the given length fits in the remaining space.
+   */
+  boolean hasRoom(int payloadLength) {
+    return buffer.remaining() >= FRAME_HEADER_SIZE + payloadLength;
+  }
+
+  /**
+   * Append a record. The record is not durable until the segment is forced.
+   *
+   * @param payload the record payload.
+   * @param checksum the CRC32 of the payload.
+   * @return the position of the record.
+   */
+  int append(byte[] payload, int checksum) {
+    int position = buffer.position();
+
+    // Write the payload before the length, so a torn write never looks like a complete frame.
+    buffer.position(position + FRAME_HEADER_SIZE);
+    buffer.put(payload);
+    buffer.putInt(position + 4, checksum);
+    buffer.putInt(position, payload.length);
+
+    return position;
+  }
+
+  /**
+   * Flush all appended records to disk.
+   */
+  void force() {
+    buffer.force();
+  }
+
+  /**
+   * Flush and close the segment.
+   *
+   * @throws IOException if the file can't be closed.
+   */
+  void close() throws IOException {
+    buffer.force();
+    raf.close();
+  }
+
+  File getFile() {
+    return file;
+  }
+
+  long getCreated() {
+    return created;
+  }
+
+  /**
+   * @return the position after the last appended record.
+   */
+  int getPosition() {
+    return buffer.position();
+  }
+
+  /**
+   * Called for each record read from a segment.
+   */
+  interface RecordVisitor {
+    /**
+     * @param position the position of the record in the segment.
+     * @param payload the record payload, only valid during the call.
+     */
+    void visit(int position, ByteBuffer payload);
+  }
+
+  /**
+   * Thrown when a file doesn't start with a valid segment header.
+   */
+  static class CorruptSegmentException extends IOException {
+    CorruptSegmentException(String message) {
+      super(message);
+    }
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2013, IT Services, Stockholm University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Stockholm University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package se.su.it.svc.server.batch;
+
+/**
+ * A call in a batch: the SOAP envelope to post, and where to post it.
+ */
+class BatchCall {
+  static final String SOAP12_NAMESPACE = "http://www.w3.org/2003/05/soap-envelope";
+
+  private final int index;
+  private final String address;
+  private final String action;
+  private final boolean soap12;
+  private final byte[] envelope;
+
+  /**
+   * @param index the position of the call in the batch.
+   * @param address the endpoint address relative to the CXF servlet, ex. "/UserService".
+   * @param action the SOAP action, or null.
+   * @param soap12 true if the envelope is a SOAP 1.2 envelope.
+   * @param envelope the envelope as UTF-8.
+   */
+  BatchCall(int index, String address, String action, boolean soap12, byte[] envelope) {
+    this.index = index;
+    this.address = address;
+    this.action = action;
+    this.soap12 = soap12;
+    this.envelope = envelope;
+  }
+
+  int getIndex() {
+    return index;
+  }
+
+  String getAddress() {
+    return address;
+  }
+
+  String getAction() {
+    return action;
+  }
+
+  boolean isSoap12() {
+    return soap12;
+  }
+
+  byte[] getEnvelope() {
+    return envelope;
+  }
+}
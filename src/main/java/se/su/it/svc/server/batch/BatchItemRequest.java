@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2013, IT Services, Stockholm University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Stockholm University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package se.su.it.svc.server.batch;
+
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One call of a batch as a request of its own: a POST of the call's envelope to the call's address.
+ * <p/>
+ * The authenticated user, and headers other than the content headers, are the batch request's. Attributes
+ * are the item's own, so request timing and correlation ids don't leak between calls run in parallel.
+ */
+class BatchItemRequest extends HttpServletRequestWrapper {
+  private static final String SOAP_ACTION = "SOAPAction";
+  private static final String CONTENT_TYPE = "Content-Type";
+  private static final String CONTENT_LENGTH = "Content-Length";
+
+  private final HttpServletRequest batchRequest;
+  private final String servletPath;
+  private final String address;
+  private final String contentType;
+  private final String action;
+  private final byte[] body;
+  private final Map<String, Object> attributes = new HashMap<String, Object>();
+
+  /**
+   * @param batchRequest the batch request.
+   * @param servletPath the path the CXF servlet is mapped to.
+   * @param call the call.
+   */
+  BatchItemRequest(HttpServletRequest batchRequest, String servletPath, BatchCall call) {
+    super(batchRequest);
+    this.batchRequest = batchRequest;
+    this.servletPath = servletPath;
+    this.address = call.getAddress();
+    this.body = call.getEnvelope();
+
+    // SOAP 1.2 carries the action in the content type, SOAP 1.1 in a header of its own
+    if (call.isSoap12()) {
+      this.contentType = "application/soap+xml; charset=UTF-8"
+              + (call.getAction() != null ? "; action=\"" + call.getAction() + "\"" : "");
+      this.action = null;
+    } else {
+      this.contentType = "text/xml; charset=UTF-8";
+      this.action = call.getAction() != null ? "\"" + call.getAction() + "\"" : null;
+    }
+  }
+
+  @Override
+  public String getMethod() {
+    return "POST";
+  }
+
+  @Override
+  public String getServletPath() {
+    return servletPath;
+  }
+
+  @Override
+  public String getPathInfo() {
+    return address;
+  }
+
+  @Override
+  public String getRequestURI() {
+    return batchRequest.getContextPath() + servletPath + address;
+  }
+
+  @Override
+  public StringBuffer getRequestURL() {
+    StringBuffer url = batchRequest.getRequestURL();
+    url.setLength(url.length() - batchRequest.getRequestURI().length());
+    return url.append(getRequestURI());
+  }
+
+  @Override
+  public String getQueryString() {
+    return null;
+  }
+
+  @Override
+  public String getParameter(String name) {
+    return null;
+  }
+
+  @Override
+  public Map getParameterMap() {
+    return Collections.emptyMap();
+  }
+
+  @Override
+  public Enumeration getParameterNames() {
+    return Collections.enumeration(Collections.emptyList());
+  }
+
+  @Override
+  public String getContentType() {
+    return contentType;
+  }
+
+  @Override
+  public int getContentLength() {
+    return body.length;
+  }
+
+  @Override
+  public String getCharacterEncoding() {
+    return "UTF-8";
+  }
+
+  @Override
+  public ServletInputStream getInputStream() throws IOException {
+    final ByteArrayInputStream in = new ByteArrayInputStream(body);
+    return new ServletInputStream() {
+      @Override
+      public int read() {
+        return in.read();
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) {
+        return in.read(b, off, len);
+      }
+
+      @Override
+      public int available() {
+        return in.available();
+      }
+    };
+  }
+
+  @Override
+  public BufferedReader getReader() throws IOException {
+    return new BufferedReader(new InputStreamReader(new ByteArrayInputStream(body), "UTF-8"));
+  }
+
+  @Override
+  public String getHeader(String name) {
+    if (CONTENT_TYPE.equalsIgnoreCase(name)) {
+      return contentType;
+    }
+    if (CONTENT_LENGTH.equalsIgnoreCase(name)) {
+      return String.valueOf(body.length);
+    }
+    if (SOAP_ACTION.equalsIgnoreCase(name)) {
+      return action;
+    }
+    return super.getHeader(name);
+  }
+
+  @Override
+  public Enumeration getHeaders(String name) {
+    if (CONTENT_TYPE.equalsIgnoreCase(name) || CONTENT_LENGTH.equalsIgnoreCase(name)
+            || SOAP_ACTION.equalsIgnoreCase(name)) {
+      String value = getHeader(name);
+      return Collections.enumeration(value != null
+              ? Collections.singletonList(value) : Collections.<String>emptyList());
+    }
+    return super.getHeaders(name);
+  }
+
+  @Override
+  public Enumeration getHeaderNames() {
+    List<String> names = new ArrayList<String>();
+    for (Enumeration e = super.getHeaderNames(); e != null && e.hasMoreElements(); ) {
+      String name = (String) e.nextElement();
+      if (!SOAP_ACTION.equalsIgnoreCase(name)) {
+        names.add(name);
+      }
+    }
+    if (action != null) {
+      names.add(SOAP_ACTION);
+    }
+    return Collections.enumeration(names);
+  }
+
+  @Override
+  public Object getAttribute(String name) {
+    return attributes.get(name);
+  }
+
+  @Override
+  public Enumeration getAttributeNames() {
+    return Collections.enumeration(attributes.keySet());
+  }
+
+  @Override
+  public void setAttribute(String name, Object value) {
+    if (value == null) {
+      attributes.remove(name);
+    } else {
+      attributes.put(name, value);
+    }
+  }
+
+  @Override
+  public void removeAttribute(String name) {
+    attributes.remove(name);
+  }
+
+  @Override
+  public boolean isAsyncSupported() {
+    return false;
+  }
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright (c) 2013, IT Services, Stockholm University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Stockholm University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package se.su.it.svc.server.batch;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The response to one call of a batch, kept in memory until it is written into the batch response.
+ * <p/>
+ * Nothing reaches the batch response through this response, headers set by a call stay with the call.
+ */
+class BatchItemResponse extends HttpServletResponseWrapper {
+  private final ByteArrayOutputStream body = new ByteArrayOutputStream(1024);
+  private final Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>();
+
+  private int status = SC_OK;
+  private String message;
+  private String contentType;
+  private String characterEncoding = "UTF-8";
+  private boolean committed = false;
+  private ServletOutputStream outputStream;
+  private PrintWriter writer;
+
+  /**
+   * @param batchResponse the batch response.
+   */
+  BatchItemResponse(HttpServletResponse batchResponse) {
+    super(batchResponse);
+  }
+
+  /**
+   * @return the body written by the call.
+   */
+  byte[] getBody() {
+    if (writer != null) {
+      writer.flush();
+    }
+    return body.toByteArray();
+  }
+
+  /**
+   * @return the message of an error sent by the call, or null.
+   */
+  String getMessage() {
+    return message;
+  }
+
+  @Override
+  public int getStatus() {
+    return status;
+  }
+
+  @Override
+  public void setStatus(int status) {
+    if (!committed) {
+      this.status = status;
+    }
+  }
+
+  @Override
+  @SuppressWarnings("deprecation")
+  public void setStatus(int status, String message) {
+    if (!committed) {
+      this.status = status;
+      this.message = message;
+    }
+  }
+
+  @Override
+  public void sendError(int status) throws IOException {
+    sendError(status, null);
+  }
+
+  @Override
+  public void sendError(int status, String message) throws IOException {
+    if (committed) {
+      throw new IllegalStateException("Committed");
+    }
+    this.status = status;
+    this.message = message;
+    clearBody();
+    committed = true;
+  }
+
+  @Override
+  public void sendRedirect(String location) throws IOException {
+    sendError(SC_NOT_FOUND, "Redirect to " + location);
+  }
+
+  @Override
+  public String getContentType() {
+    return contentType;
+  }
+
+  @Override
+  public void setContentType(String contentType) {
+    this.contentType = contentType;
+  }
+
+  @Override
+  public String getCharacterEncoding() {
+    return characterEncoding;
+  }
+
+  @Override
+  public void setCharacterEncoding(String characterEncoding) {
+    this.characterEncoding = characterEncoding;
+  }
+
+  @Override
+  public void setContentLength(int length) {
+  }
+
+  @Override
+  public ServletOutputStream getOutputStream() {
+    if (writer != null) {
+      throw new IllegalStateException("getWriter() already called");
+    }
+    if (outputStream == null) {
+      outputStream = new ServletOutputStream() {
+        @Override
+        public void write(int b) {
+          body.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+          body.write(b, off, len);
+        }
+      };
+    }
+    return outputStream;
+  }
+
+  @Override
+  public PrintWriter getWriter() throws IOException {
+    if (outputStream != null) {
+      throw new IllegalStateException("getOutputStream() already called");
+    }
+    if (writer == null) {
+      writer = new PrintWriter(new OutputStreamWriter(body, characterEncoding));
+    }
+    return writer;
+  }
+
+  @Override
+  public void flushBuffer() {
+    if (writer != null) {
+      writer.flush();
+    }
+    committed = true;
+  }
+
+  @Override
+  public boolean isCommitted() {
+    return committed;
+  }
+
+  @Override
+  public void setBufferSize(int size) {
+  }
+
+  @Override
+  public int getBufferSize() {
+    return Integer.MAX_VALUE;
+  }
+
+  @Override
+  public void reset() {
+    if (committed) {
+      throw new IllegalStateException("Committed");
+    }
+    status = SC_OK;
+    message = null;
+    contentType = null;
+    headers.clear();
+    clearBody();
+  }
+
+  @Override
+  public void resetBuffer() {
+    if (committed) {
+      throw new IllegalStateException("Committed");
+    }
+    clearBody();
+  }
+
+  private void clearBody() {
+    if (writer != null) {
+      writer.flush();
+    }
+    body.reset();
+  }
+
+  @Override
+  public boolean containsHeader(String name) {
+    return headers.containsKey(name.toLowerCase(Locale.ENGLISH));
+  }
+
+  @Override
+  public String getHeader(String name) {
+    List<String> values = headers.get(name.toLowerCase(Locale.ENGLISH));
+    return values != null ? values.get(0) : null;
+  }
+
+  @Override
+  public Collection<String> getHeaders(String name) {
+    List<String> values = headers.get(name.toLowerCase(Locale.ENGLISH));
+    return values != null ? Collections.unmodifiableList(values) : Collections.<String>emptyList();
+  }
+
+  @Override
+  public Collection<String> getHeaderNames() {
+    return Collections.unmodifiableSet(headers.keySet());
+  }
+
+  @Override
+  public void setHeader(String name, String value) {
+    if ("Content-Type".equalsIgnoreCase(name)) {
+      setContentType(value);
+      return;
+    }
+    headers.remove(name.toLowerCase(Locale.ENGLISH));
+    addHeader(name, value);
+  }
+
+  @Override
+  public void addHeader(String name, String value) {
+    if (value == null) {
+      return;
+    }
+    if ("Content-Type".equalsIgnoreCase(name)) {
+      setContentType(value);
+      return;
+    }
+    String key = name.toLowerCase(Locale.ENGLISH);
+    List<String> values = headers.get(key);
+    if (values == null) {
+      values = new ArrayList<String>(1);
+      headers.put(key, values);
+    }
+    values.add(value);
+  }
+
+  @Override
+  public void setIntHeader(String name, int value) {
+    setHeader(name, String.valueOf(value));
+  }
+
+  @Override
+  public void addIntHeader(String name, int value) {
+    addHeader(name, String.valueOf(value));
+  }
+
+  @Override
+  public void setDateHeader(String name, long date) {
+    setHeader(name, String.valueOf(date));
+  }
+
+  @Override
+  public void addDateHeader(String name, long date) {
+    addHeader(name, String.valueOf(date));
+  }
+}
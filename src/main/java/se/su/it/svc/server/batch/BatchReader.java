@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2013, IT Services, Stockholm University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Stockholm University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package se.su.it.svc.server.batch;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reads the calls of a batch one at a time, so calls can run before the whole batch has been read.
+ * <p/>
+ * A batch looks like:
+ * <pre>
+ * &lt;batch xmlns="urn:se:su:it:svc:batch"&gt;
+ *   &lt;call address="/UserService" action="getUser"&gt;
+ *     &lt;soap:Envelope ...&gt;...&lt;/soap:Envelope&gt;
+ *   &lt;/call&gt;
+ * &lt;/batch&gt;
+ * </pre>
+ */
+class BatchReader {
+  static final String NAMESPACE = "urn:se:su:it:svc:batch";
+
+  private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+  private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+
+  static {
+    INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    // Envelopes may use prefixes declared outside of them, the writer declares them where they are used
+    OUTPUT_FACTORY.setProperty(XMLOutputFactory.IS_REPAIRING_NAMESPACES, true);
+  }
+
+  private final XMLStreamReader reader;
+  private final int maxCalls;
+  private final Map<String, String> batchNamespaces = new LinkedHashMap<String, String>();
+  private int calls = 0;
+
+  /**
+   * @param in the batch.
+   * @param maxCalls the maximum number of calls in the batch.
+   * @throws XMLStreamException if the batch isn't a batch document.
+   */
+  BatchReader(InputStream in, int maxCalls) throws XMLStreamException {
+    this.reader = INPUT_FACTORY.createXMLStreamReader(in);
+    this.maxCalls = maxCalls;
+
+    reader.nextTag();
+    if (!NAMESPACE.equals(reader.getNamespaceURI()) || !"batch".equals(reader.getLocalName())) {
+      throw new XMLStreamException("Expected {" + NAMESPACE + "}batch, got " + reader.getName());
+    }
+    declareNamespaces(batchNamespaces);
+  }
+
+  /**
+   * @return the next call, or null at the end of the batch.
+   * @throws XMLStreamException if the call can't be read, or there are too many calls.
+   */
+  BatchCall next() throws XMLStreamException {
+    if (reader.nextTag() == XMLStreamConstants.END_ELEMENT) {
+      return null;
+    }
+    if (!NAMESPACE.equals(reader.getNamespaceURI()) || !"call".equals(reader.getLocalName())) {
+      throw new XMLStreamException("Expected {" + NAMESPACE + "}call, got " + reader.getName());
+    }
+    if (calls >= maxCalls) {
+      throw new XMLStreamException("More than " + maxCalls + " calls in batch");
+    }
+
+    String address = reader.getAttributeValue(null, "address");
+    if (address == null || !address.startsWith("/")) {
+      throw new XMLStreamException("Call " + calls + " needs an address starting with /");
+    }
+    String action = reader.getAttributeValue(null, "action");
+    Map<String, String> namespaces = new LinkedHashMap<String, String>(batchNamespaces);
+    declareNamespaces(namespaces);
+
+    reader.nextTag();
+    boolean soap12 = BatchCall.SOAP12_NAMESPACE.equals(reader.getNamespaceURI());
+    byte[] envelope = copyElement(namespaces);
+    if (reader.nextTag() != XMLStreamConstants.END_ELEMENT) {
+      throw new XMLStreamException("Call " + calls + " has more than one envelope");
+    }
+
+    return new BatchCall(calls++, address, action, soap12, envelope);
+  }
+
+  void close() {
+    try {
+      reader.close();
+    } catch (XMLStreamException ignore) {
+    }
+  }
+
+  /**
+   * Add the namespaces declared on the element the reader is at.
+   */
+  private void declareNamespaces(Map<String, String> namespaces) {
+    for (int i = 0; i < reader.getNamespaceCount(); i++) {
+      String prefix = reader.getNamespacePrefix(i);
+      namespaces.put(prefix != null ? prefix : "", reader.getNamespaceURI(i));
+    }
+  }
+
+  /**
+   * Copy the element the reader is at, leaving the reader at its end tag.
+   *
+   * @param inScope namespaces declared outside of the element.
+   */
+  private byte[] copyElement(Map<String, String> inScope) throws XMLStreamException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+    XMLStreamWriter writer = OUTPUT_FACTORY.createXMLStreamWriter(out, "UTF-8");
+
+    int depth = 0;
+    do {
+      switch (reader.getEventType()) {
+        case XMLStreamConstants.START_ELEMENT:
+          writeStartElement(writer, depth++ == 0 ? inScope : null);
+          break;
+        case XMLStreamConstants.END_ELEMENT:
+          depth--;
+          writer.writeEndElement();
+          break;
+        case XMLStreamConstants.CHARACTERS:
+        case XMLStreamConstants.SPACE:
+          writer.writeCharacters(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+          break;
+        case XMLStreamConstants.CDATA:
+          writer.writeCData(reader.getText());
+          break;
+        default:
+          // Comments and processing instructions are dropped
+      }
+    } while (depth > 0 && reader.hasNext() && reader.next() > 0);
+
+    writer.writeEndDocument();
+    writer.close();
+    return out.toByteArray();
+  }
+
+  private void writeStartElement(XMLStreamWriter writer, Map<String, String> inScope) throws XMLStreamException {
+    String prefix = reader.getPrefix();
+    String namespace = reader.getNamespaceURI();
+    writer.writeStartElement(prefix != null ? prefix : "", reader.getLocalName(), namespace != null ? namespace : "");
+
+    // Keep declarations, prefixes may be used in attribute values such as xsi:type
+    Map<String, String> namespaces = new LinkedHashMap<String, String>();
+    if (inScope != null) {
+      namespaces.putAll(inScope);
+      // The batch namespace is the default namespace outside of the envelope
+      if (NAMESPACE.equals(namespaces.get(""))) {
+        namespaces.remove("");
+      }
+    }
+    declareNamespaces(namespaces);
+    for (Map.Entry<String, String> declaration : namespaces.entrySet()) {
+      if (declaration.getKey().length() == 0) {
+        writer.writeDefaultNamespace(declaration.getValue());
+      } else {
+        writer.writeNamespace(declaration.getKey(), declaration.getValue());
+      }
+    }
+
+    for (int i = 0; i < reader.getAttributeCount(); i++) {
+      String attributeNamespace = reader.getAttributeNamespace(i);
+      if (attributeNamespace == null || attributeNamespace.length() == 0) {
+        writer.writeAttribute(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+      } else {
+        String attributePrefix = reader.getAttributePrefix(i);
+        writer.writeAttribute(attributePrefix != null ? attributePrefix : "", attributeNamespace,
+                reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+      }
+    }
+  }
+}
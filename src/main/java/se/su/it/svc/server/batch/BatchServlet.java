@@ -0,0 +1,376 @@
+/*
+ * Copyright (c) 2013, IT Services, Stockholm University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Stockholm University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package se.su.it.svc.server.batch;
+
+import org.apache.cxf.Bus;
+import org.apache.cxf.BusException;
+import org.apache.cxf.BusFactory;
+import org.apache.cxf.transport.DestinationFactory;
+import org.apache.cxf.transport.DestinationFactoryManager;
+import org.apache.cxf.transport.http.AbstractHTTPDestination;
+import org.apache.cxf.transport.http.DestinationRegistry;
+import org.apache.cxf.transport.http.HTTPTransportFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.su.it.svc.server.filter.CorrelationIdHandler;
+import se.su.it.svc.server.limit.RateLimiter;
+import se.su.it.svc.server.metrics.Counter;
+import se.su.it.svc.server.metrics.MetricsRegistry;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.xml.stream.XMLStreamException;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the calls of a batch through the CXF endpoints of the web application, and answers with their
+ * responses in one document.
+ * <p/>
+ * Calls are read as the batch arrives and up to <code>parallelism</code> calls of a batch run at once, on
+ * threads shared by all batches. Responses are written in call order as soon as they are done. Every call
+ * runs the whole CXF chain as the user of the batch, so authorization, auditing and sanitizing apply per
+ * call, and a call that fails doesn't fail the batch. With a rate limiter in the servlet context attribute
+ * {@link #RATE_LIMITER_ATTRIBUTE}, every call after the first is charged to the user like a request of its own,
+ * and calls over the limit are answered with status 429.
+ * <p/>
+ * Init parameters:
+ * <ul>
+ * <li>threads - threads running calls for all batches, default 8.</li>
+ * <li>parallelism - calls of one batch running at once, default 4.</li>
+ * <li>maxCalls - calls in one batch, default 1000.</li>
+ * <li>cxfServletPath - the path the CXF servlet is mapped to, default "".</li>
+ * </ul>
+ */
+public class BatchServlet extends HttpServlet {
+  private static final Logger LOG = LoggerFactory.getLogger(BatchServlet.class);
+
+  public static final String THREADS_PARAM = "threads";
+  public static final String PARALLELISM_PARAM = "parallelism";
+  public static final String MAX_CALLS_PARAM = "maxCalls";
+  public static final String CXF_SERVLET_PATH_PARAM = "cxfServletPath";
+  public static final String RATE_LIMITER_ATTRIBUTE = RateLimiter.class.getName();
+
+  private static final String HTTP_TRANSPORT = "http://cxf.apache.org/transports/http/configuration";
+
+  private ThreadPoolExecutor executor;
+  private int parallelism;
+  private int maxCalls;
+  private String cxfServletPath;
+  private RateLimiter rateLimiter;
+
+  private volatile Bus bus;
+  private volatile DestinationRegistry registry;
+
+  private Counter batches;
+  private Counter succeeded;
+  private Counter failed;
+
+  @Override
+  public void init() throws ServletException {
+    int threads = getIntParameter(THREADS_PARAM, 8);
+    parallelism = getIntParameter(PARALLELISM_PARAM, 4);
+    maxCalls = getIntParameter(MAX_CALLS_PARAM, 1000);
+    cxfServletPath = getInitParameter(CXF_SERVLET_PATH_PARAM) != null ? getInitParameter(CXF_SERVLET_PATH_PARAM).trim() : "";
+    rateLimiter = (RateLimiter) getServletContext().getAttribute(RATE_LIMITER_ATTRIBUTE);
+
+    // Calls run with the class loader of the web application, like the requests CXF serves itself
+    final ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+    final AtomicInteger threadCount = new AtomicInteger();
+    // When all threads are busy and the queue is full, the thread serving the batch runs the call itself
+    executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(threads * parallelism), new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "batch-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        thread.setContextClassLoader(classLoader);
+        return thread;
+      }
+    }, new ThreadPoolExecutor.CallerRunsPolicy());
+
+    MetricsRegistry metrics = MetricsRegistry.getDefault();
+    batches = metrics.counter("cxf_server_batch_requests_total", "Batch requests.");
+    succeeded = metrics.counter("cxf_server_batch_calls_total", "Calls run in batches.", "result", "success");
+    failed = metrics.counter("cxf_server_batch_calls_total", "Calls run in batches.", "result", "failure");
+
+    LOG.info("Batch calls enabled, " + parallelism + " calls of a batch at once on " + threads + " threads");
+  }
+
+  @Override
+  public void destroy() {
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+
+  @Override
+  protected void doPost(final HttpServletRequest request, final HttpServletResponse response)
+          throws ServletException, IOException {
+    batches.inc();
+
+    BatchReader reader;
+    try {
+      reader = new BatchReader(request.getInputStream(), maxCalls);
+    } catch (XMLStreamException e) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+      return;
+    }
+
+    final Object id = request.getAttribute(CorrelationIdHandler.ATTRIBUTE);
+    LinkedList<Future<BatchItemResponse>> pending = new LinkedList<Future<BatchItemResponse>>();
+    try {
+      lookupRegistry();
+
+      response.setContentType("text/xml; charset=UTF-8");
+      PrintWriter out = response.getWriter();
+      out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?><batchResponse xmlns=\"" + BatchReader.NAMESPACE + "\">");
+
+      int index = 0;
+      try {
+        for (BatchCall call = reader.next(); call != null; call = reader.next()) {
+          final BatchCall next = call;
+          pending.add(executor.submit(new Callable<BatchItemResponse>() {
+            @Override
+            public BatchItemResponse call() {
+              return invoke(request, response, next, id);
+            }
+          }));
+          if (pending.size() >= parallelism) {
+            writeResult(out, index++, pending.removeFirst());
+          }
+        }
+      } catch (XMLStreamException e) {
+        // Calls read before the error are answered, then the error ends the batch
+        while (!pending.isEmpty()) {
+          writeResult(out, index++, pending.removeFirst());
+        }
+        out.write("<error message=\"" + escape(e.getMessage()) + "\"/>");
+      }
+      while (!pending.isEmpty()) {
+        writeResult(out, index++, pending.removeFirst());
+      }
+
+      out.write("</batchResponse>");
+      out.flush();
+    } finally {
+      reader.close();
+      // Calls use the batch request, so none may outlive it
+      for (Future<BatchItemResponse> future : pending) {
+        await(future);
+      }
+    }
+  }
+
+  /**
+   * Run a call through its CXF endpoint.
+   */
+  BatchItemResponse invoke(HttpServletRequest request, HttpServletResponse response, BatchCall call, Object id) {
+    BatchItemRequest itemRequest = new BatchItemRequest(request, cxfServletPath, call);
+    if (id != null) {
+      itemRequest.setAttribute(CorrelationIdHandler.ATTRIBUTE, id + "." + call.getIndex());
+    }
+    BatchItemResponse itemResponse = new BatchItemResponse(response);
+
+    // The batch request paid for the first call when it was authenticated
+    long wait = rateLimiter != null && call.getIndex() > 0 ? rateLimiter.tryAcquire(request.getRemoteUser()) : 0;
+    if (wait > 0) {
+      itemResponse.setStatus(RateLimiter.SC_TOO_MANY_REQUESTS,
+              "Too many requests, retry after " + RateLimiter.toRetryAfter(wait) + "s");
+      return itemResponse;
+    }
+
+    Bus previous = BusFactory.getThreadDefaultBus(false);
+    try {
+      AbstractHTTPDestination destination = registry.getDestinationForPath(call.getAddress(), true);
+      if (destination == null) {
+        itemResponse.sendError(HttpServletResponse.SC_NOT_FOUND, "No service at " + call.getAddress());
+      } else {
+        BusFactory.setThreadDefaultBus(bus);
+        destination.invoke(getServletConfig(), getServletContext(), itemRequest, itemResponse);
+      }
+    } catch (Exception e) {
+      LOG.warn("Batch call " + call.getIndex() + " to " + call.getAddress() + " failed", e);
+      if (!itemResponse.isCommitted()) {
+        itemResponse.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+      }
+    } finally {
+      BusFactory.setThreadDefaultBus(previous);
+    }
+
+    return itemResponse;
+  }
+
+  private void writeResult(PrintWriter out, int index, Future<BatchItemResponse> future) {
+    BatchItemResponse itemResponse = await(future);
+    if (itemResponse == null) {
+      failed.inc();
+      out.write("<result index=\"" + index + "\" status=\"500\" message=\"Interrupted\"/>");
+      out.flush();
+      return;
+    }
+
+    int status = itemResponse.getStatus();
+    if (status < 400) {
+      succeeded.inc();
+    } else {
+      failed.inc();
+    }
+
+    // SOAP faults are answered with a body too, anything else than XML is left out
+    String envelope = toEnvelope(itemResponse);
+    out.write("<result index=\"" + index + "\" status=\"" + status + "\"");
+    if (itemResponse.getMessage() != null) {
+      out.write(" message=\"" + escape(itemResponse.getMessage()) + "\"");
+    }
+    if (envelope == null) {
+      out.write("/>");
+    } else {
+      out.write(">");
+      out.write(envelope);
+      out.write("</result>");
+    }
+    out.flush();
+  }
+
+  /**
+   * @return the body of a response as an envelope that can be put in the batch response, or null if it isn't XML.
+   */
+  static String toEnvelope(BatchItemResponse itemResponse) {
+    String contentType = itemResponse.getContentType();
+    byte[] body = itemResponse.getBody();
+    // MTOM responses are multipart, only plain envelopes fit in a batch response
+    if (contentType == null || body.length == 0
+            || !contentType.split(";")[0].trim().toLowerCase(Locale.ENGLISH).endsWith("xml")) {
+      return null;
+    }
+
+    String envelope = new String(body, charsetOf(contentType));
+    if (envelope.startsWith("<?xml")) {
+      int end = envelope.indexOf("?>");
+      envelope = end < 0 ? envelope : envelope.substring(end + 2);
+    }
+    return envelope;
+  }
+
+  static Charset charsetOf(String contentType) {
+    for (String parameter : contentType.split(";")) {
+      String trimmed = parameter.trim();
+      if (trimmed.toLowerCase(Locale.ENGLISH).startsWith("charset=")) {
+        String name = trimmed.substring("charset=".length()).replace("\"", "").trim();
+        try {
+          return Charset.forName(name);
+        } catch (IllegalArgumentException e) {
+          LOG.debug("Unknown charset " + name + " in batch call response");
+        }
+      }
+    }
+    return Charset.forName("UTF-8");
+  }
+
+  static String escape(String value) {
+    if (value == null) {
+      return "";
+    }
+    StringBuilder sb = new StringBuilder(value.length());
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '&': sb.append("&amp;"); break;
+        case '<': sb.append("&lt;"); break;
+        case '>': sb.append("&gt;"); break;
+        case '"': sb.append("&quot;"); break;
+        default:
+          sb.append(c < 0x20 ? ' ' : c);
+      }
+    }
+    return sb.toString();
+  }
+
+  private static BatchItemResponse await(Future<BatchItemResponse> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      future.cancel(true);
+      return null;
+    } catch (ExecutionException e) {
+      // invoke() catches what the call throws
+      LOG.error("Batch call failed", e.getCause());
+      return null;
+    }
+  }
+
+  /**
+   * Find the endpoints of the web application. The bus is created by the CXF servlet, which may be started
+   * after this servlet, so it is looked up on the first batch.
+   */
+  private void lookupRegistry() throws ServletException {
+    if (registry != null) {
+      return;
+    }
+
+    Bus defaultBus = BusFactory.getDefaultBus(false);
+    if (defaultBus == null) {
+      throw new ServletException("No CXF bus");
+    }
+    try {
+      DestinationFactoryManager manager = defaultBus.getExtension(DestinationFactoryManager.class);
+      DestinationFactory factory = manager.getDestinationFactory(HTTP_TRANSPORT);
+      if (!(factory instanceof HTTPTransportFactory)) {
+        throw new ServletException("No CXF HTTP transport");
+      }
+      bus = defaultBus;
+      registry = ((HTTPTransportFactory) factory).getRegistry();
+    } catch (BusException e) {
+      throw new ServletException("No CXF HTTP transport", e);
+    }
+  }
+
+  private int getIntParameter(String name, int defaultValue) {
+    String value = getInitParameter(name);
+    return value != null ? Integer.parseInt(value.trim()) : defaultValue;
+  }
+}
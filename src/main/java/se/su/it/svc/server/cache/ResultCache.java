@@ -0,0 +1,391 @@
+/*
+ * Copyright (c) 2013, IT Services, Stockholm University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Stockholm University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package se.su.it.svc.server.cache;
+
+import se.su.it.svc.server.metrics.Counter;
+import se.su.it.svc.server.metrics.Gauge;
+import se.su.it.svc.server.metrics.MetricsRegistry;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache of web method results with a time to live.
+ * <p/>
+ * Lookups are a single map read. Entries are also kept in insertion order, and when the cache is full the oldest
+ * are evicted first, which with a fixed time to live are also the first to expire. Expired entries are removed
+ * when they are looked up or reached by eviction.
+ * <p/>
+ * The cache is bounded by a number of entries, and optionally by the estimated size in bytes of the results, so
+ * a few large results can't take the heap a thousand small ones were sized for.
+ */
+public class ResultCache {
+  private final String name;
+  private volatile long ttl;
+  private volatile int maxEntries;
+  private volatile long maxBytes;
+
+  private final ConcurrentMap<Key, Entry> entries = new ConcurrentHashMap<Key, Entry>();
+  private final Queue<Entry> order = new ConcurrentLinkedQueue<Entry>();
+  private final AtomicInteger size = new AtomicInteger();
+  private final AtomicInteger ordered = new AtomicInteger();
+  private final AtomicLong bytes = new AtomicLong();
+
+  private final Counter hits;
+  private final Counter misses;
+  private final Counter evictions;
+
+  /**
+   * @param name the cache name.
+   * @param ttl the time in milliseconds a result is cached.
+   * @param maxEntries the maximum number of cached results.
+   * @param registry the registry to publish hits, misses and evictions in.
+   */
+  public ResultCache(String name, long ttl, int maxEntries, MetricsRegistry registry) {
+    this(name, ttl, maxEntries, 0, registry);
+  }
+
+  /**
+   * @param name the cache name.
+   * @param ttl the time in milliseconds a result is cached.
+   * @param maxEntries the maximum number of cached results.
+   * @param maxBytes the maximum estimated size in bytes of the cached results, or 0 for no limit.
+   * @param registry the registry to publish hits, misses and evictions in.
+   */
+  public ResultCache(String name, long ttl, int maxEntries, long maxBytes, MetricsRegistry registry) {
+    this.name = name;
+    this.ttl = ttl;
+    this.maxEntries = maxEntries;
+    this.maxBytes = maxBytes;
+
+    hits = registry.counter("cxf_server_result_cache_requests_total", "Result cache lookups by result.",
+            "cache", name, "result", "hit");
+    misses = registry.counter("cxf_server_result_cache_requests_total", "Result cache lookups by result.",
+            "cache", name, "result", "miss");
+    evictions = registry.counter("cxf_server_result_cache_evictions_total", "Results evicted to stay within size.",
+            "cache", name);
+  }
+
+  /**
+   * Publish the size of the cache. Gauges replace those of another cache with the same name, so only the cache
+   * that is used should register them.
+   *
+   * @param registry the registry to publish the number of results and their estimated size in.
+   */
+  public void registerGauges(MetricsRegistry registry) {
+    registry.gauge("cxf_server_result_cache_entries", "Cached results.", new Gauge() {
+      @Override
+      public double getValue() {
+        return size.get();
+      }
+    }, "cache", name);
+    registry.gauge("cxf_server_result_cache_bytes", "Estimated size of the cached results in bytes.", new Gauge() {
+      @Override
+      public double getValue() {
+        return bytes.get();
+      }
+    }, "cache", name);
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @return the time in milliseconds a result is cached.
+   */
+  public long getTtl() {
+    return ttl;
+  }
+
+  /**
+   * @param ttl the time in milliseconds a result is cached, applies to results cached from now on.
+   */
+  public void setTtl(long ttl) {
+    this.ttl = ttl;
+  }
+
+  public int getMaxEntries() {
+    return maxEntries;
+  }
+
+  /**
+   * @param maxEntries the maximum number of cached results, enforced on the next put.
+   */
+  public void setMaxEntries(int maxEntries) {
+    this.maxEntries = maxEntries;
+  }
+
+  /**
+   * @return the maximum estimated size in bytes of the cached results, or 0 for no limit.
+   */
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  /**
+   * @param maxBytes the maximum estimated size in bytes of the cached results, or 0 for no limit, enforced on the
+   * next put. Sizes are only estimated while there is a limit.
+   */
+  public void setMaxBytes(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  public int getSize() {
+    return size.get();
+  }
+
+  /**
+   * @return the estimated size in bytes of the cached results, 0 if the cache has no size limit.
+   */
+  public long getBytes() {
+    return bytes.get();
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  /**
+   * @return the fraction of lookups answered from the cache, or 0 if there have been none.
+   */
+  public double getHitRate() {
+    long h = hits.get();
+    long total = h + misses.get();
+    return total > 0 ? (double) h / total : 0;
+  }
+
+  /**
+   * @param key the key.
+   * @return the cached result, or null if there is none or it has expired.
+   */
+  public Object get(Key key) {
+    Entry entry = entries.get(key);
+    if (entry != null) {
+      if (System.nanoTime() - entry.expires < 0) {
+        hits.inc();
+        return entry.value;
+      }
+      remove(entry);
+    }
+
+    misses.inc();
+    return null;
+  }
+
+  /**
+   * Cache a result, evicting the oldest results if the cache is full. A result larger than the whole cache
+   * is not cached.
+   *
+   * @param key the key.
+   * @param value the result, not null.
+   */
+  public void put(Key key, Object value) {
+    long limit = maxBytes;
+    long weight = limit > 0 ? SizeEstimator.estimate(value, limit) : 0;
+    if (weight > limit && limit > 0) {
+      return;
+    }
+
+    Entry entry = new Entry(key, value, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ttl), weight);
+    bytes.addAndGet(weight);
+    Entry previous = entries.put(key, entry);
+    if (previous == null) {
+      size.incrementAndGet();
+    } else {
+      bytes.addAndGet(-previous.weight);
+    }
+    order.offer(entry);
+    ordered.incrementAndGet();
+
+    evict();
+  }
+
+  /**
+   * Remove all results with the given key arguments, for any principal.
+   *
+   * @param args the key arguments.
+   * @return the number of removed results.
+   */
+  public int invalidate(Object[] args) {
+    int removed = 0;
+    for (Entry entry : entries.values()) {
+      if (Arrays.deepEquals(entry.key.args, args) && remove(entry)) {
+        removed++;
+      }
+    }
+    return removed;
+  }
+
+  /**
+   * Remove all results cached for a principal.
+   *
+   * @param principal the principal.
+   * @return the number of removed results.
+   */
+  public int invalidatePrincipal(String principal) {
+    int removed = 0;
+    for (Entry entry : entries.values()) {
+      if (principal.equals(entry.key.principal) && remove(entry)) {
+        removed++;
+      }
+    }
+    return removed;
+  }
+
+  /**
+   * Remove all results.
+   */
+  public void invalidateAll() {
+    for (Entry entry : entries.values()) {
+      remove(entry);
+    }
+    purgeOrder();
+  }
+
+  private boolean remove(Entry entry) {
+    if (entries.remove(entry.key, entry)) {
+      size.decrementAndGet();
+      bytes.addAndGet(-entry.weight);
+      return true;
+    }
+    return false;
+  }
+
+  private void evict() {
+    long now = System.nanoTime();
+    int max = maxEntries;
+    long limit = maxBytes;
+
+    Entry oldest;
+    while ((oldest = order.peek()) != null) {
+      boolean current = entries.get(oldest.key) == oldest;
+      boolean expired = now - oldest.expires >= 0;
+      if (current && !expired && size.get() <= max && (limit <= 0 || bytes.get() <= limit)) {
+        break;
+      }
+
+      if (order.remove(oldest)) {
+        ordered.decrementAndGet();
+        if (current && remove(oldest) && !expired) {
+          evictions.inc();
+        }
+      }
+    }
+
+    // Replaced and invalidated results stay in the order queue until they are the oldest, drop them if they pile up
+    if (ordered.get() > 2 * Math.max(size.get(), max) + 16) {
+      purgeOrder();
+    }
+  }
+
+  private void purgeOrder() {
+    for (Iterator<Entry> it = order.iterator(); it.hasNext(); ) {
+      Entry entry = it.next();
+      if (entries.get(entry.key) != entry) {
+        it.remove();
+        ordered.decrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * A cache key: the key arguments of a call, and the principal if results are kept per principal.
+   */
+  public static final class Key {
+    private final String principal;
+    private final Object[] args;
+    private final int hash;
+
+    /**
+     * @param principal the principal, or null if results are shared between principals.
+     * @param args the key arguments.
+     */
+    public Key(String principal, Object[] args) {
+      this.principal = principal;
+      this.args = args;
+      this.hash = 31 * (principal != null ? principal.hashCode() : 0) + Arrays.deepHashCode(args);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return hash == other.hash
+              && (principal != null ? principal.equals(other.principal) : other.principal == null)
+              && Arrays.deepEquals(args, other.args);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public String toString() {
+      return (principal != null ? principal + ":" : "") + Arrays.deepToString(args);
+    }
+  }
+
+  private static final class Entry {
+    private final Key key;
+    private final Object value;
+    private final long expires;
+    private final long weight;
+
+    private Entry(Key key, Object value, long expires, long weight) {
+      this.key = key;
+      this.value = value;
+      this.expires = expires;
+      this.weight = weight;
+    }
+  }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2013, IT Services, Stockholm University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Stockholm University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package se.su.it.svc.server.cache;
+
+import se.su.it.svc.server.metrics.Counter;
+import se.su.it.svc.server.metrics.MetricsRegistry;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs at most one call per key at a time. Callers arriving while a call with the same key is in flight wait for
+ * it and share its result or exception instead of running the call again. A caller that has waited maxWait
+ * milliseconds runs the call itself, so a hung call doesn't hold every caller with the same key.
+ */
+public class SingleFlight {
+
+  /**
+   * A call that may be shared.
+   */
+  public interface Call {
+    Object call() throws Throwable;
+  }
+
+  private final ConcurrentMap<Object, Flight> flights = new ConcurrentHashMap<Object, Flight>();
+
+  public static final long DEFAULT_MAX_WAIT = 30000;
+
+  private final long maxWait;
+
+  private final Counter executed;
+  private final Counter joined;
+  private final Counter timedOut;
+
+  /**
+   * @param operation the operation name, used as metric label.
+   * @param registry the registry to publish executed and joined calls in.
+   */
+  public SingleFlight(String operation, MetricsRegistry registry) {
+    this(operation, DEFAULT_MAX_WAIT, registry);
+  }
+
+  /**
+   * @param operation the operation name, used as metric label.
+   * @param maxWait the maximum time in milliseconds to wait for a call in flight before running the call.
+   * @param registry the registry to publish executed and joined calls in.
+   */
+  public SingleFlight(String operation, long maxWait, MetricsRegistry registry) {
+    this.maxWait = maxWait;
+
+    executed = registry.counter("cxf_server_coalesced_calls_total", "Calls of coalescing operations by outcome.",
+            "operation", operation, "result", "executed");
+    joined = registry.counter("cxf_server_coalesced_calls_total", "Calls of coalescing operations by outcome.",
+            "operation", operation, "result", "joined");
+    timedOut = registry.counter("cxf_server_coalesced_calls_total", "Calls of coalescing operations by outcome.",
+            "operation", operation, "result", "timeout");
+  }
+
+  /**
+   * Run the call, or wait for a call with the same key already in flight.
+   *
+   * @param key the key, equal keys share calls.
+   * @param call the call.
+   * @return the result.
+   * @throws Throwable what the call threw.
+   */
+  public Object execute(Object key, Call call) throws Throwable {
+    Flight flight = new Flight();
+    Flight inFlight = flights.putIfAbsent(key, flight);
+
+    if (inFlight != null) {
+      boolean done = false;
+      try {
+        done = inFlight.done.await(maxWait, TimeUnit.MILLISECONDS);
+        if (!done) {
+          timedOut.inc();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        // Don't leave the caller without a result, run the call itself
+      }
+
+      if (done) {
+        joined.inc();
+        return inFlight.get();
+      }
+      executed.inc();
+      return call.call();
+    }
+
+    executed.inc();
+    try {
+      flight.result = call.call();
+    } catch (Throwable t) {
+      flight.failure = t;
+    } finally {
+      flights.remove(key, flight);
+      flight.done.countDown();
+    }
+    return flight.get();
+  }
+
+  /**
+   * @return the number of calls that ran.
+   */
+  public long getExecuted() {
+    return executed.get();
+  }
+
+  /**
+   * @return the number of calls that got the result of another call.
+   */
+  public long getJoined() {
+    return joined.get();
+  }
+
+  /**
+   * @return the number of calls that ran themselves after waiting maxWait for another call, these are also counted
+   * as executed.
+   */
+  public long getTimedOut() {
+    return timedOut.get();
+  }
+
+  /**
+   * @return the number of calls in flight.
+   */
+  public int getInFlight() {
+    return flights.size();
+  }
+
+  private static final class Flight {
+    private final CountDownLatch done = new CountDownLatch(1);
+    // Published to waiting threads by the latch
+    private Object result;
+    private Throwable failure;
+
+    private Object get() throws Throwable {
+      if (failure != null) {
+        throw failure;
+      }
+      return result;
+    }
+  }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2013, IT Services, Stockholm University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Stockholm University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package se.su.it.svc.server.cache;
+
+import javax.xml.bind.JAXBElement;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Estimates the heap size of cached results, so a cache can be bounded in bytes and not only in entries.
+ * <p/>
+ * The estimate assumes a 64-bit JVM with compressed references: 12 byte object headers, 4 byte references and
+ * sizes rounded up to 8 bytes. Result beans are walked through their non-transient fields, strings, arrays,
+ * collections, maps and JAXBElements through their contents, and other JDK and Groovy types only count their own
+ * fields. Objects reachable more than once are counted once, and the walk stops when the limit is passed.
+ */
+final class SizeEstimator {
+  private static final int HEADER = 12;
+  private static final int REFERENCE = 4;
+  private static final int ARRAY_HEADER = 16;
+  /** A collection or map entry, ex. a HashMap.Node, on top of the slot in the backing array. */
+  private static final int ENTRY = 32;
+
+  private static final ConcurrentMap<Class<?>, Layout> LAYOUTS = new ConcurrentHashMap<Class<?>, Layout>();
+
+  private SizeEstimator() {}
+
+  /**
+   * @param value the value.
+   * @param limit the size at which to stop counting.
+   * @return the estimated size in bytes, more than limit if the value is larger than the limit.
+   */
+  static long estimate(Object value, long limit) {
+    Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+    Deque<Object> pending = new ArrayDeque<Object>();
+    pending.push(value);
+
+    long size = 0;
+    while (!pending.isEmpty() && size <= limit) {
+      Object object = pending.pop();
+      if (!visited.add(object)) {
+        continue;
+      }
+      size += shallowSize(object, pending);
+    }
+    return size;
+  }
+
+  /**
+   * @return the size of an object, its contents are pushed to be counted separately.
+   */
+  private static long shallowSize(Object object, Deque<Object> pending) {
+    Class<?> type = object.getClass();
+
+    if (object instanceof String) {
+      return align(HEADER + 3 * REFERENCE) + align(ARRAY_HEADER + 2L * ((String) object).length());
+    }
+    if (type.isArray()) {
+      Class<?> component = type.getComponentType();
+      if (component.isPrimitive()) {
+        return align(ARRAY_HEADER + (long) java.lang.reflect.Array.getLength(object) * primitiveSize(component));
+      }
+      Object[] array = (Object[]) object;
+      push(pending, array);
+      return align(ARRAY_HEADER + (long) array.length * REFERENCE);
+    }
+    if (object instanceof Collection) {
+      Collection<?> collection = (Collection<?>) object;
+      push(pending, collection.toArray());
+      return layout(type).size + (long) collection.size() * (ENTRY + REFERENCE);
+    }
+    if (object instanceof Map) {
+      Map<?, ?> map = (Map<?, ?>) object;
+      for (Map.Entry<?, ?> entry : map.entrySet()) {
+        push(pending, entry.getKey(), entry.getValue());
+      }
+      return layout(type).size + (long) map.size() * (ENTRY + REFERENCE);
+    }
+    if (object instanceof JAXBElement) {
+      push(pending, ((JAXBElement<?>) object).getValue());
+      return layout(type).size;
+    }
+    if (object instanceof Class || object instanceof Enum) {
+      // Shared by everything, not retained by the result
+      return 0;
+    }
+
+    Layout layout = layout(type);
+    for (Field field : layout.references) {
+      try {
+        push(pending, field.get(object));
+      } catch (IllegalAccessException e) {
+        // Counted as a reference only
+      }
+    }
+    return layout.size;
+  }
+
+  private static void push(Deque<Object> pending, Object... values) {
+    for (Object value : values) {
+      if (value != null) {
+        pending.push(value);
+      }
+    }
+  }
+
+  private static Layout layout(Class<?> type) {
+    Layout layout = LAYOUTS.get(type);
+    if (layout == null) {
+      layout = new Layout(type);
+      Layout existing = LAYOUTS.putIfAbsent(type, layout);
+      if (existing != null) {
+        layout = existing;
+      }
+    }
+    return layout;
+  }
+
+  private static int primitiveSize(Class<?> type) {
+    if (type == long.class || type == double.class) {
+      return 8;
+    }
+    if (type == int.class || type == float.class) {
+      return 4;
+    }
+    if (type == short.class || type == char.class) {
+      return 2;
+    }
+    return 1;
+  }
+
+  private static long align(long size) {
+    return (size + 7) & ~7L;
+  }
+
+  /**
+   * The size of the instance fields of a class, and the reference fields to follow.
+   */
+  private static final class Layout {
+    private final long size;
+    private final Field[] references;
+
+    private Layout(Class<?> type) {
+      long fieldsSize = 0;
+      List<Field> followed = new ArrayList<Field>();
+      // JDK internals can't always be read, their contents are counted by the special cases above instead
+      String name = type.getName();
+      boolean follow = !(name.startsWith("java.") || name.startsWith("javax.") || name.startsWith("sun.")
+              || name.startsWith("com.sun.") || name.startsWith("groovy.") || name.startsWith("org.codehaus.groovy."));
+
+      for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+        for (Field field : c.getDeclaredFields()) {
+          if (Modifier.isStatic(field.getModifiers())) {
+            continue;
+          }
+
+          Class<?> fieldType = field.getType();
+          if (fieldType.isPrimitive()) {
+            fieldsSize += primitiveSize(fieldType);
+            continue;
+          }
+
+          fieldsSize += REFERENCE;
+          // Transient fields, ex. the metaClass of Groovy beans, hold shared state rather than result data
+          if (follow && !Modifier.isTransient(field.getModifiers())) {
+            try {
+              field.setAccessible(true);
+              followed.add(field);
+            } catch (RuntimeException e) {
+              // Not accessible, ex. under a security manager, counted as a reference only
+            }
+          }
+        }
+      }
+
+      this.size = align(HEADER + fieldsSize);
+      this.references = followed.toArray(new Field[followed.size()]);
+    }
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2013, IT Services, Stockholm University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Stockholm University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package se.su.it.svc.server.filter;
+
+import org.eclipse.jetty.continuation.Continuation;
+import org.eclipse.jetty.continuation.ContinuationListener;
+import org.eclipse.jetty.server.AsyncContinuation;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Response;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+import se.su.it.svc.server.limit.AdaptiveLimiter;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A handler that admits requests to the wrapped handler through an {@link AdaptiveLimiter}, and answers
+ * 503 with a Retry-After header when a request is rejected.
+ * <p/>
+ * Requests without an Authorization header and WSDL requests are sheddable, so under load they are rejected
+ * before authenticated SOAP calls. A suspended request keeps its place until it completes.
+ */
+public class AdmissionHandler extends HandlerWrapper {
+  public static final String ATTRIBUTE = AdmissionHandler.class.getName() + ".permit";
+
+  private AdaptiveLimiter limiter = null;
+
+  public void setLimiter(AdaptiveLimiter limiter) {
+    this.limiter = limiter;
+  }
+
+  public AdaptiveLimiter getLimiter() {
+    return limiter;
+  }
+
+  /**
+   * @see org.eclipse.jetty.server.Handler#handle(String, org.eclipse.jetty.server.Request, javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
+   */
+  @Override
+  public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response)
+      throws IOException, ServletException {
+
+    if (limiter == null || baseRequest.isHandled()) {
+      super.handle(target, baseRequest, request, response);
+      return;
+    }
+
+    // A resumed asynchronous request is dispatched again, it keeps its permit
+    Permit permit = (Permit) request.getAttribute(ATTRIBUTE);
+    if (permit == null) {
+      if (!limiter.acquire(isSheddable(request))) {
+        baseRequest.setHandled(true);
+        response.setHeader("Retry-After", "1");
+        response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        return;
+      }
+      permit = new Permit(limiter, baseRequest.getResponse());
+      request.setAttribute(ATTRIBUTE, permit);
+    }
+
+    boolean failed = true;
+    try {
+      super.handle(target, baseRequest, request, response);
+      failed = false;
+    } finally {
+      AsyncContinuation continuation = baseRequest.getAsyncContinuation();
+      if (!failed && continuation != null && continuation.isSuspended()) {
+        permit.releaseOnComplete(continuation);
+      } else {
+        permit.release(failed);
+      }
+    }
+  }
+
+  static boolean isSheddable(HttpServletRequest request) {
+    return request.getHeader("Authorization") == null || "wsdl".equalsIgnoreCase(request.getQueryString());
+  }
+
+  /**
+   * An admitted request, given back to the limiter exactly once.
+   */
+  static final class Permit implements ContinuationListener {
+    private final AdaptiveLimiter limiter;
+    private final Response response;
+    private final long start = System.nanoTime();
+    private final AtomicBoolean released = new AtomicBoolean();
+    private final AtomicBoolean listening = new AtomicBoolean();
+
+    Permit(AdaptiveLimiter limiter, Response response) {
+      this.limiter = limiter;
+      this.response = response;
+    }
+
+    void releaseOnComplete(Continuation continuation) {
+      if (listening.compareAndSet(false, true)) {
+        continuation.addContinuationListener(this);
+      }
+    }
+
+    void release(boolean failed) {
+      if (released.compareAndSet(false, true)) {
+        boolean unavailable = response != null && response.getStatus() == HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+        limiter.release(System.nanoTime() - start, failed || unavailable);
+      }
+    }
+
+    @Override
+    public void onComplete(Continuation continuation) {
+      release(false);
+    }
+
+    @Override
+    public void onTimeout(Continuation continuation) {
+      // Completion follows the timeout
+    }
+  }
+}
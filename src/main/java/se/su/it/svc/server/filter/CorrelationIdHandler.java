@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2013, IT Services, Stockholm University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Stockholm University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package se.su.it.svc.server.filter;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A handler that gives every request a correlation id, shared by the audit, authentication and request logs.
+ * <p/>
+ * The id is taken from the X-Correlation-ID request header when the client supplies a valid one, otherwise it's
+ * generated from a random per-process prefix and a counter. It's stored in a request attribute and echoed in the
+ * response header, so no HTTP session is needed.
+ */
+public class CorrelationIdHandler extends HandlerWrapper {
+  public static final String HEADER = "X-Correlation-ID";
+  public static final String ATTRIBUTE = CorrelationIdHandler.class.getName() + ".id";
+
+  private static final int MAX_LENGTH = 64;
+  private static final String PREFIX = Long.toString(new SecureRandom().nextLong() & Long.MAX_VALUE, 36) + "-";
+  private static final AtomicLong COUNTER = new AtomicLong();
+
+  /**
+   * @see org.eclipse.jetty.server.Handler#handle(String, org.eclipse.jetty.server.Request, javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
+   */
+  @Override
+  public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response)
+      throws IOException, ServletException {
+
+    if (getId(request) != null) {
+      // A resumed asynchronous request is dispatched again, it keeps its id
+      super.handle(target, baseRequest, request, response);
+      return;
+    }
+
+    String id = request.getHeader(HEADER);
+    if (!isValid(id)) {
+      id = generate();
+    }
+
+    request.setAttribute(ATTRIBUTE, id);
+    response.setHeader(HEADER, id);
+
+    super.handle(target, baseRequest, request, response);
+  }
+
+  /**
+   * Get the correlation id of a request.
+   *
+   * @param request the request.
+   * @return the id, or null if the request hasn't passed this handler.
+   */
+  public static String getId(ServletRequest request) {
+    Object id = request != null ? request.getAttribute(ATTRIBUTE) : null;
+    return id != null ? id.toString() : null;
+  }
+
+  /**
+   * @return a new process-unique id.
+   */
+  static String generate() {
+    return PREFIX + Long.toString(COUNTER.incrementAndGet(), 36);
+  }
+
+  /**
+   * Client supplied ids end up in log lines, so only short ids of safe characters are accepted.
+   *
+   * @param id the id.
+   * @return true if the id can be used.
+   */
+  static boolean isValid(String id) {
+    if (id == null || id.length() == 0 || id.length() > MAX_LENGTH) {
+      return false;
+    }
+
+    for (int i = 0; i < id.length(); i++) {
+      char c = id.charAt(i);
+      boolean safe = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+              || c == '-' || c == '_' || c == '.' || c == ':';
+      if (!safe) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+}
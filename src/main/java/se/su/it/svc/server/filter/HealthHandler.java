@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2013, IT Services, Stockholm University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Stockholm University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package se.su.it.svc.server.filter;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import se.su.it.svc.server.health.HealthMonitor;
+import se.su.it.svc.server.health.ProbeResult;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A handler that serves liveness at /health/live and readiness at /health/ready as JSON.
+ * <p/>
+ * Liveness is always up while the server answers. Readiness is up only when all probes of the
+ * {@link HealthMonitor} are healthy, and answers 503 otherwise. Both only read cached probe results.
+ */
+public class HealthHandler extends AbstractHandler {
+  public static final String LIVE_PATH = "/health/live";
+  public static final String READY_PATH = "/health/ready";
+
+  private HealthMonitor monitor = HealthMonitor.getDefault();
+
+  public void setMonitor(HealthMonitor monitor) {
+    this.monitor = monitor;
+  }
+
+  /**
+   * @see org.eclipse.jetty.server.Handler#handle(String, org.eclipse.jetty.server.Request, javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
+   */
+  @Override
+  public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response)
+      throws IOException, ServletException {
+
+    String uri = baseRequest.getRequestURI();
+    String body;
+    int status;
+
+    if (LIVE_PATH.equals(uri)) {
+      status = HttpServletResponse.SC_OK;
+      body = "{\"status\":\"UP\"}";
+    } else if (READY_PATH.equals(uri)) {
+      List<ProbeResult> results = monitor.getResults();
+      boolean ready = true;
+      for (ProbeResult result : results) {
+        ready &= result.isHealthy();
+      }
+      status = ready ? HttpServletResponse.SC_OK : HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+      body = toJson(ready, results);
+    } else {
+      return;
+    }
+
+    response.setContentType("application/json");
+    response.setHeader("Cache-Control", "no-cache");
+    response.setStatus(status);
+    response.getWriter().print(body);
+    baseRequest.setHandled(true);
+  }
+
+  static String toJson(boolean ready, List<ProbeResult> results) {
+    StringBuilder sb = new StringBuilder();
+
+    sb.append("{\"status\":\"").append(ready ? "UP" : "DOWN").append("\",\"checks\":[");
+    for (int i = 0; i < results.size(); i++) {
+      ProbeResult result = results.get(i);
+      if (i > 0) {
+        sb.append(',');
+      }
+      sb.append("{\"name\":");
+      appendString(sb, result.getName());
+      sb.append(",\"status\":\"").append(result.isHealthy() ? "UP" : "DOWN").append('"');
+      if (result.getMessage() != null) {
+        sb.append(",\"message\":");
+        appendString(sb, result.getMessage());
+      }
+      sb.append(",\"checkedAt\":").append(result.getCheckedAt());
+      sb.append(",\"durationMs\":").append(result.getDuration());
+      sb.append('}');
+    }
+    sb.append("]}");
+
+    return sb.toString();
+  }
+
+  static void appendString(StringBuilder sb, String value) {
+    sb.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        sb.append('\\').append(c);
+      } else if (c < 0x20) {
+        sb.append(String.format("\\u%04x", (int) c));
+      } else {
+        sb.append(c);
+      }
+    }
+    sb.append('"');
+  }
+}
@@ -0,0 +1,345 @@
+/*
+ * Copyright (c) 2013, IT Services, Stockholm University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Stockholm University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package se.su.it.svc.server.filter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+
+/**
+ * Adds HTTP caching headers to responses of GET requests that the web method marks as cacheable by setting
+ * {@link #CACHE_CONTROL_ATTRIBUTE} to a Cache-Control value before the response is written.
+ * <p/>
+ * Such responses are kept in memory until the web method's response is complete, and sent with an ETag computed
+ * from the body, the Cache-Control value and Vary: Authorization. A request with a matching If-None-Match gets
+ * 304 Not Modified without a body. Other responses pass through as they are.
+ */
+public class HttpCacheFilter implements Filter {
+  private static final Logger LOG = LoggerFactory.getLogger(HttpCacheFilter.class);
+
+  public static final String CACHE_CONTROL_ATTRIBUTE = HttpCacheFilter.class.getName() + ".cacheControl";
+
+  /** Larger responses are sent without caching headers rather than kept in memory. */
+  static final int MAX_KEPT_BODY = 1024 * 1024;
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  @Override
+  public void init(FilterConfig filterConfig) {
+  }
+
+  @Override
+  public void destroy() {
+  }
+
+  @Override
+  public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+          throws IOException, ServletException {
+    if (!(request instanceof HttpServletRequest) || !(response instanceof HttpServletResponse)
+            || !"GET".equals(((HttpServletRequest) request).getMethod())) {
+      chain.doFilter(request, response);
+      return;
+    }
+
+    CacheableResponse cacheable = new CacheableResponse((HttpServletRequest) request, (HttpServletResponse) response);
+    chain.doFilter(request, cacheable);
+    cacheable.finish();
+  }
+
+  /**
+   * @return a strong entity tag for a response body.
+   */
+  static String etag(byte[] body) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-1").digest(body);
+      char[] chars = new char[digest.length * 2 + 2];
+      chars[0] = '"';
+      for (int i = 0; i < digest.length; i++) {
+        chars[i * 2 + 1] = HEX[(digest[i] >> 4) & 0xf];
+        chars[i * 2 + 2] = HEX[digest[i] & 0xf];
+      }
+      chars[chars.length - 1] = '"';
+      return new String(chars);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-1 not supported", e);
+    }
+  }
+
+  /**
+   * @param ifNoneMatch the If-None-Match header, or null.
+   * @param etag the entity tag of the response.
+   * @return true if the request already has the response.
+   */
+  static boolean matches(String ifNoneMatch, String etag) {
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    for (String tag : ifNoneMatch.split(",")) {
+      String trimmed = tag.trim();
+      // GET uses weak comparison
+      if (trimmed.startsWith("W/")) {
+        trimmed = trimmed.substring(2);
+      }
+      if (trimmed.equals("*") || trimmed.equals(etag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Writes through to the response until the request is marked as cacheable, and keeps the body after that.
+   * Multipart bodies, such as MTOM attachments, and bodies over {@link #MAX_KEPT_BODY} bytes are written through
+   * without caching headers instead, so a large response is never held in memory.
+   * <p/>
+   * The status is tracked here, the response of a Servlet 2.5 container can't be asked for it.
+   */
+  static class CacheableResponse extends HttpServletResponseWrapper {
+    private final HttpServletRequest request;
+    private final HttpServletResponse response;
+
+    private int status = SC_OK;
+    private KeptBody body;
+    private PrintWriter writer;
+
+    CacheableResponse(HttpServletRequest request, HttpServletResponse response) {
+      super(response);
+      this.request = request;
+      this.response = response;
+    }
+
+    @Override
+    public void setStatus(int status) {
+      this.status = status;
+      super.setStatus(status);
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public void setStatus(int status, String message) {
+      this.status = status;
+      super.setStatus(status, message);
+    }
+
+    @Override
+    public void sendError(int status) throws IOException {
+      this.status = status;
+      super.sendError(status);
+    }
+
+    @Override
+    public void sendError(int status, String message) throws IOException {
+      this.status = status;
+      super.sendError(status, message);
+    }
+
+    @Override
+    public void setContentLength(int length) {
+      // The length is set when the kept body is sent
+      if (!isCacheable() || length > MAX_KEPT_BODY) {
+        super.setContentLength(length);
+      }
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+      if (!keepBody()) {
+        return super.getOutputStream();
+      }
+      if (writer != null) {
+        throw new IllegalStateException("getWriter() already called");
+      }
+      return body;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+      if (!keepBody()) {
+        return super.getWriter();
+      }
+      if (writer == null) {
+        String encoding = getCharacterEncoding();
+        writer = new PrintWriter(new OutputStreamWriter(body, encoding != null ? encoding : "ISO-8859-1"));
+      }
+      return writer;
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+      // Committing a kept response would send it before its ETag is known
+      if (body == null || body.isSpilled()) {
+        super.flushBuffer();
+      }
+    }
+
+    @Override
+    public void resetBuffer() {
+      if (body != null && !body.isSpilled()) {
+        if (writer != null) {
+          writer.flush();
+        }
+        body.reset();
+      }
+      super.resetBuffer();
+    }
+
+    private boolean isCacheable() {
+      return request.getAttribute(CACHE_CONTROL_ATTRIBUTE) != null;
+    }
+
+    private boolean keepBody() {
+      if (body == null && isCacheable()) {
+        String contentType = getContentType();
+        if (contentType != null && contentType.trim().toLowerCase(Locale.ENGLISH).startsWith("multipart/")) {
+          return false;
+        }
+        body = new KeptBody();
+      }
+      return body != null;
+    }
+
+    /**
+     * Send a kept body, or 304 Not Modified.
+     */
+    void finish() throws IOException {
+      if (body == null) {
+        return;
+      }
+      if (writer != null) {
+        writer.flush();
+      }
+      if (body.isSpilled()) {
+        body.flush();
+        return;
+      }
+
+      byte[] bytes = body.toByteArray();
+      if (response.isCommitted()) {
+        // An error was sent instead
+        return;
+      }
+
+      // Faults and errors are not cached
+      if (status == SC_OK) {
+        String etag = etag(bytes);
+        response.setHeader("ETag", etag);
+        response.setHeader("Cache-Control", String.valueOf(request.getAttribute(CACHE_CONTROL_ATTRIBUTE)));
+        response.addHeader("Vary", "Authorization");
+
+        if (matches(request.getHeader("If-None-Match"), etag)) {
+          LOG.debug("Not modified: " + request.getRequestURI());
+          response.setStatus(SC_NOT_MODIFIED);
+          return;
+        }
+      }
+
+      response.setContentLength(bytes.length);
+      response.getOutputStream().write(bytes);
+    }
+
+    /**
+     * Keeps the body until it grows over {@link #MAX_KEPT_BODY} bytes, then writes it through to the response.
+     */
+    private final class KeptBody extends ServletOutputStream {
+      private ByteArrayOutputStream kept = new ByteArrayOutputStream(4096);
+      private OutputStream out;
+
+      boolean isSpilled() {
+        return out != null;
+      }
+
+      byte[] toByteArray() {
+        return kept.toByteArray();
+      }
+
+      void reset() {
+        kept.reset();
+      }
+
+      @Override
+      public void write(int b) throws IOException {
+        if (out == null && kept.size() >= MAX_KEPT_BODY) {
+          spill();
+        }
+        if (out != null) {
+          out.write(b);
+        } else {
+          kept.write(b);
+        }
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        if (out == null && kept.size() + len > MAX_KEPT_BODY) {
+          spill();
+        }
+        if (out != null) {
+          out.write(b, off, len);
+        } else {
+          kept.write(b, off, len);
+        }
+      }
+
+      @Override
+      public void flush() throws IOException {
+        if (out != null) {
+          out.flush();
+        }
+      }
+
+      private void spill() throws IOException {
+        LOG.debug("Not caching large response to " + request.getRequestURI());
+        out = response.getOutputStream();
+        kept.writeTo(out);
+        kept = null;
+      }
+    }
+  }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) 2013, IT Services, Stockholm University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Stockholm University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package se.su.it.svc.server.filter;
+
+import org.eclipse.jetty.continuation.Continuation;
+import org.eclipse.jetty.continuation.ContinuationListener;
+import org.eclipse.jetty.server.AsyncContinuation;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.su.it.svc.server.limit.Bulkhead;
+import se.su.it.svc.server.metrics.Counter;
+import se.su.it.svc.server.metrics.MetricsRegistry;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A handler that sorts requests into status, WSDL and SOAP lanes before any other handler runs, and caps the
+ * requests each lane serves at once.
+ * <p/>
+ * The status lane serves the status page, health checks and metrics, and is never limited. The WSDL and SOAP
+ * lanes are {@link Bulkhead}s, and a request that finds its lane full gets 503 with a Retry-After header. A
+ * suspended request keeps its slot until it completes.
+ * <p/>
+ * The caps count requests, not threads: a blocking connector holds a thread for every open connection, so
+ * capacity for status requests is reserved by serving them on a connector with its own threads. On that
+ * connector's port, see {@link #setStatusPort(int)}, any other request gets 404.
+ */
+public class LaneHandler extends HandlerWrapper {
+  private static final Logger LOG = LoggerFactory.getLogger(LaneHandler.class);
+
+  public static final String STATUS = "status";
+  public static final String WSDL = "wsdl";
+  public static final String SOAP = "soap";
+
+  public static final String ATTRIBUTE = LaneHandler.class.getName() + ".lane";
+
+  private final MetricsRegistry registry;
+  private final Bulkhead statusLane;
+  private final Counter statusRequests;
+  private final Counter wsdlRequests;
+  private final Counter soapRequests;
+
+  private Bulkhead wsdlLane = null;
+  private Bulkhead soapLane = null;
+  private int statusPort = -1;
+
+  /**
+   * @param registry the registry to publish requests, in-use, queued and rejected requests per lane in.
+   */
+  public LaneHandler(MetricsRegistry registry) {
+    this.registry = registry;
+    statusLane = new Bulkhead("lane", STATUS, Integer.MAX_VALUE, 0, 0, registry);
+    statusLane.registerGauges(registry);
+    statusRequests = requests(STATUS);
+    wsdlRequests = requests(WSDL);
+    soapRequests = requests(SOAP);
+  }
+
+  /**
+   * Cap the WSDL lane.
+   *
+   * @param maxConcurrent the number of WSDL requests served at once.
+   * @param maxQueue the number of WSDL requests waiting for a slot.
+   * @param maxWait the maximum time in milliseconds a request waits.
+   */
+  public void setWsdlLane(int maxConcurrent, int maxQueue, long maxWait) {
+    wsdlLane = new Bulkhead("lane", WSDL, maxConcurrent, maxQueue, maxWait, registry);
+    wsdlLane.registerGauges(registry);
+  }
+
+  /**
+   * Cap the SOAP lane.
+   *
+   * @param maxConcurrent the number of SOAP requests served at once.
+   * @param maxQueue the number of SOAP requests waiting for a slot.
+   * @param maxWait the maximum time in milliseconds a request waits.
+   */
+  public void setSoapLane(int maxConcurrent, int maxQueue, long maxWait) {
+    soapLane = new Bulkhead("lane", SOAP, maxConcurrent, maxQueue, maxWait, registry);
+    soapLane.registerGauges(registry);
+  }
+
+  /**
+   * Serve only status requests on a port.
+   *
+   * @param port the local port of the status connector.
+   */
+  public void setStatusPort(int port) {
+    statusPort = port;
+  }
+
+  /**
+   * @param lane the lane name.
+   * @return the lane, or null if it isn't capped.
+   */
+  public Bulkhead getLane(String lane) {
+    if (STATUS.equals(lane)) {
+      return statusLane;
+    }
+    if (WSDL.equals(lane)) {
+      return wsdlLane;
+    }
+    if (SOAP.equals(lane)) {
+      return soapLane;
+    }
+    return null;
+  }
+
+  /**
+   * @see org.eclipse.jetty.server.Handler#handle(String, org.eclipse.jetty.server.Request, javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
+   */
+  @Override
+  public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response)
+      throws IOException, ServletException {
+
+    if (request.getAttribute(ATTRIBUTE) != null) {
+      // A resumed asynchronous request is dispatched again, it keeps its slot
+      super.handle(target, baseRequest, request, response);
+      return;
+    }
+
+    String name = classify(request);
+    if (statusPort >= 0 && request.getLocalPort() == statusPort && !STATUS.equals(name)) {
+      baseRequest.setHandled(true);
+      response.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+
+    Bulkhead lane;
+    if (STATUS.equals(name)) {
+      statusRequests.inc();
+      lane = statusLane;
+    } else if (WSDL.equals(name)) {
+      wsdlRequests.inc();
+      lane = wsdlLane;
+    } else {
+      soapRequests.inc();
+      lane = soapLane;
+    }
+
+    if (lane == null) {
+      super.handle(target, baseRequest, request, response);
+      return;
+    }
+
+    if (!lane.acquire()) {
+      LOG.warn("Rejected " + request.getRequestURI() + ", " + name + " lane is full");
+      baseRequest.setHandled(true);
+      response.setHeader("Retry-After", "1");
+      response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+      return;
+    }
+
+    Slot slot = new Slot(lane);
+    request.setAttribute(ATTRIBUTE, slot);
+    boolean release = true;
+    try {
+      super.handle(target, baseRequest, request, response);
+
+      AsyncContinuation continuation = baseRequest.getAsyncContinuation();
+      if (continuation != null && continuation.isSuspended()) {
+        release = false;
+        continuation.addContinuationListener(slot);
+      }
+    } finally {
+      if (release) {
+        slot.release();
+      }
+    }
+  }
+
+  /**
+   * @param request the request.
+   * @return the lane of the request.
+   */
+  static String classify(HttpServletRequest request) {
+    String uri = request.getRequestURI();
+    if ("/".equals(uri) || "/status.html".equalsIgnoreCase(uri) || HealthHandler.LIVE_PATH.equals(uri)
+            || HealthHandler.READY_PATH.equals(uri) || MetricsHandler.PATH.equals(uri)) {
+      return STATUS;
+    }
+
+    String query = request.getQueryString();
+    if (query != null && (query.equalsIgnoreCase("wsdl") || query.toLowerCase().startsWith("xsd="))) {
+      return WSDL;
+    }
+
+    return SOAP;
+  }
+
+  private Counter requests(String lane) {
+    return registry.counter("cxf_server_lane_requests_total", "Requests sorted into a lane.", "lane", lane);
+  }
+
+  /**
+   * A slot in a lane, given back exactly once.
+   */
+  static final class Slot implements ContinuationListener {
+    private final Bulkhead lane;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    Slot(Bulkhead lane) {
+      this.lane = lane;
+    }
+
+    void release() {
+      if (released.compareAndSet(false, true)) {
+        lane.release();
+      }
+    }
+
+    @Override
+    public void onComplete(Continuation continuation) {
+      release();
+    }
+
+    @Override
+    public void onTimeout(Continuation continuation) {
+      // Completion follows the timeout
+    }
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2013, IT Services, Stockholm University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Stockholm University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package se.su.it.svc.server.filter;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.slf4j.LoggerFactory;
+import se.su.it.svc.server.profile.SamplingProfiler;
+import se.su.it.svc.server.security.Authorizor;
+import se.su.it.svc.server.security.SharedAuthorizor;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * A handler that runs a {@link SamplingProfiler} profile and returns the collapsed stacks.
+ * <p/>
+ * Parameters are mode (cpu, wall or lock), seconds (at most 60) and interval in milliseconds. The handler
+ * expects to sit behind a security handler that authenticates the user, and only serves users the web
+ * application's authorizor grants the configured role.
+ */
+public class ProfilerHandler extends AbstractHandler {
+  private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(ProfilerHandler.class);
+
+  public static final String PATH = "/admin/profile";
+
+  private static final long MAX_SECONDS = 60;
+
+  private SamplingProfiler profiler = new SamplingProfiler();
+  private String role = null;
+  private Authorizor authorizor = null;
+
+  public void setProfiler(SamplingProfiler profiler) {
+    this.profiler = profiler;
+  }
+
+  /**
+   * @param role the role a user needs to run a profile.
+   */
+  public void setRole(String role) {
+    this.role = role;
+  }
+
+  /**
+   * @param authorizor the authorizor to check the role with, null to use the one of the web application.
+   */
+  public void setAuthorizor(Authorizor authorizor) {
+    this.authorizor = authorizor;
+  }
+
+  /**
+   * @see org.eclipse.jetty.server.Handler#handle(String, org.eclipse.jetty.server.Request, javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
+   */
+  @Override
+  public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response)
+      throws IOException, ServletException {
+
+    baseRequest.setHandled(true);
+
+    String uid = request.getRemoteUser();
+    if (!isAuthorized(uid)) {
+      LOG.info("Profile denied for uid=" + uid + ", role=" + role);
+      response.sendError(HttpServletResponse.SC_FORBIDDEN, "You do not have the the required role '" + role + "'");
+      return;
+    }
+
+    SamplingProfiler.Mode mode;
+    long seconds;
+    long interval;
+    try {
+      mode = SamplingProfiler.Mode.valueOf(getParameter(request, "mode", "cpu").toUpperCase());
+      seconds = Math.min(MAX_SECONDS, Math.max(1, Long.parseLong(getParameter(request, "seconds", "10"))));
+      interval = Math.max(1, Long.parseLong(getParameter(request, "interval", "10")));
+    } catch (IllegalArgumentException e) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad profile parameters: " + e.getMessage());
+      return;
+    }
+
+    LOG.info("Profiling " + mode + " for " + seconds + "s every " + interval + "ms for uid=" + uid);
+
+    String stacks;
+    try {
+      stacks = profiler.profile(mode, seconds * 1000, interval);
+    } catch (IllegalStateException e) {
+      response.sendError(HttpServletResponse.SC_CONFLICT, e.getMessage());
+      return;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Profile interrupted");
+      return;
+    }
+
+    response.setContentType("text/plain; charset=UTF-8");
+    response.setHeader("Cache-Control", "no-cache");
+    response.setStatus(HttpServletResponse.SC_OK);
+    response.getWriter().print(stacks);
+  }
+
+  private boolean isAuthorized(String uid) {
+    Authorizor checker = authorizor != null ? authorizor : SharedAuthorizor.get();
+    if (role == null || uid == null || checker == null) {
+      return false;
+    }
+    return checker.checkRole(uid, role);
+  }
+
+  private static String getParameter(HttpServletRequest request, String name, String defaultValue) {
+    String value = request.getParameter(name);
+    return value != null && value.length() > 0 ? value : defaultValue;
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2013, IT Services, Stockholm University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Stockholm University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package se.su.it.svc.server.filter;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.su.it.svc.server.metrics.Counter;
+import se.su.it.svc.server.metrics.MetricsRegistry;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * A handler that answers 413 to requests with a Content-Length over the maximum body size, before the body is
+ * read, authenticated or takes a thread from the web application. Clients that send Expect: 100-continue never
+ * send the body at all.
+ * <p/>
+ * Chunked requests have no length up front, their attachments are limited by CXF while they are read.
+ */
+public class RequestSizeHandler extends HandlerWrapper {
+  private static final Logger LOG = LoggerFactory.getLogger(RequestSizeHandler.class);
+
+  private final Counter rejected;
+
+  private long maxBodySize = -1;
+
+  public RequestSizeHandler(MetricsRegistry registry) {
+    rejected = registry.counter("cxf_server_request_too_large_total", "Requests rejected for their body size.");
+  }
+
+  /**
+   * @param maxBodySize the maximum request body size in bytes, or -1 for no limit.
+   */
+  public void setMaxBodySize(long maxBodySize) {
+    this.maxBodySize = maxBodySize;
+  }
+
+  public long getMaxBodySize() {
+    return maxBodySize;
+  }
+
+  /**
+   * @see org.eclipse.jetty.server.Handler#handle(String, org.eclipse.jetty.server.Request, javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
+   */
+  @Override
+  public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response)
+      throws IOException, ServletException {
+
+    if (maxBodySize >= 0 && !baseRequest.isHandled()) {
+      long length = getContentLength(request);
+      if (length > maxBodySize) {
+        LOG.info("Rejected " + request.getMethod() + " " + request.getRequestURI() + " with a body of "
+                + length + " bytes, max " + maxBodySize);
+        rejected.inc();
+        baseRequest.setHandled(true);
+        // The body is left unread, so the connection can't be used again
+        response.setHeader("Connection", "close");
+        response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+        return;
+      }
+    }
+
+    super.handle(target, baseRequest, request, response);
+  }
+
+  /**
+   * @return the Content-Length of the request, or -1 if it has none. Read from the header, since
+   * getContentLength() can't tell lengths over 2 GB.
+   */
+  static long getContentLength(HttpServletRequest request) {
+    String header = request.getHeader("Content-Length");
+    if (header == null) {
+      return -1;
+    }
+    try {
+      return Long.parseLong(header.trim());
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2013, IT Services, Stockholm University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Stockholm University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package se.su.it.svc.server.filter;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import se.su.it.svc.server.timing.RequestTiming;
+import se.su.it.svc.server.timing.SlowRequest;
+import se.su.it.svc.server.timing.SlowRequestRecorder;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.List;
+
+/**
+ * A handler that serves the requests kept by a {@link SlowRequestRecorder} as JSON at /admin/slow-requests.
+ * <p/>
+ * The entries name principals and operations, so they are only served to clients on the loopback interface.
+ */
+public class SlowRequestHandler extends AbstractHandler {
+  public static final String PATH = "/admin/slow-requests";
+
+  private SlowRequestRecorder recorder = null;
+
+  public void setRecorder(SlowRequestRecorder recorder) {
+    this.recorder = recorder;
+  }
+
+  /**
+   * @see org.eclipse.jetty.server.Handler#handle(String, org.eclipse.jetty.server.Request, javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
+   */
+  @Override
+  public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response)
+      throws IOException, ServletException {
+
+    if (recorder == null || !PATH.equals(baseRequest.getRequestURI())) {
+      return;
+    }
+
+    baseRequest.setHandled(true);
+    if (!isLoopback(request.getRemoteAddr())) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN);
+      return;
+    }
+
+    response.setContentType("application/json");
+    response.setHeader("Cache-Control", "no-cache");
+    response.setStatus(HttpServletResponse.SC_OK);
+    response.getWriter().print(toJson(recorder));
+  }
+
+  static boolean isLoopback(String addr) {
+    try {
+      // Jetty gives the numeric address, so this doesn't resolve anything
+      return addr != null && InetAddress.getByName(addr).isLoopbackAddress();
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  static String toJson(SlowRequestRecorder recorder) {
+    StringBuilder sb = new StringBuilder();
+
+    sb.append("{\"windowMs\":").append(recorder.getWindow());
+    sb.append(",\"thresholdMs\":").append(recorder.getThreshold());
+    sb.append(",\"slowest\":");
+    appendRequests(sb, recorder.getSlowest());
+    sb.append(",\"overThreshold\":");
+    appendRequests(sb, recorder.getOverThreshold());
+    sb.append('}');
+
+    return sb.toString();
+  }
+
+  private static void appendRequests(StringBuilder sb, List<SlowRequest> requests) {
+    sb.append('[');
+    for (int i = 0; i < requests.size(); i++) {
+      SlowRequest request = requests.get(i);
+      if (i > 0) {
+        sb.append(',');
+      }
+      sb.append("{\"time\":").append(request.getTime());
+      sb.append(",\"durationMs\":").append(request.getDuration());
+      appendField(sb, "id", request.getId());
+      appendField(sb, "uri", request.getUri());
+      sb.append(",\"status\":").append(request.getStatus());
+      appendField(sb, "operation", request.getOperation());
+      appendField(sb, "principal", request.getPrincipal());
+      sb.append(",\"queueWaitMs\":");
+      appendMillis(sb, request.getQueueWait());
+      sb.append(",\"stagesMs\":{");
+      RequestTiming.Stage[] stages = RequestTiming.Stage.values();
+      for (int j = 0; j < stages.length; j++) {
+        if (j > 0) {
+          sb.append(',');
+        }
+        sb.append('"').append(stages[j].getKey()).append("\":");
+        appendMillis(sb, request.getStageDuration(stages[j]));
+      }
+      sb.append('}');
+      appendField(sb, "argumentSizes", request.getArgumentSizes());
+      appendField(sb, "resultSize", request.getResultSize());
+      sb.append('}');
+    }
+    sb.append(']');
+  }
+
+  private static void appendField(StringBuilder sb, String name, String value) {
+    if (value != null) {
+      sb.append(",\"").append(name).append("\":");
+      HealthHandler.appendString(sb, value);
+    }
+  }
+
+  private static void appendMillis(StringBuilder sb, long nanos) {
+    long micros = nanos / 1000;
+    sb.append(micros / 1000).append('.');
+    long fraction = micros % 1000;
+    if (fraction < 100) {
+      sb.append('0');
+    }
+    if (fraction < 10) {
+      sb.append('0');
+    }
+    sb.append(fraction);
+  }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2013, IT Services, Stockholm University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Stockholm University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package se.su.it.svc.server.health;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs health probes on a schedule and caches their results, so health checks only read the cache and never
+ * add load on, or wait for, the dependencies.
+ * <p/>
+ * The server is ready when every probe has run, its last run was healthy and the result isn't stale. A result
+ * is stale when the probe hasn't finished for three intervals, ex. because it hangs on a dead dependency.
+ * <p/>
+ * The server and the web application share {@link #getDefault()}, so dependencies configured in the web
+ * application, like the SPOCP authorizor, can register probes.
+ */
+public class HealthMonitor {
+  private static final Logger LOG = LoggerFactory.getLogger(HealthMonitor.class);
+
+  private static final HealthMonitor DEFAULT = new HealthMonitor();
+
+  private long interval = 10000;
+
+  private final ConcurrentMap<String, HealthProbe> probes = new ConcurrentHashMap<String, HealthProbe>();
+  private final ConcurrentMap<String, ProbeResult> results = new ConcurrentHashMap<String, ProbeResult>();
+  private final Map<String, ScheduledFuture<?>> scheduled = new ConcurrentHashMap<String, ScheduledFuture<?>>();
+  private ScheduledExecutorService executor = null;
+
+  /**
+   * @return the monitor shared by the server and the web application.
+   */
+  public static HealthMonitor getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * @param interval the time in milliseconds between runs of each probe.
+   */
+  public void setInterval(long interval) {
+    this.interval = interval;
+  }
+
+  /**
+   * Register a probe, replacing any probe with the same name. The probe is run right away if the monitor is started.
+   *
+   * @param probe the probe.
+   */
+  public synchronized void register(HealthProbe probe) {
+    probes.put(probe.getName(), probe);
+    results.remove(probe.getName());
+    if (executor != null) {
+      schedule(probe);
+    }
+  }
+
+  /**
+   * Start running the probes.
+   */
+  public synchronized void start() {
+    if (executor != null) {
+      return;
+    }
+
+    executor = Executors.newScheduledThreadPool(2, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "health-probes");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+    for (HealthProbe probe : probes.values()) {
+      schedule(probe);
+    }
+  }
+
+  /**
+   * Stop running the probes.
+   */
+  public synchronized void stop() {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+      scheduled.clear();
+    }
+  }
+
+  private void schedule(final HealthProbe probe) {
+    ScheduledFuture<?> previous = scheduled.remove(probe.getName());
+    if (previous != null) {
+      previous.cancel(false);
+    }
+
+    scheduled.put(probe.getName(), executor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        runProbe(probe);
+      }
+    }, 0, interval, TimeUnit.MILLISECONDS));
+  }
+
+  /**
+   * Run a probe and cache the result.
+   *
+   * @param probe the probe.
+   * @return the result.
+   */
+  ProbeResult runProbe(HealthProbe probe) {
+    long start = System.currentTimeMillis();
+    ProbeResult result;
+
+    try {
+      String message = probe.check();
+      result = new ProbeResult(probe.getName(), true, message, start, System.currentTimeMillis() - start);
+    } catch (Throwable t) {
+      result = new ProbeResult(probe.getName(), false, String.valueOf(t.getMessage()), start, System.currentTimeMillis() - start);
+    }
+
+    ProbeResult previous = results.put(probe.getName(), result);
+    if (previous == null || previous.isHealthy() != result.isHealthy()) {
+      if (result.isHealthy()) {
+        LOG.info("Health probe " + probe.getName() + " is healthy");
+      } else {
+        LOG.warn("Health probe " + probe.getName() + " is unhealthy: " + result.getMessage());
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * Get the cached result of every probe, marking probes that haven't run or have gone stale as unhealthy.
+   *
+   * @return the results, ordered by name.
+   */
+  public List<ProbeResult> getResults() {
+    long now = System.currentTimeMillis();
+    List<ProbeResult> list = new ArrayList<ProbeResult>();
+
+    for (String name : new TreeMap<String, HealthProbe>(probes).keySet()) {
+      ProbeResult result = results.get(name);
+      if (result == null) {
+        result = new ProbeResult(name, false, "Not checked yet", 0, 0);
+      } else if (now - result.getCheckedAt() > 3 * interval + result.getDuration()) {
+        result = new ProbeResult(name, false, "Stale, last checked " + (now - result.getCheckedAt()) + "ms ago",
+                result.getCheckedAt(), result.getDuration());
+      }
+      list.add(result);
+    }
+
+    return list;
+  }
+
+  /**
+   * @return true if all probes are healthy.
+   */
+  public boolean isReady() {
+    for (ProbeResult result : getResults()) {
+      if (!result.isHealthy()) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2013, IT Services, Stockholm University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Stockholm University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package se.su.it.svc.server.health;
+
+/**
+ * The cached result of a health probe.
+ */
+public final class ProbeResult {
+  private final String name;
+  private final boolean healthy;
+  private final String message;
+  private final long checkedAt;
+  private final long duration;
+
+  public ProbeResult(String name, boolean healthy, String message, long checkedAt, long duration) {
+    this.name = name;
+    this.healthy = healthy;
+    this.message = message;
+    this.checkedAt = checkedAt;
+    this.duration = duration;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public boolean isHealthy() {
+    return healthy;
+  }
+
+  public String getMessage() {
+    return message;
+  }
+
+  /**
+   * @return the time the probe ran, in milliseconds, or 0 if it hasn't run yet.
+   */
+  public long getCheckedAt() {
+    return checkedAt;
+  }
+
+  /**
+   * @return the time the probe took, in milliseconds.
+   */
+  public long getDuration() {
+    return duration;
+  }
+}
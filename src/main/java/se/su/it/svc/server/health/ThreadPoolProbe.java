@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2013, IT Services, Stockholm University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Stockholm University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package se.su.it.svc.server.health;
+
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+import java.util.Queue;
+
+/**
+ * Checks that the request thread pool isn't saturated.
+ */
+public class ThreadPoolProbe implements HealthProbe {
+  private final QueuedThreadPool threadPool;
+  private final Queue<Runnable> jobs;
+  private double maxSaturation = 0.9;
+
+  /**
+   * @param threadPool the server thread pool.
+   * @param jobs the job queue of the thread pool.
+   */
+  public ThreadPoolProbe(QueuedThreadPool threadPool, Queue<Runnable> jobs) {
+    this.threadPool = threadPool;
+    this.jobs = jobs;
+  }
+
+  /**
+   * @param maxSaturation the highest share of busy threads, between 0 and 1, that is still healthy.
+   */
+  public void setMaxSaturation(double maxSaturation) {
+    this.maxSaturation = maxSaturation;
+  }
+
+  @Override
+  public String getName() {
+    return "thread-pool";
+  }
+
+  /**
+   * @see HealthProbe#check()
+   */
+  @Override
+  public String check() throws Exception {
+    int max = threadPool.getMaxThreads();
+    int busy = threadPool.getThreads() - threadPool.getIdleThreads();
+    double saturation = max > 0 ? (double) busy / max : 0;
+    String state = busy + " of " + max + " threads busy, " + jobs.size() + " jobs queued";
+
+    if (saturation > maxSaturation) {
+      throw new IllegalStateException("Saturated: " + state);
+    }
+    return state;
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2013, IT Services, Stockholm University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Stockholm University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package se.su.it.svc.server.jmx;
+
+import se.su.it.svc.server.aspect.AuditAspect;
+import se.su.it.svc.server.aspect.AuthorizorAspect;
+
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Exposes an {@link AuditAspect}. Registered by the web application, so the log levels are those of its loggers.
+ */
+public class AuditControl implements AuditControlMBean {
+  private final AuditAspect auditAspect;
+
+  public AuditControl(AuditAspect auditAspect) {
+    this.auditAspect = auditAspect;
+  }
+
+  @Override
+  public String getSampling() {
+    Properties sampling = auditAspect.getSampling();
+
+    StringBuilder sb = new StringBuilder();
+    for (Map.Entry<Object, Object> entry : new TreeMap<Object, Object>(sampling).entrySet()) {
+      if (sb.length() > 0) {
+        sb.append("; ");
+      }
+      sb.append(entry.getKey()).append('=').append(entry.getValue());
+    }
+    return sb.toString();
+  }
+
+  @Override
+  public void setSampling(String operation, String sampling) {
+    auditAspect.putSampling(operation, sampling);
+  }
+
+  @Override
+  public void removeSampling(String operation) {
+    auditAspect.removeSampling(operation);
+  }
+
+  @Override
+  public int getPolicyCacheSize() {
+    return auditAspect.getPolicyCacheSize();
+  }
+
+  @Override
+  public void clearPolicyCache() {
+    auditAspect.clearPolicyCache();
+  }
+
+  @Override
+  public String getAuditLogLevel() {
+    return LogLevels.getLevel(AuditAspect.class.getName());
+  }
+
+  @Override
+  public void setAuditLogLevel(String level) {
+    LogLevels.setLevel(AuditAspect.class.getName(), level);
+  }
+
+  @Override
+  public String getAuthorizorLogLevel() {
+    return LogLevels.getLevel(AuthorizorAspect.class.getName());
+  }
+
+  @Override
+  public void setAuthorizorLogLevel(String level) {
+    LogLevels.setLevel(AuthorizorAspect.class.getName(), level);
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2013, IT Services, Stockholm University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Stockholm University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package se.su.it.svc.server.jmx;
+
+import org.eclipse.jetty.server.AbstractConnector;
+
+/**
+ * Exposes the HTTP connector.
+ */
+public class ConnectorControl implements ConnectorControlMBean {
+  private final AbstractConnector connector;
+
+  public ConnectorControl(AbstractConnector connector) {
+    this.connector = connector;
+  }
+
+  /**
+   * @return the time in milliseconds an idle connection is kept open.
+   */
+  @Override
+  public int getMaxIdleTime() {
+    return connector.getMaxIdleTime();
+  }
+
+  /**
+   * @param maxIdleTime the time in milliseconds an idle connection is kept open, applies to new connections.
+   */
+  @Override
+  public void setMaxIdleTime(int maxIdleTime) {
+    connector.setMaxIdleTime(maxIdleTime);
+  }
+
+  @Override
+  public int getConnectionsOpen() {
+    return connector.getConnectionsOpen();
+  }
+
+  @Override
+  public int getConnectionsOpenMax() {
+    return connector.getConnectionsOpenMax();
+  }
+
+  @Override
+  public int getConnections() {
+    return connector.getConnections();
+  }
+
+  @Override
+  public int getRequests() {
+    return connector.getRequests();
+  }
+
+  @Override
+  public void resetStatistics() {
+    connector.statsReset();
+  }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2013, IT Services, Stockholm University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Stockholm University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package se.su.it.svc.server.jmx;
+
+import org.slf4j.ILoggerFactory;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads and changes logger levels at runtime for the logging backend slf4j is bound to.
+ * <p/>
+ * slf4j has no API for levels, so logback and log4j are driven by reflection and java.util.logging directly.
+ */
+public final class LogLevels {
+  private static final String LOGBACK = "ch.qos.logback.classic.LoggerContext";
+  private static final String LOG4J = "org.slf4j.impl.Log4jLoggerFactory";
+  private static final String JUL = "org.slf4j.impl.JDK14LoggerFactory";
+
+  private LogLevels() {
+  }
+
+  /**
+   * @param name the logger name.
+   * @return the effective level of the logger, ex. "INFO".
+   * @throws UnsupportedOperationException if the logging backend isn't supported.
+   */
+  public static String getLevel(String name) {
+    ILoggerFactory factory = LoggerFactory.getILoggerFactory();
+    String backend = factory.getClass().getName();
+
+    try {
+      if (LOGBACK.equals(backend)) {
+        Object logger = factory.getLogger(name);
+        return String.valueOf(logger.getClass().getMethod("getEffectiveLevel").invoke(logger));
+      } else if (LOG4J.equals(backend)) {
+        Object logger = getLog4jLogger(factory, name);
+        return String.valueOf(logger.getClass().getMethod("getEffectiveLevel").invoke(logger));
+      } else if (JUL.equals(backend)) {
+        for (Logger logger = Logger.getLogger(name); logger != null; logger = logger.getParent()) {
+          if (logger.getLevel() != null) {
+            return fromJul(logger.getLevel());
+          }
+        }
+        return fromJul(Level.INFO);
+      }
+    } catch (Exception e) {
+      throw new IllegalStateException("Failed to get level of logger " + name, e);
+    }
+
+    throw new UnsupportedOperationException("Unsupported logging backend " + backend);
+  }
+
+  /**
+   * @param name the logger name.
+   * @param level the level, one of TRACE, DEBUG, INFO, WARN or ERROR.
+   * @throws IllegalArgumentException if the level is unknown.
+   * @throws UnsupportedOperationException if the logging backend isn't supported.
+   */
+  public static void setLevel(String name, String level) {
+    String normalized = level != null ? level.trim().toUpperCase() : "";
+    Level julLevel = toJul(normalized);
+
+    ILoggerFactory factory = LoggerFactory.getILoggerFactory();
+    String backend = factory.getClass().getName();
+
+    try {
+      if (LOGBACK.equals(backend)) {
+        Object logger = factory.getLogger(name);
+        setLevel(logger, "ch.qos.logback.classic.Level", normalized);
+        return;
+      } else if (LOG4J.equals(backend)) {
+        setLevel(getLog4jLogger(factory, name), "org.apache.log4j.Level", normalized);
+        return;
+      } else if (JUL.equals(backend)) {
+        Logger.getLogger(name).setLevel(julLevel);
+        return;
+      }
+    } catch (Exception e) {
+      throw new IllegalStateException("Failed to set level of logger " + name, e);
+    }
+
+    throw new UnsupportedOperationException("Unsupported logging backend " + backend);
+  }
+
+  private static Object getLog4jLogger(ILoggerFactory factory, String name) throws Exception {
+    Class<?> loggerClass = Class.forName("org.apache.log4j.Logger", true, factory.getClass().getClassLoader());
+    return loggerClass.getMethod("getLogger", String.class).invoke(null, name);
+  }
+
+  private static void setLevel(Object logger, String levelClassName, String level) throws Exception {
+    Class<?> levelClass = Class.forName(levelClassName, true, logger.getClass().getClassLoader());
+    Object value = levelClass.getMethod("toLevel", String.class).invoke(null, level);
+    for (Method method : logger.getClass().getMethods()) {
+      if (method.getName().equals("setLevel") && method.getParameterTypes().length == 1
+              && method.getParameterTypes()[0].isAssignableFrom(levelClass)) {
+        method.invoke(logger, value);
+        return;
+      }
+    }
+    throw new NoSuchMethodException(logger.getClass().getName() + ".setLevel");
+  }
+
+  private static Level toJul(String level) {
+    if ("TRACE".equals(level)) {
+      return Level.FINEST;
+    } else if ("DEBUG".equals(level)) {
+      return Level.FINE;
+    } else if ("INFO".equals(level)) {
+      return Level.INFO;
+    } else if ("WARN".equals(level)) {
+      return Level.WARNING;
+    } else if ("ERROR".equals(level)) {
+      return Level.SEVERE;
+    }
+    throw new IllegalArgumentException("Unknown log level '" + level + "', expected TRACE, DEBUG, INFO, WARN or ERROR");
+  }
+
+  private static String fromJul(Level level) {
+    int value = level.intValue();
+    if (value >= Level.SEVERE.intValue()) {
+      return "ERROR";
+    } else if (value >= Level.WARNING.intValue()) {
+      return "WARN";
+    } else if (value >= Level.INFO.intValue()) {
+      return "INFO";
+    } else if (value >= Level.FINE.intValue()) {
+      return "DEBUG";
+    }
+    return "TRACE";
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2013, IT Services, Stockholm University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Stockholm University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package se.su.it.svc.server.jmx;
+
+import se.su.it.svc.server.aspect.ResultCacheAspect;
+import se.su.it.svc.server.cache.ResultCache;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Exposes the caches of a {@link ResultCacheAspect}.
+ */
+public class ResultCacheControl implements ResultCacheControlMBean {
+  private final ResultCacheAspect resultCacheAspect;
+
+  public ResultCacheControl(ResultCacheAspect resultCacheAspect) {
+    this.resultCacheAspect = resultCacheAspect;
+  }
+
+  @Override
+  public String getStatistics() {
+    List<ResultCache> caches = resultCacheAspect.getCaches();
+    Collections.sort(caches, new Comparator<ResultCache>() {
+      @Override
+      public int compare(ResultCache a, ResultCache b) {
+        return a.getName().compareTo(b.getName());
+      }
+    });
+
+    StringBuilder sb = new StringBuilder();
+    for (ResultCache cache : caches) {
+      if (sb.length() > 0) {
+        sb.append('\n');
+      }
+      sb.append(cache.getName()).append(": ").append(cache.getSize()).append('/').append(cache.getMaxEntries())
+              .append(" entries, ");
+      if (cache.getMaxBytes() > 0) {
+        sb.append(cache.getBytes() / 1024).append('/').append(cache.getMaxBytes() / 1024).append(" KB, ");
+      }
+      sb.append("ttl ").append(cache.getTtl() / 1000).append("s, hit rate ")
+              .append(String.format("%.2f", cache.getHitRate())).append(", ")
+              .append(cache.getEvictions()).append(" evictions");
+    }
+    return sb.toString();
+  }
+
+  @Override
+  public void setTtl(String cache, int seconds) {
+    getCache(cache).setTtl(seconds * 1000L);
+  }
+
+  @Override
+  public void setMaxEntries(String cache, int maxEntries) {
+    getCache(cache).setMaxEntries(maxEntries);
+  }
+
+  @Override
+  public void setMaxBytes(String cache, long maxBytes) {
+    getCache(cache).setMaxBytes(maxBytes);
+  }
+
+  @Override
+  public void invalidate(String cache) {
+    getCache(cache).invalidateAll();
+  }
+
+  @Override
+  public void invalidateAll() {
+    resultCacheAspect.invalidateAll();
+  }
+
+  @Override
+  public int invalidatePrincipal(String uid) {
+    return resultCacheAspect.invalidatePrincipal(uid);
+  }
+
+  private ResultCache getCache(String name) {
+    ResultCache cache = resultCacheAspect.getCache(name);
+    if (cache == null) {
+      throw new IllegalArgumentException("No cache named " + name);
+    }
+    return cache;
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2013, IT Services, Stockholm University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Stockholm University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package se.su.it.svc.server.jmx;
+
+/**
+ * Sizes, hit rates and invalidation of the web method result caches.
+ */
+public interface ResultCacheControlMBean {
+  /**
+   * @return one line per cache, ex. "se.su.it.Users.getUser: 120/1000 entries, ttl 60s, hit rate 0.93, 4 evictions".
+   */
+  String getStatistics();
+
+  /**
+   * @param cache the cache name.
+   * @param seconds the time in seconds results are cached from now on.
+   */
+  void setTtl(String cache, int seconds);
+
+  /**
+   * @param cache the cache name.
+   * @param maxEntries the maximum number of cached results.
+   */
+  void setMaxEntries(String cache, int maxEntries);
+
+  /**
+   * @param cache the cache name.
+   * @param maxBytes the maximum estimated size in bytes of the cached results, or 0 for no limit.
+   */
+  void setMaxBytes(String cache, long maxBytes);
+
+  void invalidate(String cache);
+
+  void invalidateAll();
+
+  /**
+   * @param uid the principal.
+   * @return the number of removed results.
+   */
+  int invalidatePrincipal(String uid);
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2013, IT Services, Stockholm University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Stockholm University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package se.su.it.svc.server.jmx;
+
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import se.su.it.svc.server.timing.TimedJobQueue;
+
+/**
+ * Exposes the request thread pool and its job queue.
+ */
+public class ThreadPoolControl implements ThreadPoolControlMBean {
+  private final QueuedThreadPool threadPool;
+  private final TimedJobQueue jobs;
+
+  public ThreadPoolControl(QueuedThreadPool threadPool, TimedJobQueue jobs) {
+    this.threadPool = threadPool;
+    this.jobs = jobs;
+  }
+
+  @Override
+  public int getMinThreads() {
+    return threadPool.getMinThreads();
+  }
+
+  @Override
+  public void setMinThreads(int minThreads) {
+    threadPool.setMinThreads(minThreads);
+  }
+
+  @Override
+  public int getMaxThreads() {
+    return threadPool.getMaxThreads();
+  }
+
+  @Override
+  public void setMaxThreads(int maxThreads) {
+    threadPool.setMaxThreads(maxThreads);
+  }
+
+  @Override
+  public int getThreads() {
+    return threadPool.getThreads();
+  }
+
+  @Override
+  public int getIdleThreads() {
+    return threadPool.getIdleThreads();
+  }
+
+  @Override
+  public int getQueueSize() {
+    return jobs.size();
+  }
+
+  /**
+   * @return the queue limit, Integer.MAX_VALUE when unlimited.
+   */
+  @Override
+  public int getQueueLimit() {
+    return jobs.getLimit();
+  }
+
+  /**
+   * @param queueLimit the queue limit, 0 or less for unlimited.
+   */
+  @Override
+  public void setQueueLimit(int queueLimit) {
+    jobs.setLimit(queueLimit);
+  }
+
+  @Override
+  public long getRejectedJobs() {
+    return jobs.getRejected();
+  }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright (c) 2013, IT Services, Stockholm University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Stockholm University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package se.su.it.svc.server.limit;
+
+import se.su.it.svc.server.metrics.Counter;
+import se.su.it.svc.server.metrics.Gauge;
+import se.su.it.svc.server.metrics.MetricsRegistry;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A concurrency limit that follows the latency of the requests it admits.
+ * <p/>
+ * The limit is estimated with a latency gradient. Latency is averaged over windows of requests and compared to
+ * a baseline, the average latency of recent uncongested windows: windows where less than half the limit was
+ * in use, and probes where the limit is briefly cut in half after a long busy stretch. While latency is within
+ * the tolerated distance of the baseline the limit grows by about its square root, and beyond that it shrinks
+ * in proportion. Window averages, rather than single requests compared to the fastest request seen, keep a
+ * steady mix of fast lookups and slow updates from looking like congestion, and a baseline that never learns
+ * from congested windows can't drift up with the latency a too high limit causes. A failed request in a window
+ * backs the limit off.
+ * <p/>
+ * Requests over the limit wait at most maxWait milliseconds in a short queue and are rejected when the queue
+ * is full or the wait runs out. Sheddable requests never queue and are only admitted while less than a share
+ * of the limit is in use, so they are shed before anything else.
+ */
+public class AdaptiveLimiter {
+  /** Latency is averaged over at least this many requests, and at least as many as the limit. */
+  private static final int MIN_WINDOW = 50;
+  /** How far the baseline moves toward the average of an uncongested window. */
+  private static final double BASELINE_WEIGHT = 0.5;
+  /** The baseline is measured at half the limit after this many busy windows in a row. */
+  private static final int PROBE_INTERVAL = 100;
+  /** How much slower than the baseline requests may get before the limit shrinks. */
+  private static final double TOLERANCE = 1.5;
+  /** How much of a new estimate is taken into the limit at a time. */
+  private static final double SMOOTHING = 0.2;
+  /** The limit is cut by this factor when a request fails. */
+  private static final double BACKOFF = 0.9;
+
+  private static final int PROBE_NONE = 0;
+  private static final int PROBE_DRAINING = 1;
+  private static final int PROBE_MEASURING = 2;
+
+  private int minLimit = 4;
+  private int maxLimit = 200;
+  private int maxQueue = 50;
+  private long maxWait = 50;
+  private double sheddableShare = 0.75;
+
+  private volatile double limit = 20;
+
+  // The current window and the baseline latency in nanoseconds, guarded by this
+  private long windowSum = 0;
+  private int windowCount = 0;
+  private boolean failures = false;
+  private boolean saturated = false;
+  private double baseline = 0;
+  private int busyWindows = 0;
+  private int probe = PROBE_NONE;
+  private double probeLimit = 0;
+
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicInteger queued = new AtomicInteger();
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition available = lock.newCondition();
+
+  private final Counter rejected;
+  private final Counter shed;
+
+  /**
+   * @param registry the registry to publish the limit, in-flight, queued and rejected requests in.
+   */
+  public AdaptiveLimiter(MetricsRegistry registry) {
+    rejected = registry.counter("cxf_server_admission_rejected_total", "Requests rejected by the adaptive limit.",
+            "priority", "normal");
+    shed = registry.counter("cxf_server_admission_rejected_total", "Requests rejected by the adaptive limit.",
+            "priority", "sheddable");
+    registry.gauge("cxf_server_admission_limit", "Current adaptive concurrency limit.", new Gauge() {
+      @Override
+      public double getValue() {
+        return getLimit();
+      }
+    });
+    registry.gauge("cxf_server_admission_in_flight", "Requests admitted by the adaptive limit.", new Gauge() {
+      @Override
+      public double getValue() {
+        return inFlight.get();
+      }
+    });
+    registry.gauge("cxf_server_admission_queued", "Requests waiting for the adaptive limit.", new Gauge() {
+      @Override
+      public double getValue() {
+        return queued.get();
+      }
+    });
+  }
+
+  public void setInitialLimit(int initialLimit) {
+    this.limit = initialLimit;
+  }
+
+  public void setMinLimit(int minLimit) {
+    this.minLimit = Math.max(1, minLimit);
+  }
+
+  public void setMaxLimit(int maxLimit) {
+    this.maxLimit = maxLimit;
+  }
+
+  public void setMaxQueue(int maxQueue) {
+    this.maxQueue = Math.max(0, maxQueue);
+  }
+
+  public void setMaxWait(long maxWait) {
+    this.maxWait = Math.max(0, maxWait);
+  }
+
+  public void setSheddableShare(double sheddableShare) {
+    this.sheddableShare = sheddableShare;
+  }
+
+  /**
+   * Admit a request. An admitted request must be given back with {@link #release(long, boolean)}.
+   *
+   * @param sheddable true if the request should be shed before others.
+   * @return true if the request was admitted, false if it's rejected.
+   */
+  public boolean acquire(boolean sheddable) {
+    if (sheddable) {
+      if (queued.get() == 0 && tryIncrement(Math.max(1, (int) (getLimit() * sheddableShare)))) {
+        return true;
+      }
+      shed.inc();
+      return false;
+    }
+
+    if (tryIncrement(getLimit())) {
+      return true;
+    }
+
+    if (queued.incrementAndGet() > maxQueue) {
+      queued.decrementAndGet();
+      rejected.inc();
+      return false;
+    }
+
+    try {
+      long nanos = TimeUnit.MILLISECONDS.toNanos(maxWait);
+      lock.lock();
+      try {
+        while (!tryIncrement(getLimit())) {
+          if (nanos <= 0) {
+            rejected.inc();
+            return false;
+          }
+          nanos = available.awaitNanos(nanos);
+        }
+        return true;
+      } finally {
+        lock.unlock();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      rejected.inc();
+      return false;
+    } finally {
+      queued.decrementAndGet();
+    }
+  }
+
+  /**
+   * Give back an admitted request and take its latency into the limit.
+   *
+   * @param latency the time in nanoseconds from admission to completion.
+   * @param failed true if the request failed, which backs the limit off.
+   */
+  public void release(long latency, boolean failed) {
+    int current = inFlight.getAndDecrement();
+    boolean grown = update(latency, current, failed);
+
+    if (queued.get() > 0) {
+      lock.lock();
+      try {
+        if (grown) {
+          available.signalAll();
+        } else {
+          available.signal();
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Take the latency of a completed request into the current window, and update the limit when the window is
+   * full.
+   *
+   * @return true if the limit grew.
+   */
+  synchronized boolean update(long latency, int current, boolean failed) {
+    failures |= failed;
+    saturated |= current >= limit / 2;
+    windowSum += Math.max(0, latency);
+    if (++windowCount < Math.max(MIN_WINDOW, (int) limit)) {
+      return false;
+    }
+
+    double rtt = (double) windowSum / windowCount;
+    boolean backOff = failures;
+    boolean busy = saturated;
+    windowSum = 0;
+    windowCount = 0;
+    failures = false;
+    saturated = false;
+
+    double oldLimit = limit;
+
+    if (probe == PROBE_DRAINING) {
+      // Most of this window was admitted before the limit was cut
+      probe = PROBE_MEASURING;
+      return false;
+    }
+    if (probe == PROBE_MEASURING) {
+      probe = PROBE_NONE;
+      updateBaseline(rtt);
+      limit = probeLimit;
+      return true;
+    }
+
+    if (baseline == 0 || !busy) {
+      updateBaseline(rtt);
+    }
+
+    busyWindows = busy ? busyWindows + 1 : 0;
+    if (busyWindows >= PROBE_INTERVAL) {
+      // Latency at the limit is all the baseline has seen for a while, measure it at half the limit
+      busyWindows = 0;
+      probe = PROBE_DRAINING;
+      probeLimit = oldLimit;
+      limit = Math.max(minLimit, oldLimit / 2);
+      return false;
+    }
+
+    double newLimit;
+    if (backOff) {
+      newLimit = oldLimit * BACKOFF;
+    } else if (busy && rtt > 0) {
+      double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * baseline / rtt));
+      newLimit = oldLimit * gradient + Math.sqrt(oldLimit);
+      newLimit = oldLimit * (1 - SMOOTHING) + newLimit * SMOOTHING;
+    } else {
+      return false;
+    }
+
+    limit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+    return (int) limit > (int) oldLimit;
+  }
+
+  private void updateBaseline(double rtt) {
+    baseline = baseline == 0 ? rtt : baseline + (rtt - baseline) * BASELINE_WEIGHT;
+  }
+
+  private boolean tryIncrement(int max) {
+    for (;;) {
+      int current = inFlight.get();
+      if (current >= max) {
+        return false;
+      }
+      if (inFlight.compareAndSet(current, current + 1)) {
+        return true;
+      }
+    }
+  }
+
+  public int getLimit() {
+    return (int) limit;
+  }
+
+  public int getInFlight() {
+    return inFlight.get();
+  }
+
+  public int getQueued() {
+    return queued.get();
+  }
+
+  public long getRejected() {
+    return rejected.get();
+  }
+
+  public long getShed() {
+    return shed.get();
+  }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2013, IT Services, Stockholm University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Stockholm University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package se.su.it.svc.server.limit;
+
+import se.su.it.svc.server.metrics.Counter;
+import se.su.it.svc.server.metrics.Gauge;
+import se.su.it.svc.server.metrics.MetricsRegistry;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed number of slots for concurrent calls, with a short bounded queue in front.
+ * <p/>
+ * A free slot is taken without blocking. Otherwise the call joins the queue if there is room, waiting at most
+ * maxWait milliseconds for a slot, and is rejected if the queue is full or the wait runs out.
+ */
+public class Bulkhead {
+  private final String kind;
+  private final String name;
+  private final int maxConcurrent;
+  private final int maxQueue;
+  private final long maxWait;
+
+  private final Semaphore slots;
+  private final AtomicInteger queued = new AtomicInteger();
+  private final Counter rejected;
+
+  /**
+   * @param name the bulkhead name, used as metric label.
+   * @param maxConcurrent the number of slots.
+   * @param maxQueue the maximum number of waiting calls.
+   * @param maxWait the maximum time in milliseconds a call waits.
+   * @param registry the registry to publish rejected calls in.
+   */
+  public Bulkhead(String name, int maxConcurrent, int maxQueue, long maxWait, MetricsRegistry registry) {
+    this("bulkhead", name, maxConcurrent, maxQueue, maxWait, registry);
+  }
+
+  /**
+   * @param kind what the bulkhead limits, used in metric names and as label name, ex. "lane".
+   * @param name the bulkhead name, used as metric label.
+   * @param maxConcurrent the number of slots.
+   * @param maxQueue the maximum number of waiting calls.
+   * @param maxWait the maximum time in milliseconds a call waits.
+   * @param registry the registry to publish rejected calls in.
+   */
+  public Bulkhead(String kind, String name, int maxConcurrent, int maxQueue, long maxWait, MetricsRegistry registry) {
+    if (maxConcurrent < 1) {
+      throw new IllegalArgumentException("Bulkhead " + name + " needs at least one slot");
+    }
+
+    this.kind = kind;
+    this.name = name;
+    this.maxConcurrent = maxConcurrent;
+    this.maxQueue = Math.max(0, maxQueue);
+    this.maxWait = Math.max(0, maxWait);
+    this.slots = new Semaphore(maxConcurrent, true);
+
+    rejected = registry.counter("cxf_server_" + kind + "_rejected_total", "Calls rejected by a full " + kind + ".",
+            kind, name);
+  }
+
+  /**
+   * Publish the calls holding and waiting for slots. Gauges replace those of another bulkhead with the same
+   * name, so only the bulkhead that is used should register them.
+   *
+   * @param registry the registry to publish in-use and queued calls in.
+   */
+  public void registerGauges(MetricsRegistry registry) {
+    String prefix = "cxf_server_" + kind;
+    registry.gauge(prefix + "_in_use", "Calls holding a " + kind + " slot.", new Gauge() {
+      @Override
+      public double getValue() {
+        return getInUse();
+      }
+    }, kind, name);
+    registry.gauge(prefix + "_queued", "Calls waiting for a " + kind + " slot.", new Gauge() {
+      @Override
+      public double getValue() {
+        return queued.get();
+      }
+    }, kind, name);
+  }
+
+  /**
+   * Take a slot, waiting in the queue if there is room. A taken slot must be given back with {@link #release()}.
+   *
+   * @return true if a slot was taken, false if the call is rejected.
+   */
+  public boolean acquire() {
+    if (slots.tryAcquire()) {
+      return true;
+    }
+
+    if (queued.incrementAndGet() > maxQueue) {
+      queued.decrementAndGet();
+      rejected.inc();
+      return false;
+    }
+
+    try {
+      if (slots.tryAcquire(maxWait, TimeUnit.MILLISECONDS)) {
+        return true;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      queued.decrementAndGet();
+    }
+
+    rejected.inc();
+    return false;
+  }
+
+  public void release() {
+    slots.release();
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public int getMaxConcurrent() {
+    return maxConcurrent;
+  }
+
+  public int getMaxQueue() {
+    return maxQueue;
+  }
+
+  public long getMaxWait() {
+    return maxWait;
+  }
+
+  public int getInUse() {
+    return maxConcurrent - slots.availablePermits();
+  }
+
+  public int getQueued() {
+    return queued.get();
+  }
+
+  public long getRejected() {
+    return rejected.get();
+  }
+}
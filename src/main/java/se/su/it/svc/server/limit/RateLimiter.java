@@ -0,0 +1,330 @@
+/*
+ * Copyright (c) 2013, IT Services, Stockholm University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Stockholm University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package se.su.it.svc.server.limit;
+
+import se.su.it.svc.server.metrics.Counter;
+import se.su.it.svc.server.metrics.Gauge;
+import se.su.it.svc.server.metrics.MetricsRegistry;
+import se.su.it.svc.server.security.Authorizor;
+import se.su.it.svc.server.security.SharedAuthorizor;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket rate limits per principal.
+ * <p/>
+ * Each bucket is a single atomic "theoretical arrival time", the time when the bucket will be full again
+ * (the generic cell rate algorithm), so taking a token is one compare-and-set and never blocks. Buckets live in
+ * a concurrent map, whose striping keeps principals from contending with each other.
+ * <p/>
+ * A principal's limit is resolved once, when its bucket is created: a per-principal override, else the most
+ * generous limit of the roles the authorizor grants the principal, else the default. A full bucket behaves
+ * exactly like a new one, so when more than maxPrincipals buckets exist the full ones are dropped first.
+ */
+public class RateLimiter {
+  /** HTTP status for rejected calls, not defined by the servlet API in use. */
+  public static final int SC_TOO_MANY_REQUESTS = 429;
+
+  private volatile Limit defaultLimit = null;
+  private volatile Map<String, Limit> principalLimits = new LinkedHashMap<String, Limit>();
+  private volatile Map<String, Limit> roleLimits = new LinkedHashMap<String, Limit>();
+  private volatile Authorizor authorizor = null;
+  private volatile int maxPrincipals = 10000;
+
+  private final ConcurrentMap<String, Bucket> buckets = new ConcurrentHashMap<String, Bucket>();
+  private final AtomicInteger bucketCount = new AtomicInteger();
+  private final AtomicBoolean purging = new AtomicBoolean();
+
+  private final Counter allowed;
+  private final Counter limited;
+
+  public RateLimiter(MetricsRegistry registry) {
+    allowed = registry.counter("cxf_server_rate_limit_requests_total", "Rate limited requests by outcome.",
+            "result", "allowed");
+    limited = registry.counter("cxf_server_rate_limit_requests_total", "Rate limited requests by outcome.",
+            "result", "limited");
+    registry.gauge("cxf_server_rate_limit_principals", "Principals with a rate limit bucket.", new Gauge() {
+      @Override
+      public double getValue() {
+        return bucketCount.get();
+      }
+    });
+  }
+
+  /**
+   * @param defaultLimit the limit of principals without an override, or null for no limit.
+   */
+  public void setDefaultLimit(Limit defaultLimit) {
+    this.defaultLimit = defaultLimit;
+    buckets.clear();
+    bucketCount.set(0);
+  }
+
+  /**
+   * @param principalLimits limits per principal name, overriding role and default limits.
+   */
+  public void setPrincipalLimits(Map<String, Limit> principalLimits) {
+    this.principalLimits = new LinkedHashMap<String, Limit>(principalLimits);
+    buckets.clear();
+    bucketCount.set(0);
+  }
+
+  /**
+   * @param roleLimits limits per role, checked with the authorizor.
+   */
+  public void setRoleLimits(Map<String, Limit> roleLimits) {
+    this.roleLimits = new LinkedHashMap<String, Limit>(roleLimits);
+    buckets.clear();
+    bucketCount.set(0);
+  }
+
+  /**
+   * @param authorizor the authorizor for role limits, defaults to the one of the web application.
+   */
+  public void setAuthorizor(Authorizor authorizor) {
+    this.authorizor = authorizor;
+  }
+
+  /**
+   * @param maxPrincipals the number of buckets above which buckets are dropped.
+   */
+  public void setMaxPrincipals(int maxPrincipals) {
+    this.maxPrincipals = maxPrincipals;
+  }
+
+  /**
+   * @return true if any limit is configured.
+   */
+  public boolean isEnabled() {
+    return defaultLimit != null || !principalLimits.isEmpty() || !roleLimits.isEmpty();
+  }
+
+  /**
+   * Take a token for a call by a principal.
+   *
+   * @param principal the principal name.
+   * @return 0 if the call may proceed, otherwise the time in nanoseconds until the principal may call again.
+   */
+  public long tryAcquire(String principal) {
+    if (principal == null) {
+      return 0;
+    }
+
+    Bucket bucket = getBucket(principal);
+    if (bucket == null) {
+      allowed.inc();
+      return 0;
+    }
+
+    long wait = bucket.tryAcquire(System.nanoTime());
+    if (wait > 0) {
+      limited.inc();
+    } else {
+      allowed.inc();
+    }
+    return wait;
+  }
+
+  /**
+   * @param waitNanos the wait returned by {@link #tryAcquire(String)}.
+   * @return the wait in whole seconds for a Retry-After header, at least 1.
+   */
+  public static long toRetryAfter(long waitNanos) {
+    return Math.max(1, (waitNanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1));
+  }
+
+  public int getPrincipals() {
+    return bucketCount.get();
+  }
+
+  public long getAllowed() {
+    return allowed.get();
+  }
+
+  public long getLimited() {
+    return limited.get();
+  }
+
+  private Bucket getBucket(String principal) {
+    Bucket bucket = buckets.get(principal);
+    if (bucket != null) {
+      return bucket.limit != null ? bucket : null;
+    }
+
+    Bucket created = new Bucket(resolveLimit(principal));
+    bucket = buckets.putIfAbsent(principal, created);
+    if (bucket == null) {
+      bucket = created;
+      if (bucketCount.incrementAndGet() > maxPrincipals) {
+        purge();
+      }
+    }
+    return bucket.limit != null ? bucket : null;
+  }
+
+  private Limit resolveLimit(String principal) {
+    Limit limit = principalLimits.get(principal);
+    if (limit != null) {
+      return limit;
+    }
+
+    Authorizor roleAuthorizor = authorizor != null ? authorizor : SharedAuthorizor.get();
+    if (roleAuthorizor != null) {
+      for (Map.Entry<String, Limit> entry : roleLimits.entrySet()) {
+        if ((limit == null || entry.getValue().isMoreGenerousThan(limit))
+                && roleAuthorizor.checkRole(principal, entry.getKey())) {
+          limit = entry.getValue();
+        }
+      }
+    }
+
+    return limit != null ? limit : defaultLimit;
+  }
+
+  /**
+   * Drop full buckets, and if that isn't enough, any buckets until there is room again.
+   */
+  private void purge() {
+    if (!purging.compareAndSet(false, true)) {
+      return;
+    }
+
+    try {
+      long now = System.nanoTime();
+      for (Iterator<Map.Entry<String, Bucket>> it = buckets.entrySet().iterator(); it.hasNext(); ) {
+        if (it.next().getValue().isFull(now)) {
+          it.remove();
+          bucketCount.decrementAndGet();
+        }
+      }
+
+      // Every bucket is in use, dropping some only lets those principals start over with a full bucket
+      int target = maxPrincipals - maxPrincipals / 10;
+      for (Iterator<Bucket> it = buckets.values().iterator(); it.hasNext() && bucketCount.get() > target; ) {
+        it.next();
+        it.remove();
+        bucketCount.decrementAndGet();
+      }
+    } finally {
+      purging.set(false);
+    }
+  }
+
+  /**
+   * A rate limit: a sustained rate in calls per second, and the number of calls that may be made at once.
+   */
+  public static final class Limit {
+    private final double rate;
+    private final int burst;
+    private final long interval;
+    private final long tolerance;
+
+    public Limit(double rate, int burst) {
+      if (rate <= 0 || burst < 1) {
+        throw new IllegalArgumentException("A rate limit needs a positive rate and burst");
+      }
+
+      this.rate = rate;
+      this.burst = burst;
+      this.interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+      this.tolerance = interval * (burst - 1);
+    }
+
+    /**
+     * @param value 'rate[,burst]', where the burst defaults to the rate rounded up.
+     * @return the limit.
+     * @throws IllegalArgumentException if the value can't be parsed.
+     */
+    public static Limit parse(String value) {
+      String[] parts = value.split(",");
+      try {
+        double rate = Double.parseDouble(parts[0].trim());
+        int burst = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : (int) Math.max(1, Math.ceil(rate));
+        return new Limit(rate, burst);
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Invalid rate limit '" + value + "', expected 'rate[,burst]'", e);
+      }
+    }
+
+    public double getRate() {
+      return rate;
+    }
+
+    public int getBurst() {
+      return burst;
+    }
+
+    boolean isMoreGenerousThan(Limit other) {
+      return rate > other.rate || (rate == other.rate && burst > other.burst);
+    }
+
+    @Override
+    public String toString() {
+      return rate + "," + burst;
+    }
+  }
+
+  private static final class Bucket {
+    private final Limit limit;
+    private final AtomicLong arrival = new AtomicLong(Long.MIN_VALUE);
+
+    private Bucket(Limit limit) {
+      this.limit = limit;
+    }
+
+    long tryAcquire(long now) {
+      while (true) {
+        long tat = arrival.get();
+        long start = tat == Long.MIN_VALUE || tat - now < 0 ? now : tat;
+        long wait = start - limit.tolerance - now;
+        if (wait > 0) {
+          return wait;
+        }
+        if (arrival.compareAndSet(tat, start + limit.interval)) {
+          return 0;
+        }
+      }
+    }
+
+    boolean isFull(long now) {
+      long tat = arrival.get();
+      return limit == null || tat == Long.MIN_VALUE || tat - now <= 0;
+    }
+  }
+}
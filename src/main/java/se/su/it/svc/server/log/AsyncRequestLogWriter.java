@@ -0,0 +1,385 @@
+/*
+ * Copyright (c) 2013, IT Services, Stockholm University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Stockholm University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package se.su.it.svc.server.log;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes request log entries to a file on a background thread.
+ * <p/>
+ * Request threads only offer a small entry to a bounded queue and never wait: when the queue is full the entry
+ * is dropped and counted. The writer thread drains the queue in batches, formats the entries into a reused buffer
+ * and flushes once per batch, or at least every flushInterval milliseconds. The file is rotated when it grows
+ * past maxFileSize bytes or gets older than maxFileAge milliseconds, the old file gets a timestamp suffix.
+ */
+public class AsyncRequestLogWriter {
+  private static final Logger LOG = LoggerFactory.getLogger(AsyncRequestLogWriter.class);
+
+  private static final int BATCH_SIZE = 512;
+
+  private File file = null;
+  private int queueSize = 8192;
+  private long flushInterval = 1000;
+  private long maxFileSize = 100 * 1024 * 1024;
+  private long maxFileAge = 24 * 60 * 60 * 1000L;
+
+  private BlockingQueue<Entry> queue = null;
+  private Thread thread = null;
+  private volatile boolean running = false;
+
+  private final AtomicLong written = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+
+  // Only used by the writer thread
+  private Writer out = null;
+  private long fileSize = 0;
+  private long fileOpened = 0;
+  private final StringBuilder line = new StringBuilder(256);
+  private final SimpleDateFormat timeFormat = new SimpleDateFormat("dd/MMM/yyyy:HH:mm:ss Z");
+  private long formattedSecond = -1;
+  private String formattedTime = null;
+
+  public void setFile(File file) {
+    this.file = file;
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * @param queueSize the number of entries that can wait for the writer before new entries are dropped.
+   */
+  public void setQueueSize(int queueSize) {
+    this.queueSize = queueSize;
+  }
+
+  /**
+   * @param flushInterval the maximum time in milliseconds an entry waits in the file buffer.
+   */
+  public void setFlushInterval(long flushInterval) {
+    this.flushInterval = flushInterval;
+  }
+
+  /**
+   * @param maxFileSize the size in bytes after which the file is rotated.
+   */
+  public void setMaxFileSize(long maxFileSize) {
+    this.maxFileSize = maxFileSize;
+  }
+
+  /**
+   * @param maxFileAge the age in milliseconds after which the file is rotated.
+   */
+  public void setMaxFileAge(long maxFileAge) {
+    this.maxFileAge = maxFileAge;
+  }
+
+  /**
+   * Open the file and start the writer thread.
+   *
+   * @throws IOException if the file can't be opened.
+   */
+  public synchronized void start() throws IOException {
+    if (running) {
+      return;
+    }
+    if (file == null) {
+      throw new IllegalStateException("No request log file has been set.");
+    }
+
+    queue = new ArrayBlockingQueue<Entry>(queueSize);
+    openFile();
+
+    running = true;
+    thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        writeLoop();
+      }
+    }, "request-log-writer");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Write the remaining entries and stop the writer thread.
+   */
+  public void stop() {
+    Thread writer;
+    synchronized (this) {
+      if (!running) {
+        return;
+      }
+      running = false;
+      writer = thread;
+    }
+
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  public boolean isRunning() {
+    return running;
+  }
+
+  /**
+   * Hand an entry to the writer without waiting.
+   *
+   * @param entry the entry.
+   * @return true if the entry was queued, false if it was dropped.
+   */
+  public boolean offer(Entry entry) {
+    BlockingQueue<Entry> q = queue;
+    if (running && q != null && q.offer(entry)) {
+      return true;
+    }
+
+    dropped.incrementAndGet();
+    return false;
+  }
+
+  /**
+   * @return the number of entries written to the file.
+   */
+  public long getWritten() {
+    return written.get();
+  }
+
+  /**
+   * @return the number of entries dropped because the writer fell behind.
+   */
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  /**
+   * @return the number of entries waiting for the writer.
+   */
+  public int getQueueDepth() {
+    BlockingQueue<Entry> q = queue;
+    return q != null ? q.size() : 0;
+  }
+
+  private void writeLoop() {
+    List<Entry> batch = new ArrayList<Entry>(BATCH_SIZE);
+    long lastFlush = System.currentTimeMillis();
+    boolean dirty = false;
+
+    while (running || !queue.isEmpty()) {
+      try {
+        Entry first = queue.poll(flushInterval, TimeUnit.MILLISECONDS);
+        if (first != null) {
+          batch.add(first);
+          queue.drainTo(batch, BATCH_SIZE - 1);
+
+          int done = 0;
+          try {
+            for (Entry entry : batch) {
+              write(entry);
+              done++;
+              dirty = true;
+            }
+          } finally {
+            // Entries after a failed write are lost, not retried, so a broken disk can't grow the batch.
+            written.addAndGet(done);
+            dropped.addAndGet(batch.size() - done);
+            batch.clear();
+          }
+        }
+
+        long now = System.currentTimeMillis();
+        if (dirty && out != null && (queue.isEmpty() || now - lastFlush >= flushInterval)) {
+          out.flush();
+          lastFlush = now;
+          dirty = false;
+        }
+      } catch (InterruptedException e) {
+        running = false;
+      } catch (IOException e) {
+        LOG.error("Failed to write request log " + file, e);
+      }
+    }
+
+    closeFile();
+  }
+
+  private void write(Entry entry) throws IOException {
+    long now = System.currentTimeMillis();
+    if (out == null) {
+      // The file failed to open after the last rotation, try again
+      openFile();
+    } else if (fileSize >= maxFileSize || now - fileOpened >= maxFileAge) {
+      rotate(now);
+    }
+
+    line.setLength(0);
+    entry.format(line, formatTime(entry.timeStamp));
+    line.append('\n');
+
+    out.append(line);
+    fileSize += line.length();
+  }
+
+  private String formatTime(long time) {
+    long second = time / 1000;
+    if (second != formattedSecond) {
+      formattedTime = timeFormat.format(new Date(time));
+      formattedSecond = second;
+    }
+    return formattedTime;
+  }
+
+  private void openFile() throws IOException {
+    out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"), 64 * 1024);
+    fileSize = file.length();
+    fileOpened = System.currentTimeMillis();
+  }
+
+  private void closeFile() {
+    if (out == null) {
+      return;
+    }
+
+    try {
+      out.close();
+    } catch (IOException e) {
+      LOG.error("Failed to close request log " + file, e);
+    } finally {
+      out = null;
+    }
+  }
+
+  /**
+   * Rotate the file. If the new file can't be opened, out is left null and opening is retried on the next write.
+   */
+  private void rotate(long now) throws IOException {
+    closeFile();
+
+    String name = file.getPath() + "." + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date(now));
+    File rotated = new File(name);
+    for (int i = 1; rotated.exists(); i++) {
+      rotated = new File(name + "." + i);
+    }
+    if (!file.renameTo(rotated)) {
+      LOG.warn("Failed to rotate request log " + file + " to " + rotated);
+    }
+
+    openFile();
+  }
+
+  /**
+   * A request log entry, holding only what the writer needs to format the line later.
+   */
+  public static final class Entry {
+    private final String serverName;
+    private final String remoteAddr;
+    private final String principal;
+    private final long timeStamp;
+    private final String method;
+    private final String uri;
+    private final String protocol;
+    private final int status;
+    private final long responseLength;
+    private final String correlationId;
+    private final long duration;
+
+    /**
+     * @param status the response status, or a negative value for async requests.
+     * @param responseLength the response length, or a negative value if unknown.
+     * @param duration the request duration in milliseconds.
+     */
+    public Entry(String serverName, String remoteAddr, String principal, long timeStamp, String method, String uri,
+                 String protocol, int status, long responseLength, String correlationId, long duration) {
+      this.serverName = serverName;
+      this.remoteAddr = remoteAddr;
+      this.principal = principal;
+      this.timeStamp = timeStamp;
+      this.method = method;
+      this.uri = uri;
+      this.protocol = protocol;
+      this.status = status;
+      this.responseLength = responseLength;
+      this.correlationId = correlationId;
+      this.duration = duration;
+    }
+
+    /**
+     * Format the entry in the same format as CommonRequestLog.
+     *
+     * @param buf the buffer to append to.
+     * @param time the formatted time stamp.
+     */
+    void format(StringBuilder buf, String time) {
+      buf.append(serverName).append(' ').append(remoteAddr).append(" - ").append(principal);
+      buf.append(" [").append(time).append("] ");
+      buf.append('"').append(method).append(' ').append(uri).append(' ').append(protocol).append("\" ");
+
+      if (status < 0) {
+        buf.append("Async");
+      } else {
+        buf.append((char) ('0' + ((status / 100) % 10)));
+        buf.append((char) ('0' + ((status / 10) % 10)));
+        buf.append((char) ('0' + (status % 10)));
+      }
+
+      buf.append(' ');
+      if (responseLength >= 0) {
+        buf.append(responseLength);
+      } else {
+        buf.append('-');
+      }
+
+      buf.append(' ').append(correlationId);
+
+      buf.append(' ').append(duration);
+    }
+  }
+}
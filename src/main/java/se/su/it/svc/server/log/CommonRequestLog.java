@@ -33,23 +33,83 @@ package se.su.it.svc.server.log;
 
 import org.eclipse.jetty.http.HttpHeaders;
 import org.eclipse.jetty.http.HttpStatus;
+import org.eclipse.jetty.server.AsyncContinuation;
 import org.eclipse.jetty.server.Authentication;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.RequestLog;
 import org.eclipse.jetty.server.Response;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import se.su.it.svc.server.filter.CorrelationIdHandler;
+import se.su.it.svc.server.metrics.LatencyRegistry;
+import se.su.it.svc.server.timing.RequestTiming;
+import se.su.it.svc.server.timing.SlowRequest;
+import se.su.it.svc.server.timing.SlowRequestRecorder;
+import se.su.it.svc.server.timing.TimedJobQueue;
 
 public class CommonRequestLog implements RequestLog {
   private static Logger logger = LoggerFactory.getLogger("RequestLog");
 
   private boolean started = false;
 
+  private AsyncRequestLogWriter writer = null;
+
+  private LatencyRegistry latencies = new LatencyRegistry();
+
+  private SlowRequestRecorder slowRequests = null;
+
+  /**
+   * Write the log to a file on a background thread instead of through the logger.
+   *
+   * @param writer the writer, started and stopped with this request log.
+   */
+  public void setWriter(AsyncRequestLogWriter writer) {
+    this.writer = writer;
+  }
+
+  public AsyncRequestLogWriter getWriter() {
+    return writer;
+  }
+
+  public void setLatencies(LatencyRegistry latencies) {
+    this.latencies = latencies;
+  }
+
+  /**
+   * @return the request latencies per endpoint, operation and status class.
+   */
+  public LatencyRegistry getLatencies() {
+    return latencies;
+  }
+
+  /**
+   * Keep the slowest requests in memory.
+   *
+   * @param slowRequests the recorder, or null to not keep any.
+   */
+  public void setSlowRequests(SlowRequestRecorder slowRequests) {
+    this.slowRequests = slowRequests;
+  }
+
+  public SlowRequestRecorder getSlowRequests() {
+    return slowRequests;
+  }
+
   /**
    * @see RequestLog#log(org.eclipse.jetty.server.Request, org.eclipse.jetty.server.Response)
    */
   @Override
   public void log(Request request, Response response) {
+    long duration = getDuration(request);
+    finishTiming(request);
+    recordLatency(request, response, duration);
+    recordSlowRequest(request, response, duration);
+
+    if (writer != null) {
+      writer.offer(createEntry(request, response, duration));
+      return;
+    }
+
     StringBuilder buf = new StringBuilder();
     buf.append(request.getServerName());
     buf.append(" ");
@@ -77,9 +137,109 @@ public class CommonRequestLog implements RequestLog {
 
     buf.append(" ").append(getResponseLength(response));
 
+    buf.append(" ").append(getCorrelationId(request));
+
+    buf.append(" ").append(duration);
+
     logger.info(buf.toString());
   }
 
+  /**
+   * Create an entry for the asynchronous writer, leaving all formatting to the writer thread.
+   *
+   * @param request the request.
+   * @param response the response.
+   * @param duration the request duration in milliseconds.
+   * @return the entry.
+   */
+  protected AsyncRequestLogWriter.Entry createEntry(Request request, Response response, long duration) {
+    String addr = request.getHeader(HttpHeaders.X_FORWARDED_FOR);
+    if (addr == null)
+      addr = request.getRemoteAddr();
+
+    int status = -1;
+    if (isDone(request)) {
+      status = response.getStatus();
+      if (status <= 0)
+        status = HttpStatus.NOT_FOUND_404;
+    }
+
+    return new AsyncRequestLogWriter.Entry(
+            request.getServerName(),
+            addr,
+            getUserPrincipal(request),
+            request.getTimeStamp(),
+            request.getMethod(),
+            request.getUri().toString(),
+            request.getProtocol(),
+            status,
+            response.getContentCount(),
+            getCorrelationId(request),
+            duration);
+  }
+
+  /**
+   * Get the time from when the request was accepted until now, when it has completed.
+   *
+   * @param request the request.
+   * @return the duration in milliseconds.
+   */
+  protected long getDuration(Request request) {
+    return Math.max(0, System.currentTimeMillis() - request.getTimeStamp());
+  }
+
+  /**
+   * End the stages of the request still running, ex. the serialization of the response.
+   *
+   * @param request the request.
+   */
+  protected void finishTiming(Request request) {
+    RequestTiming timing = RequestTiming.get(request);
+    if (timing != null)
+      timing.finish();
+  }
+
+  /**
+   * Record the request duration in the latency histogram of its endpoint, operation and status class.
+   *
+   * @param request the request.
+   * @param response the response.
+   * @param duration the request duration in milliseconds.
+   */
+  protected void recordLatency(Request request, Response response, long duration) {
+    if (latencies == null)
+      return;
+
+    Object operation = request.getAttribute(LatencyRegistry.OPERATION_ATTRIBUTE);
+    int status = response.getStatus();
+    if (status <= 0)
+      status = HttpStatus.NOT_FOUND_404;
+
+    latencies.record(request.getUri().getPath(), operation != null ? operation.toString() : null, status, duration);
+  }
+
+  /**
+   * Hand the request to the slow request recorder if it is slow enough to be kept.
+   *
+   * @param request the request.
+   * @param response the response.
+   * @param duration the request duration in milliseconds.
+   */
+  protected void recordSlowRequest(Request request, Response response, long duration) {
+    // Always taken, so the wait isn't reported for a later request on the same connection
+    long queueWait = TimedJobQueue.consumeWait();
+
+    if (slowRequests == null || !slowRequests.isCandidate(duration))
+      return;
+
+    int status = response.getStatus();
+    if (status <= 0)
+      status = HttpStatus.NOT_FOUND_404;
+
+    slowRequests.record(new SlowRequest(request.getTimeStamp(), duration, CorrelationIdHandler.getId(request),
+            request.getUri().getPath(), status, request.getRemoteUser(), queueWait, RequestTiming.get(request)));
+  }
+
   /**
    * Get the user principal name.
    *
@@ -96,17 +256,29 @@ public class CommonRequestLog implements RequestLog {
     return user;
   }
 
+  /**
+   * Get the correlation id.
+   *
+   * @param request the request from which to get the id.
+   * @return the correlation id or '-' if none can be found.
+   */
+  protected String getCorrelationId(Request request) {
+    String id = CorrelationIdHandler.getId(request);
+
+    return id != null ? id : "-";
+  }
+
   /**
    * Get the response status
    *
    * @param request the request.
    * @param response the response.
-   * @return the status code ex. 200, or 'Async'.
+   * @return the status code ex. 200, or 'Async' if the request is still suspended.
    */
   protected String getStatus(Request request, Response response) {
     StringBuilder buf = new StringBuilder();
 
-    if (request.getAsyncContinuation().isInitial()) {
+    if (isDone(request)) {
       int status = response.getStatus();
       if (status <= 0)
         status = HttpStatus.NOT_FOUND_404;
@@ -119,6 +291,18 @@ public class CommonRequestLog implements RequestLog {
     return buf.toString();
   }
 
+  /**
+   * Suspended requests are logged by the RequestLogHandler when they complete, so only a request logged while
+   * still suspended has no status yet.
+   *
+   * @param request the request.
+   * @return true if the request was never suspended or has completed.
+   */
+  protected boolean isDone(Request request) {
+    AsyncContinuation continuation = request.getAsyncContinuation();
+    return continuation.isInitial() || continuation.isComplete();
+  }
+
   /**
    * Get the response length.
    *
@@ -142,6 +326,8 @@ public class CommonRequestLog implements RequestLog {
    */
   @Override
   public void start() throws Exception {
+    if (writer != null)
+      writer.start();
     started = true;
   }
 
@@ -150,6 +336,8 @@ public class CommonRequestLog implements RequestLog {
    */
   @Override
   public void stop() throws Exception {
+    if (writer != null)
+      writer.stop();
     started = false;
   }
 
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2013, IT Services, Stockholm University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Stockholm University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package se.su.it.svc.server.metrics;
+
+import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+import java.util.Queue;
+
+/**
+ * Collects thread pool and connector metrics from the Jetty server.
+ */
+public class JettyCollector implements Collector {
+  private final QueuedThreadPool threadPool;
+  private final Queue<Runnable> jobs;
+  private final Connector[] connectors;
+
+  /**
+   * @param threadPool the server thread pool.
+   * @param jobs the job queue of the thread pool.
+   * @param connectors the server connectors, with statistics turned on.
+   */
+  public JettyCollector(QueuedThreadPool threadPool, Queue<Runnable> jobs, Connector[] connectors) {
+    this.threadPool = threadPool;
+    this.jobs = jobs;
+    this.connectors = connectors;
+  }
+
+  /**
+   * @see Collector#collect(PrometheusWriter)
+   */
+  @Override
+  public void collect(PrometheusWriter writer) {
+    writer.family("cxf_server_threads", "Threads in the request thread pool.", "gauge");
+    writer.sample("cxf_server_threads", threadPool.getThreads());
+
+    writer.family("cxf_server_threads_idle", "Idle threads in the request thread pool.", "gauge");
+    writer.sample("cxf_server_threads_idle", threadPool.getIdleThreads());
+
+    writer.family("cxf_server_threads_max", "Max threads in the request thread pool.", "gauge");
+    writer.sample("cxf_server_threads_max", threadPool.getMaxThreads());
+
+    writer.family("cxf_server_thread_pool_queue_depth", "Jobs waiting for a thread.", "gauge");
+    writer.sample("cxf_server_thread_pool_queue_depth", jobs.size());
+
+    writer.family("cxf_server_connections_open", "Open connections by connector.", "gauge");
+    for (Connector connector : connectors) {
+      writer.sample("cxf_server_connections_open", connector.getConnectionsOpen(), "connector", name(connector));
+    }
+
+    writer.family("cxf_server_connections_total", "Accepted connections by connector.", "counter");
+    for (Connector connector : connectors) {
+      writer.sample("cxf_server_connections_total", connector.getConnections(), "connector", name(connector));
+    }
+
+    writer.family("cxf_server_requests_total", "Requests by connector.", "counter");
+    for (Connector connector : connectors) {
+      writer.sample("cxf_server_requests_total", connector.getRequests(), "connector", name(connector));
+    }
+  }
+
+  private static String name(Connector connector) {
+    String name = connector.getName();
+    return name != null ? name : String.valueOf(connector.getPort());
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2013, IT Services, Stockholm University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Stockholm University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package se.su.it.svc.server.metrics;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Collects JVM memory, garbage collection and thread metrics.
+ */
+public class JvmCollector implements Collector {
+  private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+  private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+  /**
+   * @see Collector#collect(PrometheusWriter)
+   */
+  @Override
+  public void collect(PrometheusWriter writer) {
+    MemoryUsage heap = memory.getHeapMemoryUsage();
+    MemoryUsage nonHeap = memory.getNonHeapMemoryUsage();
+
+    writer.family("jvm_memory_used_bytes", "Used memory by area.", "gauge");
+    writer.sample("jvm_memory_used_bytes", heap.getUsed(), "area", "heap");
+    writer.sample("jvm_memory_used_bytes", nonHeap.getUsed(), "area", "nonheap");
+
+    writer.family("jvm_memory_committed_bytes", "Committed memory by area.", "gauge");
+    writer.sample("jvm_memory_committed_bytes", heap.getCommitted(), "area", "heap");
+    writer.sample("jvm_memory_committed_bytes", nonHeap.getCommitted(), "area", "nonheap");
+
+    writer.family("jvm_memory_max_bytes", "Max memory by area, -1 if undefined.", "gauge");
+    writer.sample("jvm_memory_max_bytes", heap.getMax(), "area", "heap");
+    writer.sample("jvm_memory_max_bytes", nonHeap.getMax(), "area", "nonheap");
+
+    writer.family("jvm_gc_collections_total", "Garbage collections by collector.", "counter");
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      writer.sample("jvm_gc_collections_total", gc.getCollectionCount(), "gc", gc.getName());
+    }
+
+    writer.family("jvm_gc_collection_seconds_total", "Time spent in garbage collection by collector.", "counter");
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      writer.sample("jvm_gc_collection_seconds_total", gc.getCollectionTime() / 1000.0, "gc", gc.getName());
+    }
+
+    writer.family("jvm_threads", "Live threads.", "gauge");
+    writer.sample("jvm_threads", threads.getThreadCount());
+  }
+}
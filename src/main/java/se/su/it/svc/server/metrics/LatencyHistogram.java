@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2013, IT Services, Stockholm University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Stockholm University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package se.su.it.svc.server.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of non-negative values, ex. latencies in milliseconds.
+ * <p/>
+ * Values are counted in log-linear buckets: values below 16 get a bucket each, larger values share buckets
+ * of 1/8 of their power of two. Recording is a single atomic increment and percentiles are accurate to within
+ * 12.5% of the value, which is enough for capacity planning and alerting while using 4KB per window.
+ * <p/>
+ * The count and sum cover the lifetime of the histogram, but percentiles and max only cover the current and the
+ * previous window, by default the last one to two minutes, so they show the latency now rather than since startup.
+ */
+public final class LatencyHistogram {
+  private static final int SUB_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+  private static final int LINEAR = SUB_BUCKETS * 2;
+  private static final int BUCKETS = LINEAR + (63 - SUB_BITS - 1) * SUB_BUCKETS;
+
+  public static final long DEFAULT_WINDOW = 60 * 1000L;
+
+  private final long windowLength;
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+
+  private volatile Window current;
+  private volatile Window previous;
+
+  public LatencyHistogram() {
+    this(DEFAULT_WINDOW);
+  }
+
+  /**
+   * @param windowLength the length in milliseconds of the windows percentiles are computed over.
+   */
+  public LatencyHistogram(long windowLength) {
+    this.windowLength = windowLength;
+    this.current = new Window(System.currentTimeMillis());
+    this.previous = Window.EMPTY;
+  }
+
+  /**
+   * Record a value, negative values are recorded as 0.
+   *
+   * @param value the value.
+   */
+  public void record(long value) {
+    record(value, System.currentTimeMillis());
+  }
+
+  void record(long value, long now) {
+    if (value < 0) {
+      value = 0;
+    }
+
+    window(now).record(value);
+    count.incrementAndGet();
+    sum.addAndGet(value);
+  }
+
+  /**
+   * Take a snapshot to read counts and percentiles from. Values recorded while the snapshot is taken may or
+   * may not be included.
+   *
+   * @return the snapshot.
+   */
+  public Snapshot snapshot() {
+    return snapshot(System.currentTimeMillis());
+  }
+
+  Snapshot snapshot(long now) {
+    Window last = window(now);
+    Window before = previous;
+
+    long[] copy = new long[BUCKETS];
+    long windowCount = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      copy[i] = last.counts.get(i) + before.counts.get(i);
+      windowCount += copy[i];
+    }
+    return new Snapshot(copy, windowCount, Math.max(last.max.get(), before.max.get()), count.get(), sum.get());
+  }
+
+  /**
+   * Get the window of a point in time, starting a new window when the current one has ended.
+   */
+  private Window window(long now) {
+    Window window = current;
+    if (now - window.start < windowLength) {
+      return window;
+    }
+
+    synchronized (this) {
+      window = current;
+      if (now - window.start >= windowLength) {
+        // After a period without values the current window is too old to be the previous one
+        previous = now - window.start < 2 * windowLength ? window : Window.EMPTY;
+        window = new Window(now);
+        current = window;
+      }
+      return window;
+    }
+  }
+
+  static int index(long value) {
+    if (value < LINEAR) {
+      return (int) value;
+    }
+
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+    return LINEAR + (exponent - SUB_BITS - 1) * SUB_BUCKETS + sub;
+  }
+
+  /**
+   * @return the largest value counted in a bucket.
+   */
+  static long highestValue(int index) {
+    if (index < LINEAR) {
+      return index;
+    }
+
+    int exponent = (index - LINEAR) / SUB_BUCKETS + SUB_BITS + 1;
+    long sub = (index - LINEAR) % SUB_BUCKETS;
+    long lowest = (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+    return lowest + (1L << (exponent - SUB_BITS)) - 1;
+  }
+
+  /**
+   * The bucket counts and max of the values recorded during one window.
+   */
+  private static final class Window {
+    static final Window EMPTY = new Window(Long.MIN_VALUE);
+
+    private final long start;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong max = new AtomicLong();
+
+    Window(long start) {
+      this.start = start;
+    }
+
+    void record(long value) {
+      counts.incrementAndGet(index(value));
+
+      long current = max.get();
+      while (value > current && !max.compareAndSet(current, value)) {
+        current = max.get();
+      }
+    }
+  }
+
+  /**
+   * The counts of a histogram at one point in time.
+   */
+  public static final class Snapshot {
+    private final long[] counts;
+    private final long windowCount;
+    private final long max;
+    private final long count;
+    private final long sum;
+
+    private Snapshot(long[] counts, long windowCount, long max, long count, long sum) {
+      this.counts = counts;
+      this.windowCount = windowCount;
+      this.max = max;
+      this.count = count;
+      this.sum = sum;
+    }
+
+    /**
+     * @return the number of values recorded since the histogram was created.
+     */
+    public long getCount() {
+      return count;
+    }
+
+    /**
+     * @return the sum of the values recorded since the histogram was created.
+     */
+    public long getSum() {
+      return sum;
+    }
+
+    /**
+     * @return the number of values in the current and previous window.
+     */
+    public long getWindowCount() {
+      return windowCount;
+    }
+
+    /**
+     * @return the largest value in the current and previous window.
+     */
+    public long getMax() {
+      return max;
+    }
+
+    /**
+     * Get the value at a quantile of the current and previous window, ex. 0.99 for the 99th percentile.
+     *
+     * @param quantile the quantile, between 0 and 1.
+     * @return the value at the quantile, or 0 if no values have been recorded in the windows.
+     */
+    public long getValueAt(double quantile) {
+      if (windowCount == 0) {
+        return 0;
+      }
+
+      long rank = Math.max(1, (long) Math.ceil(quantile * windowCount));
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++) {
+        seen += counts[i];
+        if (seen >= rank) {
+          return Math.min(highestValue(i), max);
+        }
+      }
+      return max;
+    }
+  }
+}
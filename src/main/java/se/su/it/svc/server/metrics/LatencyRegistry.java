@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2013, IT Services, Stockholm University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Stockholm University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package se.su.it.svc.server.metrics;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Request latency histograms per endpoint, SOAP operation and status class.
+ * <p/>
+ * The number of series is bounded by maxSeries, so unexpected paths can't grow it without limit:
+ * requests that would create more series are recorded under {@link #OTHER}.
+ */
+public class LatencyRegistry implements Collector {
+  /**
+   * The request attribute holding the name of the invoked SOAP operation, if any.
+   */
+  public static final String OPERATION_ATTRIBUTE = "se.su.it.svc.server.metrics.operation";
+
+  public static final String OTHER = "other";
+  public static final String NONE = "-";
+
+  private final ConcurrentMap<String, Series> series = new ConcurrentHashMap<String, Series>();
+  private final AtomicLong overflow = new AtomicLong();
+  private int maxSeries = 500;
+
+  /**
+   * @param maxSeries the maximum number of series to keep.
+   */
+  public void setMaxSeries(int maxSeries) {
+    this.maxSeries = maxSeries;
+  }
+
+  /**
+   * Record the latency of a request.
+   *
+   * @param endpoint the endpoint path.
+   * @param operation the SOAP operation, or null if none.
+   * @param status the response status.
+   * @param latency the latency in milliseconds.
+   */
+  public void record(String endpoint, String operation, int status, long latency) {
+    if (endpoint == null) {
+      endpoint = NONE;
+    }
+    if (operation == null) {
+      operation = NONE;
+    }
+    String statusClass = statusClass(status);
+
+    String key = endpoint + ' ' + operation + ' ' + statusClass;
+    Series s = series.get(key);
+    if (s == null) {
+      if (series.size() >= maxSeries) {
+        overflow.incrementAndGet();
+        key = OTHER + ' ' + OTHER + ' ' + statusClass;
+        endpoint = OTHER;
+        operation = OTHER;
+        s = series.get(key);
+      }
+      if (s == null) {
+        Series created = new Series(endpoint, operation, statusClass);
+        s = series.putIfAbsent(key, created);
+        if (s == null) {
+          s = created;
+        }
+      }
+    }
+
+    s.getHistogram().record(latency);
+  }
+
+  /**
+   * @return all series, in no particular order.
+   */
+  public Collection<Series> getSeries() {
+    return new ArrayList<Series>(series.values());
+  }
+
+  /**
+   * @return the number of requests recorded under {@link #OTHER} because maxSeries was reached.
+   */
+  public long getOverflow() {
+    return overflow.get();
+  }
+
+  /**
+   * @see Collector#collect(PrometheusWriter)
+   */
+  @Override
+  public void collect(PrometheusWriter writer) {
+    writer.family("cxf_server_request_duration_milliseconds", "Request durations by endpoint, operation and status class.", "summary");
+    for (Series s : series.values()) {
+      writer.summary("cxf_server_request_duration_milliseconds", s.getHistogram().snapshot(),
+              "endpoint", s.getEndpoint(), "operation", s.getOperation(), "status", s.getStatusClass());
+    }
+
+    writer.family("cxf_server_request_series_overflow_total", "Requests recorded as 'other' because there were too many series.", "counter");
+    writer.sample("cxf_server_request_series_overflow_total", overflow.get());
+  }
+
+  /**
+   * @param status a response status, ex. 404.
+   * @return the status class, ex. "4xx".
+   */
+  static String statusClass(int status) {
+    switch (status / 100) {
+      case 1:
+        return "1xx";
+      case 2:
+        return "2xx";
+      case 3:
+        return "3xx";
+      case 4:
+        return "4xx";
+      case 5:
+        return "5xx";
+      default:
+        return "unknown";
+    }
+  }
+
+  /**
+   * The latencies of one endpoint, operation and status class.
+   */
+  public static final class Series {
+    private final String endpoint;
+    private final String operation;
+    private final String statusClass;
+    private final LatencyHistogram histogram = new LatencyHistogram();
+
+    Series(String endpoint, String operation, String statusClass) {
+      this.endpoint = endpoint;
+      this.operation = operation;
+      this.statusClass = statusClass;
+    }
+
+    public String getEndpoint() {
+      return endpoint;
+    }
+
+    public String getOperation() {
+      return operation;
+    }
+
+    public String getStatusClass() {
+      return statusClass;
+    }
+
+    public LatencyHistogram getHistogram() {
+      return histogram;
+    }
+
+    @Override
+    public String toString() {
+      LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+      return endpoint + " " + operation + " " + statusClass
+              + " count=" + snapshot.getCount()
+              + " p50=" + snapshot.getValueAt(0.5)
+              + " p90=" + snapshot.getValueAt(0.9)
+              + " p99=" + snapshot.getValueAt(0.99)
+              + " p999=" + snapshot.getValueAt(0.999)
+              + " max=" + snapshot.getMax();
+    }
+  }
+}
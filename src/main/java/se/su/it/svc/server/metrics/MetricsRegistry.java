@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2013, IT Services, Stockholm University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Stockholm University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package se.su.it.svc.server.metrics;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Named counters, gauges and histograms, scraped in the Prometheus text format.
+ * <p/>
+ * Metrics are looked up or created once and then updated through the returned object, so updates on the
+ * request path are single atomic operations. Scraping reads the current values without taking any locks
+ * used by the request path.
+ * <p/>
+ * The server and the web application share {@link #getDefault()}: the server makes this package a system class
+ * of the web application, so both see the same instance.
+ */
+public class MetricsRegistry {
+  private static final MetricsRegistry DEFAULT = new MetricsRegistry();
+
+  private static final String COUNTER = "counter";
+  private static final String GAUGE = "gauge";
+  private static final String SUMMARY = "summary";
+
+  private final ConcurrentMap<String, Family> families = new ConcurrentHashMap<String, Family>();
+  private final List<Collector> collectors = new CopyOnWriteArrayList<Collector>();
+
+  /**
+   * @return the registry shared by the server and the web application.
+   */
+  public static MetricsRegistry getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * Get or create a counter.
+   *
+   * @param name the metric name, ex. "cxf_server_authentications_total".
+   * @param help a description of the metric.
+   * @param labels label names and values, ex. "result", "success".
+   * @return the counter.
+   */
+  public Counter counter(String name, String help, String... labels) {
+    return (Counter) family(name, help, COUNTER).get(labels, new Counter());
+  }
+
+  /**
+   * Register a counter read from elsewhere when scraped, replacing any previous one with the same labels.
+   *
+   * @param name the metric name.
+   * @param help a description of the metric.
+   * @param value the counter value.
+   * @param labels label names and values.
+   */
+  public void counter(String name, String help, Gauge value, String... labels) {
+    family(name, help, COUNTER).put(labels, value);
+  }
+
+  /**
+   * Register a gauge, replacing any previous one with the same labels.
+   *
+   * @param name the metric name, ex. "cxf_server_threads".
+   * @param help a description of the metric.
+   * @param gauge the gauge.
+   * @param labels label names and values.
+   */
+  public void gauge(String name, String help, Gauge gauge, String... labels) {
+    family(name, help, GAUGE).put(labels, gauge);
+  }
+
+  /**
+   * Get or create a histogram, scraped as a summary with quantiles.
+   *
+   * @param name the metric name, ex. "cxf_server_gss_accept_microseconds".
+   * @param help a description of the metric.
+   * @param labels label names and values.
+   * @return the histogram.
+   */
+  public LatencyHistogram histogram(String name, String help, String... labels) {
+    return (LatencyHistogram) family(name, help, SUMMARY).get(labels, new LatencyHistogram());
+  }
+
+  /**
+   * Register a collector, written after all named metrics when scraped.
+   *
+   * @param collector the collector.
+   */
+  public void register(Collector collector) {
+    if (!collectors.contains(collector)) {
+      collectors.add(collector);
+    }
+  }
+
+  public void unregister(Collector collector) {
+    collectors.remove(collector);
+  }
+
+  /**
+   * Write all metrics in the Prometheus text format.
+   *
+   * @return the metrics.
+   */
+  public String scrape() {
+    StringBuilder sb = new StringBuilder(8192);
+    PrometheusWriter writer = new PrometheusWriter(sb);
+
+    for (Family family : new TreeMap<String, Family>(families).values()) {
+      family.write(writer);
+    }
+    for (Collector collector : collectors) {
+      collector.collect(writer);
+    }
+
+    return sb.toString();
+  }
+
+  private Family family(String name, String help, String type) {
+    Family family = families.get(name);
+    if (family == null) {
+      Family created = new Family(name, help, type);
+      family = families.putIfAbsent(name, created);
+      if (family == null) {
+        family = created;
+      }
+    }
+
+    if (!family.type.equals(type)) {
+      throw new IllegalArgumentException("Metric " + name + " is a " + family.type + ", not a " + type);
+    }
+    return family;
+  }
+
+  /**
+   * All metrics with the same name.
+   */
+  private static final class Family {
+    private final String name;
+    private final String help;
+    private final String type;
+    private final ConcurrentMap<List<String>, Object> metrics = new ConcurrentHashMap<List<String>, Object>();
+
+    Family(String name, String help, String type) {
+      this.name = name;
+      this.help = help;
+      this.type = type;
+    }
+
+    Object get(String[] labels, Object created) {
+      List<String> key = Arrays.asList(labels);
+      Object metric = metrics.get(key);
+      if (metric == null) {
+        metric = metrics.putIfAbsent(key, created);
+        if (metric == null) {
+          metric = created;
+        }
+      }
+      return metric;
+    }
+
+    void put(String[] labels, Object metric) {
+      metrics.put(Arrays.asList(labels), metric);
+    }
+
+    void write(PrometheusWriter writer) {
+      if (metrics.isEmpty()) {
+        return;
+      }
+
+      writer.family(name, help, type);
+      for (Map.Entry<List<String>, Object> entry : metrics.entrySet()) {
+        String[] labels = entry.getKey().toArray(new String[entry.getKey().size()]);
+        Object metric = entry.getValue();
+
+        if (metric instanceof Counter) {
+          writer.sample(name, ((Counter) metric).get(), labels);
+        } else if (metric instanceof Gauge) {
+          writer.sample(name, ((Gauge) metric).getValue(), labels);
+        } else if (metric instanceof LatencyHistogram) {
+          writer.summary(name, ((LatencyHistogram) metric).snapshot(), labels);
+        }
+      }
+    }
+  }
+}
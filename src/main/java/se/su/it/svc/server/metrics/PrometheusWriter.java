@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2013, IT Services, Stockholm University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Stockholm University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package se.su.it.svc.server.metrics;
+
+/**
+ * Formats metrics in the Prometheus text exposition format, version 0.0.4.
+ */
+public class PrometheusWriter {
+  public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+  private final StringBuilder out;
+
+  public PrometheusWriter(StringBuilder out) {
+    this.out = out;
+  }
+
+  /**
+   * Write the HELP and TYPE lines of a metric.
+   *
+   * @param name the metric name.
+   * @param help a description of the metric.
+   * @param type the metric type, ex. "counter", "gauge" or "summary".
+   */
+  public void family(String name, String help, String type) {
+    out.append("# HELP ").append(name).append(' ');
+    for (int i = 0; i < help.length(); i++) {
+      char c = help.charAt(i);
+      if (c == '\\') {
+        out.append("\\\\");
+      } else if (c == '\n') {
+        out.append("\\n");
+      } else {
+        out.append(c);
+      }
+    }
+    out.append('\n');
+    out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  /**
+   * Write a sample.
+   *
+   * @param name the metric name.
+   * @param value the value.
+   * @param labels label names and values, ex. "result", "success".
+   */
+  public void sample(String name, double value, String... labels) {
+    out.append(name);
+    labels(labels, null, null);
+    out.append(' ');
+    value(value);
+    out.append('\n');
+  }
+
+  /**
+   * Write the quantiles, sum and count of a histogram as a summary.
+   *
+   * @param name the metric name.
+   * @param snapshot the histogram snapshot.
+   * @param labels label names and values.
+   */
+  public void summary(String name, LatencyHistogram.Snapshot snapshot, String... labels) {
+    for (double quantile : QUANTILES) {
+      out.append(name);
+      labels(labels, "quantile", String.valueOf(quantile));
+      out.append(' ').append(snapshot.getValueAt(quantile)).append('\n');
+    }
+
+    out.append(name).append("_sum");
+    labels(labels, null, null);
+    out.append(' ').append(snapshot.getSum()).append('\n');
+
+    out.append(name).append("_count");
+    labels(labels, null, null);
+    out.append(' ').append(snapshot.getCount()).append('\n');
+  }
+
+  private void labels(String[] labels, String extraName, String extraValue) {
+    if (labels.length == 0 && extraName == null) {
+      return;
+    }
+
+    out.append('{');
+    for (int i = 0; i + 1 < labels.length; i += 2) {
+      if (i > 0) {
+        out.append(',');
+      }
+      label(labels[i], labels[i + 1]);
+    }
+    if (extraName != null) {
+      if (labels.length > 0) {
+        out.append(',');
+      }
+      label(extraName, extraValue);
+    }
+    out.append('}');
+  }
+
+  private void label(String name, String value) {
+    if (value == null) {
+      value = "";
+    }
+
+    out.append(name).append("=\"");
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '\\') {
+        out.append("\\\\");
+      } else if (c == '"') {
+        out.append("\\\"");
+      } else if (c == '\n') {
+        out.append("\\n");
+      } else {
+        out.append(c);
+      }
+    }
+    out.append('"');
+  }
+
+  private void value(double value) {
+    if (Double.isNaN(value)) {
+      out.append("NaN");
+    } else if (Double.isInfinite(value)) {
+      out.append(value > 0 ? "+Inf" : "-Inf");
+    } else if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+      out.append((long) value);
+    } else {
+      out.append(value);
+    }
+  }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2013, IT Services, Stockholm University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Stockholm University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package se.su.it.svc.server.profile;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Samples the stacks of the request threads for a bounded time and reports them as collapsed stacks, one line
+ * per distinct stack on the form "frame;frame;frame count", ready for flamegraph.pl or speedscope.
+ * <p/>
+ * Only one profile runs at a time. Each sample is a single {@link ThreadMXBean#getThreadInfo(long[], int)} call
+ * for the request threads, so the cost is one short safepoint per interval.
+ */
+public class SamplingProfiler {
+
+  /**
+   * What to sample.
+   */
+  public enum Mode {
+    /** Threads running code, leaving out threads idle in socket reads. */
+    CPU,
+    /** All request threads, whatever their state. */
+    WALL,
+    /** Threads blocked on a monitor or parked on a lock held by another thread, rooted at the lock class. */
+    LOCK
+  }
+
+  private static final Comparator<Map.Entry<String, int[]>> MOST_SAMPLES_FIRST = new Comparator<Map.Entry<String, int[]>>() {
+    @Override
+    public int compare(Map.Entry<String, int[]> a, Map.Entry<String, int[]> b) {
+      return b.getValue()[0] - a.getValue()[0];
+    }
+  };
+
+  private static final long THREAD_REFRESH_INTERVAL = 1000;
+
+  private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+  private final AtomicBoolean running = new AtomicBoolean();
+
+  private String threadNamePrefix = "";
+  private int maxDepth = 128;
+
+  /**
+   * @param threadNamePrefix the name prefix of the threads to sample, ex. the name of the request thread pool.
+   */
+  public void setThreadNamePrefix(String threadNamePrefix) {
+    this.threadNamePrefix = threadNamePrefix != null ? threadNamePrefix : "";
+  }
+
+  /**
+   * @param maxDepth the number of frames kept from the top of each stack.
+   */
+  public void setMaxDepth(int maxDepth) {
+    this.maxDepth = maxDepth;
+  }
+
+  /**
+   * @return true if a profile is running.
+   */
+  public boolean isRunning() {
+    return running.get();
+  }
+
+  /**
+   * Sample the request threads, blocking the calling thread until done.
+   *
+   * @param mode what to sample.
+   * @param duration how long to sample, in milliseconds.
+   * @param interval the time between samples, in milliseconds.
+   * @return the collapsed stacks, most sampled first.
+   * @throws IllegalStateException if a profile is already running.
+   * @throws InterruptedException if the calling thread is interrupted.
+   */
+  public String profile(Mode mode, long duration, long interval) throws InterruptedException {
+    if (!running.compareAndSet(false, true)) {
+      throw new IllegalStateException("A profile is already running.");
+    }
+
+    try {
+      return format(sample(mode, duration, interval));
+    } finally {
+      running.set(false);
+    }
+  }
+
+  private Map<String, int[]> sample(Mode mode, long duration, long interval) throws InterruptedException {
+    Map<String, int[]> stacks = new HashMap<String, int[]>();
+    StringBuilder sb = new StringBuilder(1024);
+
+    long end = System.currentTimeMillis() + duration;
+    long refreshed = 0;
+    long[] ids = new long[0];
+
+    for (long now = System.currentTimeMillis(); now < end; now = System.currentTimeMillis()) {
+      if (now - refreshed >= THREAD_REFRESH_INTERVAL) {
+        ids = findThreads();
+        refreshed = now;
+      }
+
+      for (ThreadInfo info : threads.getThreadInfo(ids, maxDepth)) {
+        if (info != null && collapse(mode, info, sb)) {
+          String stack = sb.toString();
+          int[] count = stacks.get(stack);
+          if (count == null) {
+            stacks.put(stack, new int[]{1});
+          } else {
+            count[0]++;
+          }
+        }
+      }
+
+      Thread.sleep(interval);
+    }
+
+    return stacks;
+  }
+
+  /**
+   * @return the ids of the request threads, except the one running the profile.
+   */
+  private long[] findThreads() {
+    long self = Thread.currentThread().getId();
+    List<Long> found = new ArrayList<Long>();
+
+    for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds(), 0)) {
+      if (info != null && info.getThreadId() != self && info.getThreadName().startsWith(threadNamePrefix)) {
+        found.add(info.getThreadId());
+      }
+    }
+
+    long[] ids = new long[found.size()];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = found.get(i);
+    }
+    return ids;
+  }
+
+  /**
+   * Write the stack of a thread as a collapsed stack, root first.
+   *
+   * @return false if the thread isn't of interest in this mode.
+   */
+  static boolean collapse(Mode mode, ThreadInfo info, StringBuilder sb) {
+    StackTraceElement[] frames = info.getStackTrace();
+    if (frames.length == 0) {
+      return false;
+    }
+
+    sb.setLength(0);
+    switch (mode) {
+      case CPU:
+        if (info.getThreadState() != Thread.State.RUNNABLE || isIdle(frames[0])) {
+          return false;
+        }
+        break;
+      case LOCK:
+        boolean blocked = info.getThreadState() == Thread.State.BLOCKED;
+        boolean parked = info.getLockOwnerId() != -1 && info.getLockInfo() != null;
+        if (!blocked && !parked) {
+          return false;
+        }
+        sb.append("lock ").append(info.getLockInfo().getClassName()).append(';');
+        break;
+      default:
+        break;
+    }
+
+    for (int i = frames.length - 1; i >= 0; i--) {
+      sb.append(frames[i].getClassName()).append('.').append(frames[i].getMethodName());
+      if (i > 0) {
+        sb.append(';');
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Threads waiting for the next request on a connection are RUNNABLE in a native socket read.
+   */
+  private static boolean isIdle(StackTraceElement top) {
+    return top.isNativeMethod()
+            && (top.getClassName().startsWith("java.net.") || top.getClassName().startsWith("sun.nio.ch."));
+  }
+
+  private static String format(Map<String, int[]> stacks) {
+    List<Map.Entry<String, int[]>> entries = new ArrayList<Map.Entry<String, int[]>>(stacks.entrySet());
+    Collections.sort(entries, MOST_SAMPLES_FIRST);
+
+    StringBuilder sb = new StringBuilder();
+    for (Map.Entry<String, int[]> entry : entries) {
+      sb.append(entry.getKey()).append(' ').append(entry.getValue()[0]).append('\n');
+    }
+    return sb.toString();
+  }
+}
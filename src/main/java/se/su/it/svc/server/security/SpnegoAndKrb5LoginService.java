@@ -39,6 +39,9 @@ import org.eclipse.jetty.util.B64Code;
 import org.eclipse.jetty.util.component.AbstractLifeCycle;
 import org.ietf.jgss.*;
 import org.slf4j.LoggerFactory;
+import se.su.it.svc.server.metrics.Counter;
+import se.su.it.svc.server.metrics.LatencyHistogram;
+import se.su.it.svc.server.metrics.MetricsRegistry;
 
 import javax.security.auth.Subject;
 
@@ -59,6 +62,13 @@ public final class SpnegoAndKrb5LoginService extends AbstractLifeCycle implement
 
   private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(SpnegoAndKrb5LoginService.class);
 
+  private static final Counter LOGIN_SUCCESS = MetricsRegistry.getDefault().counter(
+          "cxf_server_authentications_total", "GSS authentications by result.", "result", "success");
+  private static final Counter LOGIN_FAILURE = MetricsRegistry.getDefault().counter(
+          "cxf_server_authentications_total", "GSS authentications by result.", "result", "failure");
+  private static final LatencyHistogram GSS_TIME = MetricsRegistry.getDefault().histogram(
+          "cxf_server_gss_accept_microseconds", "Time to set up and accept a GSS security context.");
+
   private final String name;
   private IdentityService service;
   private final GSSName gssName;
@@ -98,6 +108,9 @@ public final class SpnegoAndKrb5LoginService extends AbstractLifeCycle implement
     //If set to true GSSAPI negotiation fails in HTTP accept.
     System.setProperty("javax.security.auth.useSubjectCredsOnly", "false");
 
+    long start = System.nanoTime();
+    boolean success = false;
+
     try {
       GSSContext gssContext = setupContext();
 
@@ -122,11 +135,16 @@ public final class SpnegoAndKrb5LoginService extends AbstractLifeCycle implement
       Subject subject = new Subject();
       subject.getPrincipals().add(user);
 
-      return service.newUserIdentity(subject, user, new String[]{role});
+      UserIdentity identity = service.newUserIdentity(subject, user, new String[]{role});
+      success = true;
+      return identity;
     } catch (GSSException gsse) {
       // Can't throw exception forward due to interface implementation
       LOG.info("GSS: Failed while validating credentials: " + gsse.getMessage());
       LOG.debug("", gsse);
+    } finally {
+      GSS_TIME.record((System.nanoTime() - start) / 1000);
+      (success ? LOGIN_SUCCESS : LOGIN_FAILURE).inc();
     }
 
     return null;
@@ -164,6 +182,22 @@ public final class SpnegoAndKrb5LoginService extends AbstractLifeCycle implement
     // No need to implement.
   }
 
+  /**
+   * Check that the acceptor credential for the target name can be acquired, ex. that the keytab is readable
+   * and holds a key for the service principal.
+   *
+   * @return the remaining lifetime of the credential in seconds.
+   * @throws GSSException if the credential can't be acquired.
+   */
+  public int checkCredential() throws GSSException {
+    GSSCredential serverCreds = manager.createCredential(gssName, GSSCredential.INDEFINITE_LIFETIME, mechs, GSSCredential.ACCEPT_ONLY);
+    try {
+      return serverCreds.getRemainingAcceptLifetime(mechs[0]);
+    } finally {
+      serverCreds.dispose();
+    }
+  }
+
   /**
    * Setup & return a GSSContext.
    *
@@ -32,6 +32,8 @@
 package se.su.it.svc.server.security;
 
 import org.slf4j.LoggerFactory;
+import se.su.it.svc.server.health.HealthMonitor;
+import se.su.it.svc.server.health.HealthProbe;
 import org.spocp.client.SPOCPConnection;
 import org.spocp.client.SPOCPConnectionFactoryImpl;
 import org.spocp.client.SPOCPResult;
@@ -63,6 +65,38 @@ public class SpocpRoleAuthorizor implements Authorizor {
 
   public void setSpocpConnectionFactory(SPOCPConnectionFactoryImpl spocpConnectionFactory) {
     this.spocpConnectionFactory = spocpConnectionFactory;
+
+    if (spocpConnectionFactory != null) {
+      HealthMonitor.getDefault().register(new HealthProbe() {
+        @Override
+        public String getName() {
+          return "spocp";
+        }
+
+        @Override
+        public String check() throws Exception {
+          checkConnection();
+          return null;
+        }
+      });
+    }
+  }
+
+  /**
+   * Check that a connection to the SPOCP server can be opened.
+   *
+   * @throws Exception if no connection can be opened.
+   */
+  public void checkConnection() throws Exception {
+    if (spocpConnectionFactory == null) {
+      throw new IllegalStateException("No SPOCPConnectionFactoryImpl has been set.");
+    }
+
+    SPOCPConnection spocp = spocpConnectionFactory.getConnection();
+    if (spocp == null) {
+      throw new IllegalStateException("Failed to connect to SPOCP.");
+    }
+    spocp.logout();
   }
 
   /**
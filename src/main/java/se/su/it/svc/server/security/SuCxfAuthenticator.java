@@ -37,15 +37,31 @@ import org.eclipse.jetty.security.authentication.SpnegoAuthenticator;
 import org.eclipse.jetty.server.Authentication;
 import org.eclipse.jetty.server.UserIdentity;
 import org.slf4j.LoggerFactory;
+import se.su.it.svc.server.filter.CorrelationIdHandler;
+import se.su.it.svc.server.limit.RateLimiter;
+import se.su.it.svc.server.timing.RequestTiming;
 
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
 
 public class SuCxfAuthenticator extends SpnegoAuthenticator {
 
   private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(SuCxfAuthenticator.class);
 
+  private RateLimiter rateLimiter = null;
+
+  /**
+   * Limit the rate of requests per authenticated principal.
+   *
+   * @param rateLimiter the rate limiter, or null for no limit.
+   */
+  public void setRateLimiter(RateLimiter rateLimiter) {
+    this.rateLimiter = rateLimiter;
+  }
+
   /**
    * Validate the request.
    * Any wsdl-query will get through.
@@ -70,9 +86,23 @@ public class SuCxfAuthenticator extends SpnegoAuthenticator {
       return _deferred;
     }
 
+    RequestTiming timing = RequestTiming.getOrCreate(request);
+    RequestTiming.Span span = timing.start(RequestTiming.Stage.AUTHENTICATION);
+    try {
+      return doValidateAndLog(request, response, mandatory, timing);
+    } finally {
+      span.end();
+    }
+  }
+
+  private Authentication doValidateAndLog(final ServletRequest request,
+                                          final ServletResponse response,
+                                          final boolean mandatory,
+                                          final RequestTiming timing) throws ServerAuthException {
     Authentication authentication = doValidateRequest(request, response, mandatory);
     HttpServletRequest httpRequest = (HttpServletRequest) request;
-    String infoMessage = "Authentication response to '" + httpRequest.getRequestURI() + "':";
+    String infoMessage = "[" + CorrelationIdHandler.getId(httpRequest) + "] Authentication response to '"
+            + httpRequest.getRequestURI() + "':";
 
     if (authentication instanceof UserAuthentication) {
       UserAuthentication userAuthentication = (UserAuthentication) authentication;
@@ -81,7 +111,14 @@ public class SuCxfAuthenticator extends SpnegoAuthenticator {
       if (identity != null && identity.getUserPrincipal() != null) {
 
         String principalName = identity.getUserPrincipal().getName();
+        timing.setPrincipal(principalName);
         infoMessage += " Negotiate: OK, user: " + principalName;
+
+        long wait = rateLimiter != null ? rateLimiter.tryAcquire(principalName) : 0;
+        if (wait > 0) {
+          LOG.info(infoMessage + ", rate limited");
+          return sendTooManyRequests((HttpServletResponse) response, wait);
+        }
       } else {
         authentication = Authentication.UNAUTHENTICATED;
         infoMessage += " Negotiate: OK, user: UNKNOWN, " + authentication;
@@ -95,6 +132,25 @@ public class SuCxfAuthenticator extends SpnegoAuthenticator {
     return authentication;
   }
 
+  /**
+   * Reject a request from a principal over its rate limit.
+   *
+   * @param response the response
+   * @param wait the time in nanoseconds until the principal may call again
+   * @return SEND_FAILURE, the response has been sent
+   * @throws ServerAuthException if the response can't be sent
+   */
+  private Authentication sendTooManyRequests(final HttpServletResponse response, final long wait)
+          throws ServerAuthException {
+    try {
+      response.setHeader("Retry-After", Long.toString(RateLimiter.toRetryAfter(wait)));
+      response.sendError(RateLimiter.SC_TOO_MANY_REQUESTS, "Rate limit exceeded");
+    } catch (IOException e) {
+      throw new ServerAuthException(e);
+    }
+    return Authentication.SEND_FAILURE;
+  }
+
   /**
    * Run the validateRequest super call. Exists solely to make testing of the validateRequest method simpler.
    *
@@ -0,0 +1,303 @@
+/*
+ * Copyright (c) 2013, IT Services, Stockholm University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Stockholm University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package se.su.it.svc.server.timing;
+
+import se.su.it.svc.server.filter.CorrelationIdHandler;
+
+import javax.servlet.ServletRequest;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * The time a request spends in each stage of the server, kept in a request attribute.
+ * <p/>
+ * Stages are timed with spans: {@link #start(ServletRequest, Stage, String)} starts one and {@link Span#end()}
+ * adds its duration to the stage. Every span is also emitted as a Java Flight Recorder event when the JVM
+ * supports JFR and a recording has the event enabled, see {@link StageEvents}.
+ * <p/>
+ * The web application shares this package with the server, so the authenticator and the aspects time the
+ * same object.
+ */
+public final class RequestTiming {
+  public static final String ATTRIBUTE = "se.su.it.svc.server.timing.RequestTiming";
+
+  /**
+   * The stages of a request.
+   */
+  public enum Stage {
+    AUTHENTICATION("auth"),
+    AUTHORIZATION("authz"),
+    SANITIZING("sanitize"),
+    AUDIT("audit"),
+    INVOCATION("invoke"),
+    SERIALIZATION("serialize");
+
+    private final String key;
+
+    Stage(String key) {
+      this.key = key;
+    }
+
+    /**
+     * @return a short name of the stage, ex. "authz".
+     */
+    public String getKey() {
+      return key;
+    }
+  }
+
+  private final long created = System.nanoTime();
+  private final String id;
+  private final long[] durations = new long[Stage.values().length];
+
+  private volatile String operation = null;
+  private volatile String principal = null;
+  private volatile Object[] arguments = null;
+  private volatile boolean[] hiddenArguments = null;
+  private volatile Object result = null;
+  private volatile boolean resultHidden = false;
+  private Span serialization = null;
+  private long stagedBeforeSerialization = 0;
+
+  RequestTiming(String id) {
+    this.id = id;
+  }
+
+  /**
+   * Get the timing of a request.
+   *
+   * @param request the request.
+   * @return the timing, or null if no stage of the request has been timed.
+   */
+  public static RequestTiming get(ServletRequest request) {
+    Object timing = request.getAttribute(ATTRIBUTE);
+    return timing instanceof RequestTiming ? (RequestTiming) timing : null;
+  }
+
+  /**
+   * Get the timing of a request, creating it if needed.
+   *
+   * @param request the request.
+   * @return the timing.
+   */
+  public static RequestTiming getOrCreate(ServletRequest request) {
+    RequestTiming timing = get(request);
+    if (timing == null) {
+      timing = new RequestTiming(CorrelationIdHandler.getId(request));
+      request.setAttribute(ATTRIBUTE, timing);
+    }
+    return timing;
+  }
+
+  /**
+   * Start timing a stage of a request.
+   *
+   * @param request the request, or null if unknown.
+   * @param stage the stage.
+   * @param operation the invoked operation, or null if not known yet.
+   * @return the span to end when the stage is done, never null.
+   */
+  public static Span start(ServletRequest request, Stage stage, String operation) {
+    if (request == null) {
+      return Span.NONE;
+    }
+
+    RequestTiming timing = getOrCreate(request);
+    if (operation != null) {
+      timing.operation = operation;
+    }
+    if (timing.principal == null && request instanceof HttpServletRequest) {
+      timing.principal = ((HttpServletRequest) request).getRemoteUser();
+    }
+
+    return timing.start(stage);
+  }
+
+  /**
+   * Start timing a stage.
+   *
+   * @param stage the stage.
+   * @return the span to end when the stage is done.
+   */
+  public Span start(Stage stage) {
+    Object event = StageEvents.begin();
+    return new Span(this, stage, System.nanoTime(), event);
+  }
+
+  /**
+   * Start timing the serialization of the response, ended by {@link #finish()}. Stages timed after this,
+   * ex. auditing the return value, are not counted as serialization.
+   */
+  public synchronized void startSerialization() {
+    if (serialization == null) {
+      serialization = start(Stage.SERIALIZATION);
+      stagedBeforeSerialization = getStaged();
+    }
+  }
+
+  /**
+   * End any stage still running when the request completes.
+   */
+  public synchronized void finish() {
+    if (serialization != null) {
+      serialization.end();
+      durations[Stage.SERIALIZATION.ordinal()] -= getStaged() - stagedBeforeSerialization;
+      serialization = null;
+    }
+  }
+
+  private long getStaged() {
+    long staged = 0;
+    for (Stage stage : Stage.values()) {
+      if (stage != Stage.SERIALIZATION) {
+        staged += durations[stage.ordinal()];
+      }
+    }
+    return staged;
+  }
+
+  private synchronized void add(Stage stage, long nanos) {
+    durations[stage.ordinal()] += nanos;
+  }
+
+  /**
+   * @param stage the stage.
+   * @return the time spent in the stage so far, in nanoseconds.
+   */
+  public synchronized long getDuration(Stage stage) {
+    return durations[stage.ordinal()];
+  }
+
+  /**
+   * @return the time since the first stage started, in nanoseconds.
+   */
+  public long getElapsed() {
+    return System.nanoTime() - created;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public String getOperation() {
+    return operation;
+  }
+
+  public void setOperation(String operation) {
+    this.operation = operation;
+  }
+
+  public String getPrincipal() {
+    return principal;
+  }
+
+  public void setPrincipal(String principal) {
+    this.principal = principal;
+  }
+
+  /**
+   * Keep the arguments of the web method, so the size of them can be reported if the request turns out slow.
+   *
+   * @param arguments the arguments.
+   * @param hiddenArguments for each argument, true if not even its size may be reported, or null.
+   */
+  public void setArguments(Object[] arguments, boolean[] hiddenArguments) {
+    this.arguments = arguments;
+    this.hiddenArguments = hiddenArguments;
+  }
+
+  public Object[] getArguments() {
+    return arguments;
+  }
+
+  /**
+   * @param index the argument index.
+   * @return true if the size of the argument may not be reported.
+   */
+  public boolean isArgumentHidden(int index) {
+    boolean[] hidden = hiddenArguments;
+    return hidden != null && index < hidden.length && hidden[index];
+  }
+
+  /**
+   * Keep the return value of the web method, so its size can be reported if the request turns out slow.
+   *
+   * @param result the return value.
+   * @param hidden true if not even the size of the value may be reported.
+   */
+  public void setResult(Object result, boolean hidden) {
+    this.result = result;
+    this.resultHidden = hidden;
+  }
+
+  public Object getResult() {
+    return result;
+  }
+
+  public boolean isResultHidden() {
+    return resultHidden;
+  }
+
+  /**
+   * A running stage.
+   */
+  public static class Span {
+    /**
+     * A span for requests that aren't timed, ending it does nothing.
+     */
+    public static final Span NONE = new Span(null, null, 0, null);
+
+    private final RequestTiming timing;
+    private final Stage stage;
+    private final long start;
+    private final Object event;
+    private boolean ended = false;
+
+    Span(RequestTiming timing, Stage stage, long start, Object event) {
+      this.timing = timing;
+      this.stage = stage;
+      this.start = start;
+      this.event = event;
+    }
+
+    /**
+     * End the stage, adding its duration to the request timing. Ending a span more than once has no effect.
+     */
+    public void end() {
+      if (timing == null || ended) {
+        return;
+      }
+      ended = true;
+
+      timing.add(stage, System.nanoTime() - start);
+      StageEvents.commit(event, stage, timing);
+    }
+  }
+}
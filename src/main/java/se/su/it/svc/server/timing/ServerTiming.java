@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2013, IT Services, Stockholm University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Stockholm University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package se.su.it.svc.server.timing;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+
+/**
+ * Reports the stage durations of a request to the client in a Server-Timing response header.
+ * <p/>
+ * The header is added for every request when enabled, otherwise only for requests carrying the configured
+ * token in the trusted request header. It is added when the web method returns, before the response is
+ * written, so serialization of the response is not included.
+ */
+public final class ServerTiming {
+  public static final String HEADER = "Server-Timing";
+
+  private static final ServerTiming DEFAULT = new ServerTiming();
+
+  private static final RequestTiming.Stage[] REPORTED = {
+          RequestTiming.Stage.AUTHENTICATION,
+          RequestTiming.Stage.AUTHORIZATION,
+          RequestTiming.Stage.SANITIZING,
+          RequestTiming.Stage.AUDIT,
+          RequestTiming.Stage.INVOCATION
+  };
+
+  private volatile boolean enabled = false;
+  private volatile String requestHeader = "X-Server-Timing";
+  private volatile byte[] token = null;
+
+  /**
+   * @return the instance shared by the server and the web application.
+   */
+  public static ServerTiming getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * @param enabled true to add the header to every response.
+   */
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  /**
+   * @param requestHeader the request header a client uses to ask for the header.
+   */
+  public void setRequestHeader(String requestHeader) {
+    this.requestHeader = requestHeader;
+  }
+
+  /**
+   * @param token the value the request header must have, or null to ignore the request header.
+   */
+  public void setToken(String token) {
+    this.token = token != null && token.length() > 0 ? getBytes(token) : null;
+  }
+
+  /**
+   * @param request the request.
+   * @return true if the durations of the request should be reported.
+   */
+  public boolean isRequested(HttpServletRequest request) {
+    if (enabled) {
+      return true;
+    }
+
+    byte[] expected = token;
+    if (expected == null) {
+      return false;
+    }
+
+    String value = request.getHeader(requestHeader);
+    return value != null && MessageDigest.isEqual(expected, getBytes(value));
+  }
+
+  /**
+   * Add the header to the response if it is requested and the response isn't committed yet.
+   *
+   * @param request the request.
+   * @param response the response, or null if unknown.
+   */
+  public void addHeader(HttpServletRequest request, HttpServletResponse response) {
+    if (response == null || !isRequested(request) || response.isCommitted()) {
+      return;
+    }
+
+    RequestTiming timing = RequestTiming.get(request);
+    if (timing != null) {
+      response.addHeader(HEADER, format(timing));
+    }
+  }
+
+  /**
+   * Format the stages of a request that took any time, ex. "auth;dur=1.250, invoke;dur=12.004".
+   *
+   * @param timing the request timing.
+   * @return the header value.
+   */
+  public static String format(RequestTiming timing) {
+    StringBuilder buf = new StringBuilder(96);
+    for (RequestTiming.Stage stage : REPORTED) {
+      long micros = timing.getDuration(stage) / 1000;
+      if (micros <= 0) {
+        continue;
+      }
+
+      if (buf.length() > 0) {
+        buf.append(", ");
+      }
+      buf.append(stage.getKey()).append(";dur=").append(micros / 1000).append('.');
+      long fraction = micros % 1000;
+      if (fraction < 100) {
+        buf.append('0');
+      }
+      if (fraction < 10) {
+        buf.append('0');
+      }
+      buf.append(fraction);
+    }
+    return buf.toString();
+  }
+
+  private static byte[] getBytes(String s) {
+    try {
+      return s.getBytes("UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
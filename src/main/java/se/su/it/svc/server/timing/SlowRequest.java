@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2013, IT Services, Stockholm University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Stockholm University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package se.su.it.svc.server.timing;
+
+import java.lang.reflect.Array;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * A request kept by the {@link SlowRequestRecorder}.
+ */
+public class SlowRequest {
+  private static final String HIDDEN = "******";
+
+  private final long time;
+  private final long duration;
+  private final String id;
+  private final String uri;
+  private final int status;
+  private final String operation;
+  private final String principal;
+  private final long queueWait;
+  private final long[] stages;
+  private final String argumentSizes;
+  private final String resultSize;
+
+  /**
+   * @param time when the request was received, in milliseconds since the epoch.
+   * @param duration the request duration in milliseconds.
+   * @param id the correlation id.
+   * @param uri the request uri.
+   * @param status the response status.
+   * @param principal the authenticated user, used if the timing has none.
+   * @param queueWait the time the request waited for a thread, in nanoseconds.
+   * @param timing the stage timing of the request, or null if no stage was timed.
+   */
+  public SlowRequest(long time, long duration, String id, String uri, int status, String principal, long queueWait,
+                     RequestTiming timing) {
+    this.time = time;
+    this.duration = duration;
+    this.id = id;
+    this.uri = uri;
+    this.status = status;
+    this.queueWait = queueWait;
+    this.stages = new long[RequestTiming.Stage.values().length];
+
+    if (timing != null) {
+      for (RequestTiming.Stage stage : RequestTiming.Stage.values()) {
+        stages[stage.ordinal()] = timing.getDuration(stage);
+      }
+      this.operation = timing.getOperation();
+      this.principal = timing.getPrincipal() != null ? timing.getPrincipal() : principal;
+      this.argumentSizes = describeArguments(timing);
+      this.resultSize = timing.getArguments() != null ? describeResult(timing) : null;
+    } else {
+      this.operation = null;
+      this.principal = principal;
+      this.argumentSizes = null;
+      this.resultSize = null;
+    }
+  }
+
+  private static String describeArguments(RequestTiming timing) {
+    Object[] args = timing.getArguments();
+    if (args == null) {
+      return null;
+    }
+
+    StringBuilder sb = new StringBuilder();
+    sb.append('[');
+    for (int i = 0; i < args.length; i++) {
+      if (i > 0) {
+        sb.append(", ");
+      }
+      sb.append(timing.isArgumentHidden(i) ? HIDDEN : describeSize(args[i]));
+    }
+    sb.append(']');
+    return sb.toString();
+  }
+
+  private static String describeResult(RequestTiming timing) {
+    return timing.isResultHidden() ? HIDDEN : describeSize(timing.getResult());
+  }
+
+  /**
+   * Describe the size of a value without rendering it.
+   *
+   * @param value the value.
+   * @return ex. "12 chars", "byte[2048]", "3 items", or the type name when the size isn't known.
+   */
+  static String describeSize(Object value) {
+    if (value == null) {
+      return "null";
+    }
+    if (value instanceof CharSequence) {
+      return ((CharSequence) value).length() + " chars";
+    }
+    if (value.getClass().isArray()) {
+      return value.getClass().getComponentType().getSimpleName() + "[" + Array.getLength(value) + "]";
+    }
+    if (value instanceof Collection) {
+      return ((Collection) value).size() + " items";
+    }
+    if (value instanceof Map) {
+      return ((Map) value).size() + " entries";
+    }
+    return value.getClass().getSimpleName();
+  }
+
+  /**
+   * @return when the request was received, in milliseconds since the epoch.
+   */
+  public long getTime() {
+    return time;
+  }
+
+  /**
+   * @return the request duration in milliseconds.
+   */
+  public long getDuration() {
+    return duration;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public String getUri() {
+    return uri;
+  }
+
+  public int getStatus() {
+    return status;
+  }
+
+  public String getOperation() {
+    return operation;
+  }
+
+  public String getPrincipal() {
+    return principal;
+  }
+
+  /**
+   * @return the time the request waited for a thread, in nanoseconds.
+   */
+  public long getQueueWait() {
+    return queueWait;
+  }
+
+  /**
+   * @param stage the stage.
+   * @return the time spent in the stage, in nanoseconds.
+   */
+  public long getStageDuration(RequestTiming.Stage stage) {
+    return stages[stage.ordinal()];
+  }
+
+  /**
+   * @return the sizes of the arguments, ex. "[12 chars, ******]", or null if the web method wasn't reached.
+   */
+  public String getArgumentSizes() {
+    return argumentSizes;
+  }
+
+  /**
+   * @return the size of the return value, or null if the web method wasn't reached.
+   */
+  public String getResultSize() {
+    return resultSize;
+  }
+}
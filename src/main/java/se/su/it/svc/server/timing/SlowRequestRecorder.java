@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) 2013, IT Services, Stockholm University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Stockholm University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package se.su.it.svc.server.timing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Keeps the slowest requests of each time window, and every request slower than a threshold, in memory.
+ * <p/>
+ * Each window holds the size slowest requests and a ring of the last maxOverThreshold requests over the
+ * threshold. The current and the previous window are kept. Recording never locks: slots are replaced with
+ * compare-and-set, and requests faster than every kept request are rejected by {@link #isCandidate(long)}
+ * before any entry is built.
+ */
+public class SlowRequestRecorder {
+  private static final Comparator<SlowRequest> SLOWEST_FIRST = new Comparator<SlowRequest>() {
+    @Override
+    public int compare(SlowRequest a, SlowRequest b) {
+      return a.getDuration() < b.getDuration() ? 1 : (a.getDuration() == b.getDuration() ? 0 : -1);
+    }
+  };
+
+  private static final Comparator<SlowRequest> LATEST_FIRST = new Comparator<SlowRequest>() {
+    @Override
+    public int compare(SlowRequest a, SlowRequest b) {
+      return a.getTime() < b.getTime() ? 1 : (a.getTime() == b.getTime() ? 0 : -1);
+    }
+  };
+
+  private int size = 20;
+  private int maxOverThreshold = 100;
+  private long threshold = 1000;
+  private long window = 60 * 1000L;
+
+  private final AtomicReference<Window> current = new AtomicReference<Window>();
+  private volatile Window previous = null;
+
+  /**
+   * @param size the number of slowest requests kept per window.
+   */
+  public void setSize(int size) {
+    this.size = size;
+  }
+
+  /**
+   * @param maxOverThreshold the number of requests over the threshold kept per window.
+   */
+  public void setMaxOverThreshold(int maxOverThreshold) {
+    this.maxOverThreshold = maxOverThreshold;
+  }
+
+  /**
+   * @param threshold the duration in milliseconds from which every request is kept.
+   */
+  public void setThreshold(long threshold) {
+    this.threshold = threshold;
+  }
+
+  public long getThreshold() {
+    return threshold;
+  }
+
+  /**
+   * @param window the length of a window in milliseconds.
+   */
+  public void setWindow(long window) {
+    this.window = window;
+  }
+
+  public long getWindow() {
+    return window;
+  }
+
+  /**
+   * @param duration the request duration in milliseconds.
+   * @return true if a request this slow would be kept.
+   */
+  public boolean isCandidate(long duration) {
+    return duration >= threshold || duration > getWindow(System.currentTimeMillis()).floor;
+  }
+
+  /**
+   * Keep a request if it is among the slowest of the window or over the threshold.
+   *
+   * @param request the request.
+   */
+  public void record(SlowRequest request) {
+    Window w = getWindow(System.currentTimeMillis());
+    if (request.getDuration() >= threshold) {
+      w.addOverThreshold(request);
+    }
+    w.offerSlowest(request);
+  }
+
+  /**
+   * @return the slowest requests of the current and previous window, slowest first.
+   */
+  public List<SlowRequest> getSlowest() {
+    List<SlowRequest> requests = new ArrayList<SlowRequest>();
+    for (Window w : getWindows()) {
+      w.collect(w.slowest, requests);
+    }
+    Collections.sort(requests, SLOWEST_FIRST);
+    return requests;
+  }
+
+  /**
+   * @return the requests over the threshold in the current and previous window, latest first.
+   */
+  public List<SlowRequest> getOverThreshold() {
+    List<SlowRequest> requests = new ArrayList<SlowRequest>();
+    for (Window w : getWindows()) {
+      w.collect(w.overThreshold, requests);
+    }
+    Collections.sort(requests, LATEST_FIRST);
+    return requests;
+  }
+
+  private List<Window> getWindows() {
+    long now = System.currentTimeMillis();
+    Window w = getWindow(now);
+
+    List<Window> windows = new ArrayList<Window>(2);
+    windows.add(w);
+    Window p = previous;
+    if (p != null && p != w && now - p.start < 2 * window) {
+      windows.add(p);
+    }
+    return windows;
+  }
+
+  private Window getWindow(long now) {
+    Window w = current.get();
+    if (w != null && now - w.start < window) {
+      return w;
+    }
+
+    Window next = new Window(now, size, maxOverThreshold);
+    if (current.compareAndSet(w, next)) {
+      previous = w;
+      return next;
+    }
+    return current.get();
+  }
+
+  private static final class Window {
+    private final long start;
+    private final AtomicReferenceArray<SlowRequest> slowest;
+    private final AtomicReferenceArray<SlowRequest> overThreshold;
+    private final AtomicLong overThresholdCount = new AtomicLong();
+
+    /** A duration every kept request is slower than, or -1 while there are free slots. Never above the real floor. */
+    private volatile long floor = -1;
+
+    private Window(long start, int size, int maxOverThreshold) {
+      this.start = start;
+      this.slowest = new AtomicReferenceArray<SlowRequest>(Math.max(1, size));
+      this.overThreshold = new AtomicReferenceArray<SlowRequest>(Math.max(1, maxOverThreshold));
+    }
+
+    private void addOverThreshold(SlowRequest request) {
+      long i = overThresholdCount.getAndIncrement();
+      overThreshold.set((int) (i % overThreshold.length()), request);
+    }
+
+    private void offerSlowest(SlowRequest request) {
+      while (true) {
+        int victim = -1;
+        SlowRequest fastest = null;
+        for (int i = 0; i < slowest.length(); i++) {
+          SlowRequest kept = slowest.get(i);
+          if (kept == null) {
+            victim = i;
+            fastest = null;
+            break;
+          }
+          if (fastest == null || kept.getDuration() < fastest.getDuration()) {
+            victim = i;
+            fastest = kept;
+          }
+        }
+
+        if (fastest != null && request.getDuration() <= fastest.getDuration()) {
+          return;
+        }
+        if (slowest.compareAndSet(victim, fastest, request)) {
+          updateFloor();
+          return;
+        }
+      }
+    }
+
+    private void updateFloor() {
+      long min = Long.MAX_VALUE;
+      for (int i = 0; i < slowest.length(); i++) {
+        SlowRequest kept = slowest.get(i);
+        if (kept == null) {
+          return;
+        }
+        min = Math.min(min, kept.getDuration());
+      }
+      // Slots are only replaced by slower requests, so the floor never goes down and a stale value is safe.
+      floor = min;
+    }
+
+    private void collect(AtomicReferenceArray<SlowRequest> slots, List<SlowRequest> requests) {
+      for (int i = 0; i < slots.length(); i++) {
+        SlowRequest request = slots.get(i);
+        if (request != null) {
+          requests.add(request);
+        }
+      }
+    }
+  }
+}
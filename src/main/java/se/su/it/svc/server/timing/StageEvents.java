@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2013, IT Services, Stockholm University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Stockholm University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package se.su.it.svc.server.timing;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Emits request stages as Java Flight Recorder events named "se.su.it.svc.server.RequestStage", with the stage,
+ * operation, principal and correlation id as fields.
+ * <p/>
+ * The event type is defined at runtime through jdk.jfr.EventFactory, since the server is built for JVMs without
+ * JFR. On those JVMs, and when no recording has the event enabled, spans don't create events at all.
+ */
+final class StageEvents {
+  private static final Logger LOG = LoggerFactory.getLogger(StageEvents.class);
+
+  static final String EVENT_NAME = "se.su.it.svc.server.RequestStage";
+
+  private static final Object FACTORY;
+  private static final Object EVENT_TYPE;
+  private static final Method NEW_EVENT;
+  private static final Method IS_ENABLED;
+  private static final Method BEGIN;
+  private static final Method END;
+  private static final Method SET;
+  private static final Method SHOULD_COMMIT;
+  private static final Method COMMIT;
+
+  static {
+    Object factory = null;
+    Object eventType = null;
+    Method newEvent = null;
+    Method isEnabled = null;
+    Method begin = null;
+    Method end = null;
+    Method set = null;
+    Method shouldCommit = null;
+    Method commit = null;
+
+    try {
+      Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+      Class<?> eventClass = Class.forName("jdk.jfr.Event");
+
+      Constructor<?> annotation = Class.forName("jdk.jfr.AnnotationElement").getConstructor(Class.class, Object.class);
+      List<Object> annotations = Arrays.asList(
+              annotation.newInstance(Class.forName("jdk.jfr.Name"), EVENT_NAME),
+              annotation.newInstance(Class.forName("jdk.jfr.Label"), "Request Stage"),
+              annotation.newInstance(Class.forName("jdk.jfr.Category"), new String[]{"CXF Server"}),
+              annotation.newInstance(Class.forName("jdk.jfr.StackTrace"), Boolean.FALSE));
+
+      Constructor<?> field = Class.forName("jdk.jfr.ValueDescriptor").getConstructor(Class.class, String.class);
+      List<Object> fields = Arrays.asList(
+              field.newInstance(String.class, "stage"),
+              field.newInstance(String.class, "operation"),
+              field.newInstance(String.class, "principal"),
+              field.newInstance(String.class, "correlationId"));
+
+      factory = factoryClass.getMethod("create", List.class, List.class).invoke(null, annotations, fields);
+      eventType = factoryClass.getMethod("getEventType").invoke(factory);
+      newEvent = factoryClass.getMethod("newEvent");
+      isEnabled = Class.forName("jdk.jfr.EventType").getMethod("isEnabled");
+      begin = eventClass.getMethod("begin");
+      end = eventClass.getMethod("end");
+      set = eventClass.getMethod("set", int.class, Object.class);
+      shouldCommit = eventClass.getMethod("shouldCommit");
+      commit = eventClass.getMethod("commit");
+    } catch (ClassNotFoundException e) {
+      LOG.debug("JFR is not available, request stages will not be recorded");
+      factory = null;
+    } catch (Exception e) {
+      LOG.warn("Failed to define JFR request stage event", e);
+      factory = null;
+    }
+
+    FACTORY = factory;
+    EVENT_TYPE = eventType;
+    NEW_EVENT = newEvent;
+    IS_ENABLED = isEnabled;
+    BEGIN = begin;
+    END = end;
+    SET = set;
+    SHOULD_COMMIT = shouldCommit;
+    COMMIT = commit;
+  }
+
+  private StageEvents() {
+  }
+
+  /**
+   * @return true if JFR is available on this JVM.
+   */
+  static boolean isAvailable() {
+    return FACTORY != null;
+  }
+
+  /**
+   * Begin an event if any recording has the event enabled.
+   *
+   * @return the event, or null if no event should be recorded.
+   */
+  static Object begin() {
+    if (FACTORY == null) {
+      return null;
+    }
+
+    try {
+      if (!(Boolean) IS_ENABLED.invoke(EVENT_TYPE)) {
+        return null;
+      }
+      Object event = NEW_EVENT.invoke(FACTORY);
+      BEGIN.invoke(event);
+      return event;
+    } catch (Exception e) {
+      LOG.debug("Failed to begin JFR request stage event", e);
+      return null;
+    }
+  }
+
+  /**
+   * End and commit an event.
+   *
+   * @param event the event from {@link #begin()}, or null.
+   * @param stage the stage.
+   * @param timing the request timing.
+   */
+  static void commit(Object event, RequestTiming.Stage stage, RequestTiming timing) {
+    if (event == null) {
+      return;
+    }
+
+    try {
+      END.invoke(event);
+      if (!(Boolean) SHOULD_COMMIT.invoke(event)) {
+        return;
+      }
+      SET.invoke(event, 0, stage.getKey());
+      SET.invoke(event, 1, timing.getOperation());
+      SET.invoke(event, 2, timing.getPrincipal());
+      SET.invoke(event, 3, timing.getId());
+      COMMIT.invoke(event);
+    } catch (Exception e) {
+      LOG.debug("Failed to commit JFR request stage event", e);
+    }
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2013, IT Services, Stockholm University
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of Stockholm University nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package se.su.it.svc.server.timing;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A job queue for the Jetty thread pool that measures how long each job waited for a thread.
+ * <p/>
+ * Jobs are wrapped when queued, and the wait is kept for the thread running the job until the first request
+ * it handles takes it with {@link #consumeWait()}. Later requests on the same connection did not wait.
+ * <p/>
+ * The queue can be limited at runtime. Jobs offered to a full queue are rejected, which makes Jetty close
+ * the connection instead of letting it wait.
+ */
+public class TimedJobQueue extends LinkedBlockingQueue<Runnable> {
+  private static final long serialVersionUID = 1L;
+
+  private static final ThreadLocal<long[]> WAIT = new ThreadLocal<long[]>() {
+    @Override
+    protected long[] initialValue() {
+      return new long[1];
+    }
+  };
+
+  private volatile int limit = Integer.MAX_VALUE;
+  private final AtomicLong rejected = new AtomicLong();
+
+  /**
+   * @param limit the number of jobs that can wait for a thread before new jobs are rejected.
+   */
+  public void setLimit(int limit) {
+    this.limit = limit > 0 ? limit : Integer.MAX_VALUE;
+  }
+
+  public int getLimit() {
+    return limit;
+  }
+
+  /**
+   * @return the number of jobs rejected because the queue was full.
+   */
+  public long getRejected() {
+    return rejected.get();
+  }
+
+  @Override
+  public boolean offer(Runnable job) {
+    if (size() >= limit) {
+      rejected.incrementAndGet();
+      return false;
+    }
+    return super.offer(new TimedJob(job));
+  }
+
+  @Override
+  public boolean offer(Runnable job, long timeout, TimeUnit unit) throws InterruptedException {
+    if (size() >= limit) {
+      rejected.incrementAndGet();
+      return false;
+    }
+    return super.offer(new TimedJob(job), timeout, unit);
+  }
+
+  @Override
+  public void put(Runnable job) throws InterruptedException {
+    super.put(new TimedJob(job));
+  }
+
+  /**
+   * Take the time the job running on this thread waited in the queue.
+   *
+   * @return the wait in nanoseconds, or 0 if it has already been taken or the job wasn't queued.
+   */
+  public static long consumeWait() {
+    long[] wait = WAIT.get();
+    long nanos = wait[0];
+    wait[0] = 0;
+    return nanos;
+  }
+
+  private static final class TimedJob implements Runnable {
+    private final Runnable job;
+    private final long queued = System.nanoTime();
+
+    private TimedJob(Runnable job) {
+      this.job = job;
+    }
+
+    @Override
+    public void run() {
+      long[] wait = WAIT.get();
+      wait[0] = System.nanoTime() - queued;
+      try {
+        job.run();
+      } finally {
+        wait[0] = 0;
+      }
+    }
+
+    @Override
+    public String toString() {
+      return job.toString();
+    }
+  }
+}
@@ -0,0 +1,102 @@
+package se.su.it.svc.server.aspect
+
+import groovy.transform.CompileStatic
+
+/**
+ * Microbenchmark of ArgumentSanitizer against the top level washing it replaced. Not a unit test, run it from
+ * the test classpath, ex.
+ * <pre>
+ * mvn test-compile exec:java -Dexec.mainClass=se.su.it.svc.server.aspect.ArgumentSanitizerBenchmark \
+ *   -Dexec.classpathScope=test
+ * </pre>
+ * Prints the warmed up time per call in nanoseconds.
+ */
+@CompileStatic
+class ArgumentSanitizerBenchmark {
+  private static final int WARMUP = 500000
+  private static final int ITERATIONS = 5000000
+
+  static class Address {
+    String street
+    String city
+  }
+
+  static class Person {
+    String uid
+    String givenName
+    String sn
+    List<String> mail
+    Address address
+    Person manager
+    Person assistant
+  }
+
+  static void main(String[] args) {
+    ArgumentSanitizer sanitizer = new ArgumentSanitizer()
+
+    Object[] simple = ['foo', 'bar', 1] as Object[]
+
+    Person manager = new Person()
+    manager.uid = ' bar '
+    Person person = new Person()
+    person.uid = ' foo '
+    person.givenName = 'Foo'
+    person.sn = 'Bar '
+    person.mail = [' foo@su.se', 'foo@example.com']
+    person.address = new Address()
+    person.address.street = ' Universitetsvagen 10 '
+    person.manager = manager
+    Object[] nested = ['foo', person, 1, ['a', 'b']] as Object[]
+
+    // Every level refers to the next one twice, a depth limit alone walks 2^n paths
+    Person shared = new Person()
+    for (int i = 0; i < 24; i++) {
+      Person level = new Person()
+      level.uid = 'foo'
+      level.manager = shared
+      level.assistant = shared
+      shared = level
+    }
+    Object[] graph = [shared] as Object[]
+
+    report('simple', sanitizer, simple)
+    report('nested', sanitizer, nested)
+    report('shared', sanitizer, graph)
+  }
+
+  private static void report(String name, ArgumentSanitizer sanitizer, Object[] args) {
+    run(sanitizer, false, args, WARMUP)
+    run(sanitizer, true, args, WARMUP)
+
+    double sanitized = run(sanitizer, false, args, ITERATIONS)
+    double washed = run(sanitizer, true, args, ITERATIONS)
+    println String.format('%-8s sanitize %8.1f ns/op   top level wash %8.1f ns/op', name, sanitized, washed)
+  }
+
+  private static double run(ArgumentSanitizer sanitizer, boolean wash, Object[] args, int iterations) {
+    long sink = 0
+    long start = System.nanoTime()
+    for (int i = 0; i < iterations; i++) {
+      Object[] result = wash ? washArgs(args) : sanitizer.sanitize(args)
+      sink += result.length
+    }
+    long elapsed = System.nanoTime() - start
+
+    if (sink == 0) {
+      println 'No arguments'
+    }
+    return (double) elapsed / iterations
+  }
+
+  /**
+   * The washing of SanitizeWebParametersAspect before ArgumentSanitizer: only top level strings, always a copy.
+   */
+  private static Object[] washArgs(Object[] args) {
+    Object[] washedArgs = new Object[args.length]
+    for (int i = 0; i < args.length; i++) {
+      Object arg = args[i]
+      washedArgs[i] = arg instanceof String ? ((String) arg).trim() : arg
+    }
+    return washedArgs
+  }
+}
@@ -0,0 +1,115 @@
+package se.su.it.svc.server.aspect
+
+import org.junit.Test
+
+import javax.xml.bind.JAXBElement
+import javax.xml.namespace.QName
+
+class ArgumentSanitizerTest {
+
+  static class Address {
+    String street
+    String city
+  }
+
+  static class Person {
+    String uid
+    int age
+    List<String> mail
+    Map<String, Object> attributes
+    String[] nicknames
+    Address address
+    Person manager
+  }
+
+  @Test
+  void "sanitize returns the same array when nothing is trimmed"() {
+    Object[] args = ["foo", 1, new Person(uid: 'bar', mail: ['a@su.se'])]
+
+    def ret = new ArgumentSanitizer().sanitize(args)
+
+    assert ret.is(args)
+  }
+
+  @Test
+  void "sanitize copies the array when a top level string is trimmed"() {
+    Object[] args = [" foo ", 1]
+
+    def ret = new ArgumentSanitizer().sanitize(args)
+
+    assert !ret.is(args)
+    assert ret == ["foo", 1] as Object[]
+    assert args[0] == " foo "
+  }
+
+  @Test
+  void "sanitize trims nested strings in place"() {
+    def person = new Person(
+            uid: ' foo ',
+            mail: [' a@su.se', 'b@su.se '],
+            attributes: [title: ' boss '],
+            nicknames: [' f '] as String[],
+            address: new Address(street: 'Universitetsvagen 10 ', city: ' Stockholm'))
+    Object[] args = [person]
+
+    def ret = new ArgumentSanitizer().sanitize(args)
+
+    assert ret.is(args)
+    assert person.uid == 'foo'
+    assert person.mail == ['a@su.se', 'b@su.se']
+    assert person.attributes.title == 'boss'
+    assert person.nicknames == ['f'] as String[]
+    assert person.address.street == 'Universitetsvagen 10'
+    assert person.address.city == 'Stockholm'
+  }
+
+  @Test
+  void "sanitize trims strings in JAXBElements"() {
+    def element = new JAXBElement<String>(new QName('uid'), String, ' foo ')
+
+    new ArgumentSanitizer().sanitize([element] as Object[])
+
+    assert element.value == 'foo'
+  }
+
+  @Test
+  void "sanitize leaves unmodifiable collections as they are"() {
+    def mail = Collections.unmodifiableList([' a@su.se'])
+
+    new ArgumentSanitizer().sanitize([new Person(mail: mail)] as Object[])
+
+    assert mail == [' a@su.se']
+  }
+
+  @Test
+  void "sanitize stops at cycles"() {
+    def person = new Person(uid: ' foo ')
+    person.manager = person
+
+    new ArgumentSanitizer().sanitize([person] as Object[])
+
+    assert person.uid == 'foo'
+  }
+
+  @Test(timeout = 10000L)
+  void "sanitize walks values shared within the arguments once"() {
+    def last = new Person(uid: ' last ')
+    def next = last
+    40.times { next = new Person(uid: ' foo ', manager: next, attributes: [other: next]) }
+
+    new ArgumentSanitizer().sanitize([next] as Object[])
+
+    assert next.uid == 'foo'
+    assert last.uid == 'last'
+  }
+
+  @Test
+  void "sanitize caches one sanitizer per type"() {
+    def sanitizer = new ArgumentSanitizer()
+
+    sanitizer.sanitize([new Person(address: new Address())] as Object[])
+    sanitizer.sanitize([new Person(address: new Address())] as Object[])
+
+    assert sanitizer.cachedTypes == 2
+  }
+}
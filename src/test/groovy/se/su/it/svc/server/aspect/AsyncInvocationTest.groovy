@@ -0,0 +1,104 @@
+package se.su.it.svc.server.aspect
+
+import org.eclipse.jetty.continuation.Continuation
+import org.eclipse.jetty.continuation.ContinuationListener
+import org.junit.Test
+
+import javax.servlet.http.HttpServletRequest
+import javax.xml.ws.AsyncHandler
+import javax.xml.ws.Response
+import java.util.concurrent.ExecutionException
+
+class AsyncInvocationTest {
+
+  private static AsyncInvocation.Listener listener(List events) {
+    [completed: { events << "completed $it".toString() }, failed: { events << "failed ${it.message}".toString() }] as AsyncInvocation.Listener
+  }
+
+  @Test
+  void "isAsync checks for an AsyncHandler last"() {
+    assert AsyncInvocation.isAsync(['foo', {} as AsyncHandler] as Object[])
+    assert !AsyncInvocation.isAsync(['foo'] as Object[])
+    assert !AsyncInvocation.isAsync([] as Object[])
+  }
+
+  @Test
+  void "listeners run before the handler gets the response"() {
+    def events = []
+    def invocation = new AsyncInvocation(null)
+    def handler = invocation.wrap({ events << 'handler' } as AsyncHandler)
+    invocation.addListener(listener(events))
+
+    handler.handleResponse([get: { 'Foo' }] as Response)
+
+    assert events == ['completed Foo', 'handler']
+  }
+
+  @Test
+  void "listeners added after completion run at once"() {
+    def events = []
+    def invocation = new AsyncInvocation(null)
+    invocation.wrap({} as AsyncHandler).handleResponse([get: { 'Foo' }] as Response)
+
+    invocation.addListener(listener(events))
+
+    assert events == ['completed Foo']
+  }
+
+  @Test
+  void "listeners get the cause of failures"() {
+    def events = []
+    def invocation = new AsyncInvocation(null)
+    invocation.addListener(listener(events))
+
+    invocation.wrap({} as AsyncHandler).handleResponse(
+            [get: { throw new ExecutionException(new IllegalStateException('down')) }] as Response)
+
+    assert events == ['failed down']
+  }
+
+  @Test
+  void "setCurrent returns the replaced invocation"() {
+    def invocation = new AsyncInvocation(null)
+
+    assert AsyncInvocation.setCurrent(invocation) == null
+    assert AsyncInvocation.current().is(invocation)
+    assert AsyncInvocation.setCurrent(null).is(invocation)
+    assert AsyncInvocation.current() == null
+  }
+
+  private static List<ContinuationListener> suspend(AsyncInvocation invocation) {
+    def continuationListeners = []
+    def continuation = [addContinuationListener: { continuationListeners << it }] as Continuation
+    invocation.completeWith([getAttribute: { continuation }] as HttpServletRequest)
+    continuationListeners
+  }
+
+  @Test
+  void "calls fail once when the request times out before the handler is called"() {
+    def events = []
+    def invocation = new AsyncInvocation(null)
+    def handler = invocation.wrap({ events << 'handler' } as AsyncHandler)
+    def continuationListeners = suspend(invocation)
+    invocation.addListener(listener(events))
+
+    continuationListeners*.onTimeout(null)
+    continuationListeners*.onComplete(null)
+    handler.handleResponse([get: { 'Foo' }] as Response)
+
+    assert events == ['failed The asynchronous call timed out', 'handler']
+  }
+
+  @Test
+  void "calls completed by the handler are not failed when the request completes"() {
+    def events = []
+    def invocation = new AsyncInvocation(null)
+    def continuationListeners = suspend(invocation)
+    invocation.addListener(listener(events))
+
+    invocation.wrap({} as AsyncHandler).handleResponse([get: { 'Foo' }] as Response)
+    continuationListeners*.onComplete(null)
+
+    assert events == ['completed Foo']
+  }
+}
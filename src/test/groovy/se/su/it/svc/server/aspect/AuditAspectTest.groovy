@@ -2,14 +2,21 @@ package se.su.it.svc.server.aspect
 
 import org.apache.cxf.message.Message
 import org.apache.cxf.phase.PhaseInterceptorChain
+import org.aspectj.lang.JoinPoint
+import org.aspectj.lang.reflect.MethodSignature
 import org.junit.Test
 import org.junit.runner.RunWith
 import org.powermock.core.classloader.annotations.PrepareForTest
 import org.powermock.modules.junit4.PowerMockRunner
-import org.powermock.reflect.Whitebox
+import se.su.it.svc.server.annotations.AuditHideArgument
+import se.su.it.svc.server.annotations.AuditHideReturnValue
+import se.su.it.svc.server.annotations.AuditSample
+import se.su.it.svc.server.audit.AuditPolicy
+import se.su.it.svc.server.filter.CorrelationIdHandler
+import se.su.it.svc.server.metrics.LatencyRegistry
 
 import javax.servlet.http.HttpServletRequest
-import javax.servlet.http.HttpSession
+import java.lang.reflect.Method
 
 import static org.easymock.EasyMock.expect
 import static org.powermock.api.easymock.PowerMock.*
@@ -26,6 +33,14 @@ class AuditAspectTest {
 
     public void method2(String s) { }
 
+    @AuditHideReturnValue
+    public boolean method3(boolean b) { b }
+
+    public void method4(@AuditHideArgument String secret, String s) { }
+
+    @AuditSample
+    public String method5(String s) { s }
+
     @Override
     public String toString() {
       "FooBar"
@@ -33,46 +48,81 @@ class AuditAspectTest {
   }
 
   @Test
-  void "getMethod gets correct method"() {
-    def ret = Whitebox.invokeMethod(new AuditAspect(),
-            'getMethod',
-            DummyCalss,
-            'method1',
-            new Object[0]
-    )
+  void "getPolicy resolves policy for method"() {
+    def ret = new AuditAspect().getPolicy(mockJoinPoint(DummyCalss.getMethod('method2', String)))
 
-    assert ret == DummyCalss.getMethod('method1')
+    assert !ret.skip
+    assert !ret.hideReturnValue
   }
 
   @Test
-  void "getMethod gets correct method with args"() {
-    def ret = Whitebox.invokeMethod(new AuditAspect(),
-            'getMethod',
-            DummyCalss,
-            'method2',
-            ['foo'] as Object[]
-    )
+  void "getPolicy caches policy per method"() {
+    def aspect = new AuditAspect()
+    def method = DummyCalss.getMethod('method1')
 
-    assert ret == DummyCalss.getMethod('method2', String)
+    def first = aspect.getPolicy(mockJoinPoint(method))
+    def second = aspect.getPolicy(mockJoinPoint(method))
+
+    assert first.is(second)
   }
 
-  @Test(expected = NoSuchMethodException)
-  void "getMethod with unknown method"() {
-    Whitebox.invokeMethod(new AuditAspect(),
-            'getMethod',
-            DummyCalss,
-            'method3',
-            [] as Object[]
-    )
+  @Test
+  void "getPolicy handles primitive parameters"() {
+    def ret = new AuditAspect().getPolicy(mockJoinPoint(DummyCalss.getMethod('method3', boolean)))
+
+    assert ret.hideReturnValue
   }
 
   @Test
-  void "getId happy path"() {
-    def session = createMock(HttpSession)
-    expect(session.getId()).andReturn('ID')
+  void "putSampling resolves policies again"() {
+    def aspect = new AuditAspect()
+    def method = DummyCalss.getMethod('method5', String)
+    def sampler = aspect.getPolicy(mockJoinPoint(method)).sampler
+    assert sampler.rate == 1.0d
+
+    aspect.putSampling('method5', '0.5,2')
+
+    assert aspect.getPolicy(mockJoinPoint(method)).sampler.rate == 0.5d
+    assert aspect.sampling.getProperty('method5') == '0.5,2'
+
+    aspect.removeSampling('method5')
+
+    assert aspect.getPolicy(mockJoinPoint(method)).sampler.rate == 1.0d
+    assert aspect.policyCacheSize == 1
+  }
+
+  @Test
+  void "putSampling keeps the counts of the sampler"() {
+    def aspect = new AuditAspect()
+    def method = DummyCalss.getMethod('method5', String)
+    def sampler = aspect.getPolicy(mockJoinPoint(method)).sampler
+    sampler.sample()
+
+    aspect.putSampling('method5', '0.5')
+
+    assert aspect.getPolicy(mockJoinPoint(method)).sampler.is(sampler)
+    assert sampler.drainAudited() == 1
+  }
+
+  @Test
+  void "putSampling does not sample methods without @AuditSample"() {
+    def aspect = new AuditAspect()
+    def method = DummyCalss.getMethod('method1')
+
+    aspect.putSampling('method1', '0.5,2')
 
+    assert aspect.getPolicy(mockJoinPoint(method)).sampler == null
+  }
+
+  @Test(expected = IllegalArgumentException)
+  void "putSampling rejects invalid sampling"() {
+    new AuditAspect().putSampling('method1', 'often')
+  }
+
+  @Test
+  void "getId happy path"() {
     def request = createMock(HttpServletRequest)
-    expect(request.getSession()).andReturn(session)
+    expect(request.getAttribute(CorrelationIdHandler.ATTRIBUTE)).andReturn('ID')
 
     def message = createMock(Message)
     expect(message.get('HTTP.REQUEST')).andReturn(request)
@@ -80,13 +130,31 @@ class AuditAspectTest {
     mockStatic(PhaseInterceptorChain)
     expect(PhaseInterceptorChain.getCurrentMessage()).andReturn(message)
 
-    replayAll(PhaseInterceptorChain, message, request, session)
+    replayAll(PhaseInterceptorChain, message, request)
 
     def ret = new AuditAspect().getId()
 
     assert ret == "ID"
   }
 
+  @Test
+  void "getId returns empty string without correlation id"() {
+    def request = createMock(HttpServletRequest)
+    expect(request.getAttribute(CorrelationIdHandler.ATTRIBUTE)).andReturn(null)
+
+    def message = createMock(Message)
+    expect(message.get('HTTP.REQUEST')).andReturn(request)
+
+    mockStatic(PhaseInterceptorChain)
+    expect(PhaseInterceptorChain.getCurrentMessage()).andReturn(message)
+
+    replayAll(PhaseInterceptorChain, message, request)
+
+    def ret = new AuditAspect().getId()
+
+    assert ret == ""
+  }
+
   @Test
   void "getId handles exception"() {
     mockStatic(PhaseInterceptorChain)
@@ -98,6 +166,33 @@ class AuditAspectTest {
     assert ret == ""
   }
 
+  @Test
+  void "setOperation sets operation on request"() {
+    def request = createMock(HttpServletRequest)
+    request.setAttribute(LatencyRegistry.OPERATION_ATTRIBUTE, 'method1')
+
+    def message = createMock(Message)
+    expect(message.get('HTTP.REQUEST')).andReturn(request)
+
+    mockStatic(PhaseInterceptorChain)
+    expect(PhaseInterceptorChain.getCurrentMessage()).andReturn(message)
+
+    replayAll(PhaseInterceptorChain, message, request)
+
+    new AuditAspect().setOperation('method1')
+
+    verifyAll()
+  }
+
+  @Test
+  void "setOperation handles exception"() {
+    mockStatic(PhaseInterceptorChain)
+    expect(PhaseInterceptorChain.getCurrentMessage()).andThrow(new NullPointerException('foo'))
+    replay(PhaseInterceptorChain)
+
+    new AuditAspect().setOperation('method1')
+  }
+
   @Test
   void "objectsToString happy path"() {
     def objs = ["foo", true, 1, new DummyCalss()] as Object[]
@@ -107,10 +202,31 @@ class AuditAspectTest {
     assert ret == "[foo, true, 1, FooBar]"
   }
 
+  @Test
+  void "objectsToString applies policy"() {
+    def policy = AuditPolicy.forMethod(DummyCalss.getMethod('method4', String, String))
+
+    def ret = new AuditAspect().objectsToString(["secret", "foo"] as Object[], policy)
+
+    assert ret == "[******, foo]"
+  }
+
   @Test
   void "objectsToString handles null"() {
     def ret =  new AuditAspect().objectsToString(null)
 
     assert ret == "null"
   }
+
+  private JoinPoint mockJoinPoint(Method method) {
+    def signature = createMock(MethodSignature)
+    expect(signature.getMethod()).andReturn(method).anyTimes()
+
+    def joinPoint = createMock(JoinPoint)
+    expect(joinPoint.getSignature()).andReturn(signature).anyTimes()
+
+    replay(signature, joinPoint)
+
+    joinPoint
+  }
 }
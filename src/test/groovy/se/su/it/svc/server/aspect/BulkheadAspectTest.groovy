@@ -0,0 +1,81 @@
+package se.su.it.svc.server.aspect
+
+import org.apache.cxf.interceptor.Fault
+import org.aspectj.lang.ProceedingJoinPoint
+import org.aspectj.lang.Signature
+import org.easymock.IAnswer
+import org.junit.Test
+import se.su.it.svc.server.annotations.ConcurrencyLimit
+import se.su.it.svc.server.metrics.MetricsRegistry
+
+import static org.easymock.EasyMock.*
+
+class BulkheadAspectTest {
+
+  @ConcurrencyLimit(1)
+  static class UserService {
+    public String getUser(String uid) { name(uid) }
+
+    public String name(String uid) { uid }
+  }
+
+  private static ProceedingJoinPoint joinPoint(String name, IAnswer answer) {
+    def signature = createMock(Signature)
+    expect(signature.getName()).andReturn(name).anyTimes()
+    expect(signature.getDeclaringTypeName()).andReturn(UserService.name).anyTimes()
+
+    def joinPoint = createMock(ProceedingJoinPoint)
+    expect(joinPoint.getSignature()).andReturn(signature).anyTimes()
+    expect(joinPoint.getTarget()).andReturn(new UserService()).anyTimes()
+    expect(joinPoint.proceed()).andAnswer(answer).anyTimes()
+
+    replay(signature, joinPoint)
+    joinPoint
+  }
+
+  @Test
+  void "a call runs methods of its own service in the slot it holds"() {
+    def aspect = new BulkheadAspect()
+    def inner = joinPoint('name', { 'foo' } as IAnswer)
+    def outer = joinPoint('getUser', {
+      assert aspect.getBulkhead(UserService.name).inUse == 1
+      aspect.withClassAnnotation(inner)
+    } as IAnswer)
+
+    assert aspect.withClassAnnotation(outer) == 'foo'
+    assert aspect.getBulkhead(UserService.name).inUse == 0
+    assert aspect.getBulkhead(UserService.name).rejected == 0L
+  }
+
+  @Test
+  void "a call is rejected when another call holds the slot"() {
+    def aspect = new BulkheadAspect()
+    def rejected = null
+    def other = joinPoint('getUser', { 'bar' } as IAnswer)
+    def outer = joinPoint('getUser', {
+      Thread.start {
+        try {
+          aspect.withClassAnnotation(other)
+        } catch (Fault e) {
+          rejected = e
+        }
+      }.join()
+      'foo'
+    } as IAnswer)
+
+    assert aspect.withClassAnnotation(outer) == 'foo'
+    assert rejected != null
+    assert aspect.getBulkhead(UserService.name).inUse == 0
+  }
+
+  @Test
+  void "the bulkhead in use publishes its slots"() {
+    def aspect = new BulkheadAspect()
+    def outer = joinPoint('getUser', {
+      MetricsRegistry.default.scrape()
+    } as IAnswer)
+
+    assert aspect.withClassAnnotation(outer).contains(
+            'cxf_server_bulkhead_in_use{bulkhead="' + UserService.name + '"} 1')
+  }
+}
@@ -0,0 +1,100 @@
+package se.su.it.svc.server.aspect
+
+import org.apache.cxf.interceptor.InterceptorChain
+import org.apache.cxf.message.Message
+import org.apache.cxf.phase.PhaseInterceptorChain
+import org.aspectj.lang.ProceedingJoinPoint
+import org.aspectj.lang.reflect.MethodSignature
+import org.easymock.IAnswer
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.powermock.core.classloader.annotations.PrepareForTest
+import org.powermock.modules.junit4.PowerMockRunner
+import se.su.it.svc.server.annotations.HttpGet
+import se.su.it.svc.server.filter.HttpCacheFilter
+
+import javax.servlet.http.HttpServletRequest
+import javax.servlet.http.HttpServletResponse
+import java.lang.reflect.Method
+
+import static org.easymock.EasyMock.anyObject
+import static org.easymock.EasyMock.eq
+import static org.easymock.EasyMock.expect
+import static org.powermock.api.easymock.PowerMock.*
+
+@RunWith(PowerMockRunner)
+@PrepareForTest([PhaseInterceptorChain])
+class HttpGetAspectTest {
+
+  static class UserService {
+    @HttpGet(maxAge = 30)
+    public String getUser(String uid) { name(uid) }
+
+    public String name(String uid) { uid }
+
+    public void setUser(String uid) { }
+  }
+
+  private static ProceedingJoinPoint joinPoint(Method method, IAnswer answer) {
+    def signature = createMock(MethodSignature)
+    expect(signature.getMethod()).andReturn(method).anyTimes()
+    expect(signature.getName()).andReturn(method.name).anyTimes()
+
+    def joinPoint = createMock(ProceedingJoinPoint)
+    expect(joinPoint.getSignature()).andReturn(signature).anyTimes()
+    expect(joinPoint.getArgs()).andReturn(['foo'] as Object[]).anyTimes()
+    if (answer != null) {
+      expect(joinPoint.proceed()).andAnswer(answer)
+    }
+    joinPoint
+  }
+
+  private static HttpServletRequest get(Message message) {
+    def request = createNiceMock(HttpServletRequest)
+    expect(request.getMethod()).andReturn('GET').anyTimes()
+    expect(message.get('HTTP.REQUEST')).andReturn(request).anyTimes()
+
+    mockStatic(PhaseInterceptorChain)
+    expect(PhaseInterceptorChain.getCurrentMessage()).andReturn(message).anyTimes()
+    request
+  }
+
+  @Test
+  void "checkGet lets a GET web method call methods of its own service"() {
+    def aspect = new HttpGetAspect()
+    def message = createMock(Message)
+    def request = get(message)
+    request.setAttribute(HttpCacheFilter.CACHE_CONTROL_ATTRIBUTE, 'private, max-age=30')
+
+    def inner = joinPoint(UserService.getMethod('name', String), { 'foo' } as IAnswer)
+    def outer = joinPoint(UserService.getMethod('getUser', String), { aspect.checkGet(inner) } as IAnswer)
+
+    replayAll()
+
+    assert aspect.checkGet(outer) == 'foo'
+    verifyAll()
+  }
+
+  @Test
+  void "checkGet refuses a GET of a web method without @HttpGet"() {
+    def aspect = new HttpGetAspect()
+    def message = createMock(Message)
+    get(message)
+
+    def response = createMock(HttpServletResponse)
+    response.setHeader('Allow', 'POST')
+    response.sendError(eq(HttpServletResponse.SC_METHOD_NOT_ALLOWED), anyObject(String))
+    expect(message.get('HTTP.RESPONSE')).andReturn(response).anyTimes()
+
+    def chain = createMock(InterceptorChain)
+    chain.abort()
+    expect(message.getInterceptorChain()).andReturn(chain)
+
+    def outer = joinPoint(UserService.getMethod('setUser', String), null)
+
+    replayAll()
+
+    assert aspect.checkGet(outer) == null
+    verifyAll()
+  }
+}
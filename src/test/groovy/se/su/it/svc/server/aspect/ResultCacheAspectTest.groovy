@@ -0,0 +1,78 @@
+package se.su.it.svc.server.aspect
+
+import org.aspectj.lang.ProceedingJoinPoint
+import org.aspectj.lang.Signature
+import org.junit.Test
+import se.su.it.svc.server.annotations.CacheEvict
+import se.su.it.svc.server.annotations.CacheResult
+import se.su.it.svc.server.metrics.MetricsRegistry
+
+import static org.easymock.EasyMock.*
+
+class ResultCacheAspectTest {
+
+  static class UserService {
+    @CacheResult
+    public String get(String id) { id }
+
+    @CacheEvict('get')
+    public void update(String id) { }
+  }
+
+  static class GroupService {
+    @CacheResult
+    public String get(String id) { id }
+  }
+
+  private static ProceedingJoinPoint joinPoint(Class type, String name, Object result) {
+    def signature = createMock(Signature)
+    expect(signature.getName()).andReturn(name).anyTimes()
+    expect(signature.getDeclaringTypeName()).andReturn(type.name).anyTimes()
+
+    def joinPoint = createMock(ProceedingJoinPoint)
+    expect(joinPoint.getSignature()).andReturn(signature).anyTimes()
+    expect(joinPoint.getArgs()).andReturn(['1'] as Object[]).anyTimes()
+    expect(joinPoint.proceed()).andReturn(result).anyTimes()
+
+    replay(signature, joinPoint)
+    joinPoint
+  }
+
+  private static CacheResult cacheResult(Class type) {
+    type.getMethod('get', String).getAnnotation(CacheResult)
+  }
+
+  @Test
+  void "cacheResult keeps methods with the same name in different services apart"() {
+    def aspect = new ResultCacheAspect()
+
+    assert aspect.cacheResult(joinPoint(UserService, 'get', 'user'), cacheResult(UserService)) == 'user'
+    assert aspect.cacheResult(joinPoint(GroupService, 'get', 'group'), cacheResult(GroupService)) == 'group'
+    assert aspect.cacheResult(joinPoint(UserService, 'get', 'other'), cacheResult(UserService)) == 'user'
+
+    assert aspect.getCache(UserService.name + '.get').size == 1
+    assert aspect.getCache(GroupService.name + '.get').size == 1
+  }
+
+  @Test
+  void "cacheEvict evicts a bare method name from the same service only"() {
+    def aspect = new ResultCacheAspect()
+    aspect.cacheResult(joinPoint(UserService, 'get', 'user'), cacheResult(UserService))
+    aspect.cacheResult(joinPoint(GroupService, 'get', 'group'), cacheResult(GroupService))
+
+    aspect.cacheEvict(joinPoint(UserService, 'update', null),
+            UserService.getMethod('update', String).getAnnotation(CacheEvict))
+
+    assert aspect.getCache(UserService.name + '.get').size == 0
+    assert aspect.getCache(GroupService.name + '.get').size == 1
+  }
+
+  @Test
+  void "cacheResult publishes the size of the cache it uses"() {
+    def aspect = new ResultCacheAspect()
+    aspect.cacheResult(joinPoint(GroupService, 'get', 'group'), cacheResult(GroupService))
+
+    assert MetricsRegistry.default.scrape().contains(
+            'cxf_server_result_cache_entries{cache="' + GroupService.name + '.get"} 1')
+  }
+}
@@ -0,0 +1,163 @@
+package se.su.it.svc.server.audit
+
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+
+import java.util.zip.CRC32
+
+class AuditIndexTest {
+
+  File directory
+  AuditJournal journal
+  AuditIndex index
+
+  @Before
+  void setUp() {
+    directory = File.createTempFile("audit", "index")
+    directory.delete()
+    directory.mkdirs()
+
+    journal = new AuditJournal()
+    journal.directory = directory
+    journal.segmentSize = 2048
+    journal.open()
+
+    100.times { int i ->
+      journal.append(1000 + i, AuditEntity.getInstance("$i", i % 2 ? 'set' : 'get', '[foo]', null,
+              i % 10 ? 'SUCCESS' : 'EXCEPTION', "user${i % 3}", "id$i"))
+    }
+
+    index = new AuditIndex()
+    index.directory = directory
+    index.update()
+  }
+
+  @After
+  void tearDown() {
+    journal.close()
+    directory.deleteDir()
+  }
+
+  @Test
+  void "update: Test that all segments are indexed"() {
+    assert JournalSegment.list(directory).length > 1
+    assert index.indexedRecords == 100
+  }
+
+  @Test
+  void "update: Test that new records are indexed incrementally"() {
+    journal.append(2000, AuditEntity.getInstance('new', 'get', '[foo]', null, 'SUCCESS', 'user0', 'id-new'))
+    index.update()
+
+    def query = new AuditQuery()
+    query.id = 'id-new'
+
+    assert index.indexedRecords == 101
+    assert index.query(query)*.created == ['new']
+  }
+
+  @Test
+  void "query: Test time range and fields"() {
+    def query = new AuditQuery()
+    query.from = 1010
+    query.to = 1050
+    query.principal = 'user0'
+    query.operation = 'get'
+
+    assert index.query(query)*.created == ['12', '18', '24', '30', '36', '42', '48']
+  }
+
+  @Test
+  void "query: Test time range only"() {
+    def query = new AuditQuery()
+    query.from = 1095
+    query.to = 2000
+
+    assert index.query(query)*.created == ['95', '96', '97', '98', '99']
+  }
+
+  @Test
+  void "query: Test limit and unknown values"() {
+    def query = new AuditQuery()
+    query.state = 'EXCEPTION'
+    query.limit = 3
+
+    assert index.query(query).size() == 3
+
+    query = new AuditQuery()
+    query.principal = 'nobody'
+
+    assert index.query(query).empty
+  }
+
+  @Test
+  void "update: Test that a new index loads the saved index of sealed segments"() {
+    def files = JournalSegment.list(directory)
+    assert files[0..-2].every { new File(directory, it.name + '.idx').isFile() }
+    assert !new File(directory, files[-1].name + '.idx').exists()
+
+    // Wipe the records of the first segment, a loaded index never reads them
+    long modified = files[0].lastModified()
+    def raf = new RandomAccessFile(files[0], "rw")
+    raf.seek(JournalSegment.HEADER_SIZE)
+    raf.write(new byte[64])
+    raf.close()
+    files[0].lastModified = modified
+
+    def loaded = new AuditIndex()
+    loaded.directory = directory
+    loaded.update()
+
+    assert loaded.indexedRecords == 100
+  }
+
+  @Test
+  void "update: Test that only the segment written to keeps its postings in memory"() {
+    assert index.@segments.values().findAll { it.@open != null }.size() == 1
+
+    def query = new AuditQuery()
+    query.principal = 'user1'
+    query.to = 1010
+
+    assert index.query(query)*.created == ['1', '4', '7']
+    assert index.@segments.values().findAll { it.@open != null }.size() == 1
+  }
+
+  private static void segment(File directory, long created, List<Long> times) {
+    def segment = JournalSegment.create(directory, created, 4096)
+    times.each { long time ->
+      byte[] payload = AuditJournal.encode(time, AuditEntity.getInstance("$time", 'get', '[foo]', null, 'SUCCESS'))
+      def crc = new CRC32()
+      crc.update(payload)
+      segment.append(payload, (int) crc.value)
+    }
+    segment.close()
+  }
+
+  @Test
+  void "query: Test that a read-only index only reads segments named in range and never writes"() {
+    def readOnlyDirectory = new File(directory, 'readonly')
+    readOnlyDirectory.mkdirs()
+    segment(readOnlyDirectory, 1000, [1000L, 2000L])
+    segment(readOnlyDirectory, 100000, [150000L])
+    segment(readOnlyDirectory, 200000, [250000L, 260000L])
+
+    // A segment the query has no use for is never opened
+    def raf = new RandomAccessFile(JournalSegment.list(readOnlyDirectory)[0], "rw")
+    raf.writeInt(0)
+    raf.close()
+
+    def readOnly = new AuditIndex()
+    readOnly.directory = readOnlyDirectory
+    readOnly.readOnly = true
+    readOnly.update()
+
+    def query = new AuditQuery()
+    query.from = 200000
+    query.to = 300000
+
+    assert readOnly.query(query)*.created == ['250000', '260000']
+    assert readOnlyDirectory.list().length == 3
+  }
+}
@@ -0,0 +1,119 @@
+package se.su.it.svc.server.audit
+
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+
+import java.nio.ByteBuffer
+
+class AuditJournalTest {
+
+  File directory
+
+  @Before
+  void setUp() {
+    directory = File.createTempFile("audit", "journal")
+    directory.delete()
+    directory.mkdirs()
+  }
+
+  @After
+  void tearDown() {
+    directory.deleteDir()
+  }
+
+  private AuditJournal openJournal(int segmentSize = 4096) {
+    def journal = new AuditJournal()
+    journal.directory = directory
+    journal.segmentSize = segmentSize
+    journal.commitInterval = 10
+    journal.open()
+    journal
+  }
+
+  private List<AuditEntity> readAll() {
+    def entities = []
+    JournalSegment.list(directory).each { File file ->
+      JournalSegment.read(file, { int position, ByteBuffer payload ->
+        entities << AuditJournal.decode(payload)
+      } as JournalSegment.RecordVisitor)
+    }
+    entities
+  }
+
+  @Test
+  void "write: Test that records can be read back"() {
+    def journal = openJournal()
+    journal.write(AuditEntity.getInstance('1', 'op', '[foo]', null, 'SUCCESS'))
+    journal.write(AuditEntity.getInstance('2', 'op', '[bar]', 'baz', 'SUCCESS'))
+    journal.close()
+
+    def entities = readAll()
+
+    assert entities.size() == 2
+    assert entities[0].toString() == AuditEntity.getInstance('1', 'op', '[foo]', null, 'SUCCESS').toString()
+    assert entities[1].textReturn == 'baz'
+    assert journal.writtenRecords == 2
+  }
+
+  @Test
+  void "write: Test that segments are rotated when full"() {
+    def journal = openJournal(1024)
+    100.times { journal.write(AuditEntity.getInstance("$it", 'op', '[foo]', null, 'SUCCESS')) }
+    journal.close()
+
+    assert JournalSegment.list(directory).length > 1
+    assert readAll()*.created == (0..99)*.toString()
+  }
+
+  @Test
+  void "write: Test that oversized records are counted as failed"() {
+    def journal = openJournal(1024)
+    journal.write(AuditEntity.getInstance('1', 'op', 'x' * 2048, null, 'SUCCESS'))
+    journal.close()
+
+    assert journal.failedRecords == 1
+    assert readAll().empty
+  }
+
+  @Test
+  void "open: Test recovery truncates a torn record"() {
+    def journal = openJournal()
+    journal.write(AuditEntity.getInstance('1', 'op', '[foo]', null, 'SUCCESS'))
+    journal.write(AuditEntity.getInstance('2', 'op', '[bar]', null, 'SUCCESS'))
+    journal.close()
+
+    def file = JournalSegment.list(directory)[0]
+    int last = 0
+    JournalSegment.read(file, { int position, ByteBuffer payload -> last = position } as JournalSegment.RecordVisitor)
+    def raf = new RandomAccessFile(file, "rw")
+    raf.seek(last + JournalSegment.FRAME_HEADER_SIZE + 2)
+    raf.write(0x55)
+    raf.close()
+
+    journal = openJournal()
+    journal.write(AuditEntity.getInstance('3', 'op', '[baz]', null, 'SUCCESS'))
+    journal.close()
+
+    assert readAll()*.created == ['1', '3']
+  }
+
+  @Test
+  void "open: Test that a segment with an invalid header is moved aside"() {
+    def journal = openJournal()
+    journal.write(AuditEntity.getInstance('1', 'op', '[foo]', null, 'SUCCESS'))
+    journal.close()
+
+    def file = JournalSegment.list(directory)[0]
+    def raf = new RandomAccessFile(file, "rw")
+    raf.writeInt(0)
+    raf.close()
+
+    journal = openJournal()
+    journal.write(AuditEntity.getInstance('2', 'op', '[bar]', null, 'SUCCESS'))
+    journal.close()
+
+    assert new File(directory, file.name + '.corrupt').exists()
+    assert readAll()*.created == ['2']
+  }
+}
@@ -0,0 +1,158 @@
+package se.su.it.svc.server.audit
+
+import org.junit.Test
+import se.su.it.svc.server.annotations.AuditHashArgument
+import se.su.it.svc.server.annotations.AuditHideArgument
+import se.su.it.svc.server.annotations.AuditHideReturnValue
+import se.su.it.svc.server.annotations.AuditMaxLength
+import se.su.it.svc.server.annotations.AuditSkip
+
+class AuditPolicyTest {
+
+  static class Service {
+    public String plain(String s, int i) { s }
+
+    @AuditHideReturnValue
+    public String hidden(@AuditHideArgument String password, @AuditHashArgument String uid) { uid }
+
+    @AuditMaxLength(3)
+    public String capped(String s) { s }
+
+    @AuditSkip
+    public void skipped() { }
+
+    public void hashedTypes(@AuditHashArgument long id, @AuditHashArgument int[] ids, @AuditHashArgument StringBuilder s) { }
+
+    public void hashedBean(@AuditHashArgument Object bean) { }
+  }
+
+  @AuditSkip
+  static class SkippedService {
+    public void anything() { }
+  }
+
+  @Test
+  void "forMethod: Test default policy"() {
+    def policy = AuditPolicy.forMethod(Service.getMethod('plain', String, int))
+
+    assert !policy.skip
+    assert !policy.hideReturnValue
+    assert policy.maxLength == AuditPolicy.UNLIMITED
+    assert policy.renderArguments(['foo', 1] as Object[]) == '[foo, 1]'
+    assert policy.renderReturnValue('bar') == 'bar'
+  }
+
+  @Test
+  void "getHiddenArguments: Test that hidden and hashed arguments are hidden"() {
+    assert AuditPolicy.forMethod(Service.getMethod('hidden', String, String)).hiddenArguments == [true, true] as boolean[]
+    assert AuditPolicy.forMethod(Service.getMethod('plain', String, int)).hiddenArguments == [false, false] as boolean[]
+  }
+
+  @Test
+  void "forMethod: Test hidden and hashed arguments"() {
+    def policy = AuditPolicy.forMethod(Service.getMethod('hidden', String, String))
+
+    def ret = policy.renderArguments(['secret', 'foo'] as Object[])
+
+    assert ret.startsWith('[******, hmac:')
+    assert !ret.contains('secret')
+    assert !ret.contains('foo')
+    assert policy.renderReturnValue('foo') == AuditPolicy.HIDDEN_VALUE
+  }
+
+  @Test
+  void "forMethod: Test max length"() {
+    def policy = AuditPolicy.forMethod(Service.getMethod('capped', String))
+
+    assert policy.renderArguments(['abcdef'] as Object[]) == '[abc...(6 chars)]'
+    assert policy.renderReturnValue('ab') == 'ab'
+  }
+
+  @Test
+  void "forMethod: Test max length on objects"() {
+    def policy = AuditPolicy.forMethod(Service.getMethod('capped', String))
+
+    assert policy.renderArguments([[1, 2, 3, 4]] as Object[]) == '[[1,...]'
+    assert policy.renderArguments([[1]] as Object[]) == '[[1]]'
+    assert policy.renderArguments([new Service()] as Object[]) == '[se....]'
+  }
+
+  @Test
+  void "renderArguments: Test that capped collections are not stringified past the cap"() {
+    def policy = AuditPolicy.forMethod(Service.getMethod('capped', String))
+    def element = new Object() {
+      String toString() { throw new AssertionError('stringified') }
+    }
+
+    assert policy.renderArguments([[element], [1, 2, 3, element]] as Object[]) == '[[se..., [1,...]'
+  }
+
+  @Test
+  void "setHashKey: Test that hashes depend on the key"() {
+    def policy = AuditPolicy.forMethod(Service.getMethod('hidden', String, String))
+    try {
+      AuditPolicy.setHashKey('first key of sixteen')
+      def first = policy.renderArguments(['secret', 'foo'] as Object[])
+      assert policy.renderArguments(['secret', 'foo'] as Object[]) == first
+
+      AuditPolicy.setHashKey('second key of sixteen')
+      assert policy.renderArguments(['secret', 'foo'] as Object[]) != first
+    } finally {
+      AuditPolicy.setHashKey('another key of sixteen')
+    }
+  }
+
+  @Test(expected = IllegalArgumentException)
+  void "setHashKey: Test that short keys are rejected"() {
+    AuditPolicy.setHashKey('short')
+  }
+
+  @Test
+  void "forMethod: Test skip on method and on class"() {
+    assert AuditPolicy.forMethod(Service.getMethod('skipped')).skip
+    assert AuditPolicy.forMethod(SkippedService.getMethod('anything')).skip
+  }
+
+  @Test
+  void "renderArguments: Test that binary payloads are not stringified"() {
+    def ret = AuditPolicy.DEFAULT.renderArguments([new byte[1024]] as Object[])
+
+    assert ret == '[byte[1024]]'
+  }
+
+  @Test
+  void "renderArguments: Test null"() {
+    assert AuditPolicy.DEFAULT.renderArguments(null) == 'null'
+    assert AuditPolicy.DEFAULT.renderArguments([null] as Object[]) == '[null]'
+    assert AuditPolicy.DEFAULT.renderReturnValue(null) == null
+  }
+
+  @Test(expected = IllegalArgumentException)
+  void "forMethod: Test that hashed arguments without a stable form are rejected"() {
+    AuditPolicy.forMethod(Service.getMethod('hashedBean', Object))
+  }
+
+  @Test
+  void "renderArguments: Test that equal hashed values get equal hashes"() {
+    def policy = AuditPolicy.forMethod(Service.getMethod('hashedTypes', long, int[], StringBuilder))
+
+    def first = policy.renderArguments([1L, [1, 2] as int[], new StringBuilder('x' * 5000)] as Object[])
+
+    assert policy.renderArguments([1L, [1, 2] as int[], new StringBuilder('x' * 5000)] as Object[]) == first
+    assert policy.renderArguments([2L, [1, 3] as int[], new StringBuilder('x' * 4999)] as Object[])
+            .split(', ').toList().intersect(first.split(', ').toList()).empty
+    assert AuditPolicy.hash('foo') == AuditPolicy.hash('foo' as char[])
+  }
+
+  @Test
+  void "readHashKey: Test that the key is read from a file"() {
+    def file = File.createTempFile('audit', 'key')
+    try {
+      file.text = '  a key of at least sixteen\n'
+
+      assert AuditPolicy.readHashKey(file) == 'a key of at least sixteen'
+    } finally {
+      file.delete()
+    }
+  }
+}
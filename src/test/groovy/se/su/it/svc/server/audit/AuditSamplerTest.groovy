@@ -0,0 +1,72 @@
+package se.su.it.svc.server.audit
+
+import org.junit.Test
+import se.su.it.svc.server.annotations.AuditSample
+
+class AuditSamplerTest {
+
+  static class Service {
+    @AuditSample(rate = 0.5)
+    public String lookup(String s) { s }
+
+    public void update(String s) { }
+  }
+
+  @Test
+  void "sample: Test that every call is audited at full rate"() {
+    def sampler = new AuditSampler(1.0, 0)
+
+    assert (1..10).every { sampler.sample() }
+    assert sampler.drainAudited() == 10
+    assert sampler.drainSuppressed() == 0
+  }
+
+  @Test
+  void "sample: Test that every n:th call is audited"() {
+    def sampler = new AuditSampler(0.25, 0)
+
+    def audited = (1..100).count { sampler.sample() }
+
+    assert audited == 25
+    assert sampler.drainSuppressed() == 75
+    assert sampler.drainSuppressed() == 0
+  }
+
+  @Test
+  void "sample: Test per second limit"() {
+    def sampler = new AuditSampler(1.0, 5)
+
+    def audited = (1..20).count { sampler.sample() }
+
+    assert audited <= 10 // The calls may straddle two seconds
+    assert audited >= 5
+  }
+
+  @Test
+  void "sample: Test zero rate suppresses everything"() {
+    def sampler = new AuditSampler(0.0, 0)
+
+    assert !(1..10).any { sampler.sample() }
+  }
+
+  @Test
+  void "parse: Test rate and limit"() {
+    def sampler = AuditSampler.parse("0.1, 100")
+
+    assert sampler.rate == 0.1d
+    assert sampler.perSecond == 100
+  }
+
+  @Test(expected = IllegalArgumentException)
+  void "parse: Test invalid value"() {
+    AuditSampler.parse("often")
+  }
+
+  @Test
+  void "forMethod: Test sampler from annotation and configuration"() {
+    assert AuditPolicy.forMethod(Service.getMethod('lookup', String)).sampler.rate == 0.5d
+    assert AuditPolicy.forMethod(Service.getMethod('update', String)).sampler == null
+    assert AuditPolicy.forMethod(Service.getMethod('lookup', String), new AuditSampler(0.1, 0)).sampler.rate == 0.1d
+    assert AuditPolicy.forMethod(Service.getMethod('update', String), new AuditSampler(0.1, 0)).sampler == null
+  }
+}
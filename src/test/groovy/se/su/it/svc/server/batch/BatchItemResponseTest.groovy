@@ -0,0 +1,68 @@
+package se.su.it.svc.server.batch
+
+import org.junit.Test
+
+import javax.servlet.http.HttpServletResponse
+
+import static org.powermock.api.easymock.PowerMock.createMock
+import static org.powermock.api.easymock.PowerMock.replay
+
+class BatchItemResponseTest {
+
+  private static BatchItemResponse response() {
+    def batchResponse = createMock(HttpServletResponse)
+    replay(batchResponse)
+    new BatchItemResponse(batchResponse)
+  }
+
+  @Test
+  void "response keeps what the call writes"() {
+    def response = response()
+
+    response.setHeader('Content-Type', 'text/xml; charset=UTF-8')
+    response.setHeader('X-Foo', 'bar')
+    response.outputStream.write('<Envelope/>'.getBytes('UTF-8'))
+    response.flushBuffer()
+
+    assert response.status == 200
+    assert response.committed
+    assert response.contentType == 'text/xml; charset=UTF-8'
+    assert response.getHeader('x-foo') == 'bar'
+    assert new String(response.body, 'UTF-8') == '<Envelope/>'
+  }
+
+  @Test
+  void "sendError replaces the body"() {
+    def response = response()
+
+    response.writer.write('partial')
+    response.sendError(401, 'Unauthorized')
+
+    assert response.status == 401
+    assert response.message == 'Unauthorized'
+    assert response.body.length == 0
+  }
+
+  @Test
+  void "toEnvelope strips the XML declaration"() {
+    def response = response()
+    response.contentType = 'text/xml; charset=ISO-8859-1'
+    response.outputStream.write('<?xml version="1.0" encoding="ISO-8859-1"?><Envelope>å</Envelope>'.getBytes('ISO-8859-1'))
+
+    assert BatchServlet.toEnvelope(response) == '<Envelope>å</Envelope>'
+  }
+
+  @Test
+  void "toEnvelope leaves out multipart responses"() {
+    def response = response()
+    response.contentType = 'multipart/related; type="application/xop+xml"'
+    response.outputStream.write('--uuid'.getBytes('UTF-8'))
+
+    assert BatchServlet.toEnvelope(response) == null
+  }
+
+  @Test
+  void "escape escapes attribute values"() {
+    assert BatchServlet.escape('<a & "b">\n') == '&lt;a &amp; &quot;b&quot;&gt; '
+  }
+}
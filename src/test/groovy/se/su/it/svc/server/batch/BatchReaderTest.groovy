@@ -0,0 +1,74 @@
+package se.su.it.svc.server.batch
+
+import org.junit.Test
+
+import javax.xml.stream.XMLStreamException
+
+class BatchReaderTest {
+
+  private static BatchReader reader(String xml, int maxCalls = 10) {
+    new BatchReader(new ByteArrayInputStream(xml.getBytes('UTF-8')), maxCalls)
+  }
+
+  @Test
+  void "next reads calls in order"() {
+    def batch = reader('''<batch xmlns="urn:se:su:it:svc:batch">
+      <call address="/UserService" action="getUser">
+        <s:Envelope xmlns:s="http://schemas.xmlsoap.org/soap/envelope/"><s:Body/></s:Envelope>
+      </call>
+      <call address="/GroupService">
+        <e:Envelope xmlns:e="http://www.w3.org/2003/05/soap-envelope"><e:Body/></e:Envelope>
+      </call>
+    </batch>''')
+
+    def first = batch.next()
+    def second = batch.next()
+
+    assert first.index == 0
+    assert first.address == '/UserService'
+    assert first.action == 'getUser'
+    assert !first.soap12
+    assert second.index == 1
+    assert second.action == null
+    assert second.soap12
+    assert batch.next() == null
+  }
+
+  @Test
+  void "next keeps namespaces declared outside of the envelope"() {
+    def batch = reader('''<b:batch xmlns:b="urn:se:su:it:svc:batch" xmlns:xsi="http://www.w3.org/2001/XMLSchema-instance"
+        xmlns:s="http://schemas.xmlsoap.org/soap/envelope/"><b:call address="/UserService" xmlns:u="urn:u">
+      <s:Envelope><s:Body><getUser xmlns="urn:g" xsi:type="u:T">a &amp; b</getUser></s:Body></s:Envelope>
+    </b:call></b:batch>''')
+
+    def xml = new String(batch.next().envelope, 'UTF-8')
+    def envelope = new XmlSlurper(false, true).parseText(xml)
+
+    assert envelope.name() == 'Envelope'
+    assert envelope.Body.getUser.text() == 'a & b'
+    assert xml.contains('xmlns:u="urn:u"')
+    assert xml.contains('xmlns:xsi="http://www.w3.org/2001/XMLSchema-instance"')
+    assert batch.next() == null
+  }
+
+  @Test(expected = XMLStreamException)
+  void "constructor rejects other documents"() {
+    reader('<foo/>')
+  }
+
+  @Test(expected = XMLStreamException)
+  void "next rejects calls without address"() {
+    reader('<batch xmlns="urn:se:su:it:svc:batch"><call><Envelope/></call></batch>').next()
+  }
+
+  @Test(expected = XMLStreamException)
+  void "next rejects more than maxCalls calls"() {
+    def batch = reader('''<batch xmlns="urn:se:su:it:svc:batch">
+      <call address="/A"><Envelope/></call>
+      <call address="/B"><Envelope/></call>
+    </batch>''', 1)
+
+    batch.next()
+    batch.next()
+  }
+}
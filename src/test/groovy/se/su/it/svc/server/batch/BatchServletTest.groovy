@@ -0,0 +1,33 @@
+package se.su.it.svc.server.batch
+
+import org.junit.Test
+import se.su.it.svc.server.limit.RateLimiter
+import se.su.it.svc.server.metrics.MetricsRegistry
+
+import javax.servlet.http.HttpServletRequest
+import javax.servlet.http.HttpServletResponse
+
+import static org.easymock.EasyMock.*
+
+class BatchServletTest {
+
+  @Test
+  void "invoke charges every call after the first to the rate limit"() {
+    def limiter = new RateLimiter(new MetricsRegistry())
+    limiter.defaultLimit = new RateLimiter.Limit(1, 1)
+    assert limiter.tryAcquire('foo') == 0L
+
+    def servlet = new BatchServlet()
+    servlet.rateLimiter = limiter
+
+    def request = createNiceMock(HttpServletRequest)
+    expect(request.remoteUser).andReturn('foo').anyTimes()
+    def response = createNiceMock(HttpServletResponse)
+    replay(request, response)
+
+    def itemResponse = servlet.invoke(request, response, new BatchCall(1, '/foo', null, false, new byte[0]), null)
+
+    assert itemResponse.status == RateLimiter.SC_TOO_MANY_REQUESTS
+    assert limiter.limited == 1L
+  }
+}
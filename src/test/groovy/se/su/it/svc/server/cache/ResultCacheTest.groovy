@@ -0,0 +1,121 @@
+package se.su.it.svc.server.cache
+
+import org.junit.Test
+import se.su.it.svc.server.metrics.MetricsRegistry
+
+class ResultCacheTest {
+
+  private static ResultCache.Key key(String principal, Object... args) {
+    new ResultCache.Key(principal, args)
+  }
+
+  @Test
+  void "get returns cached results and counts hits and misses"() {
+    def cache = new ResultCache('getUser', 60000, 10, new MetricsRegistry())
+
+    assert cache.get(key(null, 'foo')) == null
+    cache.put(key(null, 'foo'), 'Foo')
+
+    assert cache.get(key(null, 'foo')) == 'Foo'
+    assert cache.get(key('bar', 'foo')) == null
+    assert cache.hits == 1L
+    assert cache.misses == 2L
+    assert cache.hitRate == 1 / 3d
+  }
+
+  @Test
+  void "keys compare array arguments by content"() {
+    assert key(null, ['a', 'b'] as String[]) == key(null, ['a', 'b'] as String[])
+    assert key('foo', 'a') != key(null, 'a')
+  }
+
+  @Test
+  void "get drops expired results"() {
+    def cache = new ResultCache('getUser', 1, 10, new MetricsRegistry())
+    cache.put(key(null, 'foo'), 'Foo')
+
+    Thread.sleep(5)
+
+    assert cache.get(key(null, 'foo')) == null
+    assert cache.size == 0
+  }
+
+  @Test
+  void "put evicts the oldest results when full"() {
+    def cache = new ResultCache('getUser', 60000, 2, new MetricsRegistry())
+
+    cache.put(key(null, 'a'), 'A')
+    cache.put(key(null, 'b'), 'B')
+    cache.put(key(null, 'a'), 'A2')
+    cache.put(key(null, 'c'), 'C')
+
+    assert cache.size == 2
+    assert cache.evictions == 1L
+    assert cache.get(key(null, 'b')) == null
+    assert cache.get(key(null, 'a')) == 'A2'
+    assert cache.get(key(null, 'c')) == 'C'
+  }
+
+  @Test
+  void "put evicts the oldest results when over the size limit"() {
+    def cache = new ResultCache('getUser', 60000, 100, 1000, new MetricsRegistry())
+
+    cache.put(key(null, 'a'), 'a' * 200)
+    cache.put(key(null, 'b'), 'b' * 200)
+    cache.put(key(null, 'c'), 'c' * 200)
+
+    assert cache.size == 2
+    assert cache.bytes <= 1000
+    assert cache.evictions == 1L
+    assert cache.get(key(null, 'a')) == null
+  }
+
+  @Test
+  void "put skips results larger than the size limit"() {
+    def cache = new ResultCache('getUser', 60000, 100, 1000, new MetricsRegistry())
+
+    cache.put(key(null, 'a'), 'a' * 1000)
+
+    assert cache.size == 0
+    assert cache.bytes == 0
+  }
+
+  @Test
+  void "invalidate removes results for all principals"() {
+    def cache = new ResultCache('getUser', 60000, 10, new MetricsRegistry())
+    cache.put(key('x', 'foo'), 'Foo')
+    cache.put(key('y', 'foo'), 'Foo')
+    cache.put(key('y', 'bar'), 'Bar')
+
+    assert cache.invalidate(['foo'] as Object[]) == 2
+    assert cache.size == 1
+    assert cache.invalidatePrincipal('y') == 1
+    assert cache.size == 0
+  }
+
+  @Test
+  void "order queue does not grow with invalidated results"() {
+    def cache = new ResultCache('getUser', 60000, 10, new MetricsRegistry())
+
+    1000.times {
+      cache.put(key(null, 'foo'), 'Foo')
+      cache.invalidate(['foo'] as Object[])
+    }
+
+    assert cache.@ordered.get() <= 37
+  }
+
+  @Test
+  void "results are published as metrics"() {
+    def registry = new MetricsRegistry()
+    def cache = new ResultCache('getUser', 60000, 10, registry)
+    cache.registerGauges(registry)
+    cache.put(key(null, 'foo'), 'Foo')
+    cache.get(key(null, 'foo'))
+
+    def scrape = registry.scrape()
+
+    assert scrape.contains('cxf_server_result_cache_requests_total{cache="getUser",result="hit"} 1')
+    assert scrape.contains('cxf_server_result_cache_entries{cache="getUser"} 1')
+  }
+}
@@ -0,0 +1,123 @@
+package se.su.it.svc.server.cache
+
+import org.junit.Test
+import se.su.it.svc.server.metrics.MetricsRegistry
+
+import java.util.concurrent.Callable
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+class SingleFlightTest {
+
+  @Test
+  void "concurrent calls with equal keys share one call"() {
+    def flight = new SingleFlight('getUser', new MetricsRegistry())
+    def started = new CountDownLatch(1)
+    def release = new CountDownLatch(1)
+    int calls = 0
+
+    def call = {
+      calls++
+      started.countDown()
+      release.await()
+      'Foo'
+    } as SingleFlight.Call
+
+    def executor = Executors.newFixedThreadPool(4)
+    def leader = executor.submit({ flight.execute('foo', call) } as Callable)
+    started.await()
+    def followers = (1..3).collect { executor.submit({ flight.execute('foo', call) } as Callable) }
+
+    Thread.sleep(100)
+    release.countDown()
+
+    assert leader.get(1, TimeUnit.SECONDS) == 'Foo'
+    assert followers*.get(1, TimeUnit.SECONDS) == ['Foo', 'Foo', 'Foo']
+    assert calls == 1
+    assert flight.executed == 1L
+    assert flight.joined == 3L
+    assert flight.inFlight == 0
+    executor.shutdown()
+  }
+
+  @Test
+  void "callers run the call themselves after waiting maxWait"() {
+    def flight = new SingleFlight('getUser', 50, new MetricsRegistry())
+    def started = new CountDownLatch(1)
+    def release = new CountDownLatch(1)
+
+    def executor = Executors.newSingleThreadExecutor()
+    def leader = executor.submit({
+      flight.execute('foo', {
+        started.countDown()
+        release.await()
+        'Hung'
+      } as SingleFlight.Call)
+    } as Callable)
+    started.await()
+
+    assert flight.execute('foo', { 'Foo' } as SingleFlight.Call) == 'Foo'
+    assert flight.timedOut == 1L
+    assert flight.executed == 2L
+
+    release.countDown()
+    assert leader.get(1, TimeUnit.SECONDS) == 'Hung'
+    executor.shutdown()
+  }
+
+  @Test
+  void "an InterruptedException of the shared call is rethrown to every caller"() {
+    def flight = new SingleFlight('getUser', new MetricsRegistry())
+    def started = new CountDownLatch(1)
+    def release = new CountDownLatch(1)
+    int calls = 0
+
+    def executor = Executors.newSingleThreadExecutor()
+    def leader = executor.submit({
+      try {
+        flight.execute('foo', {
+          calls++
+          started.countDown()
+          release.await()
+          throw new InterruptedException('leader')
+        } as SingleFlight.Call)
+      } catch (InterruptedException e) {
+        e
+      }
+    } as Callable)
+    started.await()
+    Thread.start { Thread.sleep(100); release.countDown() }
+
+    try {
+      flight.execute('foo', { calls++ } as SingleFlight.Call)
+      assert false
+    } catch (InterruptedException e) {
+      assert e.message == 'leader'
+    }
+
+    assert !Thread.interrupted()
+    assert calls == 1
+    assert flight.joined == 1L
+    assert leader.get(1, TimeUnit.SECONDS) instanceof InterruptedException
+    executor.shutdown()
+  }
+
+  @Test
+  void "calls after completion run again"() {
+    def flight = new SingleFlight('getUser', new MetricsRegistry())
+    int calls = 0
+
+    2.times { flight.execute('foo', { ++calls } as SingleFlight.Call) }
+
+    assert calls == 2
+    assert flight.joined == 0L
+  }
+
+  @Test(expected = IllegalStateException)
+  void "exceptions are rethrown"() {
+    def flight = new SingleFlight('getUser', new MetricsRegistry())
+
+    flight.execute('foo', { throw new IllegalStateException('down') } as SingleFlight.Call)
+  }
+}
@@ -0,0 +1,40 @@
+package se.su.it.svc.server.cache
+
+import org.junit.Test
+
+class SizeEstimatorTest {
+
+  static class Person {
+    String uid
+    List<String> mail
+    Person manager
+  }
+
+  @Test
+  void "estimate counts nested strings and collections"() {
+    def person = new Person(uid: 'foo', mail: ['foo@su.se'])
+    def larger = new Person(uid: 'foo' * 100, mail: ['foo@su.se'])
+
+    assert SizeEstimator.estimate(person, Long.MAX_VALUE) > SizeEstimator.estimate('foo', Long.MAX_VALUE)
+    assert SizeEstimator.estimate(larger, Long.MAX_VALUE) >= SizeEstimator.estimate(person, Long.MAX_VALUE) + 500
+  }
+
+  @Test
+  void "estimate counts shared objects once and ends cycles"() {
+    def manager = new Person(uid: 'bar')
+    def person = new Person(uid: 'foo', manager: manager)
+    manager.manager = manager
+
+    def once = SizeEstimator.estimate(person, Long.MAX_VALUE)
+
+    assert SizeEstimator.estimate([person, person, manager], Long.MAX_VALUE) < 2 * once
+  }
+
+  @Test
+  void "estimate stops at the limit"() {
+    def list = (1..10000).collect { "value $it".toString() }
+
+    assert SizeEstimator.estimate(list, 1000) > 1000
+    assert SizeEstimator.estimate(list, 1000) < SizeEstimator.estimate(list, Long.MAX_VALUE)
+  }
+}
@@ -0,0 +1,116 @@
+package se.su.it.svc.server.filter
+
+import org.easymock.IAnswer
+import org.eclipse.jetty.server.AsyncContinuation
+import org.eclipse.jetty.server.Handler
+import org.eclipse.jetty.server.Request
+import org.eclipse.jetty.server.Response
+import org.junit.Test
+import se.su.it.svc.server.limit.AdaptiveLimiter
+import se.su.it.svc.server.metrics.MetricsRegistry
+
+import javax.servlet.http.HttpServletRequest
+import javax.servlet.http.HttpServletResponse
+
+import static org.easymock.EasyMock.*
+
+class AdmissionHandlerTest {
+
+  private static AdmissionHandler handler(AdaptiveLimiter limiter) {
+    def handler = new AdmissionHandler()
+    handler.limiter = limiter
+    handler.handler = createNiceMock(Handler)
+    replay(handler.handler)
+    handler
+  }
+
+  private static AdaptiveLimiter limiter(int limit) {
+    def limiter = new AdaptiveLimiter(new MetricsRegistry())
+    limiter.initialLimit = limit
+    limiter.maxQueue = 0
+    limiter
+  }
+
+  @Test
+  void "handle admits and releases requests"() {
+    def limiter = limiter(1)
+    def baseRequest = createNiceMock(Request)
+    def response = createNiceMock(HttpServletResponse)
+    expect(baseRequest.getHeader('Authorization')).andReturn('Negotiate abc')
+    expect(baseRequest.getAsyncContinuation()).andReturn(createNiceMock(AsyncContinuation))
+    baseRequest.setAttribute(eq(AdmissionHandler.ATTRIBUTE), anyObject())
+    replay(baseRequest, response)
+
+    handler(limiter).handle('/', baseRequest, baseRequest, response)
+
+    verify(baseRequest)
+    assert limiter.inFlight == 0
+  }
+
+  @Test
+  void "handle answers 503 when the request is rejected"() {
+    def limiter = limiter(1)
+    assert limiter.acquire(false)
+    def baseRequest = createNiceMock(Request)
+    def response = createMock(HttpServletResponse)
+    expect(baseRequest.getHeader('Authorization')).andReturn('Negotiate abc')
+    baseRequest.setHandled(true)
+    response.setHeader('Retry-After', '1')
+    response.sendError(503)
+    replay(baseRequest, response)
+
+    handler(limiter).handle('/', baseRequest, baseRequest, response)
+
+    verify(baseRequest, response)
+  }
+
+  @Test
+  void "handle keeps the permit of suspended requests until they complete"() {
+    def limiter = limiter(1)
+    def baseRequest = createNiceMock(Request)
+    def continuation = createMock(AsyncContinuation)
+    expect(baseRequest.getHeader('Authorization')).andReturn('Negotiate abc')
+    expect(baseRequest.getAsyncContinuation()).andReturn(continuation)
+    expect(continuation.isSuspended()).andReturn(true)
+    def listener = null
+    continuation.addContinuationListener(anyObject())
+    expectLastCall().andAnswer({ listener = getCurrentArguments()[0]; null } as IAnswer)
+    replay(baseRequest, continuation)
+
+    handler(limiter).handle('/', baseRequest, baseRequest, createNiceMock(HttpServletResponse))
+
+    assert limiter.inFlight == 1
+    listener.onComplete(continuation)
+    assert limiter.inFlight == 0
+    listener.onComplete(continuation)
+    assert limiter.inFlight == 0
+  }
+
+  @Test
+  void "handle passes handled requests through"() {
+    def limiter = limiter(1)
+    assert limiter.acquire(false)
+    def baseRequest = createMock(Request)
+    expect(baseRequest.isHandled()).andReturn(true)
+    replay(baseRequest)
+
+    handler(limiter).handle('/', baseRequest, baseRequest, createMock(HttpServletResponse))
+
+    verify(baseRequest)
+    assert limiter.rejected == 0L
+  }
+
+  @Test
+  void "isSheddable is true for unauthenticated and WSDL requests"() {
+    def request = createMock(HttpServletRequest)
+    expect(request.getHeader('Authorization')).andReturn(null)
+    expect(request.getHeader('Authorization')).andReturn('Negotiate abc').times(2)
+    expect(request.getQueryString()).andReturn('WSDL')
+    expect(request.getQueryString()).andReturn(null)
+    replay(request)
+
+    assert AdmissionHandler.isSheddable(request)
+    assert AdmissionHandler.isSheddable(request)
+    assert !AdmissionHandler.isSheddable(request)
+  }
+}
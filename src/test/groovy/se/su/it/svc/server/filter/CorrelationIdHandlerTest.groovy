@@ -0,0 +1,91 @@
+package se.su.it.svc.server.filter
+
+import org.eclipse.jetty.server.Handler
+import org.eclipse.jetty.server.Request
+import org.junit.Test
+
+import javax.servlet.http.HttpServletRequest
+import javax.servlet.http.HttpServletResponse
+
+import static org.easymock.EasyMock.*
+
+class CorrelationIdHandlerTest {
+
+  @Test
+  void "handle uses a valid incoming id"() {
+    def request = createMock(HttpServletRequest)
+    def response = createMock(HttpServletResponse)
+    def next = createNiceMock(Handler)
+
+    expect(request.getAttribute(CorrelationIdHandler.ATTRIBUTE)).andReturn(null)
+    expect(request.getHeader(CorrelationIdHandler.HEADER)).andReturn("abc-123")
+    request.setAttribute(CorrelationIdHandler.ATTRIBUTE, "abc-123")
+    response.setHeader(CorrelationIdHandler.HEADER, "abc-123")
+    replay(request, response, next)
+
+    def handler = new CorrelationIdHandler()
+    handler.handler = next
+    handler.handle("/", null, request, response)
+
+    verify(request, response)
+  }
+
+  @Test
+  void "handle generates an id for invalid incoming ids"() {
+    def request = createMock(HttpServletRequest)
+    def response = createNiceMock(HttpServletResponse)
+
+    expect(request.getAttribute(CorrelationIdHandler.ATTRIBUTE)).andReturn(null)
+    expect(request.getHeader(CorrelationIdHandler.HEADER)).andReturn("foo\nbar")
+    request.setAttribute(eq(CorrelationIdHandler.ATTRIBUTE), not(eq("foo\nbar")))
+    replay(request, response)
+
+    new CorrelationIdHandler().handle("/", null, request, response)
+
+    verify(request)
+  }
+
+  @Test
+  void "handle keeps the id of resumed requests"() {
+    def request = createMock(HttpServletRequest)
+    def response = createMock(HttpServletResponse)
+    def next = createNiceMock(Handler)
+
+    expect(request.getAttribute(CorrelationIdHandler.ATTRIBUTE)).andReturn("abc-123")
+    replay(request, response, next)
+
+    def handler = new CorrelationIdHandler()
+    handler.handler = next
+    handler.handle("/", null, request, response)
+
+    verify(request, response)
+  }
+
+  @Test
+  void "generate creates unique ids"() {
+    def ids = (1..1000).collect { CorrelationIdHandler.generate() } as Set
+
+    assert ids.size() == 1000
+    assert ids.every { CorrelationIdHandler.isValid(it) }
+  }
+
+  @Test
+  void "isValid rejects unsafe ids"() {
+    assert CorrelationIdHandler.isValid("0a1b-2c_3d.4e:5f")
+    assert !CorrelationIdHandler.isValid(null)
+    assert !CorrelationIdHandler.isValid("")
+    assert !CorrelationIdHandler.isValid("a" * 65)
+    assert !CorrelationIdHandler.isValid("foo bar")
+    assert !CorrelationIdHandler.isValid("foo\"bar")
+  }
+
+  @Test
+  void "getId returns null for requests without id"() {
+    def request = createMock(HttpServletRequest)
+    expect(request.getAttribute(CorrelationIdHandler.ATTRIBUTE)).andReturn(null)
+    replay(request)
+
+    assert CorrelationIdHandler.getId(request) == null
+    assert CorrelationIdHandler.getId(null) == null
+  }
+}
@@ -0,0 +1,61 @@
+package se.su.it.svc.server.filter
+
+import org.eclipse.jetty.server.Request
+import org.junit.Test
+import se.su.it.svc.server.health.HealthMonitor
+import se.su.it.svc.server.health.HealthProbe
+import se.su.it.svc.server.health.ProbeResult
+
+import javax.servlet.http.HttpServletResponse
+
+import static org.easymock.EasyMock.*
+
+class HealthHandlerTest {
+
+  private static String handle(String uri, HealthMonitor monitor, int expectedStatus) {
+    def out = new StringWriter()
+    def baseRequest = createMock(Request)
+    def response = createNiceMock(HttpServletResponse)
+
+    expect(baseRequest.getRequestURI()).andReturn(uri)
+    baseRequest.setHandled(true)
+    response.setStatus(expectedStatus)
+    expect(response.getWriter()).andReturn(new PrintWriter(out))
+    replay(baseRequest, response)
+
+    def handler = new HealthHandler()
+    handler.monitor = monitor
+    handler.handle(uri, baseRequest, baseRequest, response)
+
+    verify(baseRequest, response)
+    out.toString()
+  }
+
+  @Test
+  void "handle: Test that liveness is always up"() {
+    def monitor = new HealthMonitor()
+    monitor.register([getName: { "a" }, check: { "ok" }] as HealthProbe)
+
+    assert handle(HealthHandler.LIVE_PATH, monitor, 200) == '{"status":"UP"}'
+  }
+
+  @Test
+  void "handle: Test that readiness is down until probes are healthy"() {
+    def monitor = new HealthMonitor()
+    def probe = [getName: { "a" }, check: { "ok" }] as HealthProbe
+    monitor.register(probe)
+
+    assert handle(HealthHandler.READY_PATH, monitor, 503).startsWith('{"status":"DOWN"')
+
+    monitor.runProbe(probe)
+
+    assert handle(HealthHandler.READY_PATH, monitor, 200).startsWith('{"status":"UP","checks":[{"name":"a","status":"UP","message":"ok"')
+  }
+
+  @Test
+  void "toJson: Test that messages are escaped"() {
+    def json = HealthHandler.toJson(false, [new ProbeResult('a', false, 'say "hi"\n', 1, 2)])
+
+    assert json == '{"status":"DOWN","checks":[{"name":"a","status":"DOWN","message":"say \\"hi\\"\\u000a","checkedAt":1,"durationMs":2}]}'
+  }
+}
@@ -0,0 +1,153 @@
+package se.su.it.svc.server.filter
+
+import org.junit.Test
+
+import javax.servlet.FilterChain
+import javax.servlet.ServletOutputStream
+import javax.servlet.http.HttpServletRequest
+import javax.servlet.http.HttpServletResponse
+
+import static org.easymock.EasyMock.*
+
+class HttpCacheFilterTest {
+
+  private static final String BODY = '<Envelope/>'
+  private static final String ETAG = HttpCacheFilter.etag(BODY.getBytes('UTF-8'))
+
+  private static HttpServletRequest getRequest(String cacheControl, String ifNoneMatch) {
+    def request = createMock(HttpServletRequest)
+    expect(request.getMethod()).andReturn('GET').anyTimes()
+    expect(request.getAttribute(HttpCacheFilter.CACHE_CONTROL_ATTRIBUTE)).andReturn(cacheControl).anyTimes()
+    expect(request.getHeader('If-None-Match')).andReturn(ifNoneMatch).anyTimes()
+    expect(request.getRequestURI()).andReturn('/UserService/getUser').anyTimes()
+    request
+  }
+
+  private static FilterChain writing(String body) {
+    return { request, response -> response.outputStream.write(body.getBytes('UTF-8')) } as FilterChain
+  }
+
+  @Test
+  void "doFilter sends cacheable responses with caching headers"() {
+    def out = new ByteArrayOutputStream()
+    def request = getRequest('private, max-age=60', null)
+    def response = createMock(HttpServletResponse)
+    expect(response.getContentType()).andReturn('text/xml; charset=UTF-8')
+    expect(response.isCommitted()).andReturn(false)
+    response.setHeader('ETag', ETAG)
+    response.setHeader('Cache-Control', 'private, max-age=60')
+    response.addHeader('Vary', 'Authorization')
+    response.setContentLength(BODY.length())
+    expect(response.getOutputStream()).andReturn(new ServletOutputStream() {
+      void write(int b) { out.write(b) }
+    })
+    replay(request, response)
+
+    new HttpCacheFilter().doFilter(request, response, writing(BODY))
+
+    verify(response)
+    assert out.toString('UTF-8') == BODY
+  }
+
+  @Test
+  void "doFilter answers 304 when the ETag matches"() {
+    def request = getRequest('public, max-age=60', '"foo", W/' + ETAG)
+    def response = createMock(HttpServletResponse)
+    expect(response.getContentType()).andReturn('text/xml; charset=UTF-8')
+    expect(response.isCommitted()).andReturn(false)
+    response.setHeader('ETag', ETAG)
+    response.setHeader('Cache-Control', 'public, max-age=60')
+    response.addHeader('Vary', 'Authorization')
+    response.setStatus(304)
+    replay(request, response)
+
+    new HttpCacheFilter().doFilter(request, response, writing(BODY))
+
+    verify(response)
+  }
+
+  @Test
+  void "doFilter passes other GET responses through"() {
+    def out = new ByteArrayOutputStream()
+    def request = getRequest(null, null)
+    def response = createMock(HttpServletResponse)
+    expect(response.getOutputStream()).andReturn(new ServletOutputStream() {
+      void write(int b) { out.write(b) }
+    })
+    replay(request, response)
+
+    new HttpCacheFilter().doFilter(request, response, writing(BODY))
+
+    verify(response)
+    assert out.toString('UTF-8') == BODY
+  }
+
+  @Test
+  void "doFilter doesn't cache faults"() {
+    def out = new ByteArrayOutputStream()
+    def request = getRequest('private, max-age=60', ETAG)
+    def response = createMock(HttpServletResponse)
+    response.setStatus(500)
+    expect(response.getContentType()).andReturn('text/xml; charset=UTF-8')
+    expect(response.isCommitted()).andReturn(false)
+    response.setContentLength(BODY.length())
+    expect(response.getOutputStream()).andReturn(new ServletOutputStream() {
+      void write(int b) { out.write(b) }
+    })
+    replay(request, response)
+
+    def chain = { req, resp ->
+      resp.status = 500
+      resp.outputStream.write(BODY.getBytes('UTF-8'))
+    } as FilterChain
+    new HttpCacheFilter().doFilter(request, response, chain)
+
+    verify(response)
+    assert out.toString('UTF-8') == BODY
+  }
+
+  @Test
+  void "doFilter writes multipart responses through"() {
+    def out = new ByteArrayOutputStream()
+    def request = getRequest('private, max-age=60', null)
+    def response = createMock(HttpServletResponse)
+    expect(response.getContentType()).andReturn('multipart/related; type="application/xop+xml"')
+    expect(response.getOutputStream()).andReturn(new ServletOutputStream() {
+      void write(int b) { out.write(b) }
+    })
+    replay(request, response)
+
+    new HttpCacheFilter().doFilter(request, response, writing(BODY))
+
+    verify(response)
+    assert out.toString('UTF-8') == BODY
+  }
+
+  @Test
+  void "doFilter writes large responses through without caching headers"() {
+    def out = new ByteArrayOutputStream()
+    def request = getRequest('private, max-age=60', null)
+    def response = createMock(HttpServletResponse)
+    expect(response.getContentType()).andReturn('text/xml; charset=UTF-8')
+    expect(response.getOutputStream()).andReturn(new ServletOutputStream() {
+      void write(int b) { out.write(b) }
+      void write(byte[] b, int off, int len) { out.write(b, off, len) }
+    })
+    replay(request, response)
+
+    def large = 'x' * (HttpCacheFilter.MAX_KEPT_BODY + 1)
+    new HttpCacheFilter().doFilter(request, response, writing(large))
+
+    verify(response)
+    assert out.size() == large.length()
+  }
+
+  @Test
+  void "matches handles lists, weak tags and wildcards"() {
+    assert HttpCacheFilter.matches('"a", "b"', '"b"')
+    assert HttpCacheFilter.matches('W/"a"', '"a"')
+    assert HttpCacheFilter.matches('*', '"a"')
+    assert !HttpCacheFilter.matches('"a"', '"b"')
+    assert !HttpCacheFilter.matches(null, '"a"')
+  }
+}
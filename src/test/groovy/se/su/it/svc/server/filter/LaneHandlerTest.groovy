@@ -0,0 +1,153 @@
+package se.su.it.svc.server.filter
+
+import org.easymock.IAnswer
+import org.eclipse.jetty.server.AsyncContinuation
+import org.eclipse.jetty.server.Handler
+import org.eclipse.jetty.server.Request
+import org.junit.Test
+import se.su.it.svc.server.metrics.MetricsRegistry
+
+import javax.servlet.http.HttpServletRequest
+import javax.servlet.http.HttpServletResponse
+
+import static org.easymock.EasyMock.*
+
+class LaneHandlerTest {
+
+  private static LaneHandler handler(MetricsRegistry registry = new MetricsRegistry()) {
+    def handler = new LaneHandler(registry)
+    handler.setWsdlLane(1, 0, 0)
+    handler.setSoapLane(1, 0, 0)
+    handler.handler = createNiceMock(Handler)
+    replay(handler.handler)
+    handler
+  }
+
+  private static Request request(String uri, String query) {
+    def request = createNiceMock(Request)
+    expect(request.getRequestURI()).andReturn(uri).anyTimes()
+    expect(request.getQueryString()).andReturn(query).anyTimes()
+    request
+  }
+
+  @Test
+  void "classify sorts requests into lanes"() {
+    def lanes = [['/', null], ['/status.html', null], [HealthHandler.LIVE_PATH, null], [MetricsHandler.PATH, null],
+            ['/UserService', 'wsdl'], ['/UserService', 'xsd=1'], ['/UserService', null]].collect { uri, query ->
+      def request = request(uri, query)
+      replay(request)
+      LaneHandler.classify(request)
+    }
+
+    assert lanes == ['status', 'status', 'status', 'status', 'wsdl', 'wsdl', 'soap']
+  }
+
+  @Test
+  void "handle releases the slot after the request"() {
+    def handler = handler()
+    def request = request('/UserService', null)
+    expect(request.getAsyncContinuation()).andReturn(createNiceMock(AsyncContinuation))
+    replay(request)
+
+    handler.handle('/', request, request, createNiceMock(HttpServletResponse))
+
+    assert handler.getLane(LaneHandler.SOAP).inUse == 0
+  }
+
+  @Test
+  void "handle answers 503 when the lane is full"() {
+    def handler = handler()
+    assert handler.getLane(LaneHandler.WSDL).acquire()
+    def request = request('/UserService', 'wsdl')
+    def response = createMock(HttpServletResponse)
+    request.setHandled(true)
+    response.setHeader('Retry-After', '1')
+    response.sendError(503)
+    replay(request, response)
+
+    handler.handle('/', request, request, response)
+
+    verify(request, response)
+    assert handler.getLane(LaneHandler.WSDL).rejected == 1L
+  }
+
+  @Test
+  void "handle always lets status requests through"() {
+    def handler = handler()
+    assert handler.getLane(LaneHandler.SOAP).acquire()
+    assert handler.getLane(LaneHandler.WSDL).acquire()
+    def request = request(HealthHandler.LIVE_PATH, null)
+    def response = createMock(HttpServletResponse)
+    replay(request, response)
+
+    handler.handle('/', request, request, response)
+
+    verify(response)
+  }
+
+  @Test
+  void "handle answers 404 to other requests on the status port"() {
+    def handler = handler()
+    handler.statusPort = 8444
+    def request = request('/UserService', null)
+    expect(request.getLocalPort()).andReturn(8444).anyTimes()
+    def response = createMock(HttpServletResponse)
+    request.setHandled(true)
+    response.sendError(404)
+    replay(request, response)
+
+    handler.handle('/', request, request, response)
+
+    verify(request, response)
+    assert handler.getLane(LaneHandler.SOAP).inUse == 0
+  }
+
+  @Test
+  void "handle serves status requests on the status port"() {
+    def handler = handler()
+    handler.statusPort = 8444
+    def request = request(HealthHandler.LIVE_PATH, null)
+    expect(request.getLocalPort()).andReturn(8444).anyTimes()
+    def response = createMock(HttpServletResponse)
+    replay(request, response)
+
+    handler.handle('/', request, request, response)
+
+    verify(response)
+  }
+
+  @Test
+  void "handle keeps the slot of suspended requests until they complete"() {
+    def handler = handler()
+    def request = request('/UserService', null)
+    def continuation = createMock(AsyncContinuation)
+    expect(request.getAsyncContinuation()).andReturn(continuation)
+    expect(continuation.isSuspended()).andReturn(true)
+    def listener = null
+    continuation.addContinuationListener(anyObject())
+    expectLastCall().andAnswer({ listener = getCurrentArguments()[0]; null } as IAnswer)
+    replay(request, continuation)
+
+    handler.handle('/', request, request, createNiceMock(HttpServletResponse))
+
+    def lane = handler.getLane(LaneHandler.SOAP)
+    assert lane.inUse == 1
+    listener.onComplete(continuation)
+    assert lane.inUse == 0
+  }
+
+  @Test
+  void "handle counts requests per lane"() {
+    def registry = new MetricsRegistry()
+    def handler = handler(registry)
+    def request = request('/', null)
+    replay(request)
+
+    handler.handle('/', request, request, createNiceMock(HttpServletResponse))
+
+    def scrape = registry.scrape()
+    assert scrape.contains('cxf_server_lane_requests_total{lane="status"} 1')
+    assert scrape.contains('cxf_server_lane_requests_total{lane="soap"} 0')
+    assert scrape.contains('cxf_server_lane_in_use{lane="status"} 0')
+  }
+}
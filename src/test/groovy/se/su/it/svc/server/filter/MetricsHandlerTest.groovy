@@ -0,0 +1,50 @@
+package se.su.it.svc.server.filter
+
+import org.eclipse.jetty.server.Request
+import org.junit.Test
+import se.su.it.svc.server.metrics.MetricsRegistry
+import se.su.it.svc.server.metrics.PrometheusWriter
+
+import javax.servlet.http.HttpServletResponse
+
+import static org.easymock.EasyMock.*
+
+class MetricsHandlerTest {
+
+  @Test
+  void "handle: Test that metrics are served at /metrics"() {
+    def registry = new MetricsRegistry()
+    registry.counter("requests_total", "Requests.").inc()
+
+    def out = new StringWriter()
+    def baseRequest = createMock(Request)
+    def response = createMock(HttpServletResponse)
+
+    expect(baseRequest.getRequestURI()).andReturn("/metrics")
+    baseRequest.setHandled(true)
+    response.setContentType(PrometheusWriter.CONTENT_TYPE)
+    response.setStatus(HttpServletResponse.SC_OK)
+    expect(response.getWriter()).andReturn(new PrintWriter(out))
+    replay(baseRequest, response)
+
+    def handler = new MetricsHandler()
+    handler.registry = registry
+    handler.handle("/metrics", baseRequest, baseRequest, response)
+
+    verify(baseRequest, response)
+    assert out.toString().contains("requests_total 1")
+  }
+
+  @Test
+  void "handle: Test that other paths are left alone"() {
+    def baseRequest = createMock(Request)
+    def response = createMock(HttpServletResponse)
+
+    expect(baseRequest.getRequestURI()).andReturn("/services")
+    replay(baseRequest, response)
+
+    new MetricsHandler().handle("/services", baseRequest, baseRequest, response)
+
+    verify(baseRequest, response)
+  }
+}
@@ -0,0 +1,58 @@
+package se.su.it.svc.server.filter
+
+import org.eclipse.jetty.server.Request
+import org.junit.Test
+import se.su.it.svc.server.profile.SamplingProfiler
+import se.su.it.svc.server.security.Authorizor
+
+import javax.servlet.http.HttpServletResponse
+
+import static org.easymock.EasyMock.*
+
+class ProfilerHandlerTest {
+
+  @Test
+  void "handle: Test that users without the role are denied"() {
+    def baseRequest = createNiceMock(Request)
+    def response = createMock(HttpServletResponse)
+    def authorizor = createMock(Authorizor)
+
+    expect(baseRequest.getRemoteUser()).andReturn('foo')
+    expect(authorizor.checkRole('foo', 'admin')).andReturn(false)
+    response.sendError(eq(HttpServletResponse.SC_FORBIDDEN), anyObject(String))
+    replay(baseRequest, response, authorizor)
+
+    def handler = new ProfilerHandler()
+    handler.role = 'admin'
+    handler.authorizor = authorizor
+    handler.handle(ProfilerHandler.PATH, baseRequest, baseRequest, response)
+
+    verify(response, authorizor)
+  }
+
+  @Test
+  void "handle: Test that a profile is returned to users with the role"() {
+    def out = new StringWriter()
+    def baseRequest = createNiceMock(Request)
+    def response = createNiceMock(HttpServletResponse)
+    def authorizor = createMock(Authorizor)
+    def profiler = createMock(SamplingProfiler)
+
+    expect(baseRequest.getRemoteUser()).andReturn('foo')
+    expect(baseRequest.getParameter('mode')).andReturn('lock')
+    expect(baseRequest.getParameter('seconds')).andReturn('600')
+    expect(authorizor.checkRole('foo', 'admin')).andReturn(true)
+    expect(profiler.profile(SamplingProfiler.Mode.LOCK, 60000L, 10L)).andReturn('a;b 1\n')
+    expect(response.getWriter()).andReturn(new PrintWriter(out))
+    replay(baseRequest, response, authorizor, profiler)
+
+    def handler = new ProfilerHandler()
+    handler.role = 'admin'
+    handler.authorizor = authorizor
+    handler.profiler = profiler
+    handler.handle(ProfilerHandler.PATH, baseRequest, baseRequest, response)
+
+    verify(authorizor, profiler)
+    assert out.toString() == 'a;b 1\n'
+  }
+}
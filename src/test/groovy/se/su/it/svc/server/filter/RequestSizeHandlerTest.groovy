@@ -0,0 +1,64 @@
+package se.su.it.svc.server.filter
+
+import org.eclipse.jetty.server.Handler
+import org.eclipse.jetty.server.Request
+import org.junit.Test
+import se.su.it.svc.server.metrics.MetricsRegistry
+
+import javax.servlet.http.HttpServletResponse
+
+import static org.easymock.EasyMock.*
+
+class RequestSizeHandlerTest {
+
+  private static RequestSizeHandler handler(Handler next, long maxBodySize) {
+    def handler = new RequestSizeHandler(new MetricsRegistry())
+    handler.maxBodySize = maxBodySize
+    handler.handler = next
+    handler
+  }
+
+  @Test
+  void "handle answers 413 to requests over the maximum body size"() {
+    def next = createMock(Handler)
+    def baseRequest = createNiceMock(Request)
+    def response = createMock(HttpServletResponse)
+    expect(baseRequest.getHeader('Content-Length')).andReturn('3000000000')
+    baseRequest.setHandled(true)
+    response.setHeader('Connection', 'close')
+    response.sendError(413)
+    replay(next, baseRequest, response)
+
+    handler(next, 1024).handle('/', baseRequest, baseRequest, response)
+
+    verify(next, baseRequest, response)
+  }
+
+  @Test
+  void "handle passes requests within the maximum body size"() {
+    def next = createMock(Handler)
+    def baseRequest = createNiceMock(Request)
+    def response = createMock(HttpServletResponse)
+    expect(baseRequest.getHeader('Content-Length')).andReturn('1024')
+    next.handle('/', baseRequest, baseRequest, response)
+    replay(next, baseRequest, response)
+
+    handler(next, 1024).handle('/', baseRequest, baseRequest, response)
+
+    verify(next, response)
+  }
+
+  @Test
+  void "handle passes chunked requests"() {
+    def next = createMock(Handler)
+    def baseRequest = createNiceMock(Request)
+    def response = createMock(HttpServletResponse)
+    expect(baseRequest.getHeader('Content-Length')).andReturn(null)
+    next.handle('/', baseRequest, baseRequest, response)
+    replay(next, baseRequest, response)
+
+    handler(next, 1024).handle('/', baseRequest, baseRequest, response)
+
+    verify(next, response)
+  }
+}
@@ -0,0 +1,34 @@
+package se.su.it.svc.server.filter
+
+import org.junit.Test
+import se.su.it.svc.server.timing.RequestTiming
+import se.su.it.svc.server.timing.SlowRequest
+import se.su.it.svc.server.timing.SlowRequestRecorder
+
+class SlowRequestHandlerTest {
+
+  @Test
+  void "isLoopback: Test loopback addresses"() {
+    assert SlowRequestHandler.isLoopback('127.0.0.1')
+    assert SlowRequestHandler.isLoopback('0:0:0:0:0:0:0:1')
+    assert !SlowRequestHandler.isLoopback('10.0.0.1')
+    assert !SlowRequestHandler.isLoopback(null)
+  }
+
+  @Test
+  void "toJson: Test that requests are listed with stages"() {
+    def recorder = new SlowRequestRecorder()
+    recorder.threshold = 5
+
+    def timing = new RequestTiming('ID')
+    timing.operation = 'getUser'
+    timing.start(RequestTiming.Stage.INVOCATION).end()
+    recorder.record(new SlowRequest(1L, 7L, 'ID', '/ws', 200, 'foo', 1500000L, timing))
+
+    def json = SlowRequestHandler.toJson(recorder)
+
+    assert json.startsWith('{"windowMs":60000,"thresholdMs":5,"slowest":[{"time":1,"durationMs":7,"id":"ID","uri":"/ws",'
+            + '"status":200,"operation":"getUser","principal":"foo","queueWaitMs":1.500,"stagesMs":{"auth":0.000,')
+    assert json.contains('"overThreshold":[{"time":1')
+  }
+}
@@ -0,0 +1,65 @@
+package se.su.it.svc.server.health
+
+import org.junit.Test
+
+class HealthMonitorTest {
+
+  private static HealthProbe probe(String name, Closure check) {
+    [getName: { name }, check: check] as HealthProbe
+  }
+
+  @Test
+  void "getResults: Test that probes that haven't run are not healthy"() {
+    def monitor = new HealthMonitor()
+    monitor.register(probe("a", { "ok" }))
+
+    assert !monitor.ready
+    assert monitor.results*.message == ["Not checked yet"]
+  }
+
+  @Test
+  void "runProbe: Test that results are cached"() {
+    def monitor = new HealthMonitor()
+    def ok = probe("a", { "ok" })
+    def failing = probe("b", { throw new IllegalStateException("down") })
+    monitor.register(ok)
+    monitor.register(failing)
+
+    monitor.runProbe(ok)
+    assert monitor.results*.healthy == [true, false]
+
+    monitor.runProbe(failing)
+    assert monitor.results*.message == ["ok", "down"]
+    assert !monitor.ready
+  }
+
+  @Test
+  void "getResults: Test that stale results are not healthy"() {
+    def monitor = new HealthMonitor()
+    monitor.interval = 1
+    def ok = probe("a", { "ok" })
+    monitor.register(ok)
+    monitor.runProbe(ok)
+
+    Thread.sleep(20)
+
+    assert !monitor.ready
+    assert monitor.results[0].message.startsWith("Stale")
+  }
+
+  @Test
+  void "start: Test that probes are run in the background"() {
+    def monitor = new HealthMonitor()
+    monitor.register(probe("a", { "ok" }))
+    monitor.start()
+
+    try {
+      for (int i = 0; i < 100 && !monitor.ready; i++) {
+        Thread.sleep(10)
+      }
+      assert monitor.ready
+    } finally {
+      monitor.stop()
+    }
+  }
+}
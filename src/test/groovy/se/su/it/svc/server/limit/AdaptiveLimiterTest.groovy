@@ -0,0 +1,177 @@
+package se.su.it.svc.server.limit
+
+import org.junit.Test
+import se.su.it.svc.server.metrics.MetricsRegistry
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class AdaptiveLimiterTest {
+
+  private static final long MS = 1000000L
+
+  private static AdaptiveLimiter limiter(int initialLimit) {
+    def limiter = new AdaptiveLimiter(new MetricsRegistry())
+    limiter.initialLimit = initialLimit
+    limiter
+  }
+
+  /** Fill windows with the latency, with the given number of requests in flight. */
+  private static void windows(AdaptiveLimiter limiter, int count, long latency, boolean busy) {
+    for (int i = 0; i < count * Math.max(50, limiter.limit); i++) {
+      limiter.update(latency, busy ? limiter.limit : 0, false)
+    }
+  }
+
+  @Test
+  void "acquire admits requests up to the limit"() {
+    def limiter = limiter(2)
+    limiter.maxQueue = 0
+
+    assert limiter.acquire(false)
+    assert limiter.acquire(false)
+    assert !limiter.acquire(false)
+
+    assert limiter.inFlight == 2
+    assert limiter.rejected == 1L
+  }
+
+  @Test
+  void "acquire sheds sheddable requests first"() {
+    def limiter = limiter(4)
+    limiter.sheddableShare = 0.5
+
+    assert limiter.acquire(true)
+    assert limiter.acquire(true)
+    assert !limiter.acquire(true)
+    assert limiter.acquire(false)
+    assert limiter.acquire(false)
+
+    assert limiter.shed == 1L
+    assert limiter.rejected == 0L
+  }
+
+  @Test
+  void "acquire waits in the queue until a request is released"() {
+    def limiter = limiter(1)
+    limiter.maxWait = 5000
+    assert limiter.acquire(false)
+
+    def acquired = new CountDownLatch(1)
+    Thread.start {
+      if (limiter.acquire(false)) {
+        acquired.countDown()
+      }
+    }
+    while (limiter.queued == 0) {
+      Thread.sleep(1)
+    }
+
+    assert !limiter.acquire(true)
+    limiter.release(MS, false)
+
+    assert acquired.await(5, TimeUnit.SECONDS)
+    assert limiter.queued == 0
+    assert limiter.inFlight == 1
+  }
+
+  @Test
+  void "acquire rejects when the wait runs out"() {
+    def limiter = limiter(1)
+    limiter.maxWait = 10
+    assert limiter.acquire(false)
+
+    assert !limiter.acquire(false)
+
+    assert limiter.queued == 0
+    assert limiter.rejected == 1L
+  }
+
+  @Test
+  void "update grows the limit while latency stays at the baseline"() {
+    def limiter = limiter(20)
+    windows(limiter, 1, MS, false)
+
+    windows(limiter, 10, MS, true)
+
+    assert limiter.limit > 20
+  }
+
+  @Test
+  void "update shrinks the limit when latency rises"() {
+    def limiter = limiter(100)
+    windows(limiter, 1, MS, false)
+
+    windows(limiter, 10, 5 * MS, true)
+
+    assert limiter.limit < 100
+  }
+
+  @Test
+  void "update keeps the limit while the server is not busy"() {
+    def limiter = limiter(20)
+
+    windows(limiter, 10, MS, false)
+    windows(limiter, 10, 5 * MS, false)
+
+    assert limiter.limit == 20
+  }
+
+  @Test
+  void "update treats a steady mix of fast and slow requests as uncongested"() {
+    def limiter = limiter(20)
+    def random = new Random(1)
+    def mix = { (random.nextInt(5) == 0 ? 20 : 1) * MS }
+    for (int i = 0; i < 200; i++) {
+      limiter.update(mix(), 0, false)
+    }
+
+    for (int i = 0; i < 5000; i++) {
+      limiter.update(mix(), limiter.limit, false)
+    }
+
+    assert limiter.limit > 20
+  }
+
+  @Test
+  void "update backs off when requests fail"() {
+    def limiter = limiter(100)
+    windows(limiter, 1, MS, false)
+
+    for (int i = 0; i < 100; i++) {
+      limiter.update(MS, 100, true)
+    }
+
+    assert limiter.limit == 90
+  }
+
+  @Test
+  void "update keeps the limit within bounds"() {
+    def limiter = limiter(20)
+    limiter.maxLimit = 30
+    limiter.minLimit = 10
+    windows(limiter, 1, MS, false)
+
+    windows(limiter, 50, MS, true)
+    assert limiter.limit == 30
+
+    windows(limiter, 40, 10 * MS, true)
+    assert limiter.limit == 10
+  }
+
+  @Test
+  void "constructor publishes the limit and rejections"() {
+    def registry = new MetricsRegistry()
+    def limiter = new AdaptiveLimiter(registry)
+    limiter.maxQueue = 0
+    limiter.initialLimit = 1
+    limiter.acquire(false)
+    limiter.acquire(false)
+
+    def scrape = registry.scrape()
+
+    assert scrape.contains('cxf_server_admission_limit 1')
+    assert scrape.contains('cxf_server_admission_in_flight 1')
+    assert scrape.contains('cxf_server_admission_rejected_total{priority="normal"} 1')
+  }
+}
@@ -0,0 +1,89 @@
+package se.su.it.svc.server.limit
+
+import org.junit.Test
+import se.su.it.svc.server.metrics.MetricsRegistry
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class BulkheadTest {
+
+  @Test
+  void "acquire rejects at once without a queue"() {
+    def bulkhead = new Bulkhead('getUser', 2, 0, 1000, new MetricsRegistry())
+
+    assert bulkhead.acquire()
+    assert bulkhead.acquire()
+    long start = System.currentTimeMillis()
+    assert !bulkhead.acquire()
+
+    assert System.currentTimeMillis() - start < 500
+    assert bulkhead.inUse == 2
+    assert bulkhead.rejected == 1L
+
+    bulkhead.release()
+
+    assert bulkhead.acquire()
+  }
+
+  @Test
+  void "acquire waits in the queue for a slot"() {
+    def bulkhead = new Bulkhead('getUser', 1, 1, 5000, new MetricsRegistry())
+    assert bulkhead.acquire()
+
+    def acquired = new CountDownLatch(1)
+    Thread.start {
+      if (bulkhead.acquire()) {
+        acquired.countDown()
+      }
+    }
+    while (bulkhead.queued == 0) {
+      Thread.sleep(1)
+    }
+
+    assert !bulkhead.acquire()
+    bulkhead.release()
+
+    assert acquired.await(5, TimeUnit.SECONDS)
+    assert bulkhead.queued == 0
+    assert bulkhead.rejected == 1L
+  }
+
+  @Test
+  void "acquire gives up after maxWait"() {
+    def bulkhead = new Bulkhead('getUser', 1, 1, 10, new MetricsRegistry())
+    assert bulkhead.acquire()
+
+    assert !bulkhead.acquire()
+    assert bulkhead.queued == 0
+  }
+
+  @Test
+  void "counts are published as metrics"() {
+    def registry = new MetricsRegistry()
+    def bulkhead = new Bulkhead('getUser', 2, 0, 0, registry)
+    bulkhead.registerGauges(registry)
+    bulkhead.acquire()
+
+    def scrape = registry.scrape()
+
+    assert scrape.contains('cxf_server_bulkhead_in_use{bulkhead="getUser"} 1')
+    assert scrape.contains('cxf_server_bulkhead_queued{bulkhead="getUser"} 0')
+    assert scrape.contains('cxf_server_bulkhead_rejected_total{bulkhead="getUser"} 0')
+  }
+
+  @Test
+  void "counts are published under the kind of bulkhead"() {
+    def registry = new MetricsRegistry()
+    def bulkhead = new Bulkhead('lane', 'wsdl', 1, 0, 0, registry)
+    bulkhead.registerGauges(registry)
+    bulkhead.acquire()
+    bulkhead.acquire()
+
+    def scrape = registry.scrape()
+
+    assert scrape.contains('cxf_server_lane_in_use{lane="wsdl"} 1')
+    assert scrape.contains('cxf_server_lane_rejected_total{lane="wsdl"} 1')
+    assert !scrape.contains('cxf_server_bulkhead')
+  }
+}
@@ -0,0 +1,91 @@
+package se.su.it.svc.server.limit
+
+import org.junit.Test
+import se.su.it.svc.server.metrics.MetricsRegistry
+import se.su.it.svc.server.security.Authorizor
+
+import java.util.concurrent.TimeUnit
+
+class RateLimiterTest {
+
+  @Test
+  void "tryAcquire allows the burst and then limits"() {
+    def limiter = new RateLimiter(new MetricsRegistry())
+    limiter.defaultLimit = new RateLimiter.Limit(1, 3)
+
+    assert (1..3).collect { limiter.tryAcquire('foo') } == [0L, 0L, 0L]
+    long wait = limiter.tryAcquire('foo')
+
+    assert wait > 0 && wait <= TimeUnit.SECONDS.toNanos(1)
+    assert limiter.tryAcquire('bar') == 0L
+    assert limiter.allowed == 4L
+    assert limiter.limited == 1L
+  }
+
+  @Test
+  void "tryAcquire refills over time"() {
+    def limiter = new RateLimiter(new MetricsRegistry())
+    limiter.defaultLimit = new RateLimiter.Limit(100, 1)
+
+    assert limiter.tryAcquire('foo') == 0L
+    assert limiter.tryAcquire('foo') > 0L
+    Thread.sleep(20)
+
+    assert limiter.tryAcquire('foo') == 0L
+  }
+
+  @Test
+  void "tryAcquire never limits unknown principals or without limits"() {
+    def limiter = new RateLimiter(new MetricsRegistry())
+
+    assert !limiter.enabled
+    assert limiter.tryAcquire('foo') == 0L
+    assert limiter.tryAcquire(null) == 0L
+  }
+
+  @Test
+  void "principal limits override role limits"() {
+    def limiter = new RateLimiter(new MetricsRegistry())
+    limiter.authorizor = [checkRole: { uid, role -> uid == 'admin' && role != 'none' }] as Authorizor
+    limiter.defaultLimit = new RateLimiter.Limit(1, 1)
+    limiter.roleLimits = [none: new RateLimiter.Limit(1, 1), big: new RateLimiter.Limit(10, 5), small: new RateLimiter.Limit(2, 2)]
+    limiter.principalLimits = [batch: new RateLimiter.Limit(1, 2)]
+
+    assert (1..5).every { limiter.tryAcquire('admin') == 0L }
+    assert limiter.tryAcquire('admin') > 0L
+    assert (1..2).every { limiter.tryAcquire('batch') == 0L }
+    assert limiter.tryAcquire('batch') > 0L
+    assert limiter.tryAcquire('foo') == 0L
+    assert limiter.tryAcquire('foo') > 0L
+  }
+
+  @Test
+  void "buckets are bounded"() {
+    def limiter = new RateLimiter(new MetricsRegistry())
+    limiter.defaultLimit = new RateLimiter.Limit(1, 1)
+    limiter.maxPrincipals = 100
+
+    1000.times { limiter.tryAcquire("user$it".toString()) }
+
+    assert limiter.principals <= 100
+  }
+
+  @Test
+  void "toRetryAfter rounds up to whole seconds"() {
+    assert RateLimiter.toRetryAfter(1) == 1L
+    assert RateLimiter.toRetryAfter(TimeUnit.SECONDS.toNanos(1)) == 1L
+    assert RateLimiter.toRetryAfter(TimeUnit.MILLISECONDS.toNanos(1500)) == 2L
+  }
+
+  @Test
+  void "Limit parses rate and burst"() {
+    assert RateLimiter.Limit.parse('2.5').burst == 3
+    assert RateLimiter.Limit.parse(' 10, 20 ').rate == 10d
+    assert RateLimiter.Limit.parse('10,20').burst == 20
+  }
+
+  @Test(expected = IllegalArgumentException)
+  void "Limit rejects invalid values"() {
+    RateLimiter.Limit.parse('often')
+  }
+}
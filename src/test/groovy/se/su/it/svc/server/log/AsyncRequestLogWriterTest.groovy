@@ -0,0 +1,105 @@
+package se.su.it.svc.server.log
+
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+
+class AsyncRequestLogWriterTest {
+
+  File directory
+
+  @Before
+  void setUp() {
+    directory = File.createTempFile("request", "log")
+    directory.delete()
+    directory.mkdirs()
+  }
+
+  @After
+  void tearDown() {
+    directory.deleteDir()
+  }
+
+  private static AsyncRequestLogWriter.Entry entry(int status = 200, long length = 123) {
+    new AsyncRequestLogWriter.Entry("localhost", "1.2.3.4", "foobar", 0L, "GET", "/services", "HTTP/1.1",
+            status, length, "ID", 12L)
+  }
+
+  @Test
+  void "format: Test that entries are formatted like the common request log"() {
+    def buf = new StringBuilder()
+
+    entry().format(buf, "time")
+
+    assert buf.toString() == 'localhost 1.2.3.4 - foobar [time] "GET /services HTTP/1.1" 200 123 ID 12'
+  }
+
+  @Test
+  void "format: Test that async requests and unknown lengths are formatted"() {
+    def buf = new StringBuilder()
+
+    entry(-1, -1).format(buf, "time")
+
+    assert buf.toString().endsWith('" Async - ID 12')
+  }
+
+  @Test
+  void "offer: Test that entries are written to the file on stop"() {
+    def writer = new AsyncRequestLogWriter()
+    writer.file = new File(directory, "request.log")
+    writer.start()
+
+    3.times { assert writer.offer(entry()) }
+    writer.stop()
+
+    def lines = writer.file.readLines()
+    assert lines.size() == 3
+    assert lines.every { it.startsWith('localhost 1.2.3.4 - foobar [') && it.endsWith('" 200 123 ID 12') }
+    assert writer.written == 3
+    assert writer.dropped == 0
+  }
+
+  @Test
+  void "offer: Test that entries are dropped and counted when not running"() {
+    def writer = new AsyncRequestLogWriter()
+
+    assert !writer.offer(entry())
+    assert writer.dropped == 1
+  }
+
+  @Test
+  void "write: Test that the file is rotated when it reaches the max size"() {
+    def writer = new AsyncRequestLogWriter()
+    writer.file = new File(directory, "request.log")
+    writer.maxFileSize = 1
+    writer.start()
+
+    writer.offer(entry())
+    writer.stop()
+
+    assert directory.listFiles().size() == 2
+    assert writer.file.readLines().size() == 1
+  }
+
+  @Test
+  void "write: Test that entries are dropped while the file can't be opened, and written again once it can"() {
+    def writer = new AsyncRequestLogWriter()
+    writer.file = new File(directory, "request.log")
+    writer.maxFileSize = 1
+    writer.start()
+    directory.deleteDir()
+
+    // The first entry goes to the open file, rotating before the second one fails to open a new file
+    2.times { writer.offer(entry()) }
+    while (writer.written + writer.dropped < 2) {
+      Thread.sleep(10)
+    }
+    directory.mkdirs()
+    writer.offer(entry())
+    writer.stop()
+
+    assert writer.written == 2
+    assert writer.dropped == 1
+    assert writer.file.readLines().size() == 1
+  }
+}
@@ -40,6 +40,8 @@ import org.junit.Test
 import org.junit.runner.RunWith
 import org.powermock.modules.junit4.PowerMockRunner
 import org.slf4j.Logger
+import se.su.it.svc.server.filter.CorrelationIdHandler
+import se.su.it.svc.server.metrics.LatencyRegistry
 
 import static org.easymock.EasyMock.*
 import static org.powermock.api.easymock.PowerMock.createPartialMockForAllMethodsExcept
@@ -66,8 +68,13 @@ class CommonRequestLogTest {
     expect(request.getProtocol()).andReturn("HTTP/1.1")
     expect(spy.getStatus(request, response)).andReturn("200")
     expect(spy.getResponseLength(response)).andReturn("0")
+    expect(spy.getCorrelationId(request)).andReturn("ID")
+    expect(spy.getDuration(request)).andReturn(12L)
+    spy.finishTiming(request)
+    spy.recordLatency(request, response, 12L)
+    spy.recordSlowRequest(request, response, 12L)
 
-    expect(logger.info('127.0.0.1 1.2.3.4 - foobar [time] "GET /sercvices HTTP/1.1" 200 0'))
+    expect(logger.info('127.0.0.1 1.2.3.4 - foobar [time] "GET /sercvices HTTP/1.1" 200 0 ID 12'))
     replayAll(request, response, logger, spy)
 
     CommonRequestLog.logger = logger
@@ -117,12 +124,74 @@ class CommonRequestLogTest {
   }
 
   @Test
-  void "getStatus returns Async for async requests"() {
+  void "getDuration returns time since the request was accepted"() {
+    def request = createMock(Request)
+
+    expect(request.getTimeStamp()).andReturn(System.currentTimeMillis() - 1000)
+
+    replay(request)
+
+    def ret = new CommonRequestLog().getDuration(request)
+
+    assert ret >= 1000 && ret < 60000
+  }
+
+  @Test
+  void "recordLatency records latency per endpoint, operation and status class"() {
+    def request = createMock(Request)
+    def response = createMock(Response)
+
+    expect(request.getAttribute(LatencyRegistry.OPERATION_ATTRIBUTE)).andReturn("getUser")
+    expect(request.getUri()).andReturn(new HttpURI("/services/user"))
+    expect(response.getStatus()).andReturn(200)
+
+    replay(request, response)
+
+    def requestLog = new CommonRequestLog()
+    requestLog.recordLatency(request, response, 12L)
+
+    def series = requestLog.latencies.series
+    assert series.size() == 1
+    assert series[0].endpoint == "/services/user"
+    assert series[0].operation == "getUser"
+    assert series[0].statusClass == "2xx"
+    assert series[0].histogram.snapshot().getValueAt(0.5) == 12L
+  }
+
+  @Test
+  void "getCorrelationId returns correlation id"() {
+    def request = createMock(Request)
+
+    expect(request.getAttribute(CorrelationIdHandler.ATTRIBUTE)).andReturn("ID")
+
+    replay(request)
+
+    def ret = new CommonRequestLog().getCorrelationId(request)
+
+    assert ret == 'ID'
+  }
+
+  @Test
+  void "getCorrelationId returns - for no correlation id"() {
+    def request = createMock(Request)
+
+    expect(request.getAttribute(CorrelationIdHandler.ATTRIBUTE)).andReturn(null)
+
+    replay(request)
+
+    def ret = new CommonRequestLog().getCorrelationId(request)
+
+    assert ret == '-'
+  }
+
+  @Test
+  void "getStatus returns Async for suspended requests"() {
     def request = createMock(Request)
     def async = createMock(AsyncContinuation)
 
     expect(request.getAsyncContinuation()).andReturn(async)
     expect(async.isInitial()).andReturn(false)
+    expect(async.isComplete()).andReturn(false)
 
     replayAll(request, async)
 
@@ -131,6 +200,24 @@ class CommonRequestLogTest {
     assert ret == 'Async'
   }
 
+  @Test
+  void "getStatus returns status for completed async requests"() {
+    def request = createMock(Request)
+    def async = createMock(AsyncContinuation)
+    def response = createMock(Response)
+
+    expect(request.getAsyncContinuation()).andReturn(async)
+    expect(async.isInitial()).andReturn(false)
+    expect(async.isComplete()).andReturn(true)
+    expect(response.getStatus()).andReturn(200)
+
+    replayAll(request, async, response)
+
+    def ret = new CommonRequestLog().getStatus(request, response)
+
+    assert ret == '200'
+  }
+
   @Test
   void "getStatus returns 404 for status below 0"() {
     def request = createMock(Request)
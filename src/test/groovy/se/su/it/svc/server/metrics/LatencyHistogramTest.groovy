@@ -0,0 +1,82 @@
+package se.su.it.svc.server.metrics
+
+import org.junit.Test
+
+class LatencyHistogramTest {
+
+  @Test
+  void "snapshot: Test that an empty histogram has no values"() {
+    def snapshot = new LatencyHistogram().snapshot()
+
+    assert snapshot.count == 0
+    assert snapshot.getValueAt(0.99) == 0
+  }
+
+  @Test
+  void "snapshot: Test that small values are exact"() {
+    def histogram = new LatencyHistogram()
+    (1..10).each { histogram.record(it) }
+
+    def snapshot = histogram.snapshot()
+
+    assert snapshot.count == 10
+    assert snapshot.sum == 55
+    assert snapshot.max == 10
+    assert snapshot.getValueAt(0.5) == 5
+    assert snapshot.getValueAt(0.9) == 9
+    assert snapshot.getValueAt(1.0) == 10
+  }
+
+  @Test
+  void "snapshot: Test that large values are within the bucket precision"() {
+    def histogram = new LatencyHistogram()
+    (1..10000).each { histogram.record(it) }
+
+    def snapshot = histogram.snapshot()
+
+    [0.5: 5000, 0.9: 9000, 0.99: 9900, 0.999: 9990].each { quantile, expected ->
+      def value = snapshot.getValueAt(quantile)
+      assert value >= expected && value <= expected * 1.125
+    }
+  }
+
+  @Test
+  void "snapshot: Test that percentiles only cover the current and previous window"() {
+    def histogram = new LatencyHistogram(1000)
+    long start = System.currentTimeMillis()
+    histogram.record(100, start)
+    histogram.record(1, start + 1000)
+
+    def snapshot = histogram.snapshot(start + 1000)
+    assert snapshot.windowCount == 2
+    assert snapshot.max == 100
+
+    snapshot = histogram.snapshot(start + 2000)
+    assert snapshot.windowCount == 1
+    assert snapshot.max == 1
+    assert snapshot.getValueAt(0.99) == 1
+
+    snapshot = histogram.snapshot(start + 5000)
+    assert snapshot.windowCount == 0
+    assert snapshot.getValueAt(0.99) == 0
+    assert snapshot.count == 2
+    assert snapshot.sum == 101
+  }
+
+  @Test
+  void "record: Test that negative values are recorded as 0"() {
+    def histogram = new LatencyHistogram()
+    histogram.record(-5)
+
+    assert histogram.snapshot().getValueAt(0.5) == 0
+  }
+
+  @Test
+  void "index: Test that every bucket holds the values up to its highest value"() {
+    [0L, 15L, 16L, 17L, 31L, 32L, 1000L, 123456789L, Long.MAX_VALUE].each { long value ->
+      int index = LatencyHistogram.index(value)
+      assert LatencyHistogram.highestValue(index) >= value
+      assert index == 0 || LatencyHistogram.highestValue(index - 1) < value
+    }
+  }
+}
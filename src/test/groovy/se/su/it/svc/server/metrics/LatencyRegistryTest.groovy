@@ -0,0 +1,37 @@
+package se.su.it.svc.server.metrics
+
+import org.junit.Test
+
+class LatencyRegistryTest {
+
+  @Test
+  void "record: Test that latencies are kept per endpoint, operation and status class"() {
+    def registry = new LatencyRegistry()
+
+    registry.record("/services/user", "getUser", 200, 10)
+    registry.record("/services/user", "getUser", 204, 20)
+    registry.record("/services/user", "getUser", 500, 30)
+    registry.record("/services/user", null, 404, 40)
+
+    def series = registry.series.collectEntries { [(it.operation + ' ' + it.statusClass): it.histogram.snapshot().count] }
+    assert series == ['getUser 2xx': 2, 'getUser 5xx': 1, '- 4xx': 1]
+  }
+
+  @Test
+  void "record: Test that series beyond maxSeries are recorded as other"() {
+    def registry = new LatencyRegistry()
+    registry.maxSeries = 2
+
+    5.times { registry.record("/e" + it, null, 200, it) }
+
+    def other = registry.series.find { it.endpoint == LatencyRegistry.OTHER }
+    assert other.histogram.snapshot().count == 3
+    assert registry.overflow == 3
+  }
+
+  @Test
+  void "statusClass: Test that unknown statuses are grouped"() {
+    assert LatencyRegistry.statusClass(302) == "3xx"
+    assert LatencyRegistry.statusClass(0) == "unknown"
+  }
+}
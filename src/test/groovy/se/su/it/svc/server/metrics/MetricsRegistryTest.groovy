@@ -0,0 +1,63 @@
+package se.su.it.svc.server.metrics
+
+import org.junit.Test
+
+class MetricsRegistryTest {
+
+  @Test
+  void "counter: Test that the same counter is returned for the same name and labels"() {
+    def registry = new MetricsRegistry()
+
+    def first = registry.counter("requests_total", "Requests.", "result", "ok")
+    def second = registry.counter("requests_total", "Requests.", "result", "ok")
+    def other = registry.counter("requests_total", "Requests.", "result", "failed")
+
+    assert first.is(second)
+    assert !first.is(other)
+  }
+
+  @Test(expected = IllegalArgumentException)
+  void "gauge: Test that a name can't be reused for another type"() {
+    def registry = new MetricsRegistry()
+
+    registry.counter("requests", "Requests.")
+    registry.gauge("requests", "Requests.", { 1.0d } as Gauge)
+  }
+
+  @Test
+  void "scrape: Test that metrics are written in the Prometheus text format"() {
+    def registry = new MetricsRegistry()
+    registry.counter("requests_total", "Requests.", "result", "ok").add(3)
+    registry.gauge("queue_depth", "Queue depth.", { 1.5d } as Gauge)
+    registry.histogram("latency", "Latency.").record(10)
+
+    def lines = registry.scrape().readLines()
+
+    assert lines.containsAll([
+            '# HELP requests_total Requests.',
+            '# TYPE requests_total counter',
+            'requests_total{result="ok"} 3',
+            '# TYPE queue_depth gauge',
+            'queue_depth 1.5',
+            '# TYPE latency summary',
+            'latency{quantile="0.99"} 10',
+            'latency_sum 10',
+            'latency_count 1'])
+  }
+
+  @Test
+  void "scrape: Test that label values are escaped"() {
+    def registry = new MetricsRegistry()
+    registry.counter("requests_total", "Requests.", "endpoint", 'a"b\\c\nd').inc()
+
+    assert registry.scrape().contains('requests_total{endpoint="a\\"b\\\\c\\nd"} 1')
+  }
+
+  @Test
+  void "scrape: Test that collectors are written"() {
+    def registry = new MetricsRegistry()
+    registry.register({ PrometheusWriter writer -> writer.sample("collected", 2) } as Collector)
+
+    assert registry.scrape().readLines().contains('collected 2')
+  }
+}
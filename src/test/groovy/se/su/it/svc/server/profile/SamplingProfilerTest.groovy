@@ -0,0 +1,76 @@
+package se.su.it.svc.server.profile
+
+import org.junit.Test
+
+import java.util.concurrent.CountDownLatch
+
+class SamplingProfilerTest {
+
+  static volatile boolean stop = false
+
+  static void busy() {
+    long x = 0
+    while (!stop) {
+      x += System.nanoTime() % 7
+    }
+  }
+
+  @Test
+  void "profile samples running request threads"() {
+    def thread = Thread.start('profiled-1') { busy() }
+    try {
+      def profiler = new SamplingProfiler()
+      profiler.threadNamePrefix = 'profiled-'
+
+      def ret = profiler.profile(SamplingProfiler.Mode.CPU, 200, 5)
+
+      assert ret.readLines().any { it.contains('SamplingProfilerTest.busy') }
+      assert !profiler.running
+    } finally {
+      stop = true
+      thread.join()
+    }
+  }
+
+  @Test
+  void "profile roots blocked threads at the lock"() {
+    def lock = new Object()
+    def holding = new CountDownLatch(1)
+    def release = new CountDownLatch(1)
+    def holder = Thread.start('locked-1') { synchronized (lock) { holding.countDown(); release.await() } }
+    holding.await()
+    def blocked = Thread.start('locked-2') { synchronized (lock) { } }
+    try {
+      def profiler = new SamplingProfiler()
+      profiler.threadNamePrefix = 'locked-'
+
+      def ret = profiler.profile(SamplingProfiler.Mode.LOCK, 100, 5)
+
+      assert ret.readLines().any { it.startsWith('lock java.lang.Object;') }
+    } finally {
+      release.countDown()
+      holder.join()
+      blocked.join()
+    }
+  }
+
+  @Test(expected = IllegalStateException)
+  void "profile rejects a second profile"() {
+    def profiler = new SamplingProfiler()
+    def started = new CountDownLatch(1)
+    def thread = Thread.start {
+      started.countDown()
+      profiler.profile(SamplingProfiler.Mode.WALL, 500, 10)
+    }
+    started.await()
+    while (!profiler.running) {
+      Thread.sleep(1)
+    }
+
+    try {
+      profiler.profile(SamplingProfiler.Mode.WALL, 10, 10)
+    } finally {
+      thread.join()
+    }
+  }
+}
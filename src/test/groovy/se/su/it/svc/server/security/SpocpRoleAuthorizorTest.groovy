@@ -82,6 +82,34 @@ class SpocpRoleAuthorizorTest {
     assert !SpocpRoleAuthorizor.instance.checkRole('foo', 'role')
   }
 
+  @Test
+  void "checkConnection opens and closes a connection"() {
+    def mockConnection = createMock(SPOCPConnection)
+    expect(mockConnection.logout()).andReturn(null)
+
+    def mockFactory = createMock(SPOCPConnectionFactoryImpl)
+    expect(mockFactory.getConnection()).andReturn(mockConnection)
+
+    replayAll(mockFactory, mockConnection)
+
+    def authorizor = SpocpRoleAuthorizor.instance
+    authorizor.spocpConnectionFactory = mockFactory
+    authorizor.checkConnection()
+
+    verifyAll()
+  }
+
+  @Test(expected = IllegalStateException)
+  void "checkConnection throws exception for no connection"() {
+    def mockFactory = createMock(SPOCPConnectionFactoryImpl)
+    expect(mockFactory.getConnection()).andReturn(null)
+    replay(mockFactory)
+
+    def authorizor = SpocpRoleAuthorizor.instance
+    authorizor.spocpConnectionFactory = mockFactory
+    authorizor.checkConnection()
+  }
+
   @Test
   void "doSpocpCall returns false on exception when getting connection"() {
     def mockFactory = createMock(SPOCPConnectionFactoryImpl)
@@ -9,6 +9,9 @@ import org.junit.runner.RunWith
 import org.powermock.core.classloader.annotations.PrepareForTest
 import org.powermock.modules.junit4.PowerMockRunner
 import org.powermock.reflect.Whitebox
+import se.su.it.svc.server.filter.CorrelationIdHandler
+import se.su.it.svc.server.limit.RateLimiter
+import se.su.it.svc.server.timing.RequestTiming
 
 import javax.servlet.ServletRequest
 import javax.servlet.http.HttpServletRequest
@@ -17,16 +20,19 @@ import java.security.Principal
 
 import static org.easymock.EasyMock.anyObject
 import static org.easymock.EasyMock.anyString
+import static org.easymock.EasyMock.eq
 import static org.easymock.EasyMock.expect
+import static org.easymock.EasyMock.expectLastCall
 import static org.powermock.api.easymock.PowerMock.createMock
 import static org.powermock.api.easymock.PowerMock.createPartialMock
 import static org.powermock.api.easymock.PowerMock.expectPrivate
 import static org.powermock.api.easymock.PowerMock.mockStatic
 import static org.powermock.api.easymock.PowerMock.replay
 import static org.powermock.api.easymock.PowerMock.replayAll
+import static org.powermock.api.easymock.PowerMock.verify
 
 @RunWith(PowerMockRunner)
-@PrepareForTest([SuCxfAuthenticator, SpocpRoleAuthorizor])
+@PrepareForTest([SuCxfAuthenticator, SpocpRoleAuthorizor, RateLimiter])
 class SuCxfAuthenticatorTest {
 
   @Test(expected = IllegalStateException)
@@ -74,6 +80,10 @@ class SuCxfAuthenticatorTest {
     def mockResponse       = createMock(HttpServletResponse)
 
     expect(mockRequest.getRequestURI()).andReturn('').anyTimes()
+    expect(mockRequest.getAttribute(CorrelationIdHandler.ATTRIBUTE)).andReturn('ID').anyTimes()
+    expect(mockRequest.getAttribute(RequestTiming.ATTRIBUTE)).andReturn(null).anyTimes()
+    mockRequest.setAttribute(eq(RequestTiming.ATTRIBUTE), anyObject())
+    expectLastCall().anyTimes()
     expect(mockAuthentication.getUserIdentity()).andReturn(null)
 
     def mock = createPartialMock(SuCxfAuthenticator, 'doValidateRequest', 'isWsdlRequest')
@@ -94,6 +104,10 @@ class SuCxfAuthenticatorTest {
     def mockResponse       = createMock(HttpServletResponse)
 
     expect(mockRequest.getRequestURI()).andReturn('').anyTimes()
+    expect(mockRequest.getAttribute(CorrelationIdHandler.ATTRIBUTE)).andReturn('ID').anyTimes()
+    expect(mockRequest.getAttribute(RequestTiming.ATTRIBUTE)).andReturn(null).anyTimes()
+    mockRequest.setAttribute(eq(RequestTiming.ATTRIBUTE), anyObject())
+    expectLastCall().anyTimes()
     expect(mockIdentity.getUserPrincipal()).andReturn(null)
     expect(mockAuthentication.getUserIdentity()).andReturn(mockIdentity)
 
@@ -120,6 +134,10 @@ class SuCxfAuthenticatorTest {
     expect(SpocpRoleAuthorizor.getInstance()).andReturn(mockAuthorizor)
 
     expect(mockRequest.getRequestURI()).andReturn('').anyTimes()
+    expect(mockRequest.getAttribute(CorrelationIdHandler.ATTRIBUTE)).andReturn('ID').anyTimes()
+    expect(mockRequest.getAttribute(RequestTiming.ATTRIBUTE)).andReturn(null).anyTimes()
+    mockRequest.setAttribute(eq(RequestTiming.ATTRIBUTE), anyObject())
+    expectLastCall().anyTimes()
     expect(mockPrincipal.getName()).andReturn('')
     expect(mockAuthorizor.checkRole(anyString(), anyString())).andReturn(true)
     expect(mockIdentity.getUserPrincipal()).andReturn(mockPrincipal).anyTimes()
@@ -135,6 +153,39 @@ class SuCxfAuthenticatorTest {
     assert ret == mockAuthentication
   }
 
+  @Test
+  void "validateRequest sends 429 when the principal is over its rate limit"() {
+    def mockAuthentication = createMock(UserAuthentication)
+    def mockIdentity       = createMock(UserIdentity)
+    def mockPrincipal      = createMock(Principal)
+    def mockRequest        = createMock(HttpServletRequest)
+    def mockResponse       = createMock(HttpServletResponse)
+    def rateLimiter        = createMock(RateLimiter)
+
+    expect(mockRequest.getRequestURI()).andReturn('').anyTimes()
+    expect(mockRequest.getAttribute(CorrelationIdHandler.ATTRIBUTE)).andReturn('ID').anyTimes()
+    expect(mockRequest.getAttribute(RequestTiming.ATTRIBUTE)).andReturn(null).anyTimes()
+    mockRequest.setAttribute(eq(RequestTiming.ATTRIBUTE), anyObject())
+    expectLastCall().anyTimes()
+    expect(mockPrincipal.getName()).andReturn('foo')
+    expect(mockIdentity.getUserPrincipal()).andReturn(mockPrincipal).anyTimes()
+    expect(mockAuthentication.getUserIdentity()).andReturn(mockIdentity)
+    expect(rateLimiter.tryAcquire('foo')).andReturn(1500000000L)
+    mockResponse.setHeader('Retry-After', '2')
+    mockResponse.sendError(429, 'Rate limit exceeded')
+
+    def mock = createPartialMock(SuCxfAuthenticator, 'doValidateRequest', 'isWsdlRequest')
+    mock.rateLimiter = rateLimiter
+    expectPrivate(mock, 'doValidateRequest', mockRequest, mockResponse, false).andReturn(mockAuthentication)
+    expectPrivate(mock, 'isWsdlRequest', anyObject()).andReturn(false)
+    replayAll(mock, mockAuthentication, mockIdentity, mockPrincipal, mockRequest, mockResponse, rateLimiter)
+
+    def ret = mock.validateRequest(mockRequest, mockResponse, false)
+
+    assert ret == Authentication.SEND_FAILURE
+    verify(mockResponse)
+  }
+
   @Test
   void "isWsdlRequest returns true if queryString==wsdl"() {
     def request = createMock(HttpServletRequest)
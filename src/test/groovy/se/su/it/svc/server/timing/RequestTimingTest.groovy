@@ -0,0 +1,97 @@
+package se.su.it.svc.server.timing
+
+import org.junit.Test
+import se.su.it.svc.server.filter.CorrelationIdHandler
+
+import javax.servlet.http.HttpServletRequest
+
+import static org.easymock.EasyMock.anyObject
+import static org.easymock.EasyMock.eq
+import static org.easymock.EasyMock.expect
+import static org.easymock.EasyMock.expectLastCall
+import static org.powermock.api.easymock.PowerMock.createMock
+import static org.powermock.api.easymock.PowerMock.replay
+import static org.powermock.api.easymock.PowerMock.verify
+
+class RequestTimingTest {
+
+  @Test
+  void "spans add their duration to the stage"() {
+    def timing = new RequestTiming('ID')
+
+    def first = timing.start(RequestTiming.Stage.INVOCATION)
+    Thread.sleep(2)
+    first.end()
+    def afterFirst = timing.getDuration(RequestTiming.Stage.INVOCATION)
+
+    def second = timing.start(RequestTiming.Stage.INVOCATION)
+    Thread.sleep(2)
+    second.end()
+
+    assert afterFirst >= 2000000L
+    assert timing.getDuration(RequestTiming.Stage.INVOCATION) >= afterFirst + 2000000L
+    assert timing.getDuration(RequestTiming.Stage.AUDIT) == 0L
+  }
+
+  @Test
+  void "ending a span twice has no effect"() {
+    def timing = new RequestTiming('ID')
+
+    def span = timing.start(RequestTiming.Stage.AUDIT)
+    span.end()
+    def duration = timing.getDuration(RequestTiming.Stage.AUDIT)
+    Thread.sleep(2)
+    span.end()
+
+    assert timing.getDuration(RequestTiming.Stage.AUDIT) == duration
+  }
+
+  @Test
+  void "finish ends serialization without stages timed after it"() {
+    def timing = new RequestTiming('ID')
+
+    timing.startSerialization()
+    def audit = timing.start(RequestTiming.Stage.AUDIT)
+    Thread.sleep(5)
+    audit.end()
+    timing.finish()
+
+    assert timing.getDuration(RequestTiming.Stage.SERIALIZATION) < timing.getDuration(RequestTiming.Stage.AUDIT)
+  }
+
+  @Test
+  void "start returns NONE without a request"() {
+    assert RequestTiming.start(null, RequestTiming.Stage.AUDIT, 'foo').is(RequestTiming.Span.NONE)
+
+    RequestTiming.Span.NONE.end()
+  }
+
+  @Test
+  void "getOrCreate stores timing on request"() {
+    def request = createMock(HttpServletRequest)
+    expect(request.getAttribute(RequestTiming.ATTRIBUTE)).andReturn(null)
+    expect(request.getAttribute(CorrelationIdHandler.ATTRIBUTE)).andReturn('ID')
+    request.setAttribute(eq(RequestTiming.ATTRIBUTE), anyObject())
+    expectLastCall()
+    replay(request)
+
+    def ret = RequestTiming.getOrCreate(request)
+
+    verify(request)
+    assert ret.id == 'ID'
+  }
+
+  @Test
+  void "start sets operation and principal"() {
+    def timing = new RequestTiming('ID')
+    def request = createMock(HttpServletRequest)
+    expect(request.getAttribute(RequestTiming.ATTRIBUTE)).andReturn(timing)
+    expect(request.getRemoteUser()).andReturn('foo')
+    replay(request)
+
+    RequestTiming.start(request, RequestTiming.Stage.SANITIZING, 'bar').end()
+
+    assert timing.operation == 'bar'
+    assert timing.principal == 'foo'
+  }
+}
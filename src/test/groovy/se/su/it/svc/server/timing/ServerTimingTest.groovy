@@ -0,0 +1,98 @@
+package se.su.it.svc.server.timing
+
+import org.junit.Test
+
+import javax.servlet.http.HttpServletRequest
+import javax.servlet.http.HttpServletResponse
+
+import static org.easymock.EasyMock.expect
+import static org.powermock.api.easymock.PowerMock.createMock
+import static org.powermock.api.easymock.PowerMock.replay
+import static org.powermock.api.easymock.PowerMock.verify
+
+class ServerTimingTest {
+
+  @Test
+  void "isRequested is false by default"() {
+    def request = createMock(HttpServletRequest)
+    replay(request)
+
+    assert !new ServerTiming().isRequested(request)
+  }
+
+  @Test
+  void "isRequested is true when enabled"() {
+    def request = createMock(HttpServletRequest)
+    replay(request)
+
+    def serverTiming = new ServerTiming()
+    serverTiming.enabled = true
+
+    assert serverTiming.isRequested(request)
+  }
+
+  @Test
+  void "isRequested is true for request header with token"() {
+    def request = createMock(HttpServletRequest)
+    expect(request.getHeader('X-Timing')).andReturn('secret')
+    replay(request)
+
+    def serverTiming = new ServerTiming()
+    serverTiming.requestHeader = 'X-Timing'
+    serverTiming.token = 'secret'
+
+    assert serverTiming.isRequested(request)
+  }
+
+  @Test
+  void "isRequested is false for request header with wrong token"() {
+    def request = createMock(HttpServletRequest)
+    expect(request.getHeader('X-Server-Timing')).andReturn('guess')
+    replay(request)
+
+    def serverTiming = new ServerTiming()
+    serverTiming.token = 'secret'
+
+    assert !serverTiming.isRequested(request)
+  }
+
+  @Test
+  void "format lists stages that took time in milliseconds"() {
+    def timing = new RequestTiming('ID')
+    timing.add(RequestTiming.Stage.AUTHENTICATION, 1250000L)
+    timing.add(RequestTiming.Stage.INVOCATION, 12004000L)
+    timing.add(RequestTiming.Stage.SERIALIZATION, 3000000L)
+
+    assert ServerTiming.format(timing) == 'auth;dur=1.250, invoke;dur=12.004'
+  }
+
+  @Test
+  void "addHeader adds header to response"() {
+    def timing = new RequestTiming('ID')
+    timing.add(RequestTiming.Stage.INVOCATION, 2000000L)
+
+    def request = createMock(HttpServletRequest)
+    expect(request.getAttribute(RequestTiming.ATTRIBUTE)).andReturn(timing)
+    def response = createMock(HttpServletResponse)
+    expect(response.isCommitted()).andReturn(false)
+    response.addHeader(ServerTiming.HEADER, 'invoke;dur=2.000')
+    replay(request, response)
+
+    def serverTiming = new ServerTiming()
+    serverTiming.enabled = true
+    serverTiming.addHeader(request, response)
+
+    verify(response)
+  }
+
+  @Test
+  void "addHeader does nothing unless requested"() {
+    def request = createMock(HttpServletRequest)
+    def response = createMock(HttpServletResponse)
+    replay(request, response)
+
+    new ServerTiming().addHeader(request, response)
+
+    verify(request, response)
+  }
+}
@@ -0,0 +1,79 @@
+package se.su.it.svc.server.timing
+
+import org.junit.Test
+
+class SlowRequestRecorderTest {
+
+  private static SlowRequest request(long duration) {
+    new SlowRequest(System.currentTimeMillis(), duration, 'ID', '/', 200, 'foo', 0L, null)
+  }
+
+  @Test
+  void "record keeps the slowest requests"() {
+    def recorder = new SlowRequestRecorder()
+    recorder.size = 3
+    recorder.threshold = 10000
+
+    [5, 1, 9, 3, 7, 2].each { recorder.record(request(it)) }
+
+    assert recorder.slowest*.duration == [9L, 7L, 5L]
+    assert recorder.overThreshold.empty
+  }
+
+  @Test
+  void "isCandidate rejects requests faster than every kept request"() {
+    def recorder = new SlowRequestRecorder()
+    recorder.size = 2
+    recorder.threshold = 10000
+
+    assert recorder.isCandidate(1)
+
+    recorder.record(request(5))
+    recorder.record(request(7))
+
+    assert !recorder.isCandidate(5)
+    assert recorder.isCandidate(6)
+    assert recorder.isCandidate(10000)
+  }
+
+  @Test
+  void "record keeps the latest requests over the threshold"() {
+    def recorder = new SlowRequestRecorder()
+    recorder.size = 1
+    recorder.maxOverThreshold = 2
+    recorder.threshold = 100
+
+    [100, 200, 300, 50].each { recorder.record(request(it)) }
+
+    assert recorder.overThreshold*.duration.sort() == [200L, 300L]
+  }
+
+  @Test
+  void "record starts a new window"() {
+    def recorder = new SlowRequestRecorder()
+    recorder.size = 1
+    recorder.window = 20
+
+    recorder.record(request(9))
+    Thread.sleep(30)
+    recorder.record(request(1))
+
+    assert recorder.slowest*.duration == [9L, 1L]
+
+    Thread.sleep(50)
+
+    assert recorder.slowest.empty
+  }
+
+  @Test
+  void "SlowRequest reports sizes but hides masked values"() {
+    def timing = new RequestTiming('ID')
+    timing.setArguments(['secret', 'foo', [1, 2, 3] as byte[], [a: 1]] as Object[], [true, false, false, false] as boolean[])
+    timing.setResult('bar', true)
+
+    def slow = new SlowRequest(0L, 1L, 'ID', '/', 200, 'foo', 0L, timing)
+
+    assert slow.argumentSizes == '[******, 3 chars, byte[3], 1 entries]'
+    assert slow.resultSize == '******'
+  }
+}
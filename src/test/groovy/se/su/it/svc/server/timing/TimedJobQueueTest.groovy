@@ -0,0 +1,35 @@
+package se.su.it.svc.server.timing
+
+import org.junit.Test
+
+class TimedJobQueueTest {
+
+  @Test
+  void "jobs know how long they waited"() {
+    def queue = new TimedJobQueue()
+    def waited = []
+    queue.offer({ waited << TimedJobQueue.consumeWait() << TimedJobQueue.consumeWait() } as Runnable)
+
+    Thread.sleep(5)
+    queue.poll().run()
+
+    assert waited[0] >= 5000000L
+    assert waited[1] == 0L
+    assert TimedJobQueue.consumeWait() == 0L
+  }
+
+  @Test
+  void "offer rejects jobs over the limit"() {
+    def queue = new TimedJobQueue()
+    queue.limit = 1
+
+    assert queue.offer({} as Runnable)
+    assert !queue.offer({} as Runnable)
+    assert queue.rejected == 1L
+
+    queue.limit = 0
+
+    assert queue.offer({} as Runnable)
+    assert queue.limit == Integer.MAX_VALUE
+  }
+}